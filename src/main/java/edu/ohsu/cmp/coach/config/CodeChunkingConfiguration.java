@@ -0,0 +1,94 @@
+package edu.ohsu.cmp.coach.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@ConfigurationProperties(prefix="fhir.code-chunking")
+@Configuration
+public class CodeChunkingConfiguration {
+
+    private int maxCodesPerQuery = 32;
+    private int maxUrlLength = 8192;
+    private int threads = 8;
+
+    // keyed by FHIR server host, e.g. "fhir.epic.com"
+    private Map<String, Limits> servers = new HashMap<>();
+
+    public int getMaxCodesPerQuery() {
+        return maxCodesPerQuery;
+    }
+
+    public void setMaxCodesPerQuery(int maxCodesPerQuery) {
+        this.maxCodesPerQuery = maxCodesPerQuery;
+    }
+
+    public int getMaxUrlLength() {
+        return maxUrlLength;
+    }
+
+    public void setMaxUrlLength(int maxUrlLength) {
+        this.maxUrlLength = maxUrlLength;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public Map<String, Limits> getServers() {
+        return servers;
+    }
+
+    public void setServers(Map<String, Limits> servers) {
+        this.servers = servers;
+    }
+
+    /**
+     * @return the configured maximum number of codes per query for the specified host, which falls back to the
+     * default if it isn't overridden for that host
+     */
+    public int getMaxCodesPerQuery(String host) {
+        Limits override = servers.get(host);
+        return override != null && override.getMaxCodesPerQuery() != null ?
+                override.getMaxCodesPerQuery() :
+                maxCodesPerQuery;
+    }
+
+    /**
+     * @return the configured maximum URL length for the specified host, which falls back to the default if it isn't
+     * overridden for that host
+     */
+    public int getMaxUrlLength(String host) {
+        Limits override = servers.get(host);
+        return override != null && override.getMaxUrlLength() != null ?
+                override.getMaxUrlLength() :
+                maxUrlLength;
+    }
+
+    public static class Limits {
+        private Integer maxCodesPerQuery;
+        private Integer maxUrlLength;
+
+        public Integer getMaxCodesPerQuery() {
+            return maxCodesPerQuery;
+        }
+
+        public void setMaxCodesPerQuery(Integer maxCodesPerQuery) {
+            this.maxCodesPerQuery = maxCodesPerQuery;
+        }
+
+        public Integer getMaxUrlLength() {
+            return maxUrlLength;
+        }
+
+        public void setMaxUrlLength(Integer maxUrlLength) {
+            this.maxUrlLength = maxUrlLength;
+        }
+    }
+}
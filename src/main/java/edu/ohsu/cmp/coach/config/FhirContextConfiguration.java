@@ -0,0 +1,28 @@
+package edu.ohsu.cmp.coach.config;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.ohsu.cmp.coach.http.PooledHttpClient;
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class FhirContextConfiguration {
+
+    @Value("${socket.timeout}")
+    private Integer socketTimeout;
+
+    /**
+     * exposes the FhirContext shared by the whole application (see FhirUtil.getFhirContext()), for injection.  FHIR
+     * clients send their requests through the shared connection pool, guarded per host just as every other HTTP
+     * request is, but without cookies, so none set in response to one session's request is sent with another's
+     */
+    @Bean
+    public FhirContext fhirContext(PooledHttpClient pooledHttpClient) {
+        FhirContext ctx = FhirUtil.getFhirContext();
+        ctx.getRestfulClientFactory().setSocketTimeout(socketTimeout);
+        FhirUtil.setHttpClient(pooledHttpClient.getFhirHttpClient());
+        return ctx;
+    }
+}
@@ -0,0 +1,40 @@
+package edu.ohsu.cmp.coach.config;
+
+import edu.ohsu.cmp.coach.http.PooledHttpClient;
+import edu.ohsu.cmp.coach.service.MetricsService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class HttpClientConfiguration {
+
+    @Value("${http.client.max-connections}")
+    private Integer maxConnections;
+
+    @Value("${http.client.max-connections-per-route}")
+    private Integer maxConnectionsPerRoute;
+
+    @Value("${http.client.connect-timeout-ms}")
+    private Integer connectTimeout;
+
+    @Value("${http.client.connection-request-timeout-ms}")
+    private Integer connectionRequestTimeout;
+
+    @Value("${http.client.socket-timeout-ms}")
+    private Integer socketTimeout;
+
+    @Value("${http.client.keep-alive-ms}")
+    private Long keepAlive;
+
+    /**
+     * builds the HTTP client shared by every HttpRequest, and registers it as the default
+     */
+    @Bean(destroyMethod = "close")
+    public PooledHttpClient pooledHttpClient(HttpClientResilienceConfiguration resilience, MetricsService metricsService) {
+        PooledHttpClient client = new PooledHttpClient(maxConnections, maxConnectionsPerRoute, connectTimeout,
+                connectionRequestTimeout, socketTimeout, keepAlive, resilience, metricsService);
+        PooledHttpClient.setDefault(client);
+        return client;
+    }
+}
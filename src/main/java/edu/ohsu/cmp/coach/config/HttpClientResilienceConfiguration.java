@@ -0,0 +1,181 @@
+package edu.ohsu.cmp.coach.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Settings for the per-host resilience layer (concurrency limit, circuit breaker, adaptive timeout, retry budget and
+ * hedged reads) applied to every request made through the shared HTTP client.  See ResilientHttpClient.
+ */
+@ConfigurationProperties(prefix="http.client.resilience")
+@Configuration
+public class HttpClientResilienceConfiguration {
+
+    private boolean enabled = true;
+
+    private int maxConcurrentRequests = 20;
+    private long maxWaitMs = 10000;
+
+    private int circuitBreakerWindowSize = 20;
+    private int circuitBreakerMinimumRequests = 10;
+    private int circuitBreakerFailureRateThreshold = 50;
+    private long circuitBreakerOpenSeconds = 30;
+
+    private boolean adaptiveTimeoutEnabled = true;
+    private int adaptiveTimeoutMinimumSamples = 20;
+    private int adaptiveTimeoutMultiplier = 4;
+    private int adaptiveTimeoutMinMs = 10000;
+    private int latencyWindowSize = 200;
+
+    private int maxRetries = 2;
+    private double retryBudgetRatio = 0.1;
+    private double retryBudgetMaxTokens = 10;
+    private long retryBackoffMs = 200;
+
+    private boolean hedgingEnabled = false;
+    private long hedgingMinDelayMs = 50;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    public long getMaxWaitMs() {
+        return maxWaitMs;
+    }
+
+    public void setMaxWaitMs(long maxWaitMs) {
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    public int getCircuitBreakerWindowSize() {
+        return circuitBreakerWindowSize;
+    }
+
+    public void setCircuitBreakerWindowSize(int circuitBreakerWindowSize) {
+        this.circuitBreakerWindowSize = circuitBreakerWindowSize;
+    }
+
+    public int getCircuitBreakerMinimumRequests() {
+        return circuitBreakerMinimumRequests;
+    }
+
+    public void setCircuitBreakerMinimumRequests(int circuitBreakerMinimumRequests) {
+        this.circuitBreakerMinimumRequests = circuitBreakerMinimumRequests;
+    }
+
+    public int getCircuitBreakerFailureRateThreshold() {
+        return circuitBreakerFailureRateThreshold;
+    }
+
+    public void setCircuitBreakerFailureRateThreshold(int circuitBreakerFailureRateThreshold) {
+        this.circuitBreakerFailureRateThreshold = circuitBreakerFailureRateThreshold;
+    }
+
+    public long getCircuitBreakerOpenSeconds() {
+        return circuitBreakerOpenSeconds;
+    }
+
+    public void setCircuitBreakerOpenSeconds(long circuitBreakerOpenSeconds) {
+        this.circuitBreakerOpenSeconds = circuitBreakerOpenSeconds;
+    }
+
+    public boolean isAdaptiveTimeoutEnabled() {
+        return adaptiveTimeoutEnabled;
+    }
+
+    public void setAdaptiveTimeoutEnabled(boolean adaptiveTimeoutEnabled) {
+        this.adaptiveTimeoutEnabled = adaptiveTimeoutEnabled;
+    }
+
+    public int getAdaptiveTimeoutMinimumSamples() {
+        return adaptiveTimeoutMinimumSamples;
+    }
+
+    public void setAdaptiveTimeoutMinimumSamples(int adaptiveTimeoutMinimumSamples) {
+        this.adaptiveTimeoutMinimumSamples = adaptiveTimeoutMinimumSamples;
+    }
+
+    public int getAdaptiveTimeoutMultiplier() {
+        return adaptiveTimeoutMultiplier;
+    }
+
+    public void setAdaptiveTimeoutMultiplier(int adaptiveTimeoutMultiplier) {
+        this.adaptiveTimeoutMultiplier = adaptiveTimeoutMultiplier;
+    }
+
+    public int getAdaptiveTimeoutMinMs() {
+        return adaptiveTimeoutMinMs;
+    }
+
+    public void setAdaptiveTimeoutMinMs(int adaptiveTimeoutMinMs) {
+        this.adaptiveTimeoutMinMs = adaptiveTimeoutMinMs;
+    }
+
+    public int getLatencyWindowSize() {
+        return latencyWindowSize;
+    }
+
+    public void setLatencyWindowSize(int latencyWindowSize) {
+        this.latencyWindowSize = latencyWindowSize;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public double getRetryBudgetRatio() {
+        return retryBudgetRatio;
+    }
+
+    public void setRetryBudgetRatio(double retryBudgetRatio) {
+        this.retryBudgetRatio = retryBudgetRatio;
+    }
+
+    public double getRetryBudgetMaxTokens() {
+        return retryBudgetMaxTokens;
+    }
+
+    public void setRetryBudgetMaxTokens(double retryBudgetMaxTokens) {
+        this.retryBudgetMaxTokens = retryBudgetMaxTokens;
+    }
+
+    public long getRetryBackoffMs() {
+        return retryBackoffMs;
+    }
+
+    public void setRetryBackoffMs(long retryBackoffMs) {
+        this.retryBackoffMs = retryBackoffMs;
+    }
+
+    public boolean isHedgingEnabled() {
+        return hedgingEnabled;
+    }
+
+    public void setHedgingEnabled(boolean hedgingEnabled) {
+        this.hedgingEnabled = hedgingEnabled;
+    }
+
+    public long getHedgingMinDelayMs() {
+        return hedgingMinDelayMs;
+    }
+
+    public void setHedgingMinDelayMs(long hedgingMinDelayMs) {
+        this.hedgingMinDelayMs = hedgingMinDelayMs;
+    }
+}
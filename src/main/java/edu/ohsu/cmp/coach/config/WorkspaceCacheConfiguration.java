@@ -0,0 +1,83 @@
+package edu.ohsu.cmp.coach.config;
+
+import edu.ohsu.cmp.coach.workspace.WorkspaceSlot;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+@ConfigurationProperties(prefix="workspace.cache")
+@Configuration
+public class WorkspaceCacheConfiguration {
+
+    private Settings defaults = new Settings(Duration.ofHours(6), null);
+
+    // keyed by WorkspaceSlot.getConfigKey(), e.g. "remote-blood-pressures"
+    private Map<String, Settings> slots = new HashMap<>();
+
+    public Settings getDefaults() {
+        return defaults;
+    }
+
+    public void setDefaults(Settings defaults) {
+        this.defaults = defaults;
+    }
+
+    public Map<String, Settings> getSlots() {
+        return slots;
+    }
+
+    public void setSlots(Map<String, Settings> slots) {
+        this.slots = slots;
+    }
+
+    /**
+     * @return the effective settings for the specified slot, where anything not overridden for that slot
+     * falls back to the defaults
+     */
+    public Settings getSettings(WorkspaceSlot slot) {
+        Settings override = slots.get(slot.getConfigKey());
+        if (override == null) return defaults;
+
+        return new Settings(
+                override.getExpireAfterWrite() != null ? override.getExpireAfterWrite() : defaults.getExpireAfterWrite(),
+                override.getRefreshAfterWrite() != null ? override.getRefreshAfterWrite() : defaults.getRefreshAfterWrite()
+        );
+    }
+
+    public static class Settings {
+        private Duration expireAfterWrite;
+        private Duration refreshAfterWrite;
+
+        public Settings() {
+        }
+
+        public Settings(Duration expireAfterWrite, Duration refreshAfterWrite) {
+            this.expireAfterWrite = expireAfterWrite;
+            this.refreshAfterWrite = refreshAfterWrite;
+        }
+
+        public Duration getExpireAfterWrite() {
+            return expireAfterWrite;
+        }
+
+        public void setExpireAfterWrite(Duration expireAfterWrite) {
+            this.expireAfterWrite = expireAfterWrite;
+        }
+
+        public Duration getRefreshAfterWrite() {
+            return refreshAfterWrite;
+        }
+
+        public void setRefreshAfterWrite(Duration refreshAfterWrite) {
+            this.refreshAfterWrite = refreshAfterWrite;
+        }
+
+        public boolean isRefreshEnabled() {
+            return refreshAfterWrite != null && ! refreshAfterWrite.isZero() && ! refreshAfterWrite.isNegative() &&
+                    (expireAfterWrite == null || refreshAfterWrite.compareTo(expireAfterWrite) < 0);
+        }
+    }
+}
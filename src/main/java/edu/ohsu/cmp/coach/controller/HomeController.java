@@ -6,6 +6,7 @@ import edu.ohsu.cmp.coach.exception.DataException;
 import edu.ohsu.cmp.coach.model.*;
 import edu.ohsu.cmp.coach.model.cqfruler.CDSHook;
 import edu.ohsu.cmp.coach.model.recommendation.Card;
+import edu.ohsu.cmp.coach.model.recommendation.RecommendationModel;
 import edu.ohsu.cmp.coach.model.redcap.RandomizationGroup;
 import edu.ohsu.cmp.coach.model.redcap.RedcapParticipantInfo;
 import edu.ohsu.cmp.coach.service.*;
@@ -13,12 +14,14 @@ import edu.ohsu.cmp.coach.session.ProvisionalSessionCacheData;
 import edu.ohsu.cmp.coach.session.SessionService;
 import edu.ohsu.cmp.coach.util.FhirUtil;
 import edu.ohsu.cmp.coach.workspace.UserWorkspace;
+import edu.ohsu.cmp.coach.workspace.WorkspaceSlot;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -26,13 +29,17 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.servlet.http.HttpSession;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 @Controller
 public class HomeController extends BaseController {
+    private static final String VITALS_VERSION_HEADER = "X-Vitals-Version";
+
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     @Autowired
@@ -102,7 +109,7 @@ public class HomeController extends BaseController {
             model.addAttribute("pageScripts", new String[] {
                     "science.js/science.v1.js",
                     "science.js/lib/d3/d3.js",
-                    "home.js?v=3",
+                    "home.js?v=5",
                     "recommendations.js?v=2",
                     "bpchart.js"
             });
@@ -246,14 +253,74 @@ public class HomeController extends BaseController {
 
     @PostMapping("blood-pressure-observations-list")
     public ResponseEntity<List<BloodPressureModel>> getBloodPressureObservations(HttpSession session) throws DataException {
+        UserWorkspace workspace = userWorkspaceService.get(session.getId());
+        long version = workspace.getVitalsVersion();     // read before the data, so a concurrent change isn't missed
         List<BloodPressureModel> list = bpService.getBloodPressureReadings(session.getId());
-        return new ResponseEntity<>(list, HttpStatus.OK);
+        return ResponseEntity.ok()
+                .header(VITALS_VERSION_HEADER, String.valueOf(version))
+                .body(list);
     }
 
     @PostMapping("pulse-observations-list")
     public ResponseEntity<List<PulseModel>> getPulseObservations(HttpSession session) throws DataException {
+        UserWorkspace workspace = userWorkspaceService.get(session.getId());
+        long version = workspace.getVitalsVersion();
         List<PulseModel> list = pulseService.getPulseReadings(session.getId());
-        return new ResponseEntity<>(list, HttpStatus.OK);
+        return ResponseEntity.ok()
+                .header(VITALS_VERSION_HEADER, String.valueOf(version))
+                .body(list);
+    }
+
+    @PostMapping("vitals-version")
+    public ResponseEntity<VitalsVersionModel> getVitalsVersion(HttpSession session) {
+        UserWorkspace workspace = userWorkspaceService.get(session.getId());
+        return new ResponseEntity<>(new VitalsVersionModel(workspace.getVitalsVersion(),
+                workspace.isVitalsRefreshing()), HttpStatus.OK);
+    }
+
+    /**
+     * streams workspace data to the home page as server-sent events, each one sent as soon as the slots it depends
+     * on have been built.  this replaces individual requests for each, which would otherwise each hold a request
+     * thread while waiting for those slots.
+     */
+    @GetMapping(value = "events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter getEvents(HttpSession session) {
+        String sessionId = session.getId();
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        SseEmitter emitter = workspace.openEventStream();
+
+        workspace.sendEvent(emitter, UserWorkspace.OMRON_STATUS_EVENT, workspace.getOmronSynchronizationStatus());
+
+        workspace.sendWhenBuilt(emitter, "blood-pressures", null,
+                List.of(WorkspaceSlot.REMOTE_BLOOD_PRESSURES),
+                () -> {
+                    long version = workspace.getVitalsVersion();
+                    return new BloodPressureListModel(version, bpService.getBloodPressureReadings(sessionId));
+                });
+
+        workspace.sendWhenBuilt(emitter, "medications", null,
+                List.of(WorkspaceSlot.MEDICATIONS),
+                () -> buildMedicationsList(sessionId));
+
+        workspace.sendWhenBuilt(emitter, "adverse-events", null,
+                List.of(WorkspaceSlot.REMOTE_ADVERSE_EVENTS, WorkspaceSlot.HYPOTENSION_ADVERSE_EVENTS),
+                () -> buildAdverseEventsList(sessionId));
+
+        try {
+            // sent in order, each as soon as it and every recommendation before it is ready
+            CompletableFuture<Void> previous = null;
+            for (CDSHook hook : recommendationService.getOrderedCDSHooks(sessionId)) {
+                String hookId = hook.getId();
+                previous = workspace.sendWhenCardsBuilt(emitter, "recommendation", hookId, previous,
+                        () -> new RecommendationModel(hookId, workspace.getCards(hookId)));
+            }
+
+        } catch (Exception e) {
+            // the home page wouldn't have listed any recommendations either
+            logger.error("caught " + e.getClass().getName() + " getting recommendations list - " + e.getMessage(), e);
+        }
+
+        return emitter;
     }
 
     @PostMapping("recommendation")
@@ -286,9 +353,7 @@ public class HomeController extends BaseController {
     @PostMapping("medications-list")
     public ResponseEntity<List<MedicationModel>> getMedications(HttpSession session) {
         try {
-            List<MedicationModel> list = filterDuplicates(medicationService.getAntihypertensiveMedications(session.getId()));
-
-            return new ResponseEntity<>(new ArrayList<>(list), HttpStatus.OK);
+            return new ResponseEntity<>(buildMedicationsList(session.getId()), HttpStatus.OK);
 
         } catch (HttpServerErrorException.InternalServerError ise) {
             logger.error("caught " + ise.getClass().getName() + " getting medications - " + ise.getMessage(), ise);
@@ -299,15 +364,7 @@ public class HomeController extends BaseController {
     @PostMapping("adverse-events-list")
     public ResponseEntity<List<AdverseEventModel>> getAdverseEvents(HttpSession session) throws DataException {
         try {
-            List<AdverseEventModel> list = new ArrayList<>();
-
-            for (AdverseEventModel ae : adverseEventService.getAdverseEvents(session.getId())) {
-                if (ae.hasOutcome(Outcome.ONGOING)) {
-                    list.add(ae);
-                }
-            }
-
-            return new ResponseEntity<>(new ArrayList<>(list), HttpStatus.OK);
+            return new ResponseEntity<>(buildAdverseEventsList(session.getId()), HttpStatus.OK);
 
         } catch (HttpServerErrorException.InternalServerError ise) {
             logger.error("caught " + ise.getClass().getName() + " getting adverse events - " + ise.getMessage(), ise);
@@ -315,6 +372,20 @@ public class HomeController extends BaseController {
         }
     }
 
+    private List<MedicationModel> buildMedicationsList(String sessionId) {
+        return filterDuplicates(medicationService.getAntihypertensiveMedications(sessionId));
+    }
+
+    private List<AdverseEventModel> buildAdverseEventsList(String sessionId) throws DataException {
+        List<AdverseEventModel> list = new ArrayList<>();
+        for (AdverseEventModel ae : adverseEventService.getAdverseEvents(sessionId)) {
+            if (ae.hasOutcome(Outcome.ONGOING)) {
+                list.add(ae);
+            }
+        }
+        return list;
+    }
+
     private List<MedicationModel> filterDuplicates(List<MedicationModel> modelList) {
         Map<String, MedicationModel> map = new LinkedHashMap<String, MedicationModel>();
 
@@ -135,7 +135,7 @@ public class VitalsController extends BaseController {
             }
         }
 
-        workspace.clearVitalsCaches();
+        workspace.refreshVitalsCaches();
 
         boolean modified = hypotensionAdverseEventService.refresh(session.getId());
 
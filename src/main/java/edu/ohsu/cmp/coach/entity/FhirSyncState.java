@@ -0,0 +1,108 @@
+package edu.ohsu.cmp.coach.entity;
+
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * The local copy of the results of one of a patient's FHIR searches, along with the _lastUpdated watermark from
+ * which later searches need only fetch what's changed.
+ */
+@Entity
+@Table(name = "fhir_sync_state")
+public class FhirSyncState {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    private Long patId;
+    private String resourceType;
+    private String queryHash;
+    private Date watermark;
+    private Date lastFullSync;
+    private Date lastSynced;
+    private Integer resourceCount;
+
+    @Lob
+    private byte[] bundleData;      // gzip-compressed JSON, encrypted with AES-GCM
+
+    protected FhirSyncState() {
+    }
+
+    public FhirSyncState(Long patId, String resourceType, String queryHash) {
+        this.patId = patId;
+        this.resourceType = resourceType;
+        this.queryHash = queryHash;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getPatId() {
+        return patId;
+    }
+
+    public void setPatId(Long patId) {
+        this.patId = patId;
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    public void setResourceType(String resourceType) {
+        this.resourceType = resourceType;
+    }
+
+    public String getQueryHash() {
+        return queryHash;
+    }
+
+    public void setQueryHash(String queryHash) {
+        this.queryHash = queryHash;
+    }
+
+    public Date getWatermark() {
+        return watermark;
+    }
+
+    public void setWatermark(Date watermark) {
+        this.watermark = watermark;
+    }
+
+    public Date getLastFullSync() {
+        return lastFullSync;
+    }
+
+    public void setLastFullSync(Date lastFullSync) {
+        this.lastFullSync = lastFullSync;
+    }
+
+    public Date getLastSynced() {
+        return lastSynced;
+    }
+
+    public void setLastSynced(Date lastSynced) {
+        this.lastSynced = lastSynced;
+    }
+
+    public Integer getResourceCount() {
+        return resourceCount;
+    }
+
+    public void setResourceCount(Integer resourceCount) {
+        this.resourceCount = resourceCount;
+    }
+
+    public byte[] getBundleData() {
+        return bundleData;
+    }
+
+    public void setBundleData(byte[] bundleData) {
+        this.bundleData = bundleData;
+    }
+}
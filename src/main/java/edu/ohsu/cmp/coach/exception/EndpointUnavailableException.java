@@ -0,0 +1,13 @@
+package edu.ohsu.cmp.coach.exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request is refused without being sent, as its host's circuit breaker is open or too many requests
+ * to that host are already in flight
+ */
+public class EndpointUnavailableException extends IOException {
+    public EndpointUnavailableException(String message) {
+        super(message);
+    }
+}
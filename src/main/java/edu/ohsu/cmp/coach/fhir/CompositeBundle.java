@@ -6,35 +6,56 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Resource;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Combines the entries of any number of Bundles and Resources into a single collection.
+ * <p>
+ * Consumed entries and resources are referenced, not copied, so they're shared with their sources and must not be
+ * modified through a CompositeBundle.  A concrete Bundle is only built if and when getBundle() is called.
+ */
 public class CompositeBundle {
-    private Bundle bundle;
-
-    public CompositeBundle() {
-        bundle = new Bundle();
-        bundle.setType(Bundle.BundleType.COLLECTION);
-    }
+    private final List<Bundle.BundleEntryComponent> entries = new ArrayList<>();
+    private Bundle bundle = null;
 
     public void consume(IBaseResource resource) {
         if (resource != null) {
             if (resource instanceof Bundle) {
-                for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
-                    bundle.addEntry(entry.copy());
-                }
+                entries.addAll(((Bundle) resource).getEntry());
 
             } else if (resource instanceof Resource) {
-                FhirUtil.appendResourceToBundle(bundle, (Resource) resource);
+                entries.add(FhirUtil.buildBundleEntry((Resource) resource));
 
             } else {
                 throw new CaseNotHandledException("couldn't handle " + resource.getClass().getName());
             }
+            bundle = null;
         }
     }
 
+    /**
+     * @return a read-only view of the consumed entries
+     */
+    public List<Bundle.BundleEntryComponent> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return a collection Bundle holding the consumed entries.  the Bundle itself is the caller's to modify, but
+     * its entries are shared with the sources they were consumed from
+     */
     public Bundle getBundle() {
+        if (bundle == null) {
+            bundle = new Bundle();
+            bundle.setType(Bundle.BundleType.COLLECTION);
+            bundle.setEntry(new ArrayList<>(entries));
+        }
         return bundle;
     }
 
     public int size() {
-        return bundle.hasEntry() ? bundle.getEntry().size() : 0;
+        return entries.size();
     }
 }
@@ -0,0 +1,256 @@
+package edu.ohsu.cmp.coach.fhir;
+
+import edu.ohsu.cmp.coach.model.ResourceWithBundle;
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily iterates over the entries of a paginated FHIR search, page by page as they arrive.
+ * <p>
+ * Up to readAhead subsequent pages are fetched in the background while earlier pages are being consumed, and each
+ * page has the validity function applied to it as soon as it's fetched, so at most readAhead + 1 pages are held in
+ * memory at once.  If no background thread is available, the next page is fetched on the consuming thread when
+ * it's needed.  Failures fetching a page are rethrown to the consumer when it reaches that page.
+ * <p>
+ * Streams should be closed if they aren't consumed to the end, so that no further pages are fetched.
+ */
+public class FhirSearchStream implements Iterator<Bundle.BundleEntryComponent>, AutoCloseable {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public enum Outcome {
+        COMPLETED,      // every page was fetched and consumed
+        FAILED,         // fetching a page failed
+        ABANDONED       // the stream was closed before every page was consumed
+    }
+
+    private final String fhirQuery;
+    private final UnaryOperator<Bundle> nextPageLoader;
+    private final Function<ResourceWithBundle, Boolean> validityFunction;
+    private final Executor executor;
+    private final int readAhead;
+    private final BiConsumer<Integer, Outcome> completionListener;
+    private final Bundle firstPage;
+
+    // guarded by this
+    private final Deque<Bundle> ready = new ArrayDeque<>();
+    private Bundle lastFetched;
+    private boolean fetching = false;
+    private RuntimeException failure = null;
+    private boolean closed = false;
+    private boolean completed = false;
+    private int pages = 0;
+
+    private Iterator<Bundle.BundleEntryComponent> currentPage = Collections.emptyIterator();
+
+    /**
+     * @param firstPage the first page of results, as returned by the search itself
+     * @param nextPageLoader returns the page following the specified one
+     * @param validityFunction applied to each resource as its page arrives; resources for which it returns false are
+     *                         dropped.  may be null
+     * @param executor executes background page fetches
+     * @param readAhead the maximum number of fetched pages to hold ahead of the consumer.  0 disables background
+     *                  fetching
+     * @param completionListener called once with the number of pages fetched and the outcome of the search, when
+     *                           the stream is exhausted, fails or is closed.  may be null
+     */
+    public FhirSearchStream(String fhirQuery, Bundle firstPage, UnaryOperator<Bundle> nextPageLoader,
+                            Function<ResourceWithBundle, Boolean> validityFunction, Executor executor, int readAhead,
+                            BiConsumer<Integer, Outcome> completionListener) {
+        this.fhirQuery = fhirQuery;
+        this.firstPage = firstPage;
+        this.nextPageLoader = nextPageLoader;
+        this.validityFunction = validityFunction;
+        this.executor = executor;
+        this.readAhead = readAhead;
+        this.completionListener = completionListener;
+
+        FhirUtil.filterInvalidResources(firstPage, validityFunction);
+
+        synchronized (this) {
+            lastFetched = firstPage;
+            ready.add(firstPage);
+            pages = 1;
+            scheduleFetch();
+        }
+    }
+
+    /**
+     * @return the first page of results, after filtering.  if getPageCount() is 1 once the stream has been
+     * exhausted, this contains every result
+     */
+    public Bundle getFirstPage() {
+        return firstPage;
+    }
+
+    /**
+     * @return the number of pages fetched so far
+     */
+    public synchronized int getPageCount() {
+        return pages;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ( ! currentPage.hasNext() ) {
+            Bundle page = nextPage();
+            if (page == null) {
+                return false;
+            }
+            currentPage = page.getEntry().iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public Bundle.BundleEntryComponent next() {
+        if ( ! hasNext() ) {
+            throw new NoSuchElementException();
+        }
+        return currentPage.next();
+    }
+
+    /**
+     * @return a sequential Stream of the remaining resources, which closes this stream when it's closed
+     */
+    public Stream<Resource> resources() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .filter(Bundle.BundleEntryComponent::hasResource)
+                .map(Bundle.BundleEntryComponent::getResource)
+                .onClose(this::close);
+    }
+
+    /**
+     * stops fetching further pages, and discards any already fetched but not yet consumed.  a stream closed before
+     * it's been consumed to the end is reported as abandoned, unless fetching a page had already failed
+     */
+    @Override
+    public void close() {
+        RuntimeException failure;
+        synchronized (this) {
+            closed = true;
+            ready.clear();
+            failure = this.failure;
+        }
+        currentPage = Collections.emptyIterator();
+        complete(failure != null ? Outcome.FAILED : Outcome.ABANDONED);
+    }
+
+    /**
+     * @return the next page, blocking until it's been fetched, or null if there are no more pages
+     */
+    private Bundle nextPage() {
+        synchronized (this) {
+            while (ready.isEmpty() && fetching && ! closed) {
+                try {
+                    wait();
+
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted waiting for page " + (pages + 1) + " of search: " + fhirQuery, e);
+                }
+            }
+
+            if (closed) {
+                return null;
+
+            } else if ( ! ready.isEmpty() ) {
+                Bundle page = ready.poll();
+                scheduleFetch();
+                return page;
+
+            } else if (failure != null) {
+                complete(Outcome.FAILED);
+                throw failure;
+
+            } else if ( ! hasNextPage(lastFetched) ) {
+                complete(Outcome.COMPLETED);
+                return null;
+            }
+
+            // no background thread was available to fetch the next page, so fetch it here
+            fetching = true;
+        }
+
+        fetchPage();
+        return nextPage();
+    }
+
+    // must be called holding this object's lock
+    private void scheduleFetch() {
+        if ( ! fetching && failure == null && ! closed && ready.size() < readAhead && hasNextPage(lastFetched) ) {
+            fetching = true;
+            try {
+                executor.execute(this::fetchPage);
+
+            } catch (RejectedExecutionException ree) {
+                fetching = false;
+            }
+        }
+    }
+
+    private void fetchPage() {
+        Bundle previous;
+        int pageNumber;
+        synchronized (this) {
+            previous = lastFetched;
+            pageNumber = pages + 1;
+        }
+
+        try {
+            Bundle page = nextPageLoader.apply(previous);
+
+            logger.info("search (page " + pageNumber + "): " + fhirQuery + " (size=" + page.getTotal() + ")");
+            if (logger.isDebugEnabled()) {
+                logger.debug("bundle = " + FhirUtil.toJson(page));
+            }
+
+            FhirUtil.filterInvalidResources(page, validityFunction);
+
+            synchronized (this) {
+                lastFetched = page;
+                pages = pageNumber;
+                fetching = false;
+                if ( ! closed ) {
+                    ready.add(page);
+                    scheduleFetch();
+                }
+                notifyAll();
+            }
+
+        } catch (RuntimeException e) {
+            logger.error("caught " + e.getClass().getName() + " fetching page " + pageNumber + " of search: " +
+                    fhirQuery + " - " + e.getMessage(), e);
+            synchronized (this) {
+                failure = e;
+                fetching = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void complete(Outcome outcome) {
+        synchronized (this) {
+            if (completed) return;
+            completed = true;
+        }
+        if (completionListener != null) {
+            completionListener.accept(getPageCount(), outcome);
+        }
+    }
+
+    private static boolean hasNextPage(Bundle page) {
+        return page != null && page.getLink(Bundle.LINK_NEXT) != null;
+    }
+}
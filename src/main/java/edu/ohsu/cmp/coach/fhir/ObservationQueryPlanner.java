@@ -0,0 +1,206 @@
+package edu.ohsu.cmp.coach.fhir;
+
+import edu.ohsu.cmp.coach.exception.CaseNotHandledException;
+import edu.ohsu.cmp.coach.exception.ConfigurationException;
+import edu.ohsu.cmp.coach.exception.DataException;
+import edu.ohsu.cmp.coach.service.EHRService;
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import org.apache.commons.lang3.tuple.Pair;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Coding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Plans the Observation searches a patient's workspace needs, so they can be executed together.
+ * <p>
+ * Workspace slots each need their own group of Observations, but while a workspace is being populated, they're
+ * built at around the same time.  So once a batch has been planned (see planBatch()), the first request for any
+ * group fetches every group at once - in a single batch request, where the vendor supports it - and the results
+ * for the others are held for them to collect.  Requests for other groups made while the batch is in flight wait
+ * for it rather than fetching on their own.  Each result is handed out only once, and results not collected within
+ * the batch window are discarded.  Outside of a planned batch (e.g. when a single slot is refreshed), only the
+ * requested group is fetched.
+ * <p>
+ * Groups that are fetched some other way (e.g. blood pressures, when they're parsed as lean vitals records) can be
+ * left out of the batch; requesting one of those fetches it on its own.
+ */
+public class ObservationQueryPlanner {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public enum Group {
+        PROTOCOL,
+        BLOOD_PRESSURE,
+        PULSE,
+        BMI,
+        SMOKING,
+        DRINKS
+    }
+
+    private final EHRService ehrService;
+    private final FhirConfigManager fcm;
+    private final long batchWindowMillis;
+    private final List<Group> batchedGroups;
+
+    // guarded by this.  the monitor is never held while fetching
+    private final Map<Group, Bundle> pending = new EnumMap<>(Group.class);
+    private long pendingFetchedAt = 0;
+    private boolean batchPlanned = true;            // the workspace is populated when it's first created
+    private CompletableFuture<Void> batchInFlight = null;
+
+    public ObservationQueryPlanner(EHRService ehrService, FhirConfigManager fcm, long batchWindowMillis) {
+        this(ehrService, fcm, batchWindowMillis, EnumSet.allOf(Group.class));
+    }
+
+    public ObservationQueryPlanner(EHRService ehrService, FhirConfigManager fcm, long batchWindowMillis,
+                                   Set<Group> batchedGroups) {
+        this.ehrService = ehrService;
+        this.fcm = fcm;
+        this.batchWindowMillis = batchWindowMillis;
+        this.batchedGroups = new ArrayList<>(EnumSet.copyOf(batchedGroups));
+    }
+
+    /**
+     * arranges for the next request for any batched group to fetch every batched group at once.  call when all of
+     * a patient's Observation slots are about to be rebuilt, e.g. when their workspace is populated.
+     */
+    public synchronized void planBatch() {
+        batchPlanned = true;
+    }
+
+    /**
+     * @return the Observations in the specified group, as fetched by the batch in progress or recently completed,
+     * if it included them and they haven't already been collected.  otherwise, fetches them, along with every other
+     * batched group if a batch has been planned
+     */
+    public Bundle getObservations(String sessionId, Group group) throws DataException, ConfigurationException, IOException {
+        boolean batchable = batchWindowMillis > 0 && batchedGroups.contains(group);
+        boolean fetchBatch = false;
+        CompletableFuture<Void> batch = null;
+
+        synchronized (this) {
+            if (batchInFlight == null && System.currentTimeMillis() - pendingFetchedAt > batchWindowMillis) {
+                pending.clear();
+            }
+
+            if (pending.containsKey(group)) {
+                logger.debug("using batched " + group + " Observations for session=" + sessionId);
+                return pending.remove(group);
+            }
+
+            if (batchable && batchInFlight != null) {
+                batch = batchInFlight;
+
+            } else if (batchable && batchPlanned) {
+                batchPlanned = false;
+                batchInFlight = batch = new CompletableFuture<>();
+                fetchBatch = true;
+            }
+        }
+
+        if (batch == null) {
+            return fetch(sessionId, Collections.singletonList(group)).get(group);
+        }
+
+        if (fetchBatch) {
+            fetchBatch(sessionId, batch);
+
+        } else {
+            logger.debug("waiting for batched " + group + " Observations for session=" + sessionId);
+            try {
+                batch.get();
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataException("interrupted waiting for batched " + group + " Observations", e);
+
+            } catch (ExecutionException e) {
+                // the batch failed - fetch this group on its own, below
+            }
+        }
+
+        synchronized (this) {
+            Bundle bundle = pending.remove(group);
+            if (bundle != null) {
+                return bundle;
+            }
+        }
+
+        // the batch failed, or its result was collected by someone else
+        return fetch(sessionId, Collections.singletonList(group)).get(group);
+    }
+
+    private void fetchBatch(String sessionId, CompletableFuture<Void> batch) throws DataException, ConfigurationException, IOException {
+        try {
+            Map<Group, Bundle> results = fetch(sessionId, batchedGroups);
+            synchronized (this) {
+                pending.clear();
+                pending.putAll(results);
+                pendingFetchedAt = System.currentTimeMillis();
+                batchInFlight = null;
+            }
+            batch.complete(null);
+
+        } catch (DataException | ConfigurationException | IOException | RuntimeException e) {
+            synchronized (this) {
+                batchInFlight = null;
+            }
+            batch.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private Map<Group, Bundle> fetch(String sessionId, List<Group> groups) throws DataException, ConfigurationException, IOException {
+        List<Pair<String, String>> codesAndLookbackPeriods = new ArrayList<>();
+        for (Group group : groups) {
+            codesAndLookbackPeriods.add(Pair.of(getCodes(group), getLookbackPeriod(group)));
+        }
+
+        List<Bundle> bundles = ehrService.getObservations(sessionId, codesAndLookbackPeriods);
+
+        Map<Group, Bundle> map = new EnumMap<>(Group.class);
+        for (int i = 0; i < groups.size(); i ++) {
+            Bundle bundle = bundles.get(i);
+            if (bundle == null) {           // the Observation strategy is DISABLED
+                bundle = new Bundle();
+                bundle.setType(Bundle.BundleType.COLLECTION);
+            }
+            map.put(groups.get(i), bundle);
+        }
+        return map;
+    }
+
+    private String getCodes(Group group) throws ConfigurationException {
+        switch (group) {
+            case PROTOCOL:          return FhirUtil.toCodeParamString(fcm.getProtocolCoding());
+            case BLOOD_PRESSURE:
+                List<Coding> codings = new ArrayList<>();
+                codings.addAll(fcm.getBpPanelCodings());
+                codings.addAll(fcm.getBpSystolicCodings());
+                codings.addAll(fcm.getBpDiastolicCodings());
+                return FhirUtil.toCodeParamString(codings);
+            case PULSE:             return FhirUtil.toCodeParamString(fcm.getPulseCodings());
+            case BMI:               return FhirUtil.toCodeParamString(fcm.getBmiCoding());
+            case SMOKING:           return FhirUtil.toCodeParamString(fcm.getSmokingCoding());
+            case DRINKS:            return FhirUtil.toCodeParamString(fcm.getDrinksCoding());
+            default:                throw new CaseNotHandledException("case for group " + group + " not handled");
+        }
+    }
+
+    private String getLookbackPeriod(Group group) {
+        switch (group) {
+            case PROTOCOL:          return fcm.getProtocolLookbackPeriod();
+            case BLOOD_PRESSURE:    return fcm.getBpLookbackPeriod();
+            case PULSE:             return fcm.getPulseLookbackPeriod();
+            case BMI:               return fcm.getBmiLookbackPeriod();
+            case SMOKING:           return fcm.getSmokingLookbackPeriod();
+            case DRINKS:            return fcm.getDrinksLookbackPeriod();
+            default:                throw new CaseNotHandledException("case for group " + group + " not handled");
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package edu.ohsu.cmp.coach.fhir;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import org.hl7.fhir.r4.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses FHIR search result Bundles of vitals Observations straight into VitalsRecords, using a streaming JSON
+ * tokenizer, rather than into full HAPI object graphs.  Only the elements a VitalsRecord holds are extracted; each
+ * Observation's raw JSON is retained so the full resource can still be parsed when it's actually needed.
+ * <p>
+ * Entries that aren't Observations (e.g. OperationOutcomes) are skipped.
+ */
+public class VitalsBundleParser {
+    private static final Logger logger = LoggerFactory.getLogger(VitalsBundleParser.class);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public static class Page {
+        private final List<VitalsRecord> records;
+        private final String nextUrl;
+
+        Page(List<VitalsRecord> records, String nextUrl) {
+            this.records = records;
+            this.nextUrl = nextUrl;
+        }
+
+        public List<VitalsRecord> getRecords() {
+            return records;
+        }
+
+        /**
+         * @return the URL of the next page of results, or null if this is the last page
+         */
+        public String getNextUrl() {
+            return nextUrl;
+        }
+    }
+
+    public Page parse(InputStream in) throws IOException {
+        List<VitalsRecord> records = new ArrayList<>();
+        String nextUrl = null;
+
+        try (JsonParser p = JSON_FACTORY.createParser(in)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("expected a JSON object");
+            }
+
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.getCurrentName();
+                p.nextToken();
+                switch (name) {
+                    case "resourceType":
+                        if ( ! "Bundle".equals(p.getText()) ) {
+                            throw new IOException("expected a Bundle, but got " + p.getText());
+                        }
+                        break;
+
+                    case "link":
+                        while (p.nextToken() == JsonToken.START_OBJECT) {
+                            String relation = null;
+                            String url = null;
+                            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                                String linkField = p.getCurrentName();
+                                p.nextToken();
+                                if      ("relation".equals(linkField))  relation = p.getText();
+                                else if ("url".equals(linkField))       url = p.getText();
+                                else                                    p.skipChildren();
+                            }
+                            if (Bundle.LINK_NEXT.equals(relation)) {
+                                nextUrl = url;
+                            }
+                        }
+                        break;
+
+                    case "entry":
+                        while (p.nextToken() == JsonToken.START_OBJECT) {
+                            VitalsRecord record = parseEntry(p);
+                            if (record != null) {
+                                records.add(record);
+                            }
+                        }
+                        break;
+
+                    default:
+                        p.skipChildren();
+                }
+            }
+        }
+
+        return new Page(records, nextUrl);
+    }
+
+    private VitalsRecord parseEntry(JsonParser p) throws IOException {
+        String fullUrl = null;
+        byte[] json = null;
+
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            p.nextToken();
+            if ("fullUrl".equals(name)) {
+                fullUrl = p.getText();
+
+            } else if ("resource".equals(name)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (JsonGenerator g = JSON_FACTORY.createGenerator(out)) {
+                    g.copyCurrentStructure(p);
+                }
+                json = out.toByteArray();
+
+            } else {
+                p.skipChildren();
+            }
+        }
+
+        return json != null ?
+                parseResource(fullUrl, json) :
+                null;
+    }
+
+    private VitalsRecord parseResource(String fullUrl, byte[] json) throws IOException {
+        String resourceType = null;
+        String id = null;
+        String versionId = null;
+        String status = null;
+        CodeableConcept code = null;
+        Quantity valueQuantity = null;
+        CodeableConcept valueCodeableConcept = null;
+        List<VitalsRecord.Component> components = null;
+        String effectiveDateTime = null;
+        String effectiveInstant = null;
+        String effectivePeriodEnd = null;
+        Reference encounter = null;
+        List<String> notes = null;
+        boolean homeSetting = false;
+
+        try (JsonParser p = JSON_FACTORY.createParser(json)) {
+            p.nextToken();
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.getCurrentName();
+                p.nextToken();
+                switch (name) {
+                    case "resourceType":            resourceType = p.getText();                     break;
+                    case "id":                      id = p.getText();                               break;
+                    case "meta":                    versionId = parseVersionId(p);                  break;
+                    case "status":                  status = p.getText();                           break;
+                    case "code":                    code = parseCodeableConcept(p);                 break;
+                    case "valueQuantity":           valueQuantity = parseQuantity(p);               break;
+                    case "valueCodeableConcept":    valueCodeableConcept = parseCodeableConcept(p); break;
+                    case "effectiveDateTime":       effectiveDateTime = p.getText();                break;
+                    case "effectiveInstant":        effectiveInstant = p.getText();                 break;
+                    case "effectivePeriod":         effectivePeriodEnd = parsePeriodEnd(p);         break;
+                    case "encounter":               encounter = parseReference(p);                  break;
+
+                    case "component":
+                        components = new ArrayList<>();
+                        while (p.nextToken() == JsonToken.START_OBJECT) {
+                            components.add(parseComponent(p));
+                        }
+                        break;
+
+                    case "note":
+                        notes = new ArrayList<>();
+                        while (p.nextToken() == JsonToken.START_OBJECT) {
+                            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                                String noteField = p.getCurrentName();
+                                p.nextToken();
+                                if ("text".equals(noteField))   notes.add(p.getText());
+                                else                            p.skipChildren();
+                            }
+                        }
+                        break;
+
+                    case "extension":
+                        while (p.nextToken() == JsonToken.START_OBJECT) {
+                            if (parseHomeSettingExtension(p)) {
+                                homeSetting = true;
+                            }
+                        }
+                        break;
+
+                    default:
+                        p.skipChildren();
+                }
+            }
+        }
+
+        if ( ! "Observation".equals(resourceType) ) {
+            logger.debug("skipping " + resourceType + " resource with id=" + id);
+            return null;
+        }
+
+        return new VitalsRecord(buildId(fullUrl, id, versionId), status, code, valueQuantity, valueCodeableConcept,
+                components, effectiveDateTime, effectiveInstant, effectivePeriodEnd, encounter, notes, homeSetting, json);
+    }
+
+    // mirrors how HAPI sets the id of a resource parsed from a Bundle entry
+    private String buildId(String fullUrl, String id, String versionId) {
+        String history = versionId != null ?
+                "/_history/" + versionId :
+                "";
+
+        if (fullUrl != null && (fullUrl.startsWith("http://") || fullUrl.startsWith("https://"))) {
+            return fullUrl + history;
+
+        } else if (fullUrl != null && fullUrl.startsWith("urn:")) {
+            return fullUrl;
+
+        } else if (id != null) {
+            return "Observation/" + id + history;
+
+        } else {
+            return null;
+        }
+    }
+
+    private String parseVersionId(JsonParser p) throws IOException {
+        String versionId = null;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            p.nextToken();
+            if ("versionId".equals(name))   versionId = p.getText();
+            else                            p.skipChildren();
+        }
+        return versionId;
+    }
+
+    private CodeableConcept parseCodeableConcept(JsonParser p) throws IOException {
+        CodeableConcept cc = new CodeableConcept();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            p.nextToken();
+            if ("coding".equals(name)) {
+                while (p.nextToken() == JsonToken.START_OBJECT) {
+                    cc.addCoding(parseCoding(p));
+                }
+
+            } else if ("text".equals(name)) {
+                cc.setText(p.getText());
+
+            } else {
+                p.skipChildren();
+            }
+        }
+        return cc;
+    }
+
+    private Coding parseCoding(JsonParser p) throws IOException {
+        Coding c = new Coding();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            p.nextToken();
+            switch (name) {
+                case "system":  c.setSystem(p.getText());   break;
+                case "code":    c.setCode(p.getText());     break;
+                case "display": c.setDisplay(p.getText());  break;
+                case "version": c.setVersion(p.getText());  break;
+                default:        p.skipChildren();
+            }
+        }
+        return c;
+    }
+
+    private Quantity parseQuantity(JsonParser p) throws IOException {
+        Quantity q = new Quantity();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            p.nextToken();
+            switch (name) {
+                case "value":   q.setValue(p.getDecimalValue());    break;
+                case "unit":    q.setUnit(p.getText());             break;
+                case "system":  q.setSystem(p.getText());           break;
+                case "code":    q.setCode(p.getText());             break;
+                default:        p.skipChildren();
+            }
+        }
+        return q;
+    }
+
+    private VitalsRecord.Component parseComponent(JsonParser p) throws IOException {
+        CodeableConcept code = null;
+        Quantity valueQuantity = null;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            p.nextToken();
+            if      ("code".equals(name))           code = parseCodeableConcept(p);
+            else if ("valueQuantity".equals(name))  valueQuantity = parseQuantity(p);
+            else                                    p.skipChildren();
+        }
+        return new VitalsRecord.Component(code, valueQuantity);
+    }
+
+    private String parsePeriodEnd(JsonParser p) throws IOException {
+        String end = null;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            p.nextToken();
+            if ("end".equals(name))     end = p.getText();
+            else                        p.skipChildren();
+        }
+        return end;
+    }
+
+    private Reference parseReference(JsonParser p) throws IOException {
+        Reference reference = new Reference();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            p.nextToken();
+            if ("reference".equals(name)) {
+                reference.setReference(p.getText());
+
+            } else if ("identifier".equals(name)) {
+                reference.setIdentifier(parseIdentifier(p));
+
+            } else {
+                p.skipChildren();
+            }
+        }
+        return reference;
+    }
+
+    private Identifier parseIdentifier(JsonParser p) throws IOException {
+        Identifier identifier = new Identifier();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            p.nextToken();
+            switch (name) {
+                case "system":  identifier.setSystem(p.getText());  break;
+                case "value":   identifier.setValue(p.getText());   break;
+                case "use":
+                    try {
+                        identifier.setUse(Identifier.IdentifierUse.fromCode(p.getText()));
+
+                    } catch (Exception e) {
+                        logger.warn("caught " + e.getClass().getName() + " parsing identifier use '" + p.getText() + "' - ignoring -");
+                    }
+                    break;
+                default:        p.skipChildren();
+            }
+        }
+        return identifier;
+    }
+
+    private boolean parseHomeSettingExtension(JsonParser p) throws IOException {
+        String url = null;
+        Coding coding = null;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            p.nextToken();
+            if      ("url".equals(name))            url = p.getText();
+            else if ("valueCoding".equals(name))    coding = parseCoding(p);
+            else                                    p.skipChildren();
+        }
+        return FhirUtil.isHomeSettingExtension(url, coding);
+    }
+}
@@ -0,0 +1,96 @@
+package edu.ohsu.cmp.coach.fhir;
+
+import org.hl7.fhir.r4.model.Annotation;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A vitals reading as received from the EHR, either as a full HAPI Observation or as a VitalsRecord parsed by
+ * VitalsBundleParser.  Exposes the elements the vendor transformers group and match readings by, so the same logic
+ * serves both.
+ */
+public final class VitalsReading {
+    private final Observation observation;
+    private final VitalsRecord record;
+
+    public static VitalsReading of(Observation observation) {
+        return new VitalsReading(observation, null);
+    }
+
+    public static VitalsReading of(VitalsRecord record) {
+        return new VitalsReading(null, record);
+    }
+
+    private VitalsReading(Observation observation, VitalsRecord record) {
+        this.observation = observation;
+        this.record = record;
+    }
+
+    /**
+     * @return the Observation this reading was built from, or null if it's a VitalsRecord
+     */
+    public Observation getObservation() {
+        return observation;
+    }
+
+    /**
+     * @return the VitalsRecord this reading was built from, or null if it's an Observation
+     */
+    public VitalsRecord getRecord() {
+        return record;
+    }
+
+    public String getId() {
+        return record != null ? record.getId() : observation.getId();
+    }
+
+    public boolean hasCode() {
+        return record != null ? record.hasCode() : observation.hasCode();
+    }
+
+    public CodeableConcept getCode() {
+        return record != null ? record.getCode() : observation.getCode();
+    }
+
+    public boolean hasEncounter() {
+        return record != null ? record.hasEncounter() : observation.hasEncounter();
+    }
+
+    public Reference getEncounter() {
+        return record != null ? record.getEncounter() : observation.getEncounter();
+    }
+
+    /**
+     * @return the effectiveDateTime as a string
+     */
+    public String getEffectiveDateTime() {
+        return record != null ?
+                record.getEffectiveDateTime() :
+                observation.getEffectiveDateTimeType().getValueAsString();
+    }
+
+    /**
+     * @return the text of each of the reading's notes
+     */
+    public List<String> getNotes() {
+        if (record != null) {
+            return record.getNotes();
+
+        } else if ( ! observation.hasNote() ) {
+            return Collections.emptyList();
+        }
+
+        List<String> list = new ArrayList<>();
+        for (Annotation annotation : observation.getNote()) {
+            if (annotation.hasText()) {
+                list.add(annotation.getText());
+            }
+        }
+        return list;
+    }
+}
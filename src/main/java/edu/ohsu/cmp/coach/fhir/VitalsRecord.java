@@ -0,0 +1,159 @@
+package edu.ohsu.cmp.coach.fhir;
+
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import org.hl7.fhir.r4.model.*;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compact representation of a vitals Observation, holding only the elements needed to build vitals models -
+ * code, value, components, effective time, encounter reference, notes and whether it was taken in a home setting -
+ * along with the Observation's raw JSON, from which the full Observation is parsed on demand (e.g. for writeback or
+ * prefetch).  Built by VitalsBundleParser.
+ */
+public class VitalsRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String id;
+    private final String status;
+    private final CodeableConcept code;
+    private final Quantity valueQuantity;
+    private final CodeableConcept valueCodeableConcept;
+    private final List<Component> components;
+    private final String effectiveDateTime;
+    private final String effectiveInstant;
+    private final String effectivePeriodEnd;
+    private final Reference encounter;
+    private final List<String> notes;
+    private final boolean homeSetting;
+    private final byte[] json;
+
+    private transient volatile Observation observation = null;
+
+    VitalsRecord(String id, String status, CodeableConcept code, Quantity valueQuantity,
+                 CodeableConcept valueCodeableConcept, List<Component> components, String effectiveDateTime,
+                 String effectiveInstant, String effectivePeriodEnd, Reference encounter, List<String> notes,
+                 boolean homeSetting, byte[] json) {
+        this.id = id;
+        this.status = status;
+        this.code = code;
+        this.valueQuantity = valueQuantity;
+        this.valueCodeableConcept = valueCodeableConcept;
+        this.components = components != null ? components : Collections.emptyList();
+        this.effectiveDateTime = effectiveDateTime;
+        this.effectiveInstant = effectiveInstant;
+        this.effectivePeriodEnd = effectivePeriodEnd;
+        this.encounter = encounter;
+        this.notes = notes != null ? notes : Collections.emptyList();
+        this.homeSetting = homeSetting;
+        this.json = json;
+    }
+
+    @Override
+    public String toString() {
+        return "VitalsRecord{id=" + id + "}";
+    }
+
+    /**
+     * @return the Observation's id, as HAPI would set it when parsing the Bundle it came from
+     */
+    public String getId() {
+        return id;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public boolean hasCode() {
+        return code != null && code.hasCoding();
+    }
+
+    public CodeableConcept getCode() {
+        return code;
+    }
+
+    public Quantity getValueQuantity() {
+        return valueQuantity;
+    }
+
+    public CodeableConcept getValueCodeableConcept() {
+        return valueCodeableConcept;
+    }
+
+    public List<Component> getComponents() {
+        return components;
+    }
+
+    /**
+     * @return the raw effectiveDateTime string, or null if the effective time isn't a dateTime
+     */
+    public String getEffectiveDateTime() {
+        return effectiveDateTime;
+    }
+
+    public String getEffectiveInstant() {
+        return effectiveInstant;
+    }
+
+    public String getEffectivePeriodEnd() {
+        return effectivePeriodEnd;
+    }
+
+    public boolean hasEncounter() {
+        return encounter != null;
+    }
+
+    public Reference getEncounter() {
+        return encounter;
+    }
+
+    public List<String> getNotes() {
+        return notes;
+    }
+
+    public boolean hasHomeSettingExtension() {
+        return homeSetting;
+    }
+
+    /**
+     * @return the full Observation, parsed from its raw JSON the first time it's requested
+     */
+    public Observation getObservation() {
+        Observation o = observation;
+        if (o == null) {
+            synchronized (this) {
+                o = observation;
+                if (o == null) {
+                    o = FhirUtil.fromJson(Observation.class, new String(json, StandardCharsets.UTF_8));
+                    o.setId(id);
+                    observation = o;
+                }
+            }
+        }
+        return o;
+    }
+
+    public static class Component implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final CodeableConcept code;
+        private final Quantity valueQuantity;
+
+        Component(CodeableConcept code, Quantity valueQuantity) {
+            this.code = code;
+            this.valueQuantity = valueQuantity;
+        }
+
+        public CodeableConcept getCode() {
+            return code;
+        }
+
+        public Quantity getValueQuantity() {
+            return valueQuantity;
+        }
+    }
+}
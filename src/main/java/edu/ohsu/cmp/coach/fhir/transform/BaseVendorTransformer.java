@@ -2,6 +2,8 @@ package edu.ohsu.cmp.coach.fhir.transform;
 
 import edu.ohsu.cmp.coach.exception.DataException;
 import edu.ohsu.cmp.coach.fhir.FhirConfigManager;
+import edu.ohsu.cmp.coach.fhir.VitalsReading;
+import edu.ohsu.cmp.coach.fhir.VitalsRecord;
 import edu.ohsu.cmp.coach.model.*;
 import edu.ohsu.cmp.coach.util.FhirUtil;
 import edu.ohsu.cmp.coach.util.UUIDUtil;
@@ -11,6 +13,7 @@ import org.hl7.fhir.r4.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -41,15 +44,46 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
 
     protected UserWorkspace workspace;
 
+    // if set, temporary ids are derived from this and a count of the ids generated so far, rather than random
+    private String temporaryIdSeed = null;
+    private int temporaryIdCount = 0;
+
     public BaseVendorTransformer(UserWorkspace workspace) {
         this.workspace = workspace;
     }
 
+    /**
+     * makes the temporary ids of the resources this transformer builds deterministic, derived from the specified
+     * seed and the order in which they're built, so that transforming the same models in the same order always
+     * builds the same resources (e.g. the prefetch sent to CQF-Ruler, whose responses are cached by its hash).  not
+     * for transformers whose resources are written to the EHR
+     */
+    public synchronized void setTemporaryIdSeed(String seed) {
+        this.temporaryIdSeed = seed;
+        this.temporaryIdCount = 0;
+    }
+
     protected abstract BloodPressureModel buildBloodPressureModel(Encounter encounter, Observation bpObservation, Observation protocolObservation) throws DataException;
     protected abstract BloodPressureModel buildBloodPressureModel(Encounter encounter, Observation systolicObservation, Observation diastolicObservation, Observation protocolObservation) throws DataException;
     protected abstract BloodPressureModel buildBloodPressureModel(Observation o) throws DataException;
     protected abstract BloodPressureModel buildBloodPressureModel(Observation systolicObservation, Observation diastolicObservation) throws DataException;
 
+    protected BloodPressureModel buildBloodPressureModel(Encounter encounter, VitalsRecord bpRecord, Observation protocolObservation) throws DataException {
+        return new BloodPressureModel(encounter, bpRecord, protocolObservation, workspace.getFhirConfigManager());
+    }
+
+    protected BloodPressureModel buildBloodPressureModel(Encounter encounter, VitalsRecord systolicRecord, VitalsRecord diastolicRecord, Observation protocolObservation) throws DataException {
+        return new BloodPressureModel(encounter, systolicRecord, diastolicRecord, protocolObservation, workspace.getFhirConfigManager());
+    }
+
+    protected BloodPressureModel buildBloodPressureModel(VitalsRecord bpRecord) throws DataException {
+        return new BloodPressureModel(bpRecord, workspace.getFhirConfigManager());
+    }
+
+    protected BloodPressureModel buildBloodPressureModel(VitalsRecord systolicRecord, VitalsRecord diastolicRecord) throws DataException {
+        return new BloodPressureModel(systolicRecord, diastolicRecord, workspace.getFhirConfigManager());
+    }
+
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
     @Override
@@ -116,6 +150,11 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
         );
     }
 
+    @Override
+    public boolean supportsBatchSearch() {
+        return true;
+    }
+
     @Override
     public String getConditionQuery(String patientId, String category) {
         String conditionQuery = workspace.getFhirQueryManager().getConditionQuery();
@@ -249,7 +288,45 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
     public List<BloodPressureModel> transformIncomingBloodPressureReadings(Bundle bundle) throws DataException {
         if (bundle == null) return null;
 
-        Map<String, List<Observation>> encounterObservationsMap = buildEncounterObservationsMap(bundle);
+        List<VitalsReading> readings = new ArrayList<>();
+        if (bundle.hasEntry()) {
+            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                if (entry.hasResource() && entry.getResource() instanceof Observation) {
+                    readings.add(VitalsReading.of((Observation) entry.getResource()));
+                }
+            }
+        }
+
+        // protocol Observations are fetched together with BP Observations, so they're found in the same Bundle
+        return transformIncomingBloodPressureReadings(readings, bundle);
+    }
+
+    /**
+     * Transforms blood pressure readings parsed by VitalsBundleParser, exactly as transformIncomingBloodPressureReadings
+     * transforms them as Observations.  Protocol Observations are matched to readings by Encounter.
+     */
+    @Override
+    public List<BloodPressureModel> transformIncomingBloodPressureRecords(List<VitalsRecord> records, Bundle protocolBundle) throws DataException {
+        if (records == null) return null;
+
+        List<VitalsReading> readings = new ArrayList<>();
+        for (VitalsRecord record : records) {
+            readings.add(VitalsReading.of(record));
+        }
+
+        return transformIncomingBloodPressureReadings(readings, protocolBundle);
+    }
+
+    /**
+     * @param readings BP panel, systolic and diastolic readings, which may be Observations or VitalsRecords
+     * @param protocolBundle a Bundle containing the protocol Observations to associate with readings by Encounter, and
+     *                       any Encounters not yet in the workspace.  may be null
+     */
+    private List<BloodPressureModel> transformIncomingBloodPressureReadings(List<VitalsReading> readings, Bundle protocolBundle) throws DataException {
+        Map<String, List<VitalsReading>> encounterReadingsMap = buildEncounterReadingsMap(readings);
+        Map<String, List<Observation>> encounterProtocolsMap = protocolBundle != null ?
+                buildEncounterObservationsMap(protocolBundle) :
+                new HashMap<>();
         FhirConfigManager fcm = workspace.getFhirConfigManager();
 
         List<Coding> bpPanelCodings = fcm.getBpPanelCodings();
@@ -258,56 +335,55 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
 
         List<BloodPressureModel> list = new ArrayList<>();
 
-        for (Encounter encounter : getAllEncounters(bundle)) {
+        for (Encounter encounter : getAllEncounters(protocolBundle)) {
             logger.debug("processing Encounter: " + encounter.getId());
 
-            // these Observations get popped / removed from the map
-            List<Observation> encounterObservations = getObservationsFromMap(encounter, encounterObservationsMap);
+            // these readings and protocol Observations get popped / removed from their maps
+            List<VitalsReading> encounterReadings = getReadingsFromMap(encounter, encounterReadingsMap);
+            List<Observation> encounterProtocols = getObservationsFromMap(encounter, encounterProtocolsMap);
 
-            if (encounterObservations == null) {
+            if (encounterReadings == null) {
                 logger.debug("no Observations found for Encounter " + encounter.getId() + " - skipping -");
                 continue;
             }
 
             logger.debug("building Observations for Encounter " + encounter.getId());
 
-            List<Observation> bpObservationList = new ArrayList<>();            // potentially many per encounter
+            List<VitalsReading> bpReadingList = new ArrayList<>();              // potentially many per encounter
             Map<String, SystolicDiastolicPair> map = new LinkedHashMap<>();     // potentially many per encounter
             Observation protocol = null;
 
-            for (Observation o : encounterObservations) {
-                if ( ! o.hasCode() ) {
-                    logger.warn("observation " + o.getId() + " missing code - skipping -");
+            if (encounterProtocols != null) {
+                for (Observation o : encounterProtocols) {
+                    if (o.hasCode() && FhirUtil.hasCoding(o.getCode(), fcm.getProtocolCoding())) {
+                        logger.debug("protocolObservation = " + o.getId() + " (encounter=" + encounter.getId() +
+                                ") (effectiveDateTime=" + o.getEffectiveDateTimeType().getValueAsString() + ")");
+                        protocol = o;
+                        break;
+                    }
+                }
+            }
 
-                } else if (FhirUtil.hasCoding(o.getCode(), bpPanelCodings)) {
-                    bpObservationList.add(o);
+            for (VitalsReading r : encounterReadings) {
+                if ( ! r.hasCode() ) {
+                    logger.warn("observation " + r.getId() + " missing code - skipping -");
 
-                } else if (FhirUtil.hasCoding(o.getCode(), systolicCodings)) {
-                    String key = getObservationMatchKey(o);
-                    if ( ! map.containsKey(key) ) {
-                        map.put(key, new SystolicDiastolicPair());
-                    }
-                    map.get(key).setSystolicObservation(o);
+                } else if (FhirUtil.hasCoding(r.getCode(), bpPanelCodings)) {
+                    bpReadingList.add(r);
 
-                } else if (FhirUtil.hasCoding(o.getCode(), diastolicCodings)) {
-                    String key = getObservationMatchKey(o);
-                    if ( ! map.containsKey(key) ) {
-                        map.put(key, new SystolicDiastolicPair());
-                    }
-                    map.get(key).setDiastolicObservation(o);
+                } else if (FhirUtil.hasCoding(r.getCode(), systolicCodings)) {
+                    map.computeIfAbsent(getMatchKey(r), k -> new SystolicDiastolicPair()).systolic = r;
 
-                } else if (protocol == null && FhirUtil.hasCoding(o.getCode(), fcm.getProtocolCoding())) {
-                    logger.debug("protocolObservation = " + o.getId() + " (encounter=" + encounter.getId() +
-                            ") (effectiveDateTime=" + o.getEffectiveDateTimeType().getValueAsString() + ")");
-                    protocol = o;
+                } else if (FhirUtil.hasCoding(r.getCode(), diastolicCodings)) {
+                    map.computeIfAbsent(getMatchKey(r), k -> new SystolicDiastolicPair()).diastolic = r;
                 }
             }
 
-            // process BP panel Observations
+            // process BP panel readings
 
-            for (Observation bp : bpObservationList) {
+            for (VitalsReading bp : bpReadingList) {
                 logger.debug("bpObservation = " + bp.getId() + " (encounter=" + encounter.getId() +
-                        ") (effectiveDateTime=" + bp.getEffectiveDateTimeType().getValueAsString() + ")");
+                        ") (effectiveDateTime=" + bp.getEffectiveDateTime() + ")");
                 try {
                     list.add(buildBloodPressureModel(encounter, bp, protocol));
 
@@ -318,26 +394,23 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
                 }
             }
 
-            // process systolic and diastolic Observation pairs
+            // process systolic and diastolic reading pairs
 
             for (Map.Entry<String, SystolicDiastolicPair> entry : map.entrySet()) {
                 SystolicDiastolicPair sdp = entry.getValue();
                 if (sdp.isValid()) {
-                    Observation systolic = sdp.getSystolicObservation();
-                    Observation diastolic = sdp.getDiastolicObservation();
-
-                    logger.debug("systolicObservation = " + systolic.getId() + " (effectiveDateTime=" +
-                            systolic.getEffectiveDateTimeType().getValueAsString() + ")");
-                    logger.debug("diastolicObservation = " + diastolic.getId() + " (effectiveDateTime=" +
-                            diastolic.getEffectiveDateTimeType().getValueAsString() + ")");
+                    logger.debug("systolicObservation = " + sdp.systolic.getId() + " (effectiveDateTime=" +
+                            sdp.systolic.getEffectiveDateTime() + ")");
+                    logger.debug("diastolicObservation = " + sdp.diastolic.getId() + " (effectiveDateTime=" +
+                            sdp.diastolic.getEffectiveDateTime() + ")");
 
                     try {
-                        list.add(buildBloodPressureModel(encounter, systolic, diastolic, protocol));
+                        list.add(buildBloodPressureModel(encounter, sdp.systolic, sdp.diastolic, protocol));
 
                     } catch (DataException e) {
                         logger.warn("caught " + e.getClass().getSimpleName() +
                                 " building BloodPressureModel from (systolic, diastolic) Observations with systolic.id=" +
-                                systolic.getId() + ", diastolic.id=" + diastolic.getId() + " - " +
+                                sdp.systolic.getId() + ", diastolic.id=" + sdp.diastolic.getId() + " - " +
                                 e.getMessage() + " - skipping -");
                     }
 
@@ -367,73 +440,60 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
 
         Map<String, SystolicDiastolicPair> sdpMap = new LinkedHashMap<>();
 
-        for (List<Observation> observationsList : encounterObservationsMap.values()) {
-//        if (encounterObservationsMap.containsKey(NO_ENCOUNTERS_KEY)) {
-
-            for (Observation o : observationsList) { //encounterObservationsMap.remove(NO_ENCOUNTERS_KEY)) {
+        for (List<VitalsReading> readingsList : encounterReadingsMap.values()) {
+            for (VitalsReading r : readingsList) {
                 try {
-                    if (o.hasCode()) {
-                        if (FhirUtil.hasCoding(o.getCode(), bpPanelCodings)) {
-                            logger.debug("bpObservation = " + o.getId() + " (no encounter) (effectiveDateTime=" +
-                                    o.getEffectiveDateTimeType().getValueAsString() + ")");
+                    if (r.hasCode()) {
+                        if (FhirUtil.hasCoding(r.getCode(), bpPanelCodings)) {
+                            logger.debug("bpObservation = " + r.getId() + " (no encounter) (effectiveDateTime=" +
+                                    r.getEffectiveDateTime() + ")");
 
                             try {
-                                list.add(buildBloodPressureModel(o));
+                                list.add(buildBloodPressureModel(r));
 
                             } catch (DataException e) {
                                 logger.warn("caught " + e.getClass().getSimpleName() +
-                                        " building BloodPressureModel from Observation with id=" + o.getId() + " - " +
+                                        " building BloodPressureModel from Observation with id=" + r.getId() + " - " +
                                         e.getMessage() + " - skipping -");
                             }
 
-                        } else if (FhirUtil.hasCoding(o.getCode(), systolicCodings)) {
-                            String key = getObservationMatchKey(o);
-                            if (!sdpMap.containsKey(key)) {
-                                sdpMap.put(key, new SystolicDiastolicPair());
-                            }
-                            sdpMap.get(key).setSystolicObservation(o);
+                        } else if (FhirUtil.hasCoding(r.getCode(), systolicCodings)) {
+                            sdpMap.computeIfAbsent(getMatchKey(r), k -> new SystolicDiastolicPair()).systolic = r;
 
-                        } else if (FhirUtil.hasCoding(o.getCode(), diastolicCodings)) {
-                            String key = getObservationMatchKey(o);
-                            if (!sdpMap.containsKey(key)) {
-                                sdpMap.put(key, new SystolicDiastolicPair());
-                            }
-                            sdpMap.get(key).setDiastolicObservation(o);
+                        } else if (FhirUtil.hasCoding(r.getCode(), diastolicCodings)) {
+                            sdpMap.computeIfAbsent(getMatchKey(r), k -> new SystolicDiastolicPair()).diastolic = r;
 
                         } else {
-                            logger.debug("did not process Observation " + o.getId() + " - invalid coding");
+                            logger.debug("did not process Observation " + r.getId() + " - invalid coding");
                         }
 
                     } else {
-                        logger.debug("did not process Observation " + o.getId() + " - no coding");
+                        logger.debug("did not process Observation " + r.getId() + " - no coding");
                     }
 
                 } catch (Exception e) {
-                    logger.error("caught " + e.getClass().getName() + " processing Observation with id=" + o.getId() + " - " + e.getMessage(), e);
+                    logger.error("caught " + e.getClass().getName() + " processing Observation with id=" + r.getId() + " - " + e.getMessage(), e);
                 }
             }
         }
 
-        // now process dateObservationsMap, which should only include individual systolic and diastolic readings
+        // now process sdpMap, which should only include individual systolic and diastolic readings
 
         for (Map.Entry<String, SystolicDiastolicPair> entry : sdpMap.entrySet()) {
             SystolicDiastolicPair sdp = entry.getValue();
             if (sdp.isValid()) {
-                Observation systolic = sdp.getSystolicObservation();
-                Observation diastolic = sdp.getDiastolicObservation();
-
-                logger.debug("systolicObservation = " + systolic.getId() + " (effectiveDateTime=" +
-                        systolic.getEffectiveDateTimeType().getValueAsString() + ")");
-                logger.debug("diastolicObservation = " + diastolic.getId() + " (effectiveDateTime=" +
-                        diastolic.getEffectiveDateTimeType().getValueAsString() + ")");
+                logger.debug("systolicObservation = " + sdp.systolic.getId() + " (effectiveDateTime=" +
+                        sdp.systolic.getEffectiveDateTime() + ")");
+                logger.debug("diastolicObservation = " + sdp.diastolic.getId() + " (effectiveDateTime=" +
+                        sdp.diastolic.getEffectiveDateTime() + ")");
 
                 try {
-                    list.add(buildBloodPressureModel(systolic, diastolic));
+                    list.add(buildBloodPressureModel(sdp.systolic, sdp.diastolic));
 
                 } catch (DataException e) {
                     logger.warn("caught " + e.getClass().getSimpleName() +
                             " building BloodPressureModel from (systolic, diastolic) Observations with systolic.id=" +
-                            systolic.getId() + ", diastolic.id=" + diastolic.getId() + " - " +
+                            sdp.systolic.getId() + ", diastolic.id=" + sdp.diastolic.getId() + " - " +
                             e.getMessage() + " - skipping -");
                 }
 
@@ -456,30 +516,83 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
         return list;
     }
 
+    private BloodPressureModel buildBloodPressureModel(Encounter encounter, VitalsReading bp, Observation protocol) throws DataException {
+        return bp.getRecord() != null ?
+                buildBloodPressureModel(encounter, bp.getRecord(), protocol) :
+                buildBloodPressureModel(encounter, bp.getObservation(), protocol);
+    }
+
+    private BloodPressureModel buildBloodPressureModel(Encounter encounter, VitalsReading systolic, VitalsReading diastolic, Observation protocol) throws DataException {
+        return systolic.getRecord() != null && diastolic.getRecord() != null ?
+                buildBloodPressureModel(encounter, systolic.getRecord(), diastolic.getRecord(), protocol) :
+                buildBloodPressureModel(encounter, systolic.getObservation(), diastolic.getObservation(), protocol);
+    }
+
+    private BloodPressureModel buildBloodPressureModel(VitalsReading bp) throws DataException {
+        return bp.getRecord() != null ?
+                buildBloodPressureModel(bp.getRecord()) :
+                buildBloodPressureModel(bp.getObservation());
+    }
+
+    private BloodPressureModel buildBloodPressureModel(VitalsReading systolic, VitalsReading diastolic) throws DataException {
+        return systolic.getRecord() != null && diastolic.getRecord() != null ?
+                buildBloodPressureModel(systolic.getRecord(), diastolic.getRecord()) :
+                buildBloodPressureModel(systolic.getObservation(), diastolic.getObservation());
+    }
+
     // helper class for organizing working objects
     private static final class SystolicDiastolicPair {
-        private Observation systolicObservation = null;
-        private Observation diastolicObservation = null;
+        private VitalsReading systolic = null;
+        private VitalsReading diastolic = null;
 
         public boolean isValid() {
-            return systolicObservation != null && diastolicObservation != null;
+            return systolic != null && diastolic != null;
         }
+    }
 
-        public Observation getSystolicObservation() {
-            return systolicObservation;
-        }
+    private Map<String, List<VitalsReading>> buildEncounterReadingsMap(List<VitalsReading> readings) {
+        Map<String, List<VitalsReading>> map = new HashMap<>();
+        for (VitalsReading reading : readings) {
+            if (reading.hasEncounter()) {
+                List<String> keys = buildKeys(reading.getEncounter());
 
-        public void setSystolicObservation(Observation systolicObservation) {
-            this.systolicObservation = systolicObservation;
-        }
+                // as in buildEncounterObservationsMap, associate THE SAME list with each key
 
-        public Observation getDiastolicObservation() {
-            return diastolicObservation;
+                List<VitalsReading> list = null;
+                for (String key : keys) {
+                    if (map.containsKey(key)) {
+                        list = map.get(key);
+                        break;
+                    }
+                }
+                if (list == null) {
+                    list = new ArrayList<>();
+                    for (String key : keys) {
+                        map.put(key, list);
+                    }
+                }
+
+                map.get(keys.get(0)).add(reading);
+
+            } else {
+                map.computeIfAbsent(NO_ENCOUNTERS_KEY, k -> new ArrayList<>()).add(reading);
+            }
         }
+        return map;
+    }
 
-        public void setDiastolicObservation(Observation diastolicObservation) {
-            this.diastolicObservation = diastolicObservation;
+    private List<VitalsReading> getReadingsFromMap(Encounter encounter, Map<String, List<VitalsReading>> map) {
+        List<VitalsReading> list = null;
+        for (String key : buildKeys(encounter.getId(), encounter.getIdentifier())) {
+            if (map.containsKey(key)) {
+                if (list == null) {
+                    list = map.remove(key);
+                } else {
+                    map.remove(key);
+                }
+            }
         }
+        return list;
     }
 
     protected Map<String, List<Observation>> buildEncounterObservationsMap(Bundle bundle) {
@@ -555,8 +668,13 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
         return FhirUtil.buildKeys(id, identifiers);
     }
 
-    protected String genTemporaryId() {
-        return UUIDUtil.getRandomUUID();
+    protected synchronized String genTemporaryId() {
+        if (temporaryIdSeed == null) {
+            return UUIDUtil.getRandomUUID();
+        }
+
+        temporaryIdCount ++;
+        return UUID.nameUUIDFromBytes((temporaryIdSeed + "|" + temporaryIdCount).getBytes(StandardCharsets.UTF_8)).toString();
     }
 
 //    adapted from CDSHooksExecutor.buildHomeBloodPressureObservation()
@@ -665,21 +783,13 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
         return list;
     }
 
-    private String getObservationMatchKey(Observation observation) {
-        String uuid = getUUIDFromNote(observation); // used by Epic, but Default should still understand and use this if it exists
-        return uuid != null ?
-                uuid :
-                observation.getEffectiveDateTimeType().getValueAsString();
-    }
-
-    private String getUUIDFromNote(Observation observation) {
-        if (observation != null && observation.hasNote()) {
-            for (Annotation annotation : observation.getNote()) {
-                if (annotation.hasText() && annotation.getText().startsWith(UUID_NOTE_TAG)) {
-                    return annotation.getText().substring(UUID_NOTE_TAG.length() + 1);
-                }
+    private String getMatchKey(VitalsReading reading) {
+        // the UUID note is used by Epic, but Default should still understand and use it if it exists
+        for (String note : reading.getNotes()) {
+            if (note != null && note.startsWith(UUID_NOTE_TAG)) {
+                return note.substring(UUID_NOTE_TAG.length() + 1);
             }
         }
-        return null;
+        return reading.getEffectiveDateTime();
     }
 }
@@ -4,6 +4,7 @@ import edu.ohsu.cmp.coach.exception.ConfigurationException;
 import edu.ohsu.cmp.coach.exception.DataException;
 import edu.ohsu.cmp.coach.exception.ScopeException;
 import edu.ohsu.cmp.coach.fhir.FhirStrategy;
+import edu.ohsu.cmp.coach.fhir.VitalsRecord;
 import edu.ohsu.cmp.coach.model.BloodPressureModel;
 import edu.ohsu.cmp.coach.model.GoalModel;
 import edu.ohsu.cmp.coach.model.PulseModel;
@@ -31,6 +32,11 @@ public class CernerVendorTransformer extends BaseVendorTransformer implements Ve
         this.defaultTransformer = new DefaultVendorTransformer(workspace);
     }
 
+    @Override
+    public boolean supportsBatchSearch() {
+        return false;       // Cerner doesn't support batch searches
+    }
+
 //    @Override
 //    protected DateFormat getFhirDateFormat() {
 //        return CERNER_FHIR_DATE_FORMAT;
@@ -56,6 +62,26 @@ public class CernerVendorTransformer extends BaseVendorTransformer implements Ve
         return defaultTransformer.buildBloodPressureModel(systolicObservation, diastolicObservation);
     }
 
+    @Override
+    protected BloodPressureModel buildBloodPressureModel(Encounter encounter, VitalsRecord bpRecord, Observation protocolObservation) throws DataException {
+        return defaultTransformer.buildBloodPressureModel(encounter, bpRecord, protocolObservation);
+    }
+
+    @Override
+    protected BloodPressureModel buildBloodPressureModel(Encounter encounter, VitalsRecord systolicRecord, VitalsRecord diastolicRecord, Observation protocolObservation) throws DataException {
+        return defaultTransformer.buildBloodPressureModel(encounter, systolicRecord, diastolicRecord, protocolObservation);
+    }
+
+    @Override
+    protected BloodPressureModel buildBloodPressureModel(VitalsRecord bpRecord) throws DataException {
+        return defaultTransformer.buildBloodPressureModel(bpRecord);
+    }
+
+    @Override
+    protected BloodPressureModel buildBloodPressureModel(VitalsRecord systolicRecord, VitalsRecord diastolicRecord) throws DataException {
+        return defaultTransformer.buildBloodPressureModel(systolicRecord, diastolicRecord);
+    }
+
     @Override
     public Bundle writeRemote(String sessionId, FhirStrategy strategy, FHIRService fhirService, Bundle bundle) throws DataException, IOException, ConfigurationException, ScopeException {
         return defaultTransformer.writeRemote(sessionId, strategy, fhirService, bundle);
@@ -6,6 +6,8 @@ import edu.ohsu.cmp.coach.exception.DataException;
 import edu.ohsu.cmp.coach.exception.ScopeException;
 import edu.ohsu.cmp.coach.fhir.FhirConfigManager;
 import edu.ohsu.cmp.coach.fhir.FhirStrategy;
+import edu.ohsu.cmp.coach.fhir.VitalsReading;
+import edu.ohsu.cmp.coach.fhir.VitalsRecord;
 import edu.ohsu.cmp.coach.model.*;
 import edu.ohsu.cmp.coach.model.fhir.FHIRCredentialsWithClient;
 import edu.ohsu.cmp.coach.service.FHIRService;
@@ -35,6 +37,11 @@ public class EpicVendorTransformer extends BaseVendorTransformer implements Vend
         defaultTransformer = new DefaultVendorTransformer(workspace);
     }
 
+    @Override
+    public boolean supportsBatchSearch() {
+        return false;       // Epic doesn't reliably support batch searches for patient-facing apps
+    }
+
     @Override
     public Bundle writeRemote(String sessionId, FhirStrategy strategy, FHIRService fhirService, Bundle bundle) throws DataException, IOException, ConfigurationException, ScopeException {
 
@@ -81,7 +88,7 @@ public class EpicVendorTransformer extends BaseVendorTransformer implements Vend
         // if no protocol resource is found
 
         if (protocolObservation == null) {
-            Boolean followedProtocol = getFollowedProtocolFromNote(bpObservation, fcm);
+            Boolean followedProtocol = getFollowedProtocolFromNote(VitalsReading.of(bpObservation), fcm);
             if (followedProtocol != null) {
                 bpm.setFollowedProtocol(followedProtocol);
             }
@@ -99,9 +106,9 @@ public class EpicVendorTransformer extends BaseVendorTransformer implements Vend
         // if no protocol resource is found
 
         if (protocolObservation == null) {
-            Boolean followedProtocol = getFollowedProtocolFromNote(systolicObservation, fcm);
+            Boolean followedProtocol = getFollowedProtocolFromNote(VitalsReading.of(systolicObservation), fcm);
             if (followedProtocol == null) {
-                followedProtocol = getFollowedProtocolFromNote(diastolicObservation, fcm);
+                followedProtocol = getFollowedProtocolFromNote(VitalsReading.of(diastolicObservation), fcm);
             }
             if (followedProtocol != null) {
                 bpm.setFollowedProtocol(followedProtocol);
@@ -119,7 +126,7 @@ public class EpicVendorTransformer extends BaseVendorTransformer implements Vend
         // in Epic, protocol information is represented in a custom-serialized note on the Observation resource
         // if no Observation resource for the protocol exists
 
-        Boolean followedProtocol = getFollowedProtocolFromNote(o, fcm);
+        Boolean followedProtocol = getFollowedProtocolFromNote(VitalsReading.of(o), fcm);
         if (followedProtocol != null) {
             bpm.setFollowedProtocol(followedProtocol);
         }
@@ -132,9 +139,71 @@ public class EpicVendorTransformer extends BaseVendorTransformer implements Vend
         FhirConfigManager fcm = workspace.getFhirConfigManager();
         BloodPressureModel bpm = new BloodPressureModel(systolicObservation, diastolicObservation, fcm);
 
-        Boolean followedProtocol = getFollowedProtocolFromNote(systolicObservation, fcm);
+        Boolean followedProtocol = getFollowedProtocolFromNote(VitalsReading.of(systolicObservation), fcm);
+        if (followedProtocol == null) {
+            followedProtocol = getFollowedProtocolFromNote(VitalsReading.of(diastolicObservation), fcm);
+        }
+        if (followedProtocol != null) {
+            bpm.setFollowedProtocol(followedProtocol);
+        }
+
+        return bpm;
+    }
+
+    @Override
+    protected BloodPressureModel buildBloodPressureModel(Encounter encounter, VitalsRecord bpRecord, Observation protocolObservation) throws DataException {
+        FhirConfigManager fcm = workspace.getFhirConfigManager();
+        BloodPressureModel bpm = new BloodPressureModel(encounter, bpRecord, protocolObservation, fcm);
+
+        if (protocolObservation == null) {
+            Boolean followedProtocol = getFollowedProtocolFromNote(VitalsReading.of(bpRecord), fcm);
+            if (followedProtocol != null) {
+                bpm.setFollowedProtocol(followedProtocol);
+            }
+        }
+
+        return bpm;
+    }
+
+    @Override
+    protected BloodPressureModel buildBloodPressureModel(Encounter encounter, VitalsRecord systolicRecord, VitalsRecord diastolicRecord, Observation protocolObservation) throws DataException {
+        FhirConfigManager fcm = workspace.getFhirConfigManager();
+        BloodPressureModel bpm = new BloodPressureModel(encounter, systolicRecord, diastolicRecord, protocolObservation, fcm);
+
+        if (protocolObservation == null) {
+            Boolean followedProtocol = getFollowedProtocolFromNote(VitalsReading.of(systolicRecord), fcm);
+            if (followedProtocol == null) {
+                followedProtocol = getFollowedProtocolFromNote(VitalsReading.of(diastolicRecord), fcm);
+            }
+            if (followedProtocol != null) {
+                bpm.setFollowedProtocol(followedProtocol);
+            }
+        }
+
+        return bpm;
+    }
+
+    @Override
+    protected BloodPressureModel buildBloodPressureModel(VitalsRecord bpRecord) throws DataException {
+        FhirConfigManager fcm = workspace.getFhirConfigManager();
+        BloodPressureModel bpm = new BloodPressureModel(bpRecord, fcm);
+
+        Boolean followedProtocol = getFollowedProtocolFromNote(VitalsReading.of(bpRecord), fcm);
+        if (followedProtocol != null) {
+            bpm.setFollowedProtocol(followedProtocol);
+        }
+
+        return bpm;
+    }
+
+    @Override
+    protected BloodPressureModel buildBloodPressureModel(VitalsRecord systolicRecord, VitalsRecord diastolicRecord) throws DataException {
+        FhirConfigManager fcm = workspace.getFhirConfigManager();
+        BloodPressureModel bpm = new BloodPressureModel(systolicRecord, diastolicRecord, fcm);
+
+        Boolean followedProtocol = getFollowedProtocolFromNote(VitalsReading.of(systolicRecord), fcm);
         if (followedProtocol == null) {
-            followedProtocol = getFollowedProtocolFromNote(diastolicObservation, fcm);
+            followedProtocol = getFollowedProtocolFromNote(VitalsReading.of(diastolicRecord), fcm);
         }
         if (followedProtocol != null) {
             bpm.setFollowedProtocol(followedProtocol);
@@ -246,7 +315,7 @@ public class EpicVendorTransformer extends BaseVendorTransformer implements Vend
                     // if no Observation resource for the protocol exists
 
                     if (protocolObservation == null) {
-                        Boolean followedProtocol = getFollowedProtocolFromNote(pulseObservation, fcm);
+                        Boolean followedProtocol = getFollowedProtocolFromNote(VitalsReading.of(pulseObservation), fcm);
                         if (followedProtocol != null) {
                             pm.setFollowedProtocol(followedProtocol);
                         }
@@ -275,7 +344,7 @@ public class EpicVendorTransformer extends BaseVendorTransformer implements Vend
                         // in Epic, protocol information is represented in a custom-serialized note on the Observation resource
                         // if no Observation resource for the protocol exists
 
-                        Boolean followedProtocol = getFollowedProtocolFromNote(o, fcm);
+                        Boolean followedProtocol = getFollowedProtocolFromNote(VitalsReading.of(o), fcm);
                         if (followedProtocol != null) {
                             pm.setFollowedProtocol(followedProtocol);
                         }
@@ -464,17 +533,15 @@ public class EpicVendorTransformer extends BaseVendorTransformer implements Vend
         return o;
     }
 
-    private Boolean getFollowedProtocolFromNote(Observation bpObservation, FhirConfigManager fcm) {
+    private Boolean getFollowedProtocolFromNote(VitalsReading reading, FhirConfigManager fcm) {
         // Epic hack to handle when protocol-followed info is custom serialized into a note field
-        if (bpObservation != null && bpObservation.hasNote()) {
-            for (Annotation annotation : bpObservation.getNote()) {
-                if (annotation.hasText()) {
-                    if (annotation.getText().equals(PROTOCOL_NOTE_TAG + fcm.getProtocolAnswerYes())) {
-                        return true;
-
-                    } else if (annotation.getText().equals(PROTOCOL_NOTE_TAG + fcm.getProtocolAnswerNo())) {
-                        return false;
-                    }
+        for (String note : reading.getNotes()) {
+            if (note != null) {
+                if (note.equals(PROTOCOL_NOTE_TAG + fcm.getProtocolAnswerYes())) {
+                    return true;
+
+                } else if (note.equals(PROTOCOL_NOTE_TAG + fcm.getProtocolAnswerNo())) {
+                    return false;
                 }
             }
         }
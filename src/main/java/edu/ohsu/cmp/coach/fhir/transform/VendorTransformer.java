@@ -4,6 +4,7 @@ import edu.ohsu.cmp.coach.exception.ConfigurationException;
 import edu.ohsu.cmp.coach.exception.DataException;
 import edu.ohsu.cmp.coach.exception.ScopeException;
 import edu.ohsu.cmp.coach.fhir.FhirStrategy;
+import edu.ohsu.cmp.coach.fhir.VitalsRecord;
 import edu.ohsu.cmp.coach.model.BloodPressureModel;
 import edu.ohsu.cmp.coach.model.GoalModel;
 import edu.ohsu.cmp.coach.model.PulseModel;
@@ -29,9 +30,15 @@ public interface VendorTransformer {
     String getProcedureQuery(String patientId);
     String getServiceRequestQuery(String patientId);
 
+    /**
+     * @return true if the FHIR server can execute several searches submitted together in a single batch Bundle
+     */
+    boolean supportsBatchSearch();
+
     Bundle writeRemote(String sessionId, FhirStrategy strategy, FHIRService fhirService, Bundle bundle) throws DataException, IOException, ConfigurationException, ScopeException;
 
     List<BloodPressureModel> transformIncomingBloodPressureReadings(Bundle bundle) throws DataException;
+    List<BloodPressureModel> transformIncomingBloodPressureRecords(List<VitalsRecord> records, Bundle protocolBundle) throws DataException;
     Bundle transformOutgoingBloodPressureReading(BloodPressureModel model) throws DataException;
 
     List<PulseModel> transformIncomingPulseReadings(Bundle bundle) throws DataException;
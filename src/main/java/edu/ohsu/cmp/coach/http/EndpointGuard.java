@@ -0,0 +1,305 @@
+package edu.ohsu.cmp.coach.http;
+
+import edu.ohsu.cmp.coach.config.HttpClientResilienceConfiguration;
+import edu.ohsu.cmp.coach.exception.EndpointUnavailableException;
+import edu.ohsu.cmp.coach.service.MetricsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The resilience state of a single host: how many requests may be in flight to it at once, a circuit breaker that
+ * refuses requests outright while the host is failing, the latencies of its recent responses to idempotent requests
+ * (from which its adaptive timeout and hedging delay are derived), and its retry budget.
+ * <p>
+ * The circuit breaker opens once at least circuitBreakerFailureRateThreshold percent of the last
+ * circuitBreakerWindowSize requests failed (a 5xx or 429 response, or an I/O error such as a timeout).  After
+ * circuitBreakerOpenSeconds it lets a single trial request through; if that succeeds it closes again, otherwise it
+ * stays open for another period.
+ * <p>
+ * Every request adds retryBudgetRatio tokens to the retry budget (up to retryBudgetMaxTokens), and every retry or
+ * hedged request spends one, so retries can only ever add a bounded fraction to the load on a struggling host.
+ */
+public class EndpointGuard {
+    private static final Logger logger = LoggerFactory.getLogger(EndpointGuard.class);
+
+    public enum CircuitState {
+        CLOSED(0),
+        HALF_OPEN(1),
+        OPEN(2);
+
+        private final int value;
+
+        CircuitState(int value) {
+            this.value = value;
+        }
+
+        public int getValue() {
+            return value;
+        }
+    }
+
+    private final String host;
+    private final HttpClientResilienceConfiguration config;
+    private final int maxTimeoutMillis;
+    private final MetricsService metrics;
+    private final Semaphore permits;
+
+    // guarded by this
+    private CircuitState circuitState = CircuitState.CLOSED;
+    private final boolean[] outcomes;
+    private int outcomeIndex = 0;
+    private int outcomeCount = 0;
+    private int failureCount = 0;
+    private long openedAt = 0;
+    private boolean trialInFlight = false;
+    private double retryTokens;
+
+    // guarded by latencies
+    private final long[] latencies;
+    private int latencyIndex = 0;
+    private int latencyCount = 0;
+
+    private volatile int timeoutMillis;
+    private volatile long hedgeDelayMillis = -1;
+
+    /**
+     * @param maxTimeoutMillis the socket timeout configured for the client, which the adaptive timeout never exceeds
+     * @param metrics may be null
+     */
+    public EndpointGuard(String host, HttpClientResilienceConfiguration config, int maxTimeoutMillis, MetricsService metrics) {
+        this.host = host;
+        this.config = config;
+        this.maxTimeoutMillis = maxTimeoutMillis;
+        this.metrics = metrics;
+        this.permits = new Semaphore(config.getMaxConcurrentRequests(), true);
+        this.outcomes = new boolean[config.getCircuitBreakerWindowSize()];
+        this.latencies = new long[config.getLatencyWindowSize()];
+        this.retryTokens = config.getRetryBudgetMaxTokens();
+        this.timeoutMillis = maxTimeoutMillis;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * reserves a slot for a request to this host, waiting up to maxWaitMs for one to become available.  every
+     * successful call must be followed by a call to release(), and by recordResponse() or recordError()
+     * @throws EndpointUnavailableException if the circuit breaker is open, or no slot became available in time
+     */
+    public void acquire() throws EndpointUnavailableException {
+        boolean trial;
+        synchronized (this) {
+            if (circuitState == CircuitState.OPEN) {
+                if (System.currentTimeMillis() - openedAt < config.getCircuitBreakerOpenSeconds() * 1000) {
+                    recordEvent("rejected-circuit-open");
+                    throw new EndpointUnavailableException("circuit breaker for " + host + " is open");
+                }
+                transitionTo(CircuitState.HALF_OPEN);
+            }
+
+            if (circuitState == CircuitState.HALF_OPEN) {
+                if (trialInFlight) {
+                    recordEvent("rejected-circuit-open");
+                    throw new EndpointUnavailableException("circuit breaker for " + host + " is half-open and awaiting a trial request");
+                }
+                trialInFlight = true;
+            }
+            trial = trialInFlight;
+        }
+
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(config.getMaxWaitMs(), TimeUnit.MILLISECONDS);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+
+        if ( ! acquired ) {
+            if (trial) {
+                synchronized (this) {
+                    trialInFlight = false;
+                }
+            }
+            recordEvent("rejected-concurrency-limit");
+            throw new EndpointUnavailableException("too many requests in flight to " + host + " (limit=" +
+                    config.getMaxConcurrentRequests() + ")");
+        }
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * records that a response was received
+     * @param success false if the response indicates the host is failing or overloaded
+     */
+    public void recordResponse(long nanos, boolean success) {
+        recordLatency(TimeUnit.NANOSECONDS.toMillis(nanos));
+        recordOutcome(success);
+    }
+
+    /**
+     * records that a response was received to a request whose latency shouldn't inform the adaptive timeout or
+     * hedging delay, e.g. a POST, which may legitimately take far longer than the host's reads
+     * @param success false if the response indicates the host is failing or overloaded
+     */
+    public void recordResponse(boolean success) {
+        recordOutcome(success);
+    }
+
+    /**
+     * records that a request failed without a response, e.g. it timed out or its connection was refused
+     */
+    public void recordError() {
+        recordOutcome(false);
+    }
+
+    /**
+     * @return the socket timeout to apply to the next request: the configured multiple of the 99th percentile
+     * response time, but no less than adaptiveTimeoutMinMs and no more than the client's socket timeout.  until
+     * enough responses have been seen, the client's socket timeout
+     */
+    public int getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @return how long to wait for a response before sending a hedged request: the 95th percentile response time, or
+     * -1 if requests shouldn't be hedged, as not enough responses have been seen or the circuit breaker isn't closed
+     */
+    public long getHedgeDelayMillis() {
+        return getCircuitState() == CircuitState.CLOSED ?
+                hedgeDelayMillis :
+                -1;
+    }
+
+    public synchronized CircuitState getCircuitState() {
+        return circuitState;
+    }
+
+    public int getInFlight() {
+        return config.getMaxConcurrentRequests() - permits.availablePermits();
+    }
+
+    public synchronized double getRetryTokens() {
+        return retryTokens;
+    }
+
+    /**
+     * adds this request's contribution to the retry budget
+     */
+    public synchronized void depositRetryToken() {
+        retryTokens = Math.min(config.getRetryBudgetMaxTokens(), retryTokens + config.getRetryBudgetRatio());
+    }
+
+    /**
+     * @return true if the retry budget allows another retry or hedged request, in which case it's spent
+     */
+    public synchronized boolean withdrawRetryToken() {
+        if (retryTokens >= 1) {
+            retryTokens -= 1;
+            return true;
+
+        } else {
+            recordEvent("retry-budget-exhausted");
+            return false;
+        }
+    }
+
+    void recordEvent(String event) {
+        if (metrics != null) {
+            metrics.recordHttpEndpointEvent(host, event);
+        }
+    }
+
+    private synchronized void recordOutcome(boolean success) {
+        switch (circuitState) {
+            case HALF_OPEN:
+                trialInFlight = false;
+                if (success) {
+                    resetOutcomes();
+                    transitionTo(CircuitState.CLOSED);
+
+                } else {
+                    openedAt = System.currentTimeMillis();
+                    transitionTo(CircuitState.OPEN);
+                }
+                break;
+
+            case CLOSED:
+                if (outcomeCount == outcomes.length) {
+                    if ( ! outcomes[outcomeIndex] ) failureCount --;
+                } else {
+                    outcomeCount ++;
+                }
+                outcomes[outcomeIndex] = success;
+                if ( ! success ) failureCount ++;
+                outcomeIndex = (outcomeIndex + 1) % outcomes.length;
+
+                if (outcomeCount >= config.getCircuitBreakerMinimumRequests() &&
+                        failureCount * 100 >= config.getCircuitBreakerFailureRateThreshold() * outcomeCount) {
+                    logger.warn("opening circuit breaker for host=" + host + " - " + failureCount + " of the last " +
+                            outcomeCount + " requests failed");
+                    resetOutcomes();
+                    openedAt = System.currentTimeMillis();
+                    transitionTo(CircuitState.OPEN);
+                }
+                break;
+
+            case OPEN:
+                // a request sent before the circuit opened
+                break;
+        }
+    }
+
+    private void resetOutcomes() {
+        Arrays.fill(outcomes, false);
+        outcomeIndex = 0;
+        outcomeCount = 0;
+        failureCount = 0;
+    }
+
+    private void transitionTo(CircuitState state) {
+        if (state == circuitState) return;
+        logger.info("circuit breaker for host=" + host + " transitioning from " + circuitState + " to " + state);
+        circuitState = state;
+        recordEvent("circuit-" + state.name().toLowerCase().replace('_', '-'));
+    }
+
+    private void recordLatency(long millis) {
+        long[] sorted;
+        synchronized (latencies) {
+            latencies[latencyIndex] = millis;
+            latencyIndex = (latencyIndex + 1) % latencies.length;
+            if (latencyCount < latencies.length) latencyCount ++;
+
+            if (latencyCount < config.getAdaptiveTimeoutMinimumSamples()) return;
+
+            sorted = Arrays.copyOf(latencies, latencyCount);
+        }
+
+        Arrays.sort(sorted);
+        long p95 = percentile(sorted, 95);
+        long p99 = percentile(sorted, 99);
+
+        hedgeDelayMillis = Math.max(p95, config.getHedgingMinDelayMs());
+
+        if (config.isAdaptiveTimeoutEnabled()) {
+            long timeout = p99 * config.getAdaptiveTimeoutMultiplier();
+            timeoutMillis = (int) Math.min(maxTimeoutMillis, Math.max(config.getAdaptiveTimeoutMinMs(), timeout));
+        }
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
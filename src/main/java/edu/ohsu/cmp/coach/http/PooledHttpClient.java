@@ -0,0 +1,242 @@
+package edu.ohsu.cmp.coach.http;
+
+import edu.ohsu.cmp.coach.config.HttpClientResilienceConfiguration;
+import edu.ohsu.cmp.coach.service.MetricsService;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An HTTP client shared by every HttpRequest, which keeps connections alive and pools them, so consecutive calls
+ * to the same host (CQF-Ruler, Omron, REDCap, VSAC, token endpoints) reuse a connection instead of each
+ * establishing its own.
+ * <p>
+ * Each request gets its own cookie store, so cookies set by one response are never sent with another request,
+ * just as when every request had its own client.  The HAPI FHIR client factory is given a separate client over the
+ * same connection pool, which doesn't manage cookies at all (as HAPI's own clients don't), since HAPI doesn't
+ * supply a context of its own in which each request's cookies could be kept apart.
+ * <p>
+ * If a MetricsService is supplied, the latency and outcome of each request and whether it reused a pooled
+ * connection are recorded per host, along with the state of the pool itself.
+ * <p>
+ * If resilience settings are supplied, every request is also guarded per host by a ResilientHttpClient (circuit
+ * breaker, concurrency limit, adaptive timeout, retry budget and optionally hedged reads).
+ */
+public class PooledHttpClient implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(PooledHttpClient.class);
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 100;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    private static final int DEFAULT_SOCKET_TIMEOUT = 3600000;
+    private static final long DEFAULT_KEEP_ALIVE = 30000;
+
+    private static PooledHttpClient defaultClient = null;
+
+    /**
+     * @return the client registered by the application context, or if there isn't one (e.g. in a standalone
+     * utility), one built with default settings
+     */
+    public static synchronized PooledHttpClient getDefault() {
+        if (defaultClient == null) {
+            logger.warn("no HTTP client registered - building one with default settings");
+            defaultClient = new PooledHttpClient(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE,
+                    DEFAULT_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT, DEFAULT_KEEP_ALIVE, null, null);
+        }
+        return defaultClient;
+    }
+
+    public static synchronized void setDefault(PooledHttpClient client) {
+        defaultClient = client;
+    }
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final CloseableHttpClient fhirHttpClient;
+    private final MetricsService metrics;
+
+    /**
+     * @param keepAliveMillis the longest an idle connection is kept for reuse.  servers that specify a shorter
+     *                        keep-alive are respected
+     * @param resilience may be null, in which case requests aren't guarded
+     * @param metrics may be null
+     */
+    public PooledHttpClient(int maxConnections, int maxConnectionsPerRoute, int connectTimeoutMillis,
+                            int connectionRequestTimeoutMillis, int socketTimeoutMillis, long keepAliveMillis,
+                            HttpClientResilienceConfiguration resilience, MetricsService metrics) {
+        this.metrics = metrics;
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+        // storer 2022-09-16 - using the standard cookie spec resolves the following experienced errors:
+        // 2022-09-16 14:30:05.427 [scheduling-1] WARN  o.a.h.c.p.ResponseProcessCookies [ResponseProcessCookies.java:130] Invalid
+        //      cookie header: "Set-Cookie: <cookie>; Expires=Fri, 23 Sep 2022 21:30:05 GMT; Path=/". Invalid 'expires' attribute:
+        //      Fri, 23 Sep 2022 21:30:05 GMT
+        // see: https://www.lenar.io/invalid-cookie-header-invalid-expires-attribute/
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setCookieSpec(CookieSpecs.STANDARD)
+                .setConnectTimeout(connectTimeoutMillis)
+                .setConnectionRequestTimeout(connectionRequestTimeoutMillis)
+                .setSocketTimeout(socketTimeoutMillis)
+                .build();
+
+        boolean resilient = resilience != null && resilience.isEnabled();
+
+        CloseableHttpClient client = buildClient(requestConfig, keepAliveMillis, resilient)
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS)
+                .build();
+
+        // the pool belongs to the main client, which closes it
+        CloseableHttpClient fhirClient = buildClient(requestConfig, keepAliveMillis, resilient)
+                .setConnectionManagerShared(true)
+                .disableCookieManagement()
+                .build();
+
+        if (resilient) {
+            ResilientHttpClient resilientClient = new ResilientHttpClient(client, requestConfig, resilience, metrics);
+            httpClient = resilientClient;
+            fhirHttpClient = resilientClient.withDelegate(fhirClient);
+
+        } else {
+            httpClient = client;
+            fhirHttpClient = fhirClient;
+        }
+
+        if (metrics != null) {
+            metrics.monitorHttpConnectionPool(connectionManager);
+        }
+
+        logger.info("built pooled HTTP client with maxConnections=" + maxConnections + ", maxConnectionsPerRoute=" +
+                maxConnectionsPerRoute + ", connectTimeout=" + connectTimeoutMillis + ", connectionRequestTimeout=" +
+                connectionRequestTimeoutMillis + ", socketTimeout=" + socketTimeoutMillis + ", keepAlive=" + keepAliveMillis);
+    }
+
+    /**
+     * @return the HTTP client for the HAPI FHIR client factory to send its requests through.  it shares this
+     * client's connection pool, but doesn't manage cookies
+     */
+    public CloseableHttpClient getFhirHttpClient() {
+        return fhirHttpClient;
+    }
+
+    /**
+     * executes the specified request, reading the whole response body (decoded with the charset declared by the
+     * response, or UTF-8 if none is) before returning the connection to the pool
+     */
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        return execute(request, response -> {
+            HttpEntity entity = response.getEntity();
+            return new HttpResponse(response.getStatusLine().getStatusCode(), entity != null ?
+                    EntityUtils.toString(entity, StandardCharsets.UTF_8) :
+                    "");
+        });
+    }
+
+    /**
+     * executes the specified request, passing the response to the handler to consume its body as a stream.  the
+     * connection is returned to the pool once the handler returns
+     */
+    public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler) throws IOException {
+        HttpHost target = URIUtils.extractHost(request.getURI());
+        String host = target != null ? target.toHostString() : "unknown";
+
+        HttpClientContext context = HttpClientContext.create();
+        context.setCookieStore(new BasicCookieStore());
+
+        long start = System.nanoTime();
+        try (CloseableHttpResponse response = httpClient.execute(request, context)) {
+            recordConnectionReuse(host, context);
+
+            int code = response.getStatusLine().getStatusCode();
+
+            T t = handler.handleResponse(response);
+            EntityUtils.consume(response.getEntity());
+
+            recordRequest(host, request.getMethod(), String.valueOf(code), start, code < 400);
+
+            return t;
+
+        } catch (IOException e) {
+            recordRequest(host, request.getMethod(), "IO_ERROR", start, false);
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            fhirHttpClient.close();
+            httpClient.close();
+
+        } catch (IOException e) {
+            logger.warn("caught " + e.getClass().getName() + " closing HTTP client - " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param resilient if true, the client's own automatic retries are disabled, as ResilientHttpClient retries
+     *                  requests itself within the host's retry budget
+     */
+    private HttpClientBuilder buildClient(RequestConfig requestConfig, long keepAliveMillis, boolean resilient) {
+        HttpClientBuilder builder = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy((response, context) -> {
+                    long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return keepAlive > 0 && keepAlive < keepAliveMillis ?
+                            keepAlive :
+                            keepAliveMillis;
+                });
+
+        if (resilient) {
+            builder.disableAutomaticRetries();
+        }
+
+        return builder;
+    }
+
+    private void recordRequest(String host, String method, String status, long startNanos, boolean success) {
+        if (metrics != null) {
+            metrics.recordHttpRequest(host, method, status, System.nanoTime() - startNanos, success);
+        }
+    }
+
+    private void recordConnectionReuse(String host, HttpClientContext context) {
+        if (metrics == null) return;
+
+        try {
+            // the connection is still leased here, and has now sent this request.  if it had sent any before, it
+            // was reused from the pool
+            HttpConnection connection = context.getConnection();
+            if (connection != null && connection.getMetrics() != null) {
+                metrics.recordHttpConnection(host, connection.getMetrics().getRequestCount() > 1);
+            }
+
+        } catch (RuntimeException e) {
+            // the connection was already released, e.g. as the response has no body
+            logger.debug("couldn't determine connection reuse for host=" + host + " - " + e.getMessage());
+        }
+    }
+}
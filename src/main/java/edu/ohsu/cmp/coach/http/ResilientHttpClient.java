@@ -0,0 +1,396 @@
+package edu.ohsu.cmp.coach.http;
+
+import edu.ohsu.cmp.coach.config.HttpClientResilienceConfiguration;
+import edu.ohsu.cmp.coach.exception.EndpointUnavailableException;
+import edu.ohsu.cmp.coach.service.MetricsService;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wraps an HTTP client so that every request is guarded by the EndpointGuard of the host it's sent to: requests are
+ * refused outright while the host's circuit breaker is open or too many are already in flight to it, and each
+ * idempotent request is given a socket timeout adapted to how quickly the host has actually been answering such
+ * requests, rather than the client's (very long) socket timeout.  Other requests (e.g. a CQF-Ruler $apply POST) keep
+ * the client's socket timeout, and don't count toward the adaptive timeout.
+ * <p>
+ * Idempotent requests (GET, HEAD and OPTIONS) that fail with an I/O error or a 502, 503 or 504 response are retried,
+ * up to maxRetries times and only while the host's retry budget allows.  If hedging is enabled, an idempotent
+ * request that hasn't been answered within the host's 95th percentile response time is sent a second time, and
+ * whichever response arrives first is used; the other request is aborted.  Hedged requests also spend the retry
+ * budget.  Other requests (e.g. POSTs) are never retried or hedged.
+ */
+public class ResilientHttpClient extends CloseableHttpClient {
+    private static final Logger logger = LoggerFactory.getLogger(ResilientHttpClient.class);
+
+    private final CloseableHttpClient delegate;
+    private final RequestConfig defaultConfig;
+    private final HttpClientResilienceConfiguration config;
+    private final MetricsService metrics;
+    private final Map<String, EndpointGuard> guards;
+    private final ExecutorService hedgeExecutor;
+    private final boolean sharesState;
+
+    /**
+     * @param defaultConfig the delegate's default request configuration, whose socket timeout is the longest any
+     *                      request is given
+     * @param metrics may be null
+     */
+    public ResilientHttpClient(CloseableHttpClient delegate, RequestConfig defaultConfig,
+                               HttpClientResilienceConfiguration config, MetricsService metrics) {
+        this.delegate = delegate;
+        this.defaultConfig = defaultConfig;
+        this.config = config;
+        this.metrics = metrics;
+        this.guards = new ConcurrentHashMap<>();
+        this.sharesState = false;
+
+        if (config.isHedgingEnabled()) {
+            AtomicInteger threadCount = new AtomicInteger(0);
+            hedgeExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), r -> {
+                        Thread t = new Thread(r, "http-hedge-" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+
+        } else {
+            hedgeExecutor = null;
+        }
+
+        logger.info("built resilient HTTP client with maxConcurrentRequests=" + config.getMaxConcurrentRequests() +
+                ", circuitBreakerFailureRateThreshold=" + config.getCircuitBreakerFailureRateThreshold() +
+                "%, adaptiveTimeoutEnabled=" + config.isAdaptiveTimeoutEnabled() + ", maxRetries=" +
+                config.getMaxRetries() + ", hedgingEnabled=" + config.isHedgingEnabled());
+    }
+
+    private ResilientHttpClient(CloseableHttpClient delegate, ResilientHttpClient other) {
+        this.delegate = delegate;
+        this.defaultConfig = other.defaultConfig;
+        this.config = other.config;
+        this.metrics = other.metrics;
+        this.guards = other.guards;
+        this.hedgeExecutor = other.hedgeExecutor;
+        this.sharesState = true;
+    }
+
+    /**
+     * @return a client that sends its requests through the specified delegate, guarded by the same per-host state
+     * (circuit breakers, concurrency limits, etc.) as this one.  closing it closes only its delegate
+     */
+    public ResilientHttpClient withDelegate(CloseableHttpClient delegate) {
+        return new ResilientHttpClient(delegate, this);
+    }
+
+    /**
+     * @return the resilience state of the specified host, created the first time a request is sent to it
+     */
+    public EndpointGuard getGuard(HttpHost target) {
+        String host = target != null ? target.toHostString() : "unknown";
+        return guards.computeIfAbsent(host, k -> {
+            EndpointGuard guard = new EndpointGuard(k, config, defaultConfig.getSocketTimeout(), metrics);
+            if (metrics != null) {
+                metrics.monitorHttpEndpoint(guard);
+            }
+            return guard;
+        });
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+        EndpointGuard guard = getGuard(target);
+        guard.depositRetryToken();
+
+        boolean idempotent = isIdempotent(request);
+        int retries = 0;
+
+        while (true) {
+            try {
+                CloseableHttpResponse response = idempotent && hedgeExecutor != null ?
+                        executeHedged(guard, target, (HttpRequestBase) request, context) :
+                        executeOnce(guard, target, request, context, idempotent);
+
+                int code = response.getStatusLine().getStatusCode();
+                if (idempotent && (code == 502 || code == 503 || code == 504) && canRetry(guard, retries)) {
+                    logger.warn("retrying " + request.getRequestLine().getMethod() + " to " + guard.getHost() +
+                            " after status " + code);
+                    discard(response);
+
+                } else {
+                    return response;
+                }
+
+            } catch (EndpointUnavailableException e) {
+                throw e;
+
+            } catch (IOException e) {
+                if (idempotent && canRetry(guard, retries)) {
+                    logger.warn("caught " + e.getClass().getName() + " executing " + request.getRequestLine().getMethod() +
+                            " to " + guard.getHost() + " - retrying - " + e.getMessage());
+
+                } else {
+                    throw e;
+                }
+            }
+
+            retries ++;
+            guard.recordEvent("retry");
+            backoff(retries);
+        }
+    }
+
+    private boolean canRetry(EndpointGuard guard, int retries) {
+        return retries < config.getMaxRetries() && guard.withdrawRetryToken();
+    }
+
+    private void backoff(int retries) throws InterruptedIOException {
+        try {
+            Thread.sleep(config.getRetryBackoffMs() * retries);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted awaiting retry");
+        }
+    }
+
+    /**
+     * @param idempotent if false, the request keeps its configured socket timeout, and its latency isn't counted
+     *                   toward the host's adaptive timeout, which is derived from idempotent requests only
+     */
+    private CloseableHttpResponse executeOnce(EndpointGuard guard, HttpHost target, HttpRequest request,
+                                              HttpContext context, boolean idempotent) throws IOException {
+        guard.acquire();
+        try {
+            if (idempotent) {
+                applyTimeout(guard, request);
+            }
+
+            long start = System.nanoTime();
+            try {
+                CloseableHttpResponse response = delegate.execute(target, request, context);
+                int code = response.getStatusLine().getStatusCode();
+                boolean success = code < 500 && code != 429;
+                if (idempotent) {
+                    guard.recordResponse(System.nanoTime() - start, success);
+                } else {
+                    guard.recordResponse(success);
+                }
+                return response;
+
+            } catch (IOException | RuntimeException e) {
+                // a hedged request aborted because the other one was answered first hasn't failed
+                if ( ! (request instanceof HttpRequestBase && ((HttpRequestBase) request).isAborted()) ) {
+                    guard.recordError();
+                }
+                throw e;
+            }
+
+        } finally {
+            guard.release();
+        }
+    }
+
+    /**
+     * sends a copy of the request, and if it hasn't been answered by the host's hedging delay, a second copy,
+     * returning whichever response arrives first
+     */
+    private CloseableHttpResponse executeHedged(EndpointGuard guard, HttpHost target, HttpRequestBase request,
+                                                HttpContext context) throws IOException {
+        long delay = guard.getHedgeDelayMillis();
+        if (delay < 0) {
+            return executeOnce(guard, target, request, context, true);
+        }
+
+        CompletionService<CloseableHttpResponse> completionService = new ExecutorCompletionService<>(hedgeExecutor);
+        Attempt primary = new Attempt(guard, target, request, context);
+        Attempt hedge = null;
+
+        try {
+            primary.future = completionService.submit(primary);
+
+        } catch (RejectedExecutionException e) {
+            return executeOnce(guard, target, request, context, true);
+        }
+
+        try {
+            Future<CloseableHttpResponse> done = completionService.poll(delay, TimeUnit.MILLISECONDS);
+            if (done == null && guard.withdrawRetryToken()) {
+                hedge = new Attempt(guard, target, request, context);
+                try {
+                    hedge.future = completionService.submit(hedge);
+                    guard.recordEvent("hedge");
+
+                } catch (RejectedExecutionException e) {
+                    hedge = null;
+                }
+            }
+
+            int pending = hedge != null ? 2 : 1;
+            IOException failure = null;
+            while (pending > 0) {
+                Future<CloseableHttpResponse> future = done != null ? done : completionService.take();
+                done = null;
+                pending --;
+
+                try {
+                    CloseableHttpResponse response = future.get();
+                    if (hedge != null) {
+                        Attempt loser = future == primary.future ? hedge : primary;
+                        loser.abandon();
+                        if (future == hedge.future) {
+                            guard.recordEvent("hedge-won");
+                        }
+                    }
+                    return response;
+
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof IOException ?
+                            (IOException) e.getCause() :
+                            new IOException(e.getCause());
+                }
+            }
+            throw failure;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            primary.abandon();
+            if (hedge != null) hedge.abandon();
+            throw new InterruptedIOException("interrupted awaiting response from " + guard.getHost());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (hedgeExecutor != null && ! sharesState ) {
+            hedgeExecutor.shutdownNow();
+        }
+        delegate.close();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public HttpParams getParams() {
+        return delegate.getParams();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ClientConnectionManager getConnectionManager() {
+        return delegate.getConnectionManager();
+    }
+
+    /**
+     * shortens the request's socket timeout to the host's adaptive timeout, if that's shorter
+     */
+    private void applyTimeout(EndpointGuard guard, HttpRequest request) {
+        if ( ! config.isAdaptiveTimeoutEnabled() || ! (request instanceof HttpRequestBase) ) return;
+
+        HttpRequestBase base = (HttpRequestBase) request;
+        RequestConfig requestConfig = base.getConfig() != null ?
+                base.getConfig() :
+                defaultConfig;
+
+        int timeout = guard.getTimeoutMillis();
+        if (requestConfig.getSocketTimeout() <= 0 || timeout < requestConfig.getSocketTimeout()) {
+            base.setConfig(RequestConfig.copy(requestConfig).setSocketTimeout(timeout).build());
+        }
+    }
+
+    private static boolean isIdempotent(HttpRequest request) {
+        if ( ! (request instanceof HttpRequestBase) ) return false;
+
+        String method = request.getRequestLine().getMethod();
+        return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method);
+    }
+
+    /**
+     * copies an idempotent (so bodiless) request.  HttpRequestBase.clone() can't be used, as clones share the
+     * reference through which a request is aborted
+     */
+    private static HttpRequestBase copy(HttpRequestBase request) {
+        String method = request.getMethod();
+        HttpRequestBase copy = new HttpRequestBase() {
+            @Override
+            public String getMethod() {
+                return method;
+            }
+        };
+        copy.setURI(request.getURI());
+        copy.setProtocolVersion(request.getProtocolVersion());
+        copy.setHeaders(request.getAllHeaders());
+        copy.setConfig(request.getConfig());
+        return copy;
+    }
+
+    private static void discard(CloseableHttpResponse response) {
+        try {
+            EntityUtils.consumeQuietly(response.getEntity());
+            response.close();
+
+        } catch (IOException e) {
+            logger.debug("caught " + e.getClass().getName() + " discarding response - " + e.getMessage());
+        }
+    }
+
+    /**
+     * one copy of a hedged request, sent with its own copy of the request and context so that it can be aborted
+     * without affecting the other
+     */
+    private class Attempt implements Callable<CloseableHttpResponse> {
+        private final EndpointGuard guard;
+        private final HttpHost target;
+        private final HttpRequestBase request;
+        private final HttpContext context;
+        private Future<CloseableHttpResponse> future = null;
+
+        // guarded by this
+        private boolean abandoned = false;
+        private CloseableHttpResponse response = null;
+
+        Attempt(EndpointGuard guard, HttpHost target, HttpRequestBase request, HttpContext parentContext) {
+            this.guard = guard;
+            this.target = target;
+            this.request = copy(request);
+            this.context = new BasicHttpContext(parentContext);
+        }
+
+        @Override
+        public CloseableHttpResponse call() throws IOException {
+            CloseableHttpResponse r = executeOnce(guard, target, request, context, true);
+            synchronized (this) {
+                if (abandoned) {
+                    discard(r);
+                } else {
+                    response = r;
+                }
+            }
+            return r;
+        }
+
+        void abandon() {
+            synchronized (this) {
+                abandoned = true;
+                if (response != null) {
+                    discard(response);
+                }
+            }
+            request.abort();
+        }
+    }
+}
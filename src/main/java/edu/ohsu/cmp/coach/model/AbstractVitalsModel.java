@@ -10,11 +10,14 @@ import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Serializable;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
-public abstract class AbstractVitalsModel extends AbstractModel implements Comparable<AbstractVitalsModel> {
+public abstract class AbstractVitalsModel extends AbstractModel implements Comparable<AbstractVitalsModel>, Serializable {
+    private static final long serialVersionUID = 1L;
+
 //    public static final String OBSERVATION_CATEGORY_SYSTEM = "http://terminology.hl7.org/CodeSystem/observation-category";
 //    public static final String OBSERVATION_CATEGORY_CODE = "vital-signs";
 
@@ -24,7 +27,7 @@ public abstract class AbstractVitalsModel extends AbstractModel implements Compa
 
 //    protected static final String PROTOCOL_NOTE_TAG = "COACH_PROTOCOL::";
 
-    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private static final Logger logger = LoggerFactory.getLogger(AbstractVitalsModel.class);
 
     protected static final String KEY_DELIM = "|";
 
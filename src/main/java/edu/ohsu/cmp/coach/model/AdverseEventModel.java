@@ -9,7 +9,10 @@ import org.hl7.fhir.r4.model.AdverseEvent;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Coding;
 
-public class AdverseEventModel implements FHIRCompatible {
+import java.io.Serializable;
+
+public class AdverseEventModel implements FHIRCompatible, Serializable {
+    private static final long serialVersionUID = 1L;
 
     private AdverseEvent sourceAdverseEvent;
     private String system;
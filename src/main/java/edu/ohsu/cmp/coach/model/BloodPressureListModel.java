@@ -0,0 +1,21 @@
+package edu.ohsu.cmp.coach.model;
+
+import java.util.List;
+
+public class BloodPressureListModel {
+    private long version;
+    private List<BloodPressureModel> observations;
+
+    public BloodPressureListModel(long version, List<BloodPressureModel> observations) {
+        this.version = version;
+        this.observations = observations;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<BloodPressureModel> getObservations() {
+        return observations;
+    }
+}
@@ -5,6 +5,7 @@ import edu.ohsu.cmp.coach.entity.HomeBloodPressureReading;
 import edu.ohsu.cmp.coach.entity.MyOmronVitals;
 import edu.ohsu.cmp.coach.exception.DataException;
 import edu.ohsu.cmp.coach.fhir.FhirConfigManager;
+import edu.ohsu.cmp.coach.fhir.VitalsRecord;
 import edu.ohsu.cmp.coach.model.omron.OmronBloodPressureModel;
 import edu.ohsu.cmp.coach.util.FhirUtil;
 import edu.ohsu.cmp.coach.util.ObservationUtil;
@@ -12,6 +13,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
 
 import java.text.ParseException;
 import java.time.ZoneOffset;
@@ -20,10 +22,15 @@ import java.time.format.DateTimeFormatter;
 import java.util.Date;
 
 public class BloodPressureModel extends AbstractVitalsModel {
+    private static final long serialVersionUID = 1L;
+
     private Long localDatabaseId = null;
     private Observation sourceBPObservation = null;
     private Observation sourceSystolicObservation = null;
     private Observation sourceDiastolicObservation = null;
+    private VitalsRecord sourceBPRecord = null;             // parsed into source Observations on demand
+    private VitalsRecord sourceSystolicRecord = null;
+    private VitalsRecord sourceDiastolicRecord = null;
     private OmronBloodPressureModel sourceOmronBloodPressureModel = null;
 
     private QuantityModel systolic = null;
@@ -120,6 +127,90 @@ public class BloodPressureModel extends AbstractVitalsModel {
         buildFromSystolicDiastolicObservations(systolicObservation, diastolicObservation, fcm);
     }
 
+    // read remote vitals records, no encounter reference or resource available
+    public BloodPressureModel(VitalsRecord bpRecord, FhirConfigManager fcm) throws DataException {
+        super(ObservationUtil.getBPSource(bpRecord, fcm), null, ObservationUtil.getReadingDate(bpRecord), fcm);
+
+        buildFromBPRecord(bpRecord, fcm);
+    }
+
+    // read remote vitals records, has encounter and possibly protocol
+    public BloodPressureModel(Encounter encounter, VitalsRecord bpRecord,
+                              Observation protocolObservation, FhirConfigManager fcm) throws DataException {
+
+        super(encounter, ObservationUtil.getBPSource(bpRecord, encounter, fcm), protocolObservation, ObservationUtil.getReadingDate(bpRecord), fcm);
+
+        buildFromBPRecord(bpRecord, fcm);
+    }
+
+    public BloodPressureModel(Encounter encounter, VitalsRecord systolicRecord, VitalsRecord diastolicRecord,
+                              Observation protocolObservation, FhirConfigManager fcm) throws DataException {
+
+        super(encounter, ObservationUtil.getBPSource(systolicRecord, encounter, fcm), protocolObservation, ObservationUtil.getReadingDate(systolicRecord), fcm);
+
+        buildFromSystolicDiastolicRecords(systolicRecord, diastolicRecord, fcm);
+    }
+
+    public BloodPressureModel(VitalsRecord systolicRecord, VitalsRecord diastolicRecord, FhirConfigManager fcm) throws DataException {
+        super(ObservationUtil.getBPSource(systolicRecord, fcm), null, ObservationUtil.getReadingDate(systolicRecord), fcm);
+
+        buildFromSystolicDiastolicRecords(systolicRecord, diastolicRecord, fcm);
+    }
+
+    private void buildFromBPRecord(VitalsRecord bpRecord, FhirConfigManager fcm) throws DataException {
+        sourceBPRecord = bpRecord;
+
+        if (FhirUtil.hasCoding(bpRecord.getCode(), fcm.getBpPanelCodings())) {
+            for (VitalsRecord.Component component : bpRecord.getComponents()) {
+                CodeableConcept cc = component.getCode();
+                if (FhirUtil.hasCoding(cc, fcm.getBpSystolicCodings())) {
+                    systolic = new QuantityModel(toQuantity(component.getValueQuantity()), fcm.getBpValueUnit());
+
+                } else if (FhirUtil.hasCoding(cc, fcm.getBpDiastolicCodings())) {
+                    diastolic = new QuantityModel(toQuantity(component.getValueQuantity()), fcm.getBpValueUnit());
+                }
+            }
+
+            if (systolic == null || diastolic == null) {
+                throw new DataException("both systolic and diastolic required (Observation.id=" + bpRecord.getId() + ")");
+            }
+
+        } else {
+            throw new DataException("only BP panel Observations permitted in this context");
+        }
+    }
+
+    private void buildFromSystolicDiastolicRecords(VitalsRecord systolicRecord, VitalsRecord diastolicRecord, FhirConfigManager fcm) throws DataException {
+        sourceSystolicRecord = systolicRecord;
+        sourceDiastolicRecord = diastolicRecord;
+
+        if (systolicRecord == null || diastolicRecord == null) {
+            throw new DataException("both systolic and diastolic Observations are required");
+        }
+
+        if (systolicRecord.hasCode() && FhirUtil.hasCoding(systolicRecord.getCode(), fcm.getBpSystolicCodings())) {
+            systolic = new QuantityModel(toQuantity(systolicRecord.getValueQuantity()), fcm.getBpValueUnit());
+            if (StringUtils.isEmpty(systolic.getUnit())) {
+                systolic.setUnit(fcm.getBpValueUnit());
+            }
+        } else {
+            throw new DataException("systolic observation : invalid coding (Observation.id=" + systolicRecord.getId() + ")");
+        }
+
+        if (diastolicRecord.hasCode() && FhirUtil.hasCoding(diastolicRecord.getCode(), fcm.getBpDiastolicCodings())) {
+            diastolic = new QuantityModel(toQuantity(diastolicRecord.getValueQuantity()), fcm.getBpValueUnit());
+            if (StringUtils.isEmpty(diastolic.getUnit())) {
+                diastolic.setUnit(fcm.getBpValueUnit());
+            }
+        } else {
+            throw new DataException("diastolic observation : invalid coding (Observation.id=" + diastolicRecord.getId() + ")");
+        }
+    }
+
+    private Quantity toQuantity(Quantity q) {
+        return q != null ? q : new Quantity();
+    }
+
     public BloodPressureModel(MyOmronVitals vitals, FhirConfigManager fcm) throws ParseException, DataException {
         super(ObservationSource.OMRON, null, OMRON_DATETIME_FORMAT.parse(vitals.getDateTimeLocal() + vitals.getDateTimeUtcOffset()), fcm);
         sourceOmronBloodPressureModel = new OmronBloodPressureModel(vitals);
@@ -162,8 +253,12 @@ public class BloodPressureModel extends AbstractVitalsModel {
     public String toString() {
         if (sourceBPObservation != null) {
             return "remote-panel-" + sourceBPObservation.getId();
+        } else if (sourceBPRecord != null) {
+            return "remote-panel-" + sourceBPRecord.getId();
         } else if (sourceSystolicObservation != null) {
             return "remote-systolic-" + sourceSystolicObservation.getId();
+        } else if (sourceSystolicRecord != null) {
+            return "remote-systolic-" + sourceSystolicRecord.getId();
         } else if (sourceOmronBloodPressureModel != null) {
             return "omron-" + sourceOmronBloodPressureModel.getId();
         } else if (localDatabaseId != null) {
@@ -200,17 +295,23 @@ public class BloodPressureModel extends AbstractVitalsModel {
 
     @JsonIgnore
     public Observation getSourceBPObservation() {
-        return sourceBPObservation;
+        return sourceBPObservation == null && sourceBPRecord != null ?
+                sourceBPRecord.getObservation() :
+                sourceBPObservation;
     }
 
     @JsonIgnore
     public Observation getSourceSystolicObservation() {
-        return sourceSystolicObservation;
+        return sourceSystolicObservation == null && sourceSystolicRecord != null ?
+                sourceSystolicRecord.getObservation() :
+                sourceSystolicObservation;
     }
 
     @JsonIgnore
     public Observation getSourceDiastolicObservation() {
-        return sourceDiastolicObservation;
+        return sourceDiastolicObservation == null && sourceDiastolicRecord != null ?
+                sourceDiastolicRecord.getObservation() :
+                sourceDiastolicObservation;
     }
 
     public QuantityModel getSystolic() {
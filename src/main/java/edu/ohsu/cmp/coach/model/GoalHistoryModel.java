@@ -3,9 +3,12 @@ package edu.ohsu.cmp.coach.model;
 import edu.ohsu.cmp.coach.entity.GoalHistory;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.Serializable;
 import java.util.Date;
 
-public class GoalHistoryModel implements Comparable<GoalHistoryModel> {
+public class GoalHistoryModel implements Comparable<GoalHistoryModel>, Serializable {
+    private static final long serialVersionUID = 1L;
+
     private Long id;
     private Long goalId;
     private AchievementStatus achievementStatus;
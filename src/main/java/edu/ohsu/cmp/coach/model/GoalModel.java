@@ -8,11 +8,14 @@ import edu.ohsu.cmp.coach.util.FhirUtil;
 import org.hl7.fhir.r4.model.*;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.Serializable;
 import java.util.Date;
 import java.util.Set;
 import java.util.TreeSet;
 
-public class GoalModel implements Comparable<GoalModel> {
+public class GoalModel implements Comparable<GoalModel>, Serializable {
+    private static final long serialVersionUID = 1L;
+
     public static final String BP_GOAL_ID = "bp-goal";
     public static final Integer BP_GOAL_DEFAULT_SYSTOLIC = 140;
     public static final Integer BP_GOAL_DEFAULT_DIASTOLIC = 90;
@@ -6,7 +6,10 @@ import edu.ohsu.cmp.coach.util.FhirUtil;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.*;
 
-public class MedicationModel {
+import java.io.Serializable;
+
+public class MedicationModel implements Serializable {
+    private static final long serialVersionUID = 1L;
 
     private MedicationStatement sourceMedicationStatement;
     private MedicationRequest sourceMedicationRequest;
@@ -18,6 +18,8 @@ import java.time.format.DateTimeFormatter;
 import java.util.Date;
 
 public class PulseModel extends AbstractVitalsModel {
+    private static final long serialVersionUID = 1L;
+
     private Long localDatabaseId = null;
     private Observation sourcePulseObservation = null;
 
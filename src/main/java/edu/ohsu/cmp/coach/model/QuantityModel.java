@@ -3,7 +3,11 @@ package edu.ohsu.cmp.coach.model;
 import edu.ohsu.cmp.coach.exception.DataException;
 import org.hl7.fhir.r4.model.Quantity;
 
-public class QuantityModel {
+import java.io.Serializable;
+
+public class QuantityModel implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private Integer value;
     private String unit;
 
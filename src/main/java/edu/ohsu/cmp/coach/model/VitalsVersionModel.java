@@ -0,0 +1,19 @@
+package edu.ohsu.cmp.coach.model;
+
+public class VitalsVersionModel {
+    private long version;
+    private boolean refreshing;
+
+    public VitalsVersionModel(long version, boolean refreshing) {
+        this.version = version;
+        this.refreshing = refreshing;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isRefreshing() {
+        return refreshing;
+    }
+}
@@ -18,6 +18,9 @@ public class CDSHook {
     @SerializedName("description")
     private String description;
 
+    // a hash of the service's complete definition as discovered, which changes whenever its PlanDefinition does
+    private transient String version;
+
     public CDSHook(String id, String hook, String name, String title, String description) {
         this.id = id;
         this.hook = hook;
@@ -65,4 +68,12 @@ public class CDSHook {
     public void setDescription(String description) {
         this.description = description;
     }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String version) {
+        this.version = version;
+    }
 }
@@ -0,0 +1,33 @@
+package edu.ohsu.cmp.coach.model.cqfruler;
+
+/**
+ * The raw response from CQF-Ruler for a single CDS Hook, before it's been rendered for any particular audience.
+ * The body may contain audience-specific Mustache sections (e.g. {{#patient}}...{{/patient}}).
+ */
+public class HookEvaluation {
+    private final int code;
+    private final String body;
+    private final boolean prefetchModified;
+
+    public HookEvaluation(int code, String body, boolean prefetchModified) {
+        this.code = code;
+        this.body = body;
+        this.prefetchModified = prefetchModified;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public boolean isPrefetchModified() {
+        return prefetchModified;
+    }
+
+    public boolean isSuccessful() {
+        return code >= 200 && code <= 299;
+    }
+}
@@ -0,0 +1,116 @@
+package edu.ohsu.cmp.coach.model.cqfruler;
+
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The prefetch sent to CQF-Ruler with a hook request, serialized once so that it can be shared by every hook
+ * evaluated against the same patient data.  Holds nothing specific to a session or a hook.
+ */
+public class HookPrefetch {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private String prefetch;
+    private boolean modified = false;
+    private volatile String digest = null;
+
+    public HookPrefetch(List<IBaseResource> prefetchList) {
+        if (prefetchList != null && prefetchList.size() > 0) {
+            // need to build prefetch as a serialized string here, as we're creating multiple items
+            // with additional attributes, and mustache templates just aren't complex enough to build
+            // this out.  womp womp
+            List<String> list = new ArrayList<>();
+            int itemNo = 1;
+            for (IBaseResource item : prefetchList) {
+                if (item instanceof Bundle) {
+                    Bundle bundle = (Bundle) item;
+                    if ( ! bundle.hasEntry() || bundle.getEntry().isEmpty() ) {
+                        continue;
+                    }
+                }
+
+                SanitizeResponse sr = sanitize(FhirUtil.toCompactJson(item), StandardCharsets.US_ASCII);
+                this.modified |= sr.isModified();
+
+                String s = "\"item" + itemNo + "\":{" +
+                        "\"response\":{\"status\":\"200 OK\"}," +
+                        "\"resource\":" + sr.getJsonSanitized() + "}";
+
+                list.add(s);
+
+                itemNo ++;
+            }
+
+            this.prefetch = StringUtils.join(list, ",\n");
+        }
+    }
+
+    public String getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * @return the SHA-256 hash of the serialized prefetch, which identifies the data it holds
+     */
+    public String getDigest() {
+        if (digest == null) {
+            digest = DigestUtils.sha256Hex(StringUtils.defaultString(prefetch));
+        }
+        return digest;
+    }
+
+    /**
+     * @return true if non-ASCII characters had to be replaced with sentinels to serialize the prefetch
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private SanitizeResponse sanitize(String json, Charset charset) {
+        ByteBuffer buffer = charset.encode(json);
+        String jsonSanitized = charset.decode(buffer).toString();
+
+        boolean modified = ! StringUtils.equals(json, jsonSanitized);
+        if (modified) {
+            logger.warn("JSON contains non-" + charset.name() + " characters.  Offending characters have been replaced with sentinels.");
+            logger.debug("JSON = " + json);
+            logger.debug("JSON-" + charset.name() + " = " + jsonSanitized);
+        }
+
+        return new SanitizeResponse(jsonSanitized, modified);
+    }
+
+    private static final class SanitizeResponse {
+        private String jsonSanitized;
+        private boolean modified;
+
+        public SanitizeResponse(String jsonSanitized, boolean modified) {
+            this.jsonSanitized = jsonSanitized;
+            this.modified = modified;
+        }
+
+        public String getJsonSanitized() {
+            return jsonSanitized;
+        }
+
+        public boolean isModified() {
+            return modified;
+        }
+    }
+}
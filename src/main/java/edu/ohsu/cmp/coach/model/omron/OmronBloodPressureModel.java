@@ -2,7 +2,11 @@ package edu.ohsu.cmp.coach.model.omron;
 
 import edu.ohsu.cmp.coach.entity.MyOmronVitals;
 
-public class OmronBloodPressureModel {
+import java.io.Serializable;
+
+public class OmronBloodPressureModel implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private Long id;
     private String dateTime;
     private String dateTimeLocal;
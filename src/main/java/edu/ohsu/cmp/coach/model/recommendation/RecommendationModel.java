@@ -0,0 +1,21 @@
+package edu.ohsu.cmp.coach.model.recommendation;
+
+import java.util.List;
+
+public class RecommendationModel {
+    private String id;
+    private List<Card> cards;
+
+    public RecommendationModel(String id, List<Card> cards) {
+        this.id = id;
+        this.cards = cards;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public List<Card> getCards() {
+        return cards;
+    }
+}
@@ -0,0 +1,25 @@
+package edu.ohsu.cmp.coach.repository;
+
+import edu.ohsu.cmp.coach.entity.FhirSyncState;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Date;
+
+public interface FhirSyncStateRepository extends JpaRepository<FhirSyncState, Long> {
+    @Query("select s from FhirSyncState s where s.patId=:patId and s.queryHash=:queryHash")
+    FhirSyncState findOneByPatIdAndQueryHash(@Param("patId") Long patId, @Param("queryHash") String queryHash);
+
+    @Modifying
+    @Transactional
+    @Query("delete from FhirSyncState where patId=:patId and lastSynced < :cutoff")
+    void deleteAllByPatIdSyncedBefore(@Param("patId") Long patId, @Param("cutoff") Date cutoff);
+
+    @Modifying
+    @Transactional
+    @Query("delete from FhirSyncState where patId=:patId")
+    void deleteAllByPatId(@Param("patId") Long patId);
+}
@@ -6,6 +6,8 @@ import edu.ohsu.cmp.coach.exception.DataException;
 import edu.ohsu.cmp.coach.exception.ScopeException;
 import edu.ohsu.cmp.coach.fhir.CompositeBundle;
 import edu.ohsu.cmp.coach.fhir.FhirStrategy;
+import edu.ohsu.cmp.coach.fhir.ObservationQueryPlanner;
+import edu.ohsu.cmp.coach.fhir.VitalsRecord;
 import edu.ohsu.cmp.coach.fhir.transform.VendorTransformer;
 import edu.ohsu.cmp.coach.model.AuditLevel;
 import edu.ohsu.cmp.coach.model.BloodPressureModel;
@@ -32,6 +34,9 @@ public class BloodPressureService extends AbstractService {
     @Value("${fhir.bp-writeback-strategy}")
     private FhirStrategy writebackStrategy;
 
+    @Value("${fhir.vitals.lean-parsing}")
+    private Boolean leanParsing;
+
     @Autowired
     private EHRService ehrService;
 
@@ -39,17 +44,26 @@ public class BloodPressureService extends AbstractService {
     private HomeBloodPressureReadingService hbprService;
 
     public List<BloodPressureModel> buildRemoteBloodPressureList(String sessionId) throws DataException, ConfigurationException, IOException {
-        CompositeBundle compositeBundle = new CompositeBundle();
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
 
-        List<Coding> codings = new ArrayList<>();
-        codings.addAll(fcm.getBpPanelCodings());
-        codings.addAll(fcm.getBpSystolicCodings());
-        codings.addAll(fcm.getBpDiastolicCodings());
+        if (leanParsing) {
+            List<Coding> codings = new ArrayList<>();
+            codings.addAll(fcm.getBpPanelCodings());
+            codings.addAll(fcm.getBpSystolicCodings());
+            codings.addAll(fcm.getBpDiastolicCodings());
 
-        compositeBundle.consume(ehrService.getObservations(sessionId, FhirUtil.toCodeParamString(codings), fcm.getBpLookbackPeriod(), null));
-        compositeBundle.consume(userWorkspaceService.get(sessionId).getProtocolObservations());
+            List<VitalsRecord> records = ehrService.getVitalsRecords(sessionId, FhirUtil.toCodeParamString(codings),
+                    fcm.getBpLookbackPeriod());
+
+            return workspace.getVendorTransformer().transformIncomingBloodPressureRecords(
+                    records != null ? records : new ArrayList<>(),
+                    workspace.getProtocolObservations());
+        }
+
+        CompositeBundle compositeBundle = new CompositeBundle();
+        compositeBundle.consume(workspace.getObservationQueryPlanner().getObservations(sessionId, ObservationQueryPlanner.Group.BLOOD_PRESSURE));
+        compositeBundle.consume(workspace.getProtocolObservations());
 
-        UserWorkspace workspace = userWorkspaceService.get(sessionId);
         return workspace.getVendorTransformer().transformIncomingBloodPressureReadings(compositeBundle.getBundle());
     }
 
@@ -130,7 +144,7 @@ public class BloodPressureService extends AbstractService {
                 );
                 if (list.size() >= 1) {
                     bpm2 = list.get(0);
-                    workspace.getRemoteBloodPressures().add(bpm2);
+                    workspace.addRemoteBloodPressure(bpm2);
                 }
 
                 auditService.doAudit(sessionId, AuditLevel.INFO, "wrote BP remotely", bpm.getSystolic() + "/" +
@@ -0,0 +1,174 @@
+package edu.ohsu.cmp.coach.service;
+
+import edu.ohsu.cmp.coach.model.cqfruler.CDSHook;
+import edu.ohsu.cmp.coach.model.redcap.RandomizationGroup;
+import edu.ohsu.cmp.coach.util.CDSHooksUtil;
+import edu.ohsu.cmp.coach.workspace.UserWorkspaceService;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Holds the CDS Hooks services CQF-Ruler advertises, in cdsHookOrder, along with the subset shown to the "basic"
+ * randomization group.  Discovery happens once, the first time the hooks are needed, and is then refreshed in the
+ * background every cqfruler.cdshooks.discovery.refresh-interval-ms; if a refresh fails, the hooks last discovered
+ * continue to be served.
+ * <p>
+ * Each hook carries a version identifying its definition.  When a refresh finds that a hook's definition has
+ * changed (or that it's gone), recommendations for that hook alone are invalidated for every patient, so they're
+ * re-evaluated the next time they're needed.
+ */
+@Service
+public class CDSHooksDiscoveryService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private UserWorkspaceService userWorkspaceService;
+
+    @Value("${cqfruler.cdshooks.endpoint.url}")
+    private String cdsHooksEndpointURL;
+
+    private final List<String> cdsHookOrder;
+    private final List<String> basicGroupAllowFilter;
+
+    private volatile Registry registry = null;
+
+    public CDSHooksDiscoveryService(@Value("${cqfruler.cdshooks.order.csv}") String cdsHookOrderStr,
+                                    @Value("${cqfruler.cdshooks.basic-group.allow-filter.csv}") String basicGroupAllowFilterStr) {
+        this.cdsHookOrder = Arrays.asList(cdsHookOrderStr.split("\\s*,\\s*"));
+        this.basicGroupAllowFilter = Arrays.asList(basicGroupAllowFilterStr.split("\\s*,\\s*"));
+    }
+
+    /**
+     * @return the hooks to evaluate for a member of the specified randomization group, in cdsHookOrder
+     */
+    public List<CDSHook> getOrderedCDSHooks(RandomizationGroup randomizationGroup) throws IOException {
+        Registry r = getRegistry();
+        return randomizationGroup == RandomizationGroup.BASIC ?
+                r.basicHooks :
+                r.orderedHooks;
+    }
+
+    /**
+     * @return the version of the specified hook's definition, or null if it hasn't been discovered
+     */
+    public String getVersion(String hookId) {
+        Registry r = registry;
+        CDSHook cdsHook = r != null ?
+                r.hooksById.get(hookId) :
+                null;
+        return cdsHook != null ?
+                cdsHook.getVersion() :
+                null;
+    }
+
+    @Scheduled(initialDelayString = "${cqfruler.cdshooks.discovery.refresh-interval-ms:300000}",
+            fixedDelayString = "${cqfruler.cdshooks.discovery.refresh-interval-ms:300000}")
+    public void scheduledRefresh() {
+        try {
+            refresh();
+
+        } catch (Exception e) {
+            logger.warn("caught " + e.getClass().getName() + " refreshing CDS Hooks from " + cdsHooksEndpointURL +
+                    " - continuing to use the hooks last discovered - " + e.getMessage());
+        }
+    }
+
+    /**
+     * re-discovers the hooks CQF-Ruler advertises, invalidating recommendations for any hook whose definition has
+     * changed or that's no longer advertised
+     */
+    public synchronized void refresh() throws IOException {
+        long start = System.currentTimeMillis();
+        List<CDSHook> hooks = CDSHooksUtil.getCDSHooks(RecommendationService.TESTING, cdsHooksEndpointURL);
+
+        Registry previous = registry;
+        Set<String> changedHookIds = new LinkedHashSet<>();
+        boolean changed = previous == null;
+        if (previous != null) {
+            Map<String, CDSHook> discovered = new HashMap<>();
+            for (CDSHook cdsHook : hooks) {
+                discovered.put(cdsHook.getId(), cdsHook);
+            }
+
+            for (CDSHook old : previous.hooksById.values()) {
+                CDSHook current = discovered.get(old.getId());
+                if (current == null || ! StringUtils.equals(old.getVersion(), current.getVersion())) {
+                    changedHookIds.add(old.getId());
+                }
+            }
+            changed = ! changedHookIds.isEmpty() || ! previous.hooksById.keySet().containsAll(discovered.keySet());
+        }
+
+        if ( ! changed ) {
+            logger.debug("CDS Hooks unchanged (took " + (System.currentTimeMillis() - start) + "ms)");
+            return;
+        }
+
+        // the new hooks are in place before anything is invalidated, so re-evaluations use them
+        registry = new Registry(previous != null ? previous.version + 1 : 1, hooks);
+        logger.info("discovered " + hooks.size() + " CDS Hook(s) from " + cdsHooksEndpointURL + " (version=" +
+                registry.version + ", took " + (System.currentTimeMillis() - start) + "ms)");
+
+        if ( ! changedHookIds.isEmpty() ) {
+            logger.info("CDS Hook definitions changed for " + changedHookIds + " - invalidating their recommendations -");
+            userWorkspaceService.invalidateRecommendations(changedHookIds);
+        }
+    }
+
+    private Registry getRegistry() throws IOException {
+        Registry r = registry;
+        if (r == null) {
+            synchronized (this) {
+                if (registry == null) {
+                    refresh();
+                }
+                r = registry;
+            }
+        }
+        return r;
+    }
+
+    private final class Registry {
+        private final long version;
+        private final List<CDSHook> orderedHooks;
+        private final List<CDSHook> basicHooks;
+        private final Map<String, CDSHook> hooksById;
+
+        private Registry(long version, List<CDSHook> hooks) {
+            this.version = version;
+
+            Map<String, CDSHook> map = new LinkedHashMap<>();
+            for (CDSHook cdsHook : hooks) {
+                map.put(cdsHook.getId(), cdsHook);
+            }
+            this.hooksById = Collections.unmodifiableMap(new LinkedHashMap<>(map));
+
+            List<CDSHook> list = new ArrayList<>();
+            for (String hookId : cdsHookOrder) {
+                CDSHook cdsHook = map.remove(hookId);
+                if (cdsHook != null) {
+                    list.add(cdsHook);
+                }
+            }
+            list.addAll(map.values());
+            this.orderedHooks = Collections.unmodifiableList(list);
+
+            // users belonging to the "basic" randomization group are only shown hooks permitted for that cohort
+            List<CDSHook> basic = new ArrayList<>();
+            for (CDSHook cdsHook : list) {
+                if (basicGroupAllowFilter.isEmpty() || basicGroupAllowFilter.contains(cdsHook.getId())) {
+                    basic.add(cdsHook);
+                }
+            }
+            this.basicHooks = Collections.unmodifiableList(basic);
+        }
+    }
+}
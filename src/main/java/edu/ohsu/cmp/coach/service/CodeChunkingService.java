@@ -0,0 +1,291 @@
+package edu.ohsu.cmp.coach.service;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import edu.ohsu.cmp.coach.config.CodeChunkingConfiguration;
+import edu.ohsu.cmp.coach.exception.ConfigurationException;
+import edu.ohsu.cmp.coach.exception.DataException;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Plans searches for long lists of codes (e.g. the blood pressure panel, systolic and diastolic codings), splitting
+ * them into chunks small enough for the FHIR server to accept, and executing the chunks as parallel sub-searches.
+ * <p>
+ * Each server's limits - how many codes a single query may hold, and how long its URL may be - start out as
+ * configured (fhir.code-chunking.*, overridable per host), and are learned from the server itself: when a chunk is
+ * rejected with a 400 or 414 response, it's split in half and each half retried, and if they succeed, the server's
+ * limit is lowered accordingly so later searches are chunked to fit from the start.  Nothing is learned from a
+ * chunk of a single code, as the request was evidently rejected for some other reason.
+ */
+@Service
+public class CodeChunkingService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private CodeChunkingConfiguration config;
+
+    // limits learned from the servers themselves, keyed by host
+    private final Map<String, LearnedLimits> learnedLimits = new ConcurrentHashMap<>();
+
+    // executes sub-searches in parallel.  when all threads are busy, the caller executes the next sub-search itself
+    private ThreadPoolExecutor executor;
+
+    /**
+     * executes a sub-search for a chunk of codes
+     */
+    public interface ChunkSearch<T> {
+        T search(List<String> codes) throws DataException, ConfigurationException, IOException;
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadCount = new AtomicInteger(0);
+        executor = new ThreadPoolExecutor(0, config.getThreads(), 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread t = new Thread(runnable, "fhir-chunk-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * splits a comma-separated list of codes, as used in FHIR token search parameters
+     */
+    public static List<String> splitCodes(String codes) {
+        List<String> list = new ArrayList<>();
+        if (codes != null) {
+            for (String code : codes.split(",")) {
+                if (StringUtils.isNotBlank(code)) {
+                    list.add(code.trim());
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * splits the codes into chunks, each small enough for the server to accept as a single query, and executes a
+     * sub-search for each, in parallel
+     * @param queryBuilder builds the query for a chunk of codes, as it will be sent to the server (relative to its
+     *                     base URL)
+     * @return the results of each sub-search, in the order of the codes they searched for
+     */
+    public <T> List<T> search(String serverURL, List<String> codes, Function<List<String>, String> queryBuilder,
+                              ChunkSearch<T> search) throws DataException, ConfigurationException, IOException {
+
+        String host = getHost(serverURL);
+        List<List<String>> chunks = plan(serverURL, codes, queryBuilder);
+
+        if (chunks.size() == 1) {
+            return execute(serverURL, host, chunks.get(0), queryBuilder, search);
+        }
+
+        logger.info("searching for " + codes.size() + " code(s) in " + chunks.size() + " chunks on " + host);
+
+        List<Future<List<T>>> futures = new ArrayList<>();
+        List<T> list = new ArrayList<>();
+        try {
+            for (List<String> chunk : chunks) {
+                Callable<List<T>> task = () -> execute(serverURL, host, chunk, queryBuilder, search);
+                try {
+                    futures.add(executor.submit(task));
+
+                } catch (RejectedExecutionException e) {
+                    FutureTask<List<T>> future = new FutureTask<>(task);
+                    future.run();
+                    futures.add(future);
+                }
+            }
+
+            for (Future<List<T>> future : futures) {
+                list.addAll(future.get());
+            }
+
+            return list;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted executing chunked search", e);
+
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DataException)             throw (DataException) cause;
+            else if (cause instanceof ConfigurationException) throw (ConfigurationException) cause;
+            else if (cause instanceof IOException)          throw (IOException) cause;
+            else if (cause instanceof RuntimeException)     throw (RuntimeException) cause;
+            else                                            throw new RuntimeException(cause);
+
+        } finally {
+            for (Future<List<T>> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @return the most codes a single query to the specified server may currently hold
+     */
+    public int getMaxCodesPerQuery(String serverURL) {
+        String host = getHost(serverURL);
+        LearnedLimits learned = learnedLimits.get(host);
+        int max = config.getMaxCodesPerQuery(host);
+        return learned != null ?
+                Math.min(max, learned.maxCodesPerQuery) :
+                max;
+    }
+
+    /**
+     * @return the longest URL the specified server may currently be sent
+     */
+    public int getMaxUrlLength(String serverURL) {
+        String host = getHost(serverURL);
+        LearnedLimits learned = learnedLimits.get(host);
+        int max = config.getMaxUrlLength(host);
+        return learned != null ?
+                Math.min(max, learned.maxUrlLength) :
+                max;
+    }
+
+    /**
+     * merges the Bundles returned by sub-searches into one, omitting any resource already included by an earlier
+     * Bundle
+     * @return null if every Bundle is null (e.g. the strategy is DISABLED)
+     */
+    public static Bundle merge(List<Bundle> bundles) {
+        List<Bundle> nonNull = new ArrayList<>();
+        for (Bundle b : bundles) {
+            if (b != null) nonNull.add(b);
+        }
+
+        if (nonNull.isEmpty())          return null;
+        else if (nonNull.size() == 1)   return nonNull.get(0);
+
+        Bundle merged = new Bundle();
+        merged.setType(Bundle.BundleType.SEARCHSET);
+
+        Set<String> keys = new HashSet<>();
+        for (Bundle b : nonNull) {
+            for (Bundle.BundleEntryComponent entry : b.getEntry()) {
+                Resource r = entry.getResource();
+                String key = r != null && r.hasIdElement() && r.getIdElement().hasIdPart() ?
+                        r.fhirType() + "/" + r.getIdElement().getIdPart() :
+                        entry.getFullUrl();
+                if (key == null || keys.add(key)) {
+                    merged.addEntry(entry);
+                }
+            }
+        }
+        merged.setTotal(merged.getEntry().size());
+
+        return merged;
+    }
+
+    /**
+     * splits the codes into chunks, each small enough for the server to accept as a single query, as far as is
+     * currently known.  a chunk may be larger than the server's limits if it holds only a single code
+     * @param queryBuilder builds the query for a chunk of codes, as it will be sent to the server (relative to its
+     *                     base URL)
+     */
+    public List<List<String>> plan(String serverURL, List<String> codes, Function<List<String>, String> queryBuilder) {
+
+        int maxCodes = getMaxCodesPerQuery(serverURL);
+        int maxUrlLength = getMaxUrlLength(serverURL);
+
+        List<List<String>> chunks = new ArrayList<>();
+        List<String> chunk = new ArrayList<>();
+        for (String code : codes) {
+            if ( ! chunk.isEmpty() ) {
+                List<String> candidate = new ArrayList<>(chunk);
+                candidate.add(code);
+                if (candidate.size() > maxCodes || getUrlLength(serverURL, queryBuilder, candidate) > maxUrlLength) {
+                    chunks.add(chunk);
+                    chunk = new ArrayList<>();
+                }
+            }
+            chunk.add(code);
+        }
+        chunks.add(chunk);
+
+        return chunks;
+    }
+
+    private <T> List<T> execute(String serverURL, String host, List<String> chunk, Function<List<String>, String> queryBuilder,
+                                ChunkSearch<T> search) throws DataException, ConfigurationException, IOException {
+        try {
+            List<T> list = new ArrayList<>();
+            list.add(search.search(chunk));
+            return list;
+
+        } catch (BaseServerResponseException e) {
+            int status = e.getStatusCode();
+            if ((status != 400 && status != 414) || chunk.size() <= 1) throw e;
+
+            int urlLength = getUrlLength(serverURL, queryBuilder, chunk);
+            logger.warn("caught " + e.getClass().getName() + " (status=" + status + ") searching for " + chunk.size() +
+                    " code(s) on " + host + " (url length=" + urlLength + ") - splitting and retrying -");
+
+            int half = (chunk.size() + 1) / 2;
+            List<T> list = new ArrayList<>();
+            list.addAll(execute(serverURL, host, chunk.subList(0, half), queryBuilder, search));
+            list.addAll(execute(serverURL, host, chunk.subList(half, chunk.size()), queryBuilder, search));
+
+            // the halves were accepted, so it was the size of the query that was rejected
+            LearnedLimits learned = learnedLimits.computeIfAbsent(host, k -> new LearnedLimits());
+            if (status == 414)  learned.lowerMaxUrlLength(host, urlLength - 1);
+            else                learned.lowerMaxCodesPerQuery(host, half);
+
+            return list;
+        }
+    }
+
+    private int getUrlLength(String serverURL, Function<List<String>, String> queryBuilder, List<String> codes) {
+        return serverURL.length() + 1 + queryBuilder.apply(codes).length();
+    }
+
+    private String getHost(String serverURL) {
+        try {
+            String host = URI.create(serverURL).getHost();
+            return host != null ? host : serverURL;
+
+        } catch (IllegalArgumentException e) {
+            return serverURL;
+        }
+    }
+
+    private class LearnedLimits {
+        private volatile int maxCodesPerQuery = Integer.MAX_VALUE;
+        private volatile int maxUrlLength = Integer.MAX_VALUE;
+
+        synchronized void lowerMaxCodesPerQuery(String host, int max) {
+            if (max < maxCodesPerQuery) {
+                logger.info("learned maximum of " + max + " codes per query for host=" + host);
+                maxCodesPerQuery = max;
+            }
+        }
+
+        synchronized void lowerMaxUrlLength(String host, int max) {
+            if (max < maxUrlLength) {
+                logger.info("learned maximum URL length of " + max + " for host=" + host);
+                maxUrlLength = max;
+            }
+        }
+    }
+}
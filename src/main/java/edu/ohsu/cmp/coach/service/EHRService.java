@@ -1,10 +1,15 @@
 package edu.ohsu.cmp.coach.service;
 
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import edu.ohsu.cmp.coach.entity.MedicationForm;
 import edu.ohsu.cmp.coach.entity.MedicationRoute;
 import edu.ohsu.cmp.coach.exception.ConfigurationException;
 import edu.ohsu.cmp.coach.exception.DataException;
 import edu.ohsu.cmp.coach.fhir.EncounterMatcher;
+import edu.ohsu.cmp.coach.fhir.FhirSearchStream;
+import edu.ohsu.cmp.coach.fhir.FhirStrategy;
+import edu.ohsu.cmp.coach.fhir.VitalsRecord;
+import edu.ohsu.cmp.coach.fhir.transform.VendorTransformer;
 import edu.ohsu.cmp.coach.model.GoalModel;
 import edu.ohsu.cmp.coach.model.ResourceWithBundle;
 import edu.ohsu.cmp.coach.model.fhir.FHIRCredentialsWithClient;
@@ -12,6 +17,8 @@ import edu.ohsu.cmp.coach.repository.MedicationFormRepository;
 import edu.ohsu.cmp.coach.repository.MedicationRouteRepository;
 import edu.ohsu.cmp.coach.util.FhirUtil;
 import edu.ohsu.cmp.coach.workspace.UserWorkspace;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
 import org.hl7.fhir.r4.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,8 +29,11 @@ import org.springframework.stereotype.Service;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.function.Function;
+import java.util.stream.Stream;
 
 
 /**
@@ -36,8 +46,6 @@ import java.util.function.Function;
 public class EHRService extends AbstractService {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    private static final int MAX_CODES_PER_QUERY = 32; // todo: auto-identify this, or at least put it in the config
-
     private static final String CONDITION_CLINICALSTATUS_SYSTEM = "http://terminology.hl7.org/CodeSystem/condition-clinical";
     private static final String CONDITION_VERIFICATIONSTATUS_SYSTEM = "http://terminology.hl7.org/CodeSystem/condition-ver-status";
 
@@ -47,6 +55,15 @@ public class EHRService extends AbstractService {
     @Autowired
     private FHIRService fhirService;
 
+    @Autowired
+    private MedicationLookupService medicationLookupService;
+
+    @Autowired
+    private FhirDeltaSyncService deltaSyncService;
+
+    @Autowired
+    private CodeChunkingService codeChunkingService;
+
     @Autowired
     private MedicationFormRepository medicationFormRepository;
 
@@ -66,53 +83,59 @@ public class EHRService extends AbstractService {
         logger.info("getting Encounters for session=" + sessionId);
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
         FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
-        Bundle bundle = fhirService.search(fcc, workspace.getFhirQueryManager().getEncounterStrategy(),
-                workspace.getVendorTransformer().getEncounterQuery(fcc.getCredentials().getPatientId(), fcm.getEncounterLookbackPeriod()),
-                new Function<ResourceWithBundle, Boolean>() {
-                    @Override
-                    public Boolean apply(ResourceWithBundle resourceWithBundle) {
-                        Resource resource = resourceWithBundle.getResource();
-                        if (resource instanceof Encounter) {
-                            Encounter encounter = (Encounter) resource;
-                            if (encounter.getStatus() != Encounter.EncounterStatus.FINISHED &&
-                                encounter.getStatus() != Encounter.EncounterStatus.ARRIVED &&
-                                encounter.getStatus() != Encounter.EncounterStatus.TRIAGED &&
-                                encounter.getStatus() != Encounter.EncounterStatus.INPROGRESS) {
-                                logger.debug("removing Encounter " + encounter.getId() + " - invalid status");
-                                return false;
-                            }
-
-                            EncounterMatcher matcher = new EncounterMatcher(fcm, true);
-                            boolean isOffice = matcher.isOfficeEncounter(encounter);
-                            boolean isHome = matcher.isHomeEncounter(encounter);
-                            if ( ! isOffice && ! isHome ) {
-                                logger.debug("removing Encounter " + encounter.getId() + " - not Office or Home");
-                                return false;
+        FhirStrategy strategy = workspace.getFhirQueryManager().getEncounterStrategy();
+        String query = workspace.getVendorTransformer().getEncounterQuery(fcc.getCredentials().getPatientId(), fcm.getEncounterLookbackPeriod());
+        Function<ResourceWithBundle, Boolean> validityFunction = new Function<ResourceWithBundle, Boolean>() {
+            @Override
+            public Boolean apply(ResourceWithBundle resourceWithBundle) {
+                Resource resource = resourceWithBundle.getResource();
+                if (resource instanceof Encounter) {
+                    Encounter encounter = (Encounter) resource;
+                    if (encounter.getStatus() != Encounter.EncounterStatus.FINISHED &&
+                        encounter.getStatus() != Encounter.EncounterStatus.ARRIVED &&
+                        encounter.getStatus() != Encounter.EncounterStatus.TRIAGED &&
+                        encounter.getStatus() != Encounter.EncounterStatus.INPROGRESS) {
+                        logger.debug("removing Encounter " + encounter.getId() + " - invalid status");
+                        return false;
+                    }
 
-                            } else {
-                                logger.debug("keeping Encounter " + encounter.getId() + " (Office=" + isOffice + ", Home=" + isHome + ")");
-                            }
-                        }
+                    EncounterMatcher matcher = new EncounterMatcher(fcm, true);
+                    boolean isOffice = matcher.isOfficeEncounter(encounter);
+                    boolean isHome = matcher.isHomeEncounter(encounter);
+                    if ( ! isOffice && ! isHome ) {
+                        logger.debug("removing Encounter " + encounter.getId() + " - not Office or Home");
+                        return false;
 
-                        return true;
+                    } else {
+                        logger.debug("keeping Encounter " + encounter.getId() + " (Office=" + isOffice + ", Home=" + isHome + ")");
                     }
                 }
-        );
-
-        List<Encounter> list = new ArrayList<>();
 
-        if (bundle != null) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("Encounter bundle = " + FhirUtil.toJson(bundle));
+                return true;
             }
+        };
+
+        List<Encounter> list = new ArrayList<>();
 
-            if (bundle.hasEntry()) {
+        if (deltaSyncService.isEnabled()) {
+            Bundle bundle = deltaSyncService.search(workspace.getInternalPatientId(), fcc, strategy, query, validityFunction);
+            if (bundle != null) {
                 for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-                    if (entry.hasResource() && entry.getResource() instanceof Encounter) {
+                    if (entry.getResource() instanceof Encounter) {
                         list.add((Encounter) entry.getResource());
                     }
                 }
             }
+            return list;
+        }
+
+        // Encounters are collected page by page as they arrive, without ever building the full Bundle
+        FhirSearchStream stream = fhirService.searchStream(fcc, strategy, query, validityFunction);
+        if (stream != null) {
+            try (Stream<Resource> resources = stream.resources()) {
+                resources.filter(resource -> resource instanceof Encounter)
+                        .forEach(resource -> list.add((Encounter) resource));
+            }
         }
 
         return list;
@@ -125,38 +148,152 @@ public class EHRService extends AbstractService {
      *             e.g. "http://loinc.org|55284|4,http://loinc.org|72076-3
      * @param lookbackPeriod
      * @param limit specifies a maximum number of search results to return.  May be null
-     * @return
+     * @return the matching Observations.  if there are more codes than the server accepts in one query, they're
+     * searched for in chunks, and the results merged
      */
     public Bundle getObservations(String sessionId, String code, String lookbackPeriod,
                                   @Nullable Integer limit) throws DataException, ConfigurationException, IOException {
         logger.info("getting Observations for session=" + sessionId + " having code(s): " + code);
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
         FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
-        return fhirService.search(fcc, workspace.getFhirQueryManager().getObservationStrategy(),
-                workspace.getVendorTransformer().getObservationQuery(fcc.getCredentials().getPatientId(), code, lookbackPeriod),
-                new Function<ResourceWithBundle, Boolean>() {
-                    @Override
-                    public Boolean apply(ResourceWithBundle resourceWithBundle) {
-                        Resource resource = resourceWithBundle.getResource();
-                        if (resource instanceof Observation) {
-                            Observation observation = (Observation) resource;
-                            if (observation.getStatus() != Observation.ObservationStatus.FINAL &&
-                                    observation.getStatus() != Observation.ObservationStatus.AMENDED &&
-                                    observation.getStatus() != Observation.ObservationStatus.CORRECTED) {
-                                logger.debug("removing Observation " + observation.getId() + " - invalid status");
-                                return false;
-                            }
+        FhirStrategy strategy = workspace.getFhirQueryManager().getObservationStrategy();
+        Function<List<String>, String> queryBuilder = buildObservationQueryBuilder(workspace, lookbackPeriod);
 
-// storer 2022-08-15 - can now handle observations that don't have associated encounters, as janky as that might be
-//                            if (!observation.hasEncounter()) {
-//                                logger.debug("removing Observation " + observation.getId() + " - no Encounter referenced");
-//                                return false;
-//                            }
-                        }
+        List<Bundle> bundles = codeChunkingService.search(fcc.getCredentials().getServerURL(),
+                CodeChunkingService.splitCodes(code), queryBuilder,
+                codes -> deltaSyncService.search(workspace.getInternalPatientId(), fcc, strategy,
+                        queryBuilder.apply(codes), buildObservationValidityFunction()));
 
-                        return true;
+        return CodeChunkingService.merge(bundles);
+    }
+
+    /**
+     * executes several Observation searches at once, in a single batch request if the vendor supports it
+     * @param codesAndLookbackPeriods pairs of comma-separated codes and lookback periods, as for getObservations()
+     * @return the results of each search, in the same order
+     */
+    public List<Bundle> getObservations(String sessionId, List<Pair<String, String>> codesAndLookbackPeriods) throws DataException, ConfigurationException, IOException {
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
+        VendorTransformer transformer = workspace.getVendorTransformer();
+
+        // delta searches are each cheap enough, and need to be merged into their own local copy, so aren't batched
+        if (codesAndLookbackPeriods.size() > 1 && transformer.supportsBatchSearch() && ! deltaSyncService.isEnabled()) {
+
+            // each search is split into as many queries as the server needs its codes chunked into, and the results
+            // of those queries merged back together
+            List<String> queries = new ArrayList<>();
+            List<Integer> queryCounts = new ArrayList<>();
+            for (Pair<String, String> item : codesAndLookbackPeriods) {
+                Function<List<String>, String> queryBuilder = buildObservationQueryBuilder(workspace, item.getRight());
+                List<List<String>> chunks = codeChunkingService.plan(fcc.getCredentials().getServerURL(),
+                        CodeChunkingService.splitCodes(item.getLeft()), queryBuilder);
+                for (List<String> chunk : chunks) {
+                    queries.add(queryBuilder.apply(chunk));
+                }
+                queryCounts.add(chunks.size());
+            }
+
+            logger.info("getting Observations for session=" + sessionId + " in a batch of " + queries.size() + " searches");
+            try {
+                List<Bundle> bundles = fhirService.searchBatch(fcc, workspace.getFhirQueryManager().getObservationStrategy(),
+                        queries, buildObservationValidityFunction());
+
+                List<Bundle> list = new ArrayList<>();
+                int pos = 0;
+                for (Integer count : queryCounts) {
+                    list.add(CodeChunkingService.merge(bundles.subList(pos, pos + count)));
+                    pos += count;
+                }
+                return list;
+
+            } catch (BaseServerResponseException e) {
+                // e.g. a query too large for the server, which searching individually will split into smaller chunks
+                logger.warn("caught " + e.getClass().getName() + " executing batch of Observation searches - " +
+                        "searching individually - " + e.getMessage());
+            }
+        }
+
+        List<Bundle> list = new ArrayList<>();
+        for (Pair<String, String> item : codesAndLookbackPeriods) {
+            list.add(getObservations(sessionId, item.getLeft(), item.getRight(), null));
+        }
+        return list;
+    }
+
+    private Function<List<String>, String> buildObservationQueryBuilder(UserWorkspace workspace, String lookbackPeriod) {
+        VendorTransformer transformer = workspace.getVendorTransformer();
+        String patientId = workspace.getFhirCredentialsWithClient().getCredentials().getPatientId();
+        return codes -> transformer.getObservationQuery(patientId, StringUtils.join(codes, ","), lookbackPeriod);
+    }
+
+    private Function<ResourceWithBundle, Boolean> buildObservationValidityFunction() {
+        return new Function<ResourceWithBundle, Boolean>() {
+            @Override
+            public Boolean apply(ResourceWithBundle resourceWithBundle) {
+                Resource resource = resourceWithBundle.getResource();
+                if (resource instanceof Observation) {
+                    Observation observation = (Observation) resource;
+                    if (observation.getStatus() != Observation.ObservationStatus.FINAL &&
+                            observation.getStatus() != Observation.ObservationStatus.AMENDED &&
+                            observation.getStatus() != Observation.ObservationStatus.CORRECTED) {
+                        logger.debug("removing Observation " + observation.getId() + " - invalid status");
+                        return false;
                     }
-        });
+
+// storer 2022-08-15 - can now handle observations that don't have associated encounters, as janky as that might be
+//                    if (!observation.hasEncounter()) {
+//                        logger.debug("removing Observation " + observation.getId() + " - no Encounter referenced");
+//                        return false;
+//                    }
+                }
+
+                return true;
+            }
+        };
+    }
+
+    /**
+     * as getObservations(), but parses the results straight into compact VitalsRecords rather than full HAPI
+     * Observations
+     */
+    public List<VitalsRecord> getVitalsRecords(String sessionId, String code, String lookbackPeriod) throws DataException, ConfigurationException, IOException {
+        logger.info("getting vitals records for session=" + sessionId + " having code(s): " + code);
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
+        FhirStrategy strategy = workspace.getFhirQueryManager().getObservationStrategy();
+        Function<List<String>, String> queryBuilder = buildObservationQueryBuilder(workspace, lookbackPeriod);
+        Function<VitalsRecord, Boolean> validityFunction = new Function<VitalsRecord, Boolean>() {
+            @Override
+            public Boolean apply(VitalsRecord record) {
+                String status = record.getStatus();
+                if ( ! "final".equals(status) && ! "amended".equals(status) && ! "corrected".equals(status) ) {
+                    logger.debug("removing Observation " + record.getId() + " - invalid status");
+                    return false;
+                }
+                return true;
+            }
+        };
+
+        List<List<VitalsRecord>> lists = codeChunkingService.search(fcc.getCredentials().getServerURL(),
+                CodeChunkingService.splitCodes(code), queryBuilder,
+                codes -> fhirService.searchVitals(fcc, strategy, queryBuilder.apply(codes), validityFunction));
+
+        if (lists.size() == 1) return lists.get(0);
+
+        // an Observation may match codes in more than one chunk (e.g. a panel with systolic and diastolic components)
+        List<VitalsRecord> list = null;
+        Set<String> ids = new HashSet<>();
+        for (List<VitalsRecord> records : lists) {
+            if (records == null) continue;
+            if (list == null) list = new ArrayList<>();
+            for (VitalsRecord record : records) {
+                if (record.getId() == null || ids.add(record.getId())) {
+                    list.add(record);
+                }
+            }
+        }
+        return list;
     }
 
     public Bundle getEncounterDiagnosisConditions(String sessionId) throws DataException, ConfigurationException, IOException {
@@ -171,7 +308,7 @@ public class EHRService extends AbstractService {
         logger.info("getting " + category + " Conditions for session=" + sessionId);
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
         FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
-        return fhirService.search(fcc, workspace.getFhirQueryManager().getConditionStrategy(),
+        return deltaSyncService.search(workspace.getInternalPatientId(), fcc, workspace.getFhirQueryManager().getConditionStrategy(),
                 workspace.getVendorTransformer().getConditionQuery(fcc.getCredentials().getPatientId(), category),
                 new Function<ResourceWithBundle, Boolean>() {
                     @Override
@@ -214,7 +351,7 @@ public class EHRService extends AbstractService {
         logger.info("getting Goals for session=" + sessionId);
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
         FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
-        return fhirService.search(fcc, workspace.getFhirQueryManager().getGoalStrategy(),
+        return deltaSyncService.search(workspace.getInternalPatientId(), fcc, workspace.getFhirQueryManager().getGoalStrategy(),
                 workspace.getVendorTransformer().getGoalQuery(fcc.getCredentials().getPatientId()),
                 new Function<ResourceWithBundle, Boolean>() {
                     @Override
@@ -249,7 +386,7 @@ public class EHRService extends AbstractService {
         logger.info("getting Order ServiceRequests for session=" + sessionId);
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
         FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
-        return fhirService.search(fcc, workspace.getFhirQueryManager().getServiceRequestStrategy(),
+        return deltaSyncService.search(workspace.getInternalPatientId(), fcc, workspace.getFhirQueryManager().getServiceRequestStrategy(),
                 workspace.getVendorTransformer().getServiceRequestQuery(fcc.getCredentials().getPatientId()),
                 new Function<ResourceWithBundle, Boolean>() {
                     @Override
@@ -292,59 +429,60 @@ public class EHRService extends AbstractService {
         final List<Coding> validRouteCodings = getValidMedicationRouteCodings();
         final List<Coding> validFormCodings = getValidMedicationFormCodings();
 
-        return fhirService.search(fcc, workspace.getFhirQueryManager().getMedicationStatementStrategy(),
-                workspace.getVendorTransformer().getMedicationStatementQuery(fcc.getCredentials().getPatientId()),
-                new Function<ResourceWithBundle, Boolean>() {
-                    @Override
-                    public Boolean apply(ResourceWithBundle resourceWithBundle) {
-                        Resource resource = resourceWithBundle.getResource();
-                        if (resource instanceof MedicationStatement) {
-                            MedicationStatement ms = (MedicationStatement) resource;
-                            if (ms.getStatus() != MedicationStatement.MedicationStatementStatus.ACTIVE) {
-                                logger.debug("removing MedicationStatement " + ms.getId() + " - invalid status");
-                                return false;
-                            }
+        Bundle bundle = deltaSyncService.search(workspace.getInternalPatientId(), fcc, workspace.getFhirQueryManager().getMedicationStatementStrategy(),
+                workspace.getVendorTransformer().getMedicationStatementQuery(fcc.getCredentials().getPatientId()), null);
 
-                            boolean hasGoodRoute = false;
-                            boolean hasGoodForm = false;
+        if (bundle == null) return null;
 
-                            if (ms.hasDosage()) {
-                                for (Dosage d : ms.getDosage()) {
-                                    if (d.hasRoute() && FhirUtil.hasCoding(d.getRoute(), validRouteCodings)) {
-                                        hasGoodRoute = true;
-                                        break;
-                                    }
-                                }
-                            }
+        // the form of a MedicationStatement's Medication is only checked if its route isn't valid, so only those
+        // Medications need resolving
+        List<Reference> medicationReferences = new ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() instanceof MedicationStatement) {
+                MedicationStatement ms = (MedicationStatement) entry.getResource();
+                if (ms.getStatus() == MedicationStatement.MedicationStatementStatus.ACTIVE &&
+                        ! hasValidRoute(ms.getDosage(), validRouteCodings) && ms.hasMedicationReference()) {
+                    medicationReferences.add(ms.getMedicationReference());
+                }
+            }
+        }
+        addReferencedMedications(workspace, bundle, medicationReferences);
+
+        FhirUtil.filterInvalidResources(bundle, new Function<ResourceWithBundle, Boolean>() {
+            @Override
+            public Boolean apply(ResourceWithBundle resourceWithBundle) {
+                Resource resource = resourceWithBundle.getResource();
+                if (resource instanceof MedicationStatement) {
+                    MedicationStatement ms = (MedicationStatement) resource;
+                    if (ms.getStatus() != MedicationStatement.MedicationStatementStatus.ACTIVE) {
+                        logger.debug("removing MedicationStatement " + ms.getId() + " - invalid status");
+                        return false;
+                    }
 
-                            if ( ! hasGoodRoute && ms.hasMedicationReference()) {
-                                logger.debug("invalid or missing route for MedicationStatement " + ms.getId() + " - checking medication form");
-                                Bundle bundle = resourceWithBundle.getBundle();
-                                Medication m = FhirUtil.getResourceFromBundleByReference(bundle, Medication.class, ms.getMedicationReference().getReference());
-                                if (m == null) {
-                                    logger.warn("couldn't find Medication with reference=" + ms.getMedicationReference().getReference() +
-                                            " - attempting to read from FHIR server - ");
-                                    try {
-                                        m = fhirService.readByReference(fcc, workspace.getFhirQueryManager().getMedicationStrategy(),
-                                                Medication.class, ms.getMedicationReference());
-                                    } catch (Exception e) {
-                                        throw new RuntimeException(e);
-                                    }
-                                }
-                                if (m != null && m.hasForm() && FhirUtil.hasCoding(m.getForm(), validFormCodings)) {
-                                    hasGoodForm = true;
-                                }
-                            }
+                    boolean hasGoodRoute = hasValidRoute(ms.getDosage(), validRouteCodings);
+                    boolean hasGoodForm = false;
 
-                            if ( ! hasGoodRoute && ! hasGoodForm ) {
-                                logger.debug("removing MedicationStatement " + ms.getId() + " - invalid route and form");
-                                return false;
-                            }
+                    if ( ! hasGoodRoute && ms.hasMedicationReference()) {
+                        logger.debug("invalid or missing route for MedicationStatement " + ms.getId() + " - checking medication form");
+                        Medication m = FhirUtil.getResourceFromBundleByReference(resourceWithBundle.getBundle(), Medication.class, ms.getMedicationReference());
+                        if (m == null) {
+                            logger.warn("couldn't find Medication with reference=" + ms.getMedicationReference().getReference());
                         }
-                        return true;
+                        if (m != null && m.hasForm() && FhirUtil.hasCoding(m.getForm(), validFormCodings)) {
+                            hasGoodForm = true;
+                        }
+                    }
+
+                    if ( ! hasGoodRoute && ! hasGoodForm ) {
+                        logger.debug("removing MedicationStatement " + ms.getId() + " - invalid route and form");
+                        return false;
                     }
                 }
-        );
+                return true;
+            }
+        });
+
+        return bundle;
     }
 
     public Bundle getMedicationRequests(String sessionId) throws DataException, ConfigurationException, IOException {
@@ -355,107 +493,110 @@ public class EHRService extends AbstractService {
         final List<Coding> validRouteCodings = getValidMedicationRouteCodings();
         final List<Coding> validFormCodings = getValidMedicationFormCodings();
 
-        Bundle bundle = fhirService.search(fcc, workspace.getFhirQueryManager().getMedicationRequestStrategy(),
-                workspace.getVendorTransformer().getMedicationRequestQuery(fcc.getCredentials().getPatientId()),
-                new Function<ResourceWithBundle, Boolean>() {
-                    @Override
-                    public Boolean apply(ResourceWithBundle resourceWithBundle) {
-                        Resource resource = resourceWithBundle.getResource();
-                        if (resource instanceof MedicationRequest) {
-                            MedicationRequest mr = (MedicationRequest) resource;
-
-                            if (mr.getStatus() != MedicationRequest.MedicationRequestStatus.ACTIVE) {
-                                logger.debug("removing MedicationRequest " + mr.getId() + " - invalid status");
-                                return false;
-                            }
+        Bundle bundle = deltaSyncService.search(workspace.getInternalPatientId(), fcc, workspace.getFhirQueryManager().getMedicationRequestStrategy(),
+                workspace.getVendorTransformer().getMedicationRequestQuery(fcc.getCredentials().getPatientId()), null);
 
-                            if (mr.getIntent() != MedicationRequest.MedicationRequestIntent.ORDER &&
-                                    mr.getIntent() != MedicationRequest.MedicationRequestIntent.PLAN) {
-                                logger.debug("removing MedicationRequest " + mr.getId() + " - invalid intent");
-                                return false;
-                            }
+        if (bundle == null) return null;    // optional considering MedicationStatement
 
-                            if (mr.hasDoNotPerform() && mr.getDoNotPerform()) {
-                                logger.debug("removing MedicationRequest " + mr.getId() + " - doNotPerform");
-                                return false;
-                            }
+        // MedicationModel needs the Medication of every MedicationRequest that references one, not just of those
+        // whose form is checked below
+        List<Reference> medicationReferences = new ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() instanceof MedicationRequest) {
+                MedicationRequest mr = (MedicationRequest) entry.getResource();
+                if (mr.hasMedicationReference()) {
+                    medicationReferences.add(mr.getMedicationReference());
+                }
+            }
+        }
+        addReferencedMedications(workspace, bundle, medicationReferences);
+
+        FhirUtil.filterInvalidResources(bundle, new Function<ResourceWithBundle, Boolean>() {
+            @Override
+            public Boolean apply(ResourceWithBundle resourceWithBundle) {
+                Resource resource = resourceWithBundle.getResource();
+                if (resource instanceof MedicationRequest) {
+                    MedicationRequest mr = (MedicationRequest) resource;
+
+                    if (mr.getStatus() != MedicationRequest.MedicationRequestStatus.ACTIVE) {
+                        logger.debug("removing MedicationRequest " + mr.getId() + " - invalid status");
+                        return false;
+                    }
 
-                            boolean hasGoodRoute = false;
-                            boolean hasGoodForm = false;
+                    if (mr.getIntent() != MedicationRequest.MedicationRequestIntent.ORDER &&
+                            mr.getIntent() != MedicationRequest.MedicationRequestIntent.PLAN) {
+                        logger.debug("removing MedicationRequest " + mr.getId() + " - invalid intent");
+                        return false;
+                    }
 
-                            if (mr.hasDosageInstruction()) {
-                                for (Dosage d : mr.getDosageInstruction()) {
-                                    if (d.hasRoute() && FhirUtil.hasCoding(d.getRoute(), validRouteCodings)) {
-                                        hasGoodRoute = true;
-                                        break;
-                                    }
-                                }
-                            }
+                    if (mr.hasDoNotPerform() && mr.getDoNotPerform()) {
+                        logger.debug("removing MedicationRequest " + mr.getId() + " - doNotPerform");
+                        return false;
+                    }
 
-                            if ( ! hasGoodRoute && mr.hasMedicationReference()) {
-                                logger.debug("invalid or missing route for MedicationRequest " + mr.getId() + " - checking medication form");
-                                Bundle bundle = resourceWithBundle.getBundle();
-                                Medication m = FhirUtil.getResourceFromBundleByReference(bundle, Medication.class, mr.getMedicationReference().getReference());
-                                if (m == null) {
-                                    logger.warn("couldn't find Medication with reference=" + mr.getMedicationReference().getReference() +
-                                            " - attempting to read from FHIR server - ");
-                                    try {
-                                        m = fhirService.readByReference(fcc, workspace.getFhirQueryManager().getMedicationStrategy(),
-                                                Medication.class, mr.getMedicationReference());
-                                    } catch (Exception e) {
-                                        throw new RuntimeException(e);
-                                    }
-                                }
-                                if (m != null && m.hasForm() && FhirUtil.hasCoding(m.getForm(), validFormCodings)) {
-                                    hasGoodForm = true;
-                                }
-                            }
+                    boolean hasGoodRoute = hasValidRoute(mr.getDosageInstruction(), validRouteCodings);
+                    boolean hasGoodForm = false;
 
-                            if ( ! hasGoodRoute && ! hasGoodForm ) {
-                                logger.debug("removing MedicationRequest " + mr.getId() + " - invalid route and form");
-                                return false;
-                            }
+                    if ( ! hasGoodRoute && mr.hasMedicationReference()) {
+                        logger.debug("invalid or missing route for MedicationRequest " + mr.getId() + " - checking medication form");
+                        Medication m = FhirUtil.getResourceFromBundleByReference(resourceWithBundle.getBundle(), Medication.class, mr.getMedicationReference());
+                        if (m == null) {
+                            logger.warn("couldn't find Medication with reference=" + mr.getMedicationReference().getReference());
+                        }
+                        if (m != null && m.hasForm() && FhirUtil.hasCoding(m.getForm(), validFormCodings)) {
+                            hasGoodForm = true;
                         }
+                    }
 
-                        return true;
+                    if ( ! hasGoodRoute && ! hasGoodForm ) {
+                        logger.debug("removing MedicationRequest " + mr.getId() + " - invalid route and form");
+                        return false;
                     }
                 }
-        );
 
-        if (bundle == null) return null;    // optional considering MedicationStatement
+                return true;
+            }
+        });
 
-        if (bundle.hasEntry()) {
-            // creating a separate bundle for Medications, instead of adding them directly to the main
-            // bundle while iterating over it (below).  this prevents ConcurrentModificationException
-            Bundle medicationBundle = new Bundle();
-            medicationBundle.setType(Bundle.BundleType.COLLECTION);
-
-            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-                if (entry.getResource() instanceof MedicationRequest) {
-                    MedicationRequest mr = (MedicationRequest) entry.getResource();
-                    if (mr.hasMedicationReference()) {
-                        if ( ! FhirUtil.bundleContainsReference(bundle, mr.getMedicationReference()) ) {
-                            Medication m = fhirService.readByReference(fcc, workspace.getFhirQueryManager().getMedicationStrategy(),
-                                    Medication.class, mr.getMedicationReference());
-                            medicationBundle.addEntry(new Bundle.BundleEntryComponent().setResource(m));
-                        }
-                    }
-                }
+        return bundle;
+    }
+
+    /**
+     * resolves those of the specified Medication references that aren't already in the bundle - from the shared
+     * Medication cache where possible, otherwise together in as few requests as possible - and adds them to it
+     */
+    private void addReferencedMedications(UserWorkspace workspace, Bundle bundle, List<Reference> references) throws DataException, ConfigurationException, IOException {
+        List<Reference> missing = new ArrayList<>();
+        for (Reference reference : references) {
+            if ( ! FhirUtil.bundleContainsReference(bundle, reference) ) {
+                missing.add(reference);
             }
+        }
+
+        if ( ! missing.isEmpty() ) {
+            List<Medication> medications = medicationLookupService.resolve(workspace.getFhirCredentialsWithClient(),
+                    workspace.getFhirQueryManager().getMedicationStrategy(), missing);
 
-            if (medicationBundle.hasEntry()) {
-                bundle.getEntry().addAll(medicationBundle.getEntry());
+            for (Medication m : medications) {
+                bundle.addEntry(FhirUtil.buildBundleEntry(m));
             }
         }
+    }
 
-        return bundle;
+    private boolean hasValidRoute(List<Dosage> dosages, List<Coding> validRouteCodings) {
+        for (Dosage d : dosages) {
+            if (d.hasRoute() && FhirUtil.hasCoding(d.getRoute(), validRouteCodings)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public Bundle getCounselingProcedures(String sessionId) throws DataException, ConfigurationException, IOException {
         logger.info("getting Counseling Procedures for session=" + sessionId);
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
         FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
-        return fhirService.search(fcc, workspace.getFhirQueryManager().getProcedureStrategy(),
+        return deltaSyncService.search(workspace.getInternalPatientId(), fcc, workspace.getFhirQueryManager().getProcedureStrategy(),
                 workspace.getVendorTransformer().getProcedureQuery(fcc.getCredentials().getPatientId()),
                 new Function<ResourceWithBundle, Boolean>() {
                     @Override
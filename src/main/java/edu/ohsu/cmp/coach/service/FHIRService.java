@@ -2,15 +2,21 @@ package edu.ohsu.cmp.coach.service;
 
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import edu.ohsu.cmp.coach.exception.*;
-import edu.ohsu.cmp.coach.fhir.CompositeBundle;
+import edu.ohsu.cmp.coach.fhir.FhirSearchStream;
 import edu.ohsu.cmp.coach.fhir.FhirStrategy;
+import edu.ohsu.cmp.coach.fhir.VitalsBundleParser;
+import edu.ohsu.cmp.coach.fhir.VitalsRecord;
+import edu.ohsu.cmp.coach.http.PooledHttpClient;
 import edu.ohsu.cmp.coach.model.ResourceWithBundle;
 import edu.ohsu.cmp.coach.model.fhir.FHIRCredentialsWithClient;
 import edu.ohsu.cmp.coach.model.fhir.jwt.AccessToken;
 import edu.ohsu.cmp.coach.util.FhirUtil;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IDomainResource;
 import org.hl7.fhir.r4.model.Bundle;
@@ -23,8 +29,20 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 @Service
@@ -40,6 +58,40 @@ public class FHIRService {
     @Autowired
     private JWTService jwtService;
 
+    @Value("${fhir.search.read-ahead-pages:2}")
+    private int readAheadPages;
+
+    @Value("${fhir.search.page-threads:16}")
+    private int pageThreads;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    @Autowired
+    private PooledHttpClient httpClient;
+
+    // clients authenticated with the current backend access token, keyed by server URL
+    private final Map<String, BackendClient> backendClients = new ConcurrentHashMap<>();
+
+    // fetches subsequent pages of searches in the background.  when all threads are busy, the consumer fetches the
+    // next page itself
+    private ThreadPoolExecutor pageExecutor;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadCount = new AtomicInteger(0);
+        pageExecutor = new ThreadPoolExecutor(0, pageThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread t = new Thread(runnable, "fhir-page-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pageExecutor.shutdownNow();
+    }
+
     public <T extends IBaseResource> T readByReference(FHIRCredentialsWithClient fcc, FhirStrategy strategy, Class<T> aClass,
                                                        Reference reference) throws DataException, ConfigurationException, IOException {
         logger.info("read by reference: " + reference + " (" + aClass.getName() + ")");
@@ -141,59 +193,201 @@ public class FHIRService {
     public Bundle search(FHIRCredentialsWithClient fcc, FhirStrategy strategy, String fhirQuery,
                          Function<ResourceWithBundle, Boolean> validityFunction) throws DataException, ConfigurationException, IOException {
 
+        try (FhirSearchStream stream = searchStream(fcc, strategy, fhirQuery, validityFunction)) {
+            return stream != null ?
+                    collect(stream) :
+                    null;
+        }
+    }
+
+    /**
+     * executes a search, returning a stream over its results that fetches subsequent pages lazily, reading up to
+     * fhir.search.read-ahead-pages pages ahead of the consumer in the background.  the validity function, if
+     * specified, is applied to each page as it arrives.  the returned stream must be closed if it isn't consumed
+     * to the end.
+     * @return null if the query is blank or the strategy is DISABLED
+     */
+    public FhirSearchStream searchStream(FHIRCredentialsWithClient fcc, FhirStrategy strategy, String fhirQuery,
+                                         Function<ResourceWithBundle, Boolean> validityFunction) throws DataException, ConfigurationException, IOException {
+
         if (StringUtils.isBlank(fhirQuery) || strategy == FhirStrategy.DISABLED) {
             return null;
         }
 
         logger.info("search: executing query: " + fhirQuery);
 
-        IGenericClient client = buildClient(fcc, strategy);
-
-        Bundle bundle;
+        long start = System.currentTimeMillis();
+        boolean success = false;
         try {
-            bundle = client.search()
-                    .byUrl(fcc.getCredentials().getServerURL() + '/' + fhirQuery)
-                    .count(searchCount)
-                    .accept("application/fhir+json")        // required for Cerner
-                    .returnBundle(Bundle.class)
-                    .execute();
-
-            // bundle.getTotal() may be null and if so it will return 0, even if there are many entries.  Cerner does this
-            logger.info("search: got Bundle with total=" + bundle.getTotal() + ", entries=" + bundle.getEntry().size() + " for query: " + fhirQuery);
-            if (logger.isDebugEnabled()) {
-                logger.debug("bundle = " + FhirUtil.toJson(bundle));
+            IGenericClient client = buildClient(fcc, strategy);
+
+            Bundle bundle;
+            try {
+                bundle = client.search()
+                        .byUrl(fcc.getCredentials().getServerURL() + '/' + fhirQuery)
+                        .count(searchCount)
+                        .accept("application/fhir+json")        // required for Cerner
+                        .returnBundle(Bundle.class)
+                        .execute();
+
+                // bundle.getTotal() may be null and if so it will return 0, even if there are many entries.  Cerner does this
+                logger.info("search: got Bundle with total=" + bundle.getTotal() + ", entries=" + bundle.getEntry().size() + " for query: " + fhirQuery);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("bundle = " + FhirUtil.toJson(bundle));
+                }
+
+            } catch (InvalidRequestException ire) {
+                logger.error("caught " + ire.getClass().getName() + " executing search: " + fhirQuery, ire);
+                throw ire;
             }
 
-        } catch (InvalidRequestException ire) {
-            logger.error("caught " + ire.getClass().getName() + " executing search: " + fhirQuery, ire);
-            throw ire;
+            FhirSearchStream stream = new FhirSearchStream(fhirQuery, bundle,
+                    page -> fcc.getClient().loadPage().next(page).execute(),
+                    validityFunction, pageExecutor, readAheadPages,
+                    (pages, outcome) -> metricsService.recordFhirSearch(strategy, fhirQuery, pages,
+                            System.currentTimeMillis() - start, outcome));
+            success = true;
+            return stream;
+
+        } finally {
+            if ( ! success ) {
+                metricsService.recordFhirSearch(strategy, fhirQuery, 0, System.currentTimeMillis() - start, false);
+            }
         }
+    }
 
-        if (bundle.getLink(Bundle.LINK_NEXT) != null) {
-            CompositeBundle compositeBundle = new CompositeBundle();
-            compositeBundle.consume(bundle);
+    /**
+     * executes a search for vitals Observations, parsing each page of results straight into VitalsRecords with
+     * VitalsBundleParser rather than into full HAPI resources.  all pages are fetched.
+     * @return null if the query is blank or the strategy is DISABLED
+     */
+    public List<VitalsRecord> searchVitals(FHIRCredentialsWithClient fcc, FhirStrategy strategy, String fhirQuery,
+                                           Function<VitalsRecord, Boolean> validityFunction) throws DataException, ConfigurationException, IOException {
 
-            int page = 2;
-            while (bundle.getLink(Bundle.LINK_NEXT) != null) {
-                bundle = fcc.getClient().loadPage().next(bundle).execute();
+        if (StringUtils.isBlank(fhirQuery) || strategy == FhirStrategy.DISABLED) {
+            return null;
+        }
 
-                logger.info("search (page " + page + "): " + fhirQuery + " (size=" + bundle.getTotal() + ")");
-                if (logger.isDebugEnabled()) {
-                    logger.debug("bundle = " + FhirUtil.toJson(bundle));
+        logger.info("search (vitals): executing query: " + fhirQuery);
+
+        long start = System.currentTimeMillis();
+        boolean success = false;
+        int pages = 0;
+        try {
+            String bearerToken = getBearerToken(fcc, strategy);
+            VitalsBundleParser parser = new VitalsBundleParser();
+
+            List<VitalsRecord> list = new ArrayList<>();
+            String url = fcc.getCredentials().getServerURL() + '/' + fhirQuery +
+                    (fhirQuery.contains("?") ? "&" : "?") + "_count=" + searchCount;
+
+            while (url != null) {
+                HttpGet request = new HttpGet(url);
+                request.setHeader("Accept", "application/fhir+json");
+                request.setHeader("Authorization", "Bearer " + bearerToken);
+
+                VitalsBundleParser.Page page = httpClient.execute(request, response -> {
+                    int code = response.getStatusLine().getStatusCode();
+                    if (code != 200) {
+                        String body = response.getEntity() != null ?
+                                EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) :
+                                "";
+                        throw BaseServerResponseException.newInstance(code, "search (vitals) failed with status " +
+                                code + " - " + body);
+                    }
+                    try (InputStream in = response.getEntity().getContent()) {
+                        return parser.parse(in);
+                    }
+                });
+
+                pages ++;
+                logger.info("search (vitals) (page " + pages + "): " + fhirQuery + " (records=" + page.getRecords().size() + ")");
+
+                for (VitalsRecord record : page.getRecords()) {
+                    if (validityFunction == null || validityFunction.apply(record)) {
+                        list.add(record);
+                    }
                 }
 
-                compositeBundle.consume(bundle);
+                url = page.getNextUrl();
+            }
+
+            success = true;
+            return list;
+
+        } finally {
+            metricsService.recordFhirSearch(strategy, fhirQuery, pages, System.currentTimeMillis() - start, success);
+        }
+    }
 
-                page ++;
+    /**
+     * executes several searches together, in a single batch request.  each search's results are returned in the
+     * same order as the queries, with all pages fetched and the validity function applied, as with search().
+     * any search the server doesn't complete successfully as part of the batch is retried on its own.
+     */
+    public List<Bundle> searchBatch(FHIRCredentialsWithClient fcc, FhirStrategy strategy, List<String> fhirQueries,
+                                    Function<ResourceWithBundle, Boolean> validityFunction) throws DataException, ConfigurationException, IOException {
+
+        List<Bundle> list = new ArrayList<>();
+        if (strategy == FhirStrategy.DISABLED) {
+            for (int i = 0; i < fhirQueries.size(); i ++) {
+                list.add(null);
             }
+            return list;
+        }
 
-            bundle = compositeBundle.getBundle();
+        Bundle batch = new Bundle();
+        batch.setType(Bundle.BundleType.BATCH);
+        for (String fhirQuery : fhirQueries) {
+            batch.addEntry().getRequest()
+                    .setMethod(Bundle.HTTPVerb.GET)
+                    .setUrl(fhirQuery + (fhirQuery.contains("?") ? "&" : "?") + "_count=" + searchCount);
         }
 
-        if (validityFunction != null) {
-            filterInvalidResources(bundle, validityFunction);
+        logger.info("search batch: executing " + fhirQueries.size() + " queries: " + fhirQueries);
+
+        long start = System.currentTimeMillis();
+        Bundle response = null;
+        try {
+            response = buildClient(fcc, strategy).transaction().withBundle(batch).execute();
+
+        } catch (BaseServerResponseException e) {
+            logger.warn("caught " + e.getClass().getName() + " executing search batch - " + e.getMessage() +
+                    " - executing queries individually -");
+        }
+
+        for (int i = 0; i < fhirQueries.size(); i ++) {
+            String fhirQuery = fhirQueries.get(i);
+            Bundle.BundleEntryComponent entry = response != null && i < response.getEntry().size() ?
+                    response.getEntry().get(i) :
+                    null;
+
+            if (entry != null && entry.hasResponse() && StringUtils.startsWith(entry.getResponse().getStatus(), "200") &&
+                    entry.getResource() instanceof Bundle) {
+
+                // the batch only returns the first page of each search; any others are fetched as normal
+                Bundle firstPage = (Bundle) entry.getResource();
+                logger.info("search batch: got Bundle with total=" + firstPage.getTotal() + ", entries=" +
+                        firstPage.getEntry().size() + " for query: " + fhirQuery);
+
+                try (FhirSearchStream stream = new FhirSearchStream(fhirQuery, firstPage,
+                        page -> fcc.getClient().loadPage().next(page).execute(),
+                        validityFunction, pageExecutor, readAheadPages,
+                        (pages, outcome) -> metricsService.recordFhirSearch(strategy, fhirQuery, pages,
+                                System.currentTimeMillis() - start, outcome))) {
+                    list.add(collect(stream));
+                }
+
+            } else {
+                if (response != null) {
+                    logger.warn("search batch: query failed with status=" + (entry != null ? entry.getResponse().getStatus() : null) +
+                            " - executing individually: " + fhirQuery);
+                }
+                list.add(search(fcc, strategy, fhirQuery, validityFunction));
+            }
         }
-        return bundle;
+
+        return list;
     }
 
     public <T extends IDomainResource> T transact(FHIRCredentialsWithClient fcc, FhirStrategy strategy, T resource) throws IOException, ConfigurationException, DataException {
@@ -229,8 +423,7 @@ public class FHIRService {
         if (strategy == FhirStrategy.BACKEND) {
             if (jwtService.isJWTEnabled()) {
                 String tokenAuthUrl = FhirUtil.getTokenAuthenticationURL(fcc.getMetadata());
-                String jwt = jwtService.createToken(tokenAuthUrl);
-                AccessToken accessToken = jwtService.getAccessToken(tokenAuthUrl, jwt);
+                AccessToken accessToken = jwtService.getAccessToken(tokenAuthUrl);
 
                 Iterator<Bundle.BundleEntryComponent> iter = bundle.getEntry().iterator();
                 while (iter.hasNext()) {
@@ -246,9 +439,7 @@ public class FHIRService {
                     }
                 }
 
-                client = FhirUtil.buildClient(fcc.getCredentials().getServerURL(),
-                        accessToken.getAccessToken(),
-                        socketTimeout);
+                client = getBackendClient(fcc.getCredentials().getServerURL(), accessToken.getAccessToken());
 
             } else {
                 throw new ConfigurationException("BACKEND context requested but JWT not defined");
@@ -285,23 +476,71 @@ public class FHIRService {
 // private methods
 //
 
+    private Bundle collect(FhirSearchStream stream) {
+        // pages are fetched and filtered as they're consumed here, rather than all being fetched first
+        Bundle compositeBundle = new Bundle();
+        compositeBundle.setType(Bundle.BundleType.COLLECTION);
+        while (stream.hasNext()) {
+            compositeBundle.addEntry(stream.next());
+        }
+
+        // a single page is returned as-is, as it always has been
+        return stream.getPageCount() == 1 ?
+                stream.getFirstPage() :
+                compositeBundle;
+    }
+
     private IGenericClient buildClient(FHIRCredentialsWithClient fcc, FhirStrategy strategy) throws DataException, ConfigurationException, IOException {
+        if (strategy == FhirStrategy.BACKEND) {
+            return getBackendClient(fcc.getCredentials().getServerURL(), getBearerToken(fcc, strategy));
+
+        } else if (strategy == FhirStrategy.PATIENT) {
+            return fcc.getClient();
+
+        } else if (strategy == FhirStrategy.DISABLED) {
+            throw new DisabledException("specified strategy is DISABLED");
+
+        } else {
+            throw new CaseNotHandledException("case for strategy " + strategy + " not handled");
+        }
+    }
+
+    /**
+     * @return a client for the specified server authenticated with the specified backend access token.  a client is
+     * reused for as long as the access token it was built with is
+     */
+    private IGenericClient getBackendClient(String serverURL, String accessToken) {
+        BackendClient backendClient = backendClients.compute(serverURL, (k, current) ->
+                current != null && current.accessToken.equals(accessToken) ?
+                        current :
+                        new BackendClient(accessToken, FhirUtil.buildClient(serverURL, accessToken, socketTimeout))
+        );
+        return backendClient.client;
+    }
+
+    private static final class BackendClient {
+        private final String accessToken;
+        private final IGenericClient client;
+
+        private BackendClient(String accessToken, IGenericClient client) {
+            this.accessToken = accessToken;
+            this.client = client;
+        }
+    }
+
+    private String getBearerToken(FHIRCredentialsWithClient fcc, FhirStrategy strategy) throws DataException, ConfigurationException, IOException {
         if (strategy == FhirStrategy.BACKEND) {
             if (jwtService.isJWTEnabled()) {
                 String tokenAuthUrl = FhirUtil.getTokenAuthenticationURL(fcc.getMetadata());
-                String jwt = jwtService.createToken(tokenAuthUrl);
-                AccessToken accessToken = jwtService.getAccessToken(tokenAuthUrl, jwt);
-
-                return FhirUtil.buildClient(fcc.getCredentials().getServerURL(),
-                        accessToken.getAccessToken(),
-                        socketTimeout);
+                AccessToken accessToken = jwtService.getAccessToken(tokenAuthUrl);
+                return accessToken.getAccessToken();
 
             } else {
                 throw new ConfigurationException("BACKEND context requested but JWT not defined");
             }
 
         } else if (strategy == FhirStrategy.PATIENT) {
-            return fcc.getClient();
+            return fcc.getCredentials().getBearerToken();
 
         } else if (strategy == FhirStrategy.DISABLED) {
             throw new DisabledException("specified strategy is DISABLED");
@@ -310,19 +549,4 @@ public class FHIRService {
             throw new CaseNotHandledException("case for strategy " + strategy + " not handled");
         }
     }
-
-    private void filterInvalidResources(Bundle bundle, Function<ResourceWithBundle, Boolean> validityFunction) {
-        if (bundle != null && bundle.hasEntry()) {
-            Iterator<Bundle.BundleEntryComponent> iter = bundle.getEntry().iterator();
-            while (iter.hasNext()) {
-                Bundle.BundleEntryComponent entry = iter.next();
-                if (entry.hasResource()) {
-                    boolean isValid = validityFunction.apply(new ResourceWithBundle(entry.getResource(), bundle));
-                    if ( ! isValid ) {
-                        iter.remove();
-                    }
-                }
-            }
-        }
-    }
 }
@@ -0,0 +1,331 @@
+package edu.ohsu.cmp.coach.service;
+
+import edu.ohsu.cmp.coach.entity.FhirSyncState;
+import edu.ohsu.cmp.coach.exception.ConfigurationException;
+import edu.ohsu.cmp.coach.exception.DataException;
+import edu.ohsu.cmp.coach.fhir.FhirStrategy;
+import edu.ohsu.cmp.coach.model.ResourceWithBundle;
+import edu.ohsu.cmp.coach.model.fhir.FHIRCredentialsWithClient;
+import edu.ohsu.cmp.coach.repository.FhirSyncStateRepository;
+import edu.ohsu.cmp.coach.util.EncryptionUtil;
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps a persisted local copy of the results of each of a patient's FHIR searches, so that later sessions need
+ * only search for resources updated since the last time (using _lastUpdated=gt{watermark}) and merge them into
+ * that copy, rather than re-querying the search's whole lookback window.
+ * <p>
+ * Each search is tracked separately, keyed by patient and a hash of the server URL and query, along with a
+ * watermark - the latest meta.lastUpdated of any resource it has returned.  A full search is run instead of a
+ * delta search when there's no local copy yet, when the last full search is older than
+ * fhir.delta-sync.full-resync-seconds (deleted resources are only ever dropped from the local copy by a full
+ * search), when the server didn't report meta.lastUpdated for every resource, or if the delta search fails.
+ * <p>
+ * The local copy holds every resource the search returned; the validity function is applied afterward, so a
+ * resource whose status changes is re-evaluated when the change arrives.  Like workspace snapshots, it's stored
+ * gzip-compressed and encrypted with AES-GCM, bound to the patient and search it belongs to.  Delta sync is disabled
+ * if no encryption key is configured.
+ */
+@Service
+public class FhirDeltaSyncService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private FHIRService fhirService;
+
+    @Autowired
+    private FhirSyncStateRepository repository;
+
+    @Value("${fhir.delta-sync.enabled}")
+    private Boolean enabled;
+
+    @Value("${fhir.delta-sync.full-resync-seconds}")
+    private Long fullResyncSeconds;
+
+    @Value("${fhir.delta-sync.clock-skew-seconds}")
+    private Long clockSkewSeconds;
+
+    @Value("${fhir.delta-sync.encryption-key:}")
+    private String encryptionKey;
+
+    @Value("${workspace.snapshot.encryption-key:}")
+    private String snapshotEncryptionKey;
+
+    private SecretKey key = null;
+
+    @PostConstruct
+    public void init() {
+        if ( ! enabled ) return;
+
+        String encryptionKey = StringUtils.isNotBlank(this.encryptionKey) ?
+                this.encryptionKey :
+                snapshotEncryptionKey;
+
+        try {
+            key = EncryptionUtil.buildKey(encryptionKey);
+
+        } catch (Exception e) {
+            logger.error("caught " + e.getClass().getName() + " configuring delta sync encryption - delta sync " +
+                    "will be disabled - " + e.getMessage());
+            enabled = false;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * executes the search, as FHIRService.search() does, but fetching only what's changed since the patient's last
+     * search where possible.  if delta sync isn't enabled, simply executes the search
+     * @param patId the internal patient id
+     * @return null if the query is blank or the strategy is DISABLED
+     */
+    public Bundle search(Long patId, FHIRCredentialsWithClient fcc, FhirStrategy strategy, String fhirQuery,
+                         Function<ResourceWithBundle, Boolean> validityFunction) throws DataException, ConfigurationException, IOException {
+
+        if ( ! enabled || patId == null ) {
+            return fhirService.search(fcc, strategy, fhirQuery, validityFunction);
+
+        } else if (StringUtils.isBlank(fhirQuery) || strategy == FhirStrategy.DISABLED) {
+            return null;
+        }
+
+        String queryHash = DigestUtils.sha256Hex(fcc.getCredentials().getServerURL() + '|' + fhirQuery);
+        FhirSyncState state = repository.findOneByPatIdAndQueryHash(patId, queryHash);
+
+        Bundle bundle = null;
+        if (state != null && requiresFullSync(state)) {
+            logger.info("delta sync: full resync required for query: " + fhirQuery);
+
+        } else if (state != null) {
+            bundle = deltaSync(state, fcc, strategy, fhirQuery);
+        }
+
+        if (bundle == null) {
+            if (state == null) {
+                state = new FhirSyncState(patId, getResourceType(fhirQuery), queryHash);
+            }
+            bundle = fullSync(state, fcc, strategy, fhirQuery);
+        }
+
+        if (bundle == null) return null;
+
+        FhirUtil.filterInvalidResources(bundle, validityFunction);
+
+        return bundle;
+    }
+
+    /**
+     * discards the patient's local copies, so that their next searches are full searches
+     */
+    public void deleteAll(Long patId) {
+        repository.deleteAllByPatId(patId);
+    }
+
+    private boolean requiresFullSync(FhirSyncState state) {
+        return state.getWatermark() == null ||
+                state.getLastFullSync() == null ||
+                System.currentTimeMillis() - state.getLastFullSync().getTime() > fullResyncSeconds * 1000;
+    }
+
+    private Bundle fullSync(FhirSyncState state, FHIRCredentialsWithClient fcc, FhirStrategy strategy,
+                            String fhirQuery) throws DataException, ConfigurationException, IOException {
+
+        Date searchStarted = new Date();
+        Bundle bundle = fhirService.search(fcc, strategy, fhirQuery, null);
+        if (bundle == null) return null;
+
+        Date watermark = getWatermark(bundle);
+        if (watermark == null && bundle.hasEntry()) {
+            logger.debug("delta sync: not every resource has meta.lastUpdated - delta searches not possible for query: " + fhirQuery);
+
+        } else if (watermark == null) {
+            // nothing found, so changes need only be fetched from (just before) now
+            watermark = new Date(searchStarted.getTime() - clockSkewSeconds * 1000);
+        }
+
+        state.setWatermark(watermark);
+        state.setLastFullSync(searchStarted);
+        save(state, bundle);
+
+        // copies for other queries that haven't been used since the last full resync are no longer needed (e.g.
+        // those whose lookback window has since moved)
+        repository.deleteAllByPatIdSyncedBefore(state.getPatId(),
+                new Date(searchStarted.getTime() - fullResyncSeconds * 1000));
+
+        logger.info("delta sync: full sync of " + state.getResourceType() + " for patient=" + state.getPatId() +
+                " (resources=" + state.getResourceCount() + ", watermark=" + state.getWatermark() + ")");
+
+        return bundle;
+    }
+
+    /**
+     * @return the merged Bundle, or null if the delta search couldn't be run and a full search is needed instead
+     */
+    private Bundle deltaSync(FhirSyncState state, FHIRCredentialsWithClient fcc, FhirStrategy strategy, String fhirQuery) {
+        long start = System.currentTimeMillis();
+        try {
+            Bundle local = readBundleData(state);
+
+            String deltaQuery = fhirQuery + (fhirQuery.contains("?") ? "&" : "?") +
+                    "_lastUpdated=gt" + formatWatermark(state.getWatermark());
+            Bundle delta = fhirService.search(fcc, strategy, deltaQuery, null);
+            if (delta == null) return null;
+
+            Date watermark = getWatermark(delta);
+            if (watermark == null && delta.hasEntry()) {
+                logger.debug("delta sync: not every resource has meta.lastUpdated - next sync will be a full sync");
+                state.setWatermark(null);
+
+            } else if (watermark != null && watermark.after(state.getWatermark())) {
+                state.setWatermark(watermark);
+            }
+
+            int updated = merge(local, delta);
+            save(state, local);
+
+            logger.info("delta sync: merged " + updated + " updated " + state.getResourceType() + " resource(s) for patient=" +
+                    state.getPatId() + " (resources=" + state.getResourceCount() + ", took " +
+                    (System.currentTimeMillis() - start) + "ms)");
+
+            return local;
+
+        } catch (Exception e) {
+            logger.warn("caught " + e.getClass().getName() + " executing delta sync for " + state.getResourceType() +
+                    " - falling back to full sync - " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * merges the resources in the delta Bundle into the local Bundle, replacing any with the same type and id
+     * @return the number of resources merged
+     */
+    private int merge(Bundle local, Bundle delta) {
+        Map<String, Integer> indexMap = new HashMap<>();
+        for (int i = 0; i < local.getEntry().size(); i ++) {
+            Resource r = local.getEntry().get(i).getResource();
+            if (r != null) indexMap.put(getKey(r), i);
+        }
+
+        int count = 0;
+        for (Bundle.BundleEntryComponent entry : delta.getEntry()) {
+            Resource r = entry.getResource();
+            if (r == null) continue;
+
+            Integer index = indexMap.get(getKey(r));
+            if (index != null) {
+                local.getEntry().set(index, entry);
+
+            } else {
+                indexMap.put(getKey(r), local.getEntry().size());
+                local.addEntry(entry);
+            }
+            count ++;
+        }
+
+        local.setTotal(local.getEntry().size());
+
+        return count;
+    }
+
+    private void save(FhirSyncState state, Bundle bundle) {
+        Date now = new Date();
+        state.setLastSynced(now);
+        state.setResourceCount(bundle.getEntry().size());
+
+        try {
+            writeBundleData(state, bundle);
+            repository.save(state);
+
+        } catch (Exception e) {
+            // e.g. another session for the same patient saved the same search first
+            logger.warn("caught " + e.getClass().getName() + " saving delta sync state for " + state.getResourceType() +
+                    " - " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the latest meta.lastUpdated of any resource in the Bundle, or null if any resource doesn't have one
+     */
+    private Date getWatermark(Bundle bundle) {
+        Date watermark = null;
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            Resource r = entry.getResource();
+            if (r == null) continue;
+            if ( ! r.hasMeta() || ! r.getMeta().hasLastUpdated() ) return null;
+
+            Date lastUpdated = r.getMeta().getLastUpdated();
+            if (watermark == null || lastUpdated.after(watermark)) {
+                watermark = lastUpdated;
+            }
+        }
+        return watermark;
+    }
+
+    private String getKey(Resource r) {
+        return r.fhirType() + "/" + r.getIdElement().getIdPart();
+    }
+
+    private String getResourceType(String fhirQuery) {
+        int pos = fhirQuery.indexOf('?');
+        return pos >= 0 ?
+                fhirQuery.substring(0, pos) :
+                fhirQuery;
+    }
+
+    private String formatWatermark(Date date) {
+        // UTC, so there's no '+' offset to be mangled in the URL
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return df.format(date);
+    }
+
+    private void writeBundleData(FhirSyncState state, Bundle bundle) throws IOException, GeneralSecurityException {
+        String json = FhirUtil.toCompactJson(bundle);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(baos)) {
+            out.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+        state.setBundleData(EncryptionUtil.encrypt(key, baos.toByteArray(), getAssociatedData(state)));
+    }
+
+    /**
+     * @throws IOException if the local copy isn't in a recognized format (e.g. it was stored unencrypted, before
+     * encryption was introduced), in which case a full search replaces it
+     */
+    private Bundle readBundleData(FhirSyncState state) throws IOException, GeneralSecurityException {
+        byte[] bytes = EncryptionUtil.decrypt(key, state.getBundleData(), getAssociatedData(state));
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(bytes)),
+                StandardCharsets.UTF_8)) {
+            return FhirUtil.fromJson(Bundle.class, reader);
+        }
+    }
+
+    // binds the local copy to the patient and search it belongs to, so it can't be swapped in for another
+    private String getAssociatedData(FhirSyncState state) {
+        return state.getPatId() + "|" + state.getQueryHash();
+    }
+}
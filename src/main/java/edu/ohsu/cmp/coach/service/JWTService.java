@@ -30,10 +30,8 @@ import java.security.interfaces.RSAPublicKey;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 public class JWTService {
@@ -48,6 +46,17 @@ public class JWTService {
     @Value("${fhir.security.jwt.pkcs8-private-key-file:}")
     private String pkcs8PrivateKeyFilename;
 
+    @Value("${fhir.security.jwt.access-token-refresh-seconds:60}")
+    private Long accessTokenRefreshSeconds;
+
+    // the key material is read from disk once, the first time it's needed
+    private volatile Algorithm algorithm = null;
+
+    // access tokens are reused until shortly before they expire, keyed by token URL
+    private final Map<String, CachedAccessToken> accessTokenCache = new ConcurrentHashMap<>();
+    private final Map<String, Object> accessTokenLocks = new ConcurrentHashMap<>();
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
     public boolean isJWTEnabled() {
         return StringUtils.isNotBlank(clientId) &&
                 StringUtils.isNotBlank(x509CertificateFilename) &&
@@ -63,14 +72,9 @@ public class JWTService {
         // jti: uuid, max 151 chars
         // exp: 5 minutes in the future, expressed as an integer 5 minutes in the future
 
-        File x509CertificateFile = new File(x509CertificateFilename);
-        File pkcs8PrivateKeyFile = new File(pkcs8PrivateKeyFilename);
+        Algorithm algorithm = getAlgorithm();
 
         try {
-            RSAPublicKey publicKey = (RSAPublicKey) CryptoUtil.readPublicKeyFromCertificate(x509CertificateFile);
-            RSAPrivateKey privateKey = (RSAPrivateKey) CryptoUtil.readPrivateKey(pkcs8PrivateKeyFile);
-            Algorithm algorithm = Algorithm.RSA384(publicKey, privateKey);
-
             return JWT.create()
                     .withIssuer(clientId)
                     .withSubject(clientId)
@@ -81,22 +85,16 @@ public class JWTService {
 
         } catch (Exception e) {
             throw new ConfigurationException("could not instantiate object with iss=" + tokenAuthUrl +
-                    ", x509CertificateFile=" + x509CertificateFile +
-                    ", pkcs8PrivateKeyFile=" + pkcs8PrivateKeyFile, e);
+                    ", x509CertificateFile=" + x509CertificateFilename +
+                    ", pkcs8PrivateKeyFile=" + pkcs8PrivateKeyFilename, e);
         }
     }
 
     public boolean isTokenValid(String token, String iss) {
         if ( ! isJWTEnabled() ) return false;
 
-        File x509CertificateFile = new File(x509CertificateFilename);
-        File pkcs8PrivateKeyFile = new File(pkcs8PrivateKeyFilename);
-
         try {
-            RSAPublicKey publicKey = (RSAPublicKey) CryptoUtil.readPublicKeyFromCertificate(x509CertificateFile);
-            RSAPrivateKey privateKey = (RSAPrivateKey) CryptoUtil.readPrivateKey(pkcs8PrivateKeyFile);
-            Algorithm algorithm = Algorithm.RSA384(publicKey, privateKey);
-            JWTVerifier verifier = JWT.require(algorithm)
+            JWTVerifier verifier = JWT.require(getAlgorithm())
                     .withIssuer(iss)
                     .build();
             verifier.verify(token);
@@ -108,6 +106,51 @@ public class JWTService {
         }
     }
 
+    /**
+     * @return an access token for the specified token URL, reusing the last one obtained until shortly before it
+     * expires (per fhir.security.jwt.access-token-refresh-seconds).  while it's being refreshed, other callers
+     * continue to use it, and if the refresh fails, it continues to be used until it actually expires.  tokens that
+     * don't specify expires_in are never reused
+     */
+    public AccessToken getAccessToken(String tokenAuthUrl) throws ConfigurationException, IOException {
+        if ( ! isJWTEnabled() ) return null;
+
+        CachedAccessToken cached = accessTokenCache.get(tokenAuthUrl);
+        long now = System.currentTimeMillis();
+        if (cached != null && now < cached.refreshAt) {
+            return cached.accessToken;
+        }
+
+        Object lock = accessTokenLocks.computeIfAbsent(tokenAuthUrl, k -> new Object());
+        if (cached != null && now < cached.expiresAt) {
+            // the token needs refreshing, but is still valid.  only one caller needs to wait for the refresh
+            if ( ! refreshing.add(tokenAuthUrl) ) {
+                return cached.accessToken;
+            }
+            try {
+                synchronized (lock) {
+                    return refreshAccessToken(tokenAuthUrl);
+                }
+
+            } catch (Exception e) {
+                logger.warn("caught " + e.getClass().getName() + " refreshing access token for tokenAuthUrl=" +
+                        tokenAuthUrl + " - using current token until it expires - " + e.getMessage());
+                return cached.accessToken;
+
+            } finally {
+                refreshing.remove(tokenAuthUrl);
+            }
+        }
+
+        synchronized (lock) {
+            cached = accessTokenCache.get(tokenAuthUrl);
+            if (cached != null && System.currentTimeMillis() < cached.refreshAt) {
+                return cached.accessToken;
+            }
+            return refreshAccessToken(tokenAuthUrl);
+        }
+    }
+
     /**
      * generate an Epic access token per specifications documented at
      * https://apporchard.epic.com/Article?docId=oauth2&section=Backend-Oauth2_Getting-Access-Token
@@ -153,6 +196,63 @@ public class JWTService {
 // private methods
 //
 
+    private AccessToken refreshAccessToken(String tokenAuthUrl) throws ConfigurationException, IOException {
+        long start = System.currentTimeMillis();
+
+        String jwt = createToken(tokenAuthUrl);
+        AccessToken accessToken = getAccessToken(tokenAuthUrl, jwt);
+
+        if (accessToken != null && accessToken.getExpiresIn() != null) {
+            long expiresAt = start + accessToken.getExpiresIn() * 1000L;
+            long refreshAt = Math.max(start, expiresAt - accessTokenRefreshSeconds * 1000);
+            accessTokenCache.put(tokenAuthUrl, new CachedAccessToken(accessToken, refreshAt, expiresAt));
+
+        } else {
+            accessTokenCache.remove(tokenAuthUrl);
+        }
+
+        logger.debug("obtained access token for tokenAuthUrl=" + tokenAuthUrl + " (took " +
+                (System.currentTimeMillis() - start) + "ms)");
+
+        return accessToken;
+    }
+
+    private Algorithm getAlgorithm() throws ConfigurationException {
+        Algorithm a = algorithm;
+        if (a == null) {
+            synchronized (this) {
+                a = algorithm;
+                if (a == null) {
+                    File x509CertificateFile = new File(x509CertificateFilename);
+                    File pkcs8PrivateKeyFile = new File(pkcs8PrivateKeyFilename);
+                    try {
+                        RSAPublicKey publicKey = (RSAPublicKey) CryptoUtil.readPublicKeyFromCertificate(x509CertificateFile);
+                        RSAPrivateKey privateKey = (RSAPrivateKey) CryptoUtil.readPrivateKey(pkcs8PrivateKeyFile);
+                        a = Algorithm.RSA384(publicKey, privateKey);
+                        algorithm = a;
+
+                    } catch (Exception e) {
+                        throw new ConfigurationException("could not read key material from x509CertificateFile=" +
+                                x509CertificateFile + ", pkcs8PrivateKeyFile=" + pkcs8PrivateKeyFile, e);
+                    }
+                }
+            }
+        }
+        return a;
+    }
+
+    private static final class CachedAccessToken {
+        private final AccessToken accessToken;
+        private final long refreshAt;
+        private final long expiresAt;
+
+        private CachedAccessToken(AccessToken accessToken, long refreshAt, long expiresAt) {
+            this.accessToken = accessToken;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
     private Instant buildExpiresAt() {
         return LocalDateTime.now()
                 .plusMinutes(5)
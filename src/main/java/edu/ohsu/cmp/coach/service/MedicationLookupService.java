@@ -0,0 +1,173 @@
+package edu.ohsu.cmp.coach.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import edu.ohsu.cmp.coach.exception.ConfigurationException;
+import edu.ohsu.cmp.coach.exception.DataException;
+import edu.ohsu.cmp.coach.fhir.FhirStrategy;
+import edu.ohsu.cmp.coach.model.fhir.FHIRCredentialsWithClient;
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Resolves the Medications referenced by MedicationStatements and MedicationRequests.  Medications aren't
+ * patient-specific, so resolved Medications are cached across all sessions, keyed by FHIR server and id (or
+ * identifier).  Those not cached are fetched together, in as few _id searches as possible, rather than being read
+ * one at a time.  Medications that couldn't be found aren't cached, so they're looked up again the next time.
+ * <p>
+ * Cached Medications are never handed out directly; callers each receive their own copy.
+ */
+@Service
+public class MedicationLookupService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final int MAX_IDS_PER_QUERY = 32;
+    private static final String CACHE_NAME = "coach.fhir.medication.cache";
+
+    @Autowired
+    private FHIRService fhirService;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    @Value("${fhir.medication-cache.ttl-seconds}")
+    private Long ttlSeconds;
+
+    @Value("${fhir.medication-cache.max-size}")
+    private Long maxSize;
+
+    private Cache<String, Medication> cache;
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+
+        metricsService.monitorCache(CACHE_NAME, cache);
+    }
+
+    /**
+     * @return the Medications referenced by the specified references that could be found, whether cached or fetched
+     * from the FHIR server.  references to contained or bundled resources, and those that can't be found, are
+     * omitted
+     */
+    public List<Medication> resolve(FHIRCredentialsWithClient fcc, FhirStrategy strategy,
+                                    Collection<Reference> references) throws DataException, ConfigurationException, IOException {
+
+        String serverURL = fcc.getCredentials().getServerURL();
+
+        List<Medication> list = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        Set<String> idsToFetch = new LinkedHashSet<>();
+        Map<String, Identifier> identifiersToFetch = new LinkedHashMap<>();
+
+        for (Reference reference : references) {
+            if (reference.hasReference()) {
+                String id = toId(reference.getReference());
+                if (id == null || ! seen.add(id)) continue;
+
+                Medication m = cache.getIfPresent(buildKey(serverURL, id));
+                if (m != null)  list.add(m.copy());
+                else            idsToFetch.add(id);
+
+            } else if (reference.hasIdentifier()) {
+                String s = FhirUtil.toIdentifierString(reference.getIdentifier());
+                if ( ! seen.add("identifier=" + s) ) continue;
+
+                Medication m = cache.getIfPresent(buildKey(serverURL, "identifier=" + s));
+                if (m != null)  list.add(m.copy());
+                else            identifiersToFetch.put(s, reference.getIdentifier());
+            }
+        }
+
+        if (idsToFetch.isEmpty() && identifiersToFetch.isEmpty()) {
+            logger.debug("resolved " + list.size() + " Medication(s) from cache");
+            return list;
+        }
+
+        long start = System.currentTimeMillis();
+
+        List<String> ids = new ArrayList<>(idsToFetch);
+        for (int i = 0; i < ids.size(); i += MAX_IDS_PER_QUERY) {
+            List<String> chunk = ids.subList(i, Math.min(i + MAX_IDS_PER_QUERY, ids.size()));
+            for (Medication m : fetchById(fcc, strategy, chunk)) {
+                cache.put(buildKey(serverURL, m.getIdElement().getIdPart()), m);
+                list.add(m.copy());
+            }
+        }
+
+        for (Map.Entry<String, Identifier> entry : identifiersToFetch.entrySet()) {
+            Medication m = fhirService.readByIdentifier(fcc, strategy, Medication.class, entry.getValue());
+            if (m != null) {
+                cache.put(buildKey(serverURL, "identifier=" + entry.getKey()), m);
+                list.add(m.copy());
+            }
+        }
+
+        logger.info("resolved " + list.size() + " Medication(s), fetching " + ids.size() + " by id and " +
+                identifiersToFetch.size() + " by identifier (took " + (System.currentTimeMillis() - start) + "ms)");
+
+        return list;
+    }
+
+    private List<Medication> fetchById(FHIRCredentialsWithClient fcc, FhirStrategy strategy,
+                                       List<String> ids) throws DataException, ConfigurationException, IOException {
+        List<Medication> list = new ArrayList<>();
+        try {
+            Bundle bundle = fhirService.search(fcc, strategy, "Medication?_id=" + StringUtils.join(ids, ","));
+            if (bundle != null) {
+                for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                    if (entry.getResource() instanceof Medication) {
+                        list.add((Medication) entry.getResource());
+                    }
+                }
+            }
+
+            if (list.size() < ids.size()) {
+                logger.warn("couldn't find " + (ids.size() - list.size()) + " of " + ids.size() + " Medication(s) with ids=" + ids);
+            }
+
+        } catch (Exception e) {
+            // not every server supports searching by _id; read them individually instead
+            logger.warn("caught " + e.getClass().getName() + " searching for Medications with ids=" + ids +
+                    " - reading individually - " + e.getMessage());
+            for (String id : ids) {
+                try {
+                    Medication m = fhirService.readByReference(fcc, strategy, Medication.class, "Medication/" + id);
+                    if (m != null) list.add(m);
+
+                } catch (Exception e2) {
+                    logger.warn("caught " + e2.getClass().getName() + " reading Medication with id=" + id + " - " + e2.getMessage());
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return the id of the Medication referenced, or null if it refers to a contained or bundled resource
+     */
+    private String toId(String reference) {
+        if (reference.startsWith("#") || reference.startsWith("urn:")) return null;
+        String id = new IdType(reference).getIdPart();
+        return StringUtils.isBlank(id) ? null : id;
+    }
+
+    private String buildKey(String serverURL, String id) {
+        return serverURL + "|" + id;
+    }
+}
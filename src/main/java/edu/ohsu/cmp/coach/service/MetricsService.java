@@ -0,0 +1,376 @@
+package edu.ohsu.cmp.coach.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import edu.ohsu.cmp.coach.fhir.FhirSearchStream;
+import edu.ohsu.cmp.coach.fhir.FhirStrategy;
+import edu.ohsu.cmp.coach.http.EndpointGuard;
+import edu.ohsu.cmp.coach.workspace.WorkspaceLoadReport;
+import edu.ohsu.cmp.coach.workspace.WorkspaceMemoryManager;
+import edu.ohsu.cmp.coach.workspace.WorkspaceSlot;
+import edu.ohsu.cmp.coach.workspace.WorkspaceTaskScheduler;
+import io.micrometer.core.instrument.*;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.micrometer.core.instrument.binder.httpcomponents.PoolingHttpClientConnectionManagerMetricsBinder;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.hl7.fhir.r4.model.Bundle;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records Micrometer metrics describing how user workspaces are built and served, and the FHIR searches that feed
+ * them.  All meters are tagged with the configured vendor transformer.  Metrics are exposed for scraping via the
+ * Spring Boot actuator, e.g. /actuator/prometheus.
+ */
+@Service
+public class MetricsService {
+    public static final String WORKSPACE_POPULATE = "coach.workspace.populate";
+    public static final String WORKSPACE_SLOT_BUILD = "coach.workspace.slot.build";
+    public static final String WORKSPACE_SLOT_ENTRIES = "coach.workspace.slot.entries";
+    public static final String WORKSPACE_CACHE_REQUESTS = "coach.workspace.cache.requests";
+    public static final String WORKSPACE_CACHE_LOADS = "coach.workspace.cache.loads";
+    public static final String WORKSPACE_CACHE_EVICTIONS = "coach.workspace.cache.evictions";
+    public static final String WORKSPACE_MEMORY = "coach.workspace.memory";
+    public static final String WORKSPACE_MEMORY_BUDGET = "coach.workspace.memory.budget";
+    public static final String WORKSPACE_EXECUTOR_SESSIONS = "coach.workspace.executor.sessions";
+    public static final String WORKSPACE_EXECUTOR_QUEUED = "coach.workspace.executor.queued";
+    public static final String WORKSPACE_EXECUTOR_ACTIVE = "coach.workspace.executor.active";
+    public static final String WORKSPACE_EXECUTOR_COMPLETED = "coach.workspace.executor.completed";
+    public static final String WORKSPACE_EXECUTOR_REJECTED = "coach.workspace.executor.rejected";
+    public static final String WORKSPACE_EXECUTOR_WAIT_AVG = "coach.workspace.executor.wait.avg";
+    public static final String WORKSPACE_EXECUTOR_WAIT_MAX = "coach.workspace.executor.wait.max";
+    public static final String FHIR_SEARCH = "coach.fhir.search";
+    public static final String FHIR_SEARCH_PAGES = "coach.fhir.search.pages";
+    public static final String HTTP_CLIENT_REQUESTS = "coach.http.client.requests";
+    public static final String HTTP_CLIENT_CONNECTIONS = "coach.http.client.connections";
+    public static final String HTTP_CLIENT_POOL = "coach.http.client.pool";
+    public static final String HTTP_ENDPOINT_CIRCUIT_STATE = "coach.http.endpoint.circuit.state";
+    public static final String HTTP_ENDPOINT_IN_FLIGHT = "coach.http.endpoint.in.flight";
+    public static final String HTTP_ENDPOINT_TIMEOUT = "coach.http.endpoint.timeout";
+    public static final String HTTP_ENDPOINT_RETRY_BUDGET = "coach.http.endpoint.retry.budget";
+    public static final String HTTP_ENDPOINT_EVENTS = "coach.http.endpoint.events";
+    public static final String RECOMMENDATION_CACHE_REQUESTS = "coach.recommendation.cache.requests";
+
+    private static final String OUTCOME_SUCCESS = "success";
+    private static final String OUTCOME_FAILURE = "failure";
+    private static final String OUTCOME_ABANDONED = "abandoned";
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Value("${fhir.vendor-transformer-class}")
+    private String vendorTransformerClass;
+
+    private Tags commonTags;
+
+    @PostConstruct
+    public void init() {
+        commonTags = Tags.of("vendor", StringUtils.substringAfterLast("." + vendorTransformerClass, "."));
+
+        // register per-slot meters up-front, so they're scraped (as zero) before any workspace has been built
+        for (WorkspaceSlot slot : WorkspaceSlot.values()) {
+            for (String outcome : new String[] { OUTCOME_SUCCESS, OUTCOME_FAILURE }) {
+                slotBuildTimer(slot, outcome);
+                cacheLoadTimer(slot, outcome);
+            }
+            cacheRequestCounter(slot, "hit");
+            cacheRequestCounter(slot, "miss");
+        }
+    }
+
+    public void recordLoadReport(WorkspaceLoadReport report, boolean revalidated) {
+        Timer.builder(WORKSPACE_POPULATE)
+                .description("Time taken to populate a user workspace")
+                .tags(commonTags)
+                .tag("outcome", report.isSuccessful() ? OUTCOME_SUCCESS : OUTCOME_FAILURE)
+                .tag("revalidated", String.valueOf(revalidated))
+                .register(registry)
+                .record(report.getTotalMillis(), TimeUnit.MILLISECONDS);
+
+        for (WorkspaceLoadReport.StageTiming timing : report.getTimings().values()) {
+            slotBuildTimer(timing.getSlot(), timing.isSuccess() ? OUTCOME_SUCCESS : OUTCOME_FAILURE)
+                    .record(timing.getDurationMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * records the number of entries in a newly built slot value - the entry count of a Bundle, or the size of a
+     * Collection or Map.  values of any other type are ignored.
+     */
+    public void recordSlotEntries(WorkspaceSlot slot, Object value) {
+        int entries;
+        if (value instanceof Bundle)            entries = ((Bundle) value).getEntry().size();
+        else if (value instanceof Collection)   entries = ((Collection<?>) value).size();
+        else if (value instanceof Map)          entries = ((Map<?, ?>) value).size();
+        else return;
+
+        DistributionSummary.builder(WORKSPACE_SLOT_ENTRIES)
+                .description("Number of entries in a built workspace slot")
+                .baseUnit("entries")
+                .tags(commonTags)
+                .tag("slot", slot.getConfigKey())
+                .register(registry)
+                .record(entries);
+    }
+
+    public void recordCacheHits(WorkspaceSlot slot, int count) {
+        cacheRequestCounter(slot, "hit").increment(count);
+    }
+
+    public void recordCacheMisses(WorkspaceSlot slot, int count) {
+        cacheRequestCounter(slot, "miss").increment(count);
+    }
+
+    public void recordCacheLoad(WorkspaceSlot slot, long loadTimeNanos, boolean success) {
+        cacheLoadTimer(slot, success ? OUTCOME_SUCCESS : OUTCOME_FAILURE).record(loadTimeNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordCacheEviction(WorkspaceSlot slot, RemovalCause cause) {
+        Counter.builder(WORKSPACE_CACHE_EVICTIONS)
+                .description("Workspace cache entries evicted")
+                .tags(commonTags)
+                .tag("slot", slot.getConfigKey())
+                .tag("cause", cause.name().toLowerCase())
+                .register(registry)
+                .increment();
+    }
+
+    /**
+     * registers meters describing an application-wide Caffeine cache (hits, misses, evictions and size), which must
+     * record statistics
+     */
+    public void monitorCache(String name, Cache<?, ?> cache) {
+        CaffeineCacheMetrics.monitor(registry, cache, name, commonTags);
+    }
+
+    /**
+     * registers gauges describing the estimated memory held by all user workspaces, by tier ("hot" live objects and
+     * "compressed" demoted Bundles), and the budget it's held to.  values are as of the most recent budget check
+     */
+    public void monitorWorkspaceMemory(WorkspaceMemoryManager memoryManager) {
+        Gauge.builder(WORKSPACE_MEMORY, memoryManager, m -> m.getLastUsage().getHotBytes())
+                .description("Estimated memory held by user workspaces")
+                .baseUnit("bytes")
+                .tags(commonTags)
+                .tag("tier", "hot")
+                .register(registry);
+
+        Gauge.builder(WORKSPACE_MEMORY, memoryManager, m -> m.getLastUsage().getCompressedBytes())
+                .description("Estimated memory held by user workspaces")
+                .baseUnit("bytes")
+                .tags(commonTags)
+                .tag("tier", "compressed")
+                .register(registry);
+
+        Gauge.builder(WORKSPACE_MEMORY_BUDGET, memoryManager, m -> m.getLastUsage().getBudgetBytes())
+                .description("Memory budget user workspaces are held to")
+                .baseUnit("bytes")
+                .tags(commonTags)
+                .register(registry);
+    }
+
+    /**
+     * registers meters describing the shared pool that executes background work for all user workspaces: sessions
+     * with an executor, tasks queued and running, tasks completed and rejected, and how long tasks wait to start
+     */
+    public void monitorWorkspaceTaskScheduler(WorkspaceTaskScheduler scheduler) {
+        Gauge.builder(WORKSPACE_EXECUTOR_SESSIONS, scheduler, WorkspaceTaskScheduler::getSessionCount)
+                .description("Sessions with a workspace executor")
+                .tags(commonTags)
+                .register(registry);
+
+        Gauge.builder(WORKSPACE_EXECUTOR_QUEUED, scheduler, WorkspaceTaskScheduler::getQueuedTaskCount)
+                .description("Workspace tasks waiting for a worker")
+                .tags(commonTags)
+                .register(registry);
+
+        Gauge.builder(WORKSPACE_EXECUTOR_ACTIVE, scheduler, WorkspaceTaskScheduler::getActiveTaskCount)
+                .description("Workspace tasks currently running")
+                .tags(commonTags)
+                .register(registry);
+
+        FunctionCounter.builder(WORKSPACE_EXECUTOR_COMPLETED, scheduler, WorkspaceTaskScheduler::getCompletedTaskCount)
+                .description("Workspace tasks completed")
+                .tags(commonTags)
+                .register(registry);
+
+        FunctionCounter.builder(WORKSPACE_EXECUTOR_REJECTED, scheduler, WorkspaceTaskScheduler::getRejectedTaskCount)
+                .description("Workspace tasks rejected because a queue was full or the executor was shut down")
+                .tags(commonTags)
+                .register(registry);
+
+        Gauge.builder(WORKSPACE_EXECUTOR_WAIT_AVG, scheduler, WorkspaceTaskScheduler::getAverageWaitMillis)
+                .description("Average time workspace tasks have waited for a worker")
+                .baseUnit("milliseconds")
+                .tags(commonTags)
+                .register(registry);
+
+        Gauge.builder(WORKSPACE_EXECUTOR_WAIT_MAX, scheduler, WorkspaceTaskScheduler::getMaxWaitMillis)
+                .description("Longest time a workspace task has waited for a worker")
+                .baseUnit("milliseconds")
+                .tags(commonTags)
+                .register(registry);
+    }
+
+    public void recordFhirSearch(FhirStrategy strategy, String fhirQuery, int pages, long millis, boolean success) {
+        recordFhirSearch(strategy, fhirQuery, pages, millis, success ? OUTCOME_SUCCESS : OUTCOME_FAILURE);
+    }
+
+    /**
+     * records a streamed search.  searches abandoned before every page was consumed are recorded with their own
+     * outcome, as their timings and page counts don't describe a complete search
+     */
+    public void recordFhirSearch(FhirStrategy strategy, String fhirQuery, int pages, long millis, FhirSearchStream.Outcome outcome) {
+        String tag;
+        switch (outcome) {
+            case COMPLETED: tag = OUTCOME_SUCCESS;      break;
+            case ABANDONED: tag = OUTCOME_ABANDONED;    break;
+            default:        tag = OUTCOME_FAILURE;
+        }
+        recordFhirSearch(strategy, fhirQuery, pages, millis, tag);
+    }
+
+    private void recordFhirSearch(FhirStrategy strategy, String fhirQuery, int pages, long millis, String outcome) {
+        String resource = StringUtils.substringBefore(StringUtils.substringBefore(fhirQuery, "?"), "/");
+
+        Timer.builder(FHIR_SEARCH)
+                .description("Time taken to execute a FHIR search, including all pages")
+                .tags(commonTags)
+                .tag("strategy", String.valueOf(strategy))
+                .tag("resource", resource)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(millis, TimeUnit.MILLISECONDS);
+
+        if (OUTCOME_SUCCESS.equals(outcome)) {
+            DistributionSummary.builder(FHIR_SEARCH_PAGES)
+                    .description("Number of pages returned by a FHIR search")
+                    .baseUnit("pages")
+                    .tags(commonTags)
+                    .tag("strategy", String.valueOf(strategy))
+                    .tag("resource", resource)
+                    .register(registry)
+                    .record(pages);
+        }
+    }
+
+    public void recordHttpRequest(String host, String method, String status, long nanos, boolean success) {
+        Timer.builder(HTTP_CLIENT_REQUESTS)
+                .description("Time taken to execute an HTTP request and read its response")
+                .tags(commonTags)
+                .tag("host", host)
+                .tag("method", method)
+                .tag("status", status)
+                .tag("outcome", success ? OUTCOME_SUCCESS : OUTCOME_FAILURE)
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordHttpConnection(String host, boolean reused) {
+        Counter.builder(HTTP_CLIENT_CONNECTIONS)
+                .description("HTTP requests by whether they reused a pooled connection or opened a new one")
+                .tags(commonTags)
+                .tag("host", host)
+                .tag("reused", String.valueOf(reused))
+                .register(registry)
+                .increment();
+    }
+
+    /**
+     * registers gauges describing the available, leased and pending connections of an HTTP connection pool
+     */
+    public void monitorHttpConnectionPool(PoolingHttpClientConnectionManager connectionManager) {
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, HTTP_CLIENT_POOL, commonTags).bindTo(registry);
+    }
+
+    /**
+     * registers gauges describing the resilience state of a host: its circuit breaker state (0 = closed,
+     * 1 = half-open, 2 = open), requests in flight, adaptive timeout and remaining retry budget
+     */
+    public void monitorHttpEndpoint(EndpointGuard guard) {
+        Tags tags = commonTags.and("host", guard.getHost());
+
+        Gauge.builder(HTTP_ENDPOINT_CIRCUIT_STATE, guard, g -> g.getCircuitState().getValue())
+                .description("Circuit breaker state of a host (0 = closed, 1 = half-open, 2 = open)")
+                .tags(tags)
+                .register(registry);
+
+        Gauge.builder(HTTP_ENDPOINT_IN_FLIGHT, guard, EndpointGuard::getInFlight)
+                .description("Requests currently in flight to a host")
+                .tags(tags)
+                .register(registry);
+
+        Gauge.builder(HTTP_ENDPOINT_TIMEOUT, guard, EndpointGuard::getTimeoutMillis)
+                .description("Socket timeout currently applied to requests to a host")
+                .baseUnit("milliseconds")
+                .tags(tags)
+                .register(registry);
+
+        Gauge.builder(HTTP_ENDPOINT_RETRY_BUDGET, guard, EndpointGuard::getRetryTokens)
+                .description("Retries and hedged requests a host's retry budget currently allows")
+                .tags(tags)
+                .register(registry);
+    }
+
+    /**
+     * @param event e.g. "retry", "hedge", "hedge-won", "rejected-circuit-open", "circuit-open"
+     */
+    public void recordHttpEndpointEvent(String host, String event) {
+        Counter.builder(HTTP_ENDPOINT_EVENTS)
+                .description("Resilience events for a host: rejections, retries, hedged requests and circuit breaker transitions")
+                .tags(commonTags)
+                .tag("host", host)
+                .tag("event", event)
+                .register(registry)
+                .increment();
+    }
+
+    /**
+     * @param result "hit-memory", "hit-disk", "miss" or "bypass"
+     */
+    public void recordRecommendationCacheRequest(String hookId, String result) {
+        Counter.builder(RECOMMENDATION_CACHE_REQUESTS)
+                .description("Lookups of CQF-Ruler responses in the recommendation cache, by hook and result")
+                .tags(commonTags)
+                .tag("hook", hookId)
+                .tag("result", result)
+                .register(registry)
+                .increment();
+    }
+
+    private Timer slotBuildTimer(WorkspaceSlot slot, String outcome) {
+        return Timer.builder(WORKSPACE_SLOT_BUILD)
+                .description("Time taken to build a workspace slot while populating a workspace")
+                .tags(commonTags)
+                .tag("slot", slot.getConfigKey())
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private Timer cacheLoadTimer(WorkspaceSlot slot, String outcome) {
+        return Timer.builder(WORKSPACE_CACHE_LOADS)
+                .description("Time taken to load a workspace cache entry, including background refreshes")
+                .tags(commonTags)
+                .tag("slot", slot.getConfigKey())
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+
+    private Counter cacheRequestCounter(WorkspaceSlot slot, String result) {
+        return Counter.builder(WORKSPACE_CACHE_REQUESTS)
+                .description("Workspace cache lookups")
+                .tags(commonTags)
+                .tag("slot", slot.getConfigKey())
+                .tag("result", result)
+                .register(registry);
+    }
+}
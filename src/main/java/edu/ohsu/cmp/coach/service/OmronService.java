@@ -343,7 +343,11 @@ public class OmronService extends AbstractService {
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
-            workspace.clearCaches();
+            // newly synchronized readings were already added to the workspace in-place as they were created, so
+            // there's no need to throw everything away - just re-fetch vitals in the background and re-run
+            // recommendations against the updated data
+            workspace.refreshVitalsCaches();
+            workspace.runRecommendations();
         }
     }
 
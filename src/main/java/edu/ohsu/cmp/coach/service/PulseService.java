@@ -6,10 +6,10 @@ import edu.ohsu.cmp.coach.exception.DataException;
 import edu.ohsu.cmp.coach.exception.ScopeException;
 import edu.ohsu.cmp.coach.fhir.CompositeBundle;
 import edu.ohsu.cmp.coach.fhir.FhirStrategy;
+import edu.ohsu.cmp.coach.fhir.ObservationQueryPlanner;
 import edu.ohsu.cmp.coach.fhir.transform.VendorTransformer;
 import edu.ohsu.cmp.coach.model.AuditLevel;
 import edu.ohsu.cmp.coach.model.PulseModel;
-import edu.ohsu.cmp.coach.util.FhirUtil;
 import edu.ohsu.cmp.coach.workspace.UserWorkspace;
 import org.hl7.fhir.r4.model.Bundle;
 import org.slf4j.Logger;
@@ -28,16 +28,13 @@ public class PulseService extends AbstractService {
     @Value("${fhir.pulse-writeback-strategy}")
     private FhirStrategy writebackStrategy;
 
-    @Autowired
-    private EHRService ehrService;
-
     @Autowired
     private HomePulseReadingService hprService;
 
     public List<PulseModel> buildRemotePulseList(String sessionId) throws DataException, ConfigurationException, IOException {
-        CompositeBundle compositeBundle = new CompositeBundle();
-        compositeBundle.consume(ehrService.getObservations(sessionId, FhirUtil.toCodeParamString(fcm.getPulseCodings()), fcm.getPulseLookbackPeriod(),null));
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        CompositeBundle compositeBundle = new CompositeBundle();
+        compositeBundle.consume(workspace.getObservationQueryPlanner().getObservations(sessionId, ObservationQueryPlanner.Group.PULSE));
         compositeBundle.consume(workspace.getProtocolObservations());
         return workspace.getVendorTransformer().transformIncomingPulseReadings(compositeBundle.getBundle());
     }
@@ -119,7 +116,7 @@ public class PulseService extends AbstractService {
                 );
                 if (list.size() >= 1) {
                     pm2 = list.get(0);
-                    workspace.getRemotePulses().add(pm2);
+                    workspace.addRemotePulse(pm2);
                 }
 
                 auditService.doAudit(sessionId, AuditLevel.INFO, "wrote pulse remotely", pm.getPulse() +
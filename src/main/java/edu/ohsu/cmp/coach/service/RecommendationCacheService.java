@@ -0,0 +1,279 @@
+package edu.ohsu.cmp.coach.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import edu.ohsu.cmp.coach.model.cqfruler.HookEvaluation;
+import edu.ohsu.cmp.coach.model.cqfruler.HookPrefetch;
+import edu.ohsu.cmp.coach.util.EncryptionUtil;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.stream.Stream;
+
+/**
+ * Caches CQF-Ruler's responses to CDS Hook requests, keyed by a hash of everything that determines them: the hook,
+ * the version of its definition as discovered (see CDSHooksDiscoveryService) and of its PlanDefinition as
+ * configured, and the (sanitized) prefetch sent with the request.  A hook evaluated against exactly the same data is
+ * answered from the cache, regardless of which session asks, without calling CQF-Ruler.  Only successful responses
+ * are cached.
+ * <p>
+ * Responses are held in memory, and if an encryption key is configured, also written to local disk so that they
+ * survive a restart.  Like workspace snapshots, files are encrypted with EncryptionUtil, with the cache key bound as
+ * associated data so that a file can't be swapped in for a different key.  Entries expire after
+ * cqfruler.result-cache.max-age-seconds, as CQL logic may depend on the current date.
+ */
+@Service
+public class RecommendationCacheService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final String CACHE_NAME = "coach.recommendation.cache";
+    private static final String FILE_EXTENSION = ".result";
+
+    @Autowired
+    private MetricsService metricsService;
+
+    @Autowired
+    private CDSHooksDiscoveryService cdsHooksDiscoveryService;
+
+    @Value("${cqfruler.result-cache.bypass:false}")
+    private boolean bypass;
+
+    @Value("${cqfruler.result-cache.plan-definition-version:}")
+    private String planDefinitionVersion;
+
+    @Value("${cqfruler.result-cache.max-age-seconds:14400}")
+    private long maxAgeSeconds;
+
+    @Value("${cqfruler.result-cache.max-size:10000}")
+    private long maxSize;
+
+    @Value("${cqfruler.result-cache.directory:}")
+    private String directoryStr;
+
+    @Value("${cqfruler.result-cache.encryption-key:}")
+    private String encryptionKey;
+
+    @Value("${workspace.snapshot.encryption-key:}")
+    private String snapshotEncryptionKey;
+
+    private Cache<String, Entry> cache;
+    private Path directory = null;
+    private SecretKey key = null;
+    private final Gson gson = new GsonBuilder().create();
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofSeconds(maxAgeSeconds))
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+
+        metricsService.monitorCache(CACHE_NAME, cache);
+
+        if (bypass) {
+            logger.warn("recommendation cache is bypassed - every hook will be evaluated by CQF-Ruler");
+            return;
+        }
+
+        String encryptionKey = StringUtils.isNotBlank(this.encryptionKey) ?
+                this.encryptionKey :
+                snapshotEncryptionKey;
+
+        if (StringUtils.isBlank(encryptionKey)) {
+            logger.info("no encryption key configured for the recommendation cache - results will be cached in memory only");
+            return;
+        }
+
+        try {
+            SecretKey secretKey = EncryptionUtil.buildKey(encryptionKey);
+
+            Path path = StringUtils.isNotBlank(directoryStr) ?
+                    Paths.get(directoryStr) :
+                    Paths.get(System.getProperty("java.io.tmpdir"), "coach-recommendation-cache");
+            createDirectory(path);
+
+            key = secretKey;
+            directory = path;
+            logger.info("persisting recommendation cache to directory " + path);
+
+            purgeExpired();
+
+        } catch (Exception e) {
+            logger.error("caught " + e.getClass().getName() + " configuring the recommendation cache - results " +
+                    "will be cached in memory only - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the cached response to the specified hook for the specified prefetch, or null if there isn't one, or
+     * the cache is bypassed
+     */
+    public HookEvaluation get(String hookId, HookPrefetch prefetch) {
+        if (bypass) {
+            metricsService.recordRecommendationCacheRequest(hookId, "bypass");
+            return null;
+        }
+
+        String cacheKey = buildKey(hookId, prefetch);
+
+        Entry entry = cache.getIfPresent(cacheKey);
+        if (entry != null) {
+            if ( ! entry.isExpired() ) {
+                metricsService.recordRecommendationCacheRequest(hookId, "hit-memory");
+                return entry.evaluation;
+            }
+            cache.invalidate(cacheKey);
+        }
+
+        entry = read(cacheKey);
+        if (entry != null) {
+            cache.put(cacheKey, entry);
+            metricsService.recordRecommendationCacheRequest(hookId, "hit-disk");
+            return entry.evaluation;
+        }
+
+        metricsService.recordRecommendationCacheRequest(hookId, "miss");
+        return null;
+    }
+
+    /**
+     * caches the response to the specified hook for the specified prefetch, if it's successful
+     */
+    public void put(String hookId, HookPrefetch prefetch, HookEvaluation evaluation) {
+        if (bypass || ! evaluation.isSuccessful()) return;
+
+        String cacheKey = buildKey(hookId, prefetch);
+        Entry entry = new Entry(evaluation, System.currentTimeMillis());
+        cache.put(cacheKey, entry);
+        write(cacheKey, entry);
+    }
+
+    private String buildKey(String hookId, HookPrefetch prefetch) {
+        return DigestUtils.sha256Hex(hookId + '|' + StringUtils.defaultString(cdsHooksDiscoveryService.getVersion(hookId)) +
+                '|' + StringUtils.trimToEmpty(planDefinitionVersion) + '|' + prefetch.getDigest());
+    }
+
+    private void write(String cacheKey, Entry entry) {
+        if (directory == null) return;
+
+        try {
+            byte[] encrypted = EncryptionUtil.encrypt(key, gson.toJson(entry.evaluation).getBytes(StandardCharsets.UTF_8), cacheKey);
+
+            Path temp = Files.createTempFile(directory, cacheKey, ".tmp");
+            try {
+                Files.write(temp, encrypted);
+                Files.move(temp, getFile(cacheKey), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+
+        } catch (IOException | GeneralSecurityException e) {
+            logger.warn("caught " + e.getClass().getName() + " writing recommendation cache entry - " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the entry persisted for the specified key, or null if there isn't a usable one
+     */
+    private Entry read(String cacheKey) {
+        if (directory == null) return null;
+
+        Path file = getFile(cacheKey);
+        try {
+            if ( ! Files.exists(file) ) return null;
+
+            long writtenAt = Files.getLastModifiedTime(file).toMillis();
+            if (System.currentTimeMillis() - writtenAt > maxAgeSeconds * 1000) {
+                deleteQuietly(file);
+                return null;
+            }
+
+            byte[] decrypted = EncryptionUtil.decrypt(key, Files.readAllBytes(file), cacheKey);
+
+            HookEvaluation evaluation = gson.fromJson(new String(decrypted, StandardCharsets.UTF_8), HookEvaluation.class);
+            return new Entry(evaluation, writtenAt);
+
+        } catch (Exception e) {
+            logger.warn("caught " + e.getClass().getName() + " reading recommendation cache entry " +
+                    file.getFileName() + " - ignoring - " + e.getMessage());
+            deleteQuietly(file);
+            return null;
+        }
+    }
+
+    private void purgeExpired() {
+        long cutoff = System.currentTimeMillis() - maxAgeSeconds * 1000;
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(f -> f.getFileName().toString().endsWith(FILE_EXTENSION)).forEach(f -> {
+                try {
+                    if (Files.getLastModifiedTime(f).toMillis() < cutoff) {
+                        deleteQuietly(f);
+                    }
+
+                } catch (IOException e) {
+                    deleteQuietly(f);
+                }
+            });
+
+        } catch (IOException e) {
+            logger.warn("caught " + e.getClass().getName() + " purging expired recommendation cache entries - " +
+                    e.getMessage());
+        }
+    }
+
+    private Path getFile(String cacheKey) {
+        return directory.resolve(cacheKey + FILE_EXTENSION);
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+
+        } catch (IOException e) {
+            logger.warn("caught " + e.getClass().getName() + " deleting " + file.getFileName() + " - " + e.getMessage());
+        }
+    }
+
+    private void createDirectory(Path path) throws IOException {
+        if (Files.exists(path)) return;
+
+        try {
+            Files.createDirectories(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+
+        } catch (UnsupportedOperationException e) {
+            Files.createDirectories(path);      // non-POSIX filesystem
+        }
+    }
+
+    private final class Entry {
+        private final HookEvaluation evaluation;
+        private final long createdAt;
+
+        private Entry(HookEvaluation evaluation, long createdAt) {
+            this.evaluation = evaluation;
+            this.createdAt = createdAt;
+        }
+
+        // entries read from disk were written earlier, so may expire before the in-memory cache would evict them
+        private boolean isExpired() {
+            return System.currentTimeMillis() - createdAt > maxAgeSeconds * 1000;
+        }
+    }
+}
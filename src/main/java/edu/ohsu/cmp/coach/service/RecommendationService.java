@@ -1,14 +1,10 @@
 package edu.ohsu.cmp.coach.service;
 
-import com.github.mustachejava.DefaultMustacheFactory;
-import com.github.mustachejava.Mustache;
-import com.github.mustachejava.MustacheFactory;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
 import edu.ohsu.cmp.coach.entity.Counseling;
 import edu.ohsu.cmp.coach.entity.MyGoal;
-import edu.ohsu.cmp.coach.model.redcap.RandomizationGroup;
 import edu.ohsu.cmp.coach.exception.DataException;
 import edu.ohsu.cmp.coach.fhir.CompositeBundle;
 import edu.ohsu.cmp.coach.fhir.transform.BaseVendorTransformer;
@@ -20,13 +16,15 @@ import edu.ohsu.cmp.coach.model.*;
 import edu.ohsu.cmp.coach.model.cqfruler.CDSCard;
 import edu.ohsu.cmp.coach.model.cqfruler.CDSHook;
 import edu.ohsu.cmp.coach.model.cqfruler.CDSHookResponse;
+import edu.ohsu.cmp.coach.model.cqfruler.HookEvaluation;
+import edu.ohsu.cmp.coach.model.cqfruler.HookPrefetch;
 import edu.ohsu.cmp.coach.model.cqfruler.HookRequest;
+import edu.ohsu.cmp.coach.model.cqfruler.Source;
 import edu.ohsu.cmp.coach.model.fhir.FHIRCredentialsWithClient;
 import edu.ohsu.cmp.coach.model.recommendation.Action;
 import edu.ohsu.cmp.coach.model.Audience;
 import edu.ohsu.cmp.coach.model.recommendation.Card;
 import edu.ohsu.cmp.coach.model.recommendation.Suggestion;
-import edu.ohsu.cmp.coach.util.CDSHooksUtil;
 import edu.ohsu.cmp.coach.util.MustacheUtil;
 import edu.ohsu.cmp.coach.workspace.UserWorkspace;
 import org.hl7.fhir.r4.model.*;
@@ -39,19 +37,26 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 public class RecommendationService extends AbstractService {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    private static final boolean TESTING = false;   // true: use hard-coded 'canned' responses from CQF Ruler (fast, cheap)
+    static final boolean TESTING = false;           // true: use hard-coded 'canned' responses from CQF Ruler (fast, cheap)
                                                     // false: make CQF Ruler calls (slow, expensive)
 
     private static final String GENERIC_ERROR_MESSAGE = "ERROR: An error was encountered processing this recommendation.  See server logs for details.";
     private static final String COACH_SYSTEM = "https://coach.ohsu.edu";
+    private static final String HOOK_REQUEST_TEMPLATE = "cqfruler/hookRequest.mustache";
 
     @Value("${cqfruler.cdshooks.endpoint.url}")
     private String cdsHooksEndpointURL;
@@ -59,10 +64,6 @@ public class RecommendationService extends AbstractService {
     @Value("#{new Boolean('${security.show-dev-errors}')}")
     private Boolean showDevErrors;
 
-    private List<String> cdsHookOrder;
-
-    private List<String> basicGroupAllowFilter;
-
     @Autowired
     private BloodPressureService bpService;
 
@@ -78,85 +79,149 @@ public class RecommendationService extends AbstractService {
     @Autowired
     private AdverseEventService adverseEventService;
 
+    @Autowired
+    private RecommendationCacheService recommendationCacheService;
+
+    @Autowired
+    private CDSHooksDiscoveryService cdsHooksDiscoveryService;
+
     @Value("${contact.clinic}")
     private String clinicContact;
 
     @Value("${contact.after-hours}")
     private String clinicAfterHours;
 
-    public RecommendationService(@Value("${cqfruler.cdshooks.order.csv}") String cdsHookOrderStr,
-                                 @Value("${cqfruler.cdshooks.basic-group.allow-filter.csv}") String basicGroupAllowFilterStr) {
-        this.cdsHookOrder = Arrays.asList(cdsHookOrderStr.split("\\s*,\\s*"));
-        this.basicGroupAllowFilter = Arrays.asList(basicGroupAllowFilterStr.split("\\s*,\\s*"));
+    @Value("${cqfruler.cdshooks.parallelism:4}")
+    private int hookParallelism;
+
+    @Value("${cqfruler.cdshooks.threads:16}")
+    private int hookThreads;
+
+    // executes hook requests in parallel, on behalf of fanOut(), across all sessions.  when all threads are busy,
+    // execution is rejected, and fanOut() runs fewer lanes
+    private ThreadPoolExecutor hookExecutor;
+
+    /**
+     * called by fanOut() for each hook
+     */
+    public interface HookTask<T> {
+        T call(CDSHook hook) throws Exception;
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadCount = new AtomicInteger(0);
+        hookExecutor = new ThreadPoolExecutor(0, hookThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread t = new Thread(runnable, "cds-hook-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        hookExecutor.shutdownNow();
     }
 
     public List<CDSHook> getOrderedCDSHooks(String sessionId) throws IOException {
-        Map<String, CDSHook> map = new LinkedHashMap<>();
-        for (CDSHook cdsHook : CDSHooksUtil.getCDSHooks(TESTING, cdsHooksEndpointURL)) {
-            map.put(cdsHook.getId(), cdsHook);
-        }
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        return cdsHooksDiscoveryService.getOrderedCDSHooks(workspace.getActiveRandomizationGroup());
+    }
 
-        List<CDSHook> list = new ArrayList<>();
-        for (String hookId : cdsHookOrder) {
-            CDSHook cdsHook = map.remove(hookId);
-            if (cdsHook != null) {
-                list.add(cdsHook);
-            }
+    /**
+     * calls the specified task for each of the specified hooks, with up to cqfruler.cdshooks.parallelism calls in
+     * flight at once.  the calling thread takes part, calling the task for hooks itself until none remain to be
+     * started, so this returns once every call has started, but not necessarily finished
+     * @return a future for each call's result, keyed by hook ID, in the order the hooks were specified
+     */
+    public <T> Map<String, CompletableFuture<T>> fanOut(List<CDSHook> hooks, HookTask<T> task) {
+        Map<String, CompletableFuture<T>> futures = new LinkedHashMap<>();
+        for (CDSHook hook : hooks) {
+            futures.put(hook.getId(), new CompletableFuture<>());
         }
 
-        list.addAll(map.values());
+        Queue<CDSHook> pending = new ConcurrentLinkedQueue<>(hooks);
+        Runnable lane = () -> {
+            CDSHook hook;
+            while ((hook = pending.poll()) != null) {
+                CompletableFuture<T> future = futures.get(hook.getId());
+                try {
+                    future.complete(task.call(hook));
 
-        // for users belonging to the "basic" randomization group, filter hooks to only those permitted for that cohort
-        UserWorkspace workspace = userWorkspaceService.get(sessionId);
-        if (workspace.getActiveRandomizationGroup() == RandomizationGroup.BASIC && basicGroupAllowFilter.size() > 0) {
-            Iterator<CDSHook> iter = list.iterator();
-            while (iter.hasNext()) {
-                CDSHook item = iter.next();
-                if ( ! basicGroupAllowFilter.contains(item.getId()) ) {
-                    iter.remove();
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
                 }
             }
+        };
+
+        // when all of hookExecutor's threads are busy, fewer lanes run, down to the calling thread alone.  a lane
+        // that's started takes hooks until none remain, so every hook is still evaluated
+        int lanes = Math.min(hookParallelism, hooks.size());
+        for (int i = 1; i < lanes; i ++) {
+            try {
+                hookExecutor.execute(lane);
+
+            } catch (RejectedExecutionException e) {
+                break;
+            }
         }
+        lane.run();
 
-        return list;
+        return futures;
     }
 
-    public List<Card> getCards(String sessionId, String hookId) throws IOException {
-        logger.debug("BEGIN getting cards for session=" + sessionId + ", hookId=" + hookId);
-
+    /**
+     * builds the prefetch sent to CQF-Ruler with every hook request for the current patient.  it doesn't depend on
+     * the hook, so is built once and shared (see PatientDataSet.getHookPrefetch())
+     */
+    public HookPrefetch buildHookPrefetch(String sessionId) throws IOException, DataException {
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
-        FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
-        Audience audience = workspace.getAudience();
 
-        // force Default context when preparing resources for transmission to CQF-Ruler
+        Patient p = workspace.getPatient().getSourcePatient();
+
+        // force Default context when preparing resources for transmission to CQF-Ruler.  resources built for COACH-
+        // originated readings get ids that are stable for the same data, as is everything else in the prefetch, so
+        // that its hash identifies the data (see RecommendationCacheService)
         DefaultVendorTransformer transformer = new DefaultVendorTransformer(workspace);
+        transformer.setTemporaryIdSeed(p.getId());
 
-        List<Card> cards = new ArrayList<>();
-        boolean prefetchModified = false;
+        CompositeBundle compositeBundle = new CompositeBundle();
+        compositeBundle.consume(p);
+        compositeBundle.consume(buildBPBundle(sessionId, transformer));
+//        compositeBundle.consume(buildPulseBundle(sessionId, transformer));      // do we care about pulses in recommendations?
+        compositeBundle.consume(buildLocalCounselingBundle(sessionId, p.getId()));
+        compositeBundle.consume(buildGoalsBundle(sessionId, transformer));
+        compositeBundle.consume(buildAdverseEventsBundle(sessionId, p.getId()));
+        compositeBundle.consume(buildConditionsBundle(sessionId, p.getId()));
+        compositeBundle.consume(buildMedicationsBundle(sessionId));
+        compositeBundle.consume(workspace.getOtherSupplementalResources());
+
+        return new HookPrefetch(Collections.singletonList(compositeBundle.getBundle()));
+    }
 
-        try {
-            CompositeBundle compositeBundle = new CompositeBundle();
-            Patient p = workspace.getPatient().getSourcePatient();
-            compositeBundle.consume(p);
-            compositeBundle.consume(buildBPBundle(sessionId, transformer));
-//            compositeBundle.consume(buildPulseBundle(sessionId, transformer));      // do we care about pulses in recommendations?
-            compositeBundle.consume(buildLocalCounselingBundle(sessionId, p.getId()));
-            compositeBundle.consume(buildGoalsBundle(sessionId, transformer));
-            compositeBundle.consume(buildAdverseEventsBundle(sessionId, p.getId()));
-            compositeBundle.consume(buildConditionsBundle(sessionId, p.getId()));
-            compositeBundle.consume(buildMedicationsBundle(sessionId));
-            compositeBundle.consume(workspace.getOtherSupplementalResources());
+    /**
+     * evaluates the specified CDS Hook against the current patient's data.  the response is returned un-rendered,
+     * as it's shared by every session open for the patient, regardless of audience.
+     */
+    public HookEvaluation evaluateHook(String sessionId, String hookId) throws IOException, DataException {
+        logger.debug("BEGIN evaluating hook for session=" + sessionId + ", hookId=" + hookId);
+
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
 
-            HookRequest hookRequest = new HookRequest(fcc.getCredentials(), compositeBundle.getBundle());
+        try {
+            HookPrefetch prefetch = workspace.getHookPrefetch();
+            HookEvaluation cached = recommendationCacheService.get(hookId, prefetch);
+            if (cached != null) {
+                logger.debug("got cached response for hookId=" + hookId);
+                return cached;
+            }
 
-            prefetchModified = hookRequest.isPrefetchModified();
+            HookRequest hookRequest = new HookRequest(fcc.getCredentials(), prefetch);
 
-            MustacheFactory mf = new DefaultMustacheFactory();
-            Mustache mustache = mf.compile("cqfruler/hookRequest.mustache");
-            StringWriter writer = new StringWriter();
-            mustache.execute(writer, hookRequest).flush();
+            String requestBody = MustacheUtil.render(HOOK_REQUEST_TEMPLATE, hookRequest);
 
-            logger.debug("hookRequest = " + writer.toString());
+            logger.debug("hookRequest = " + requestBody);
 
             Map<String, String> headers = new HashMap<>();
             headers.put("Content-Type", "application/json; charset=UTF-8");
@@ -177,14 +242,40 @@ public class RecommendationService extends AbstractService {
 //                }
 
             } else {
-                HttpResponse httpResponse = new HttpRequest().post(cdsHooksEndpointURL + "/" + hookId, null, headers, writer.toString());
+                HttpResponse httpResponse = new HttpRequest().post(cdsHooksEndpointURL + "/" + hookId, null, headers, requestBody);
                 code = httpResponse.getResponseCode();
                 body = httpResponse.getResponseBody();
             }
 
             logger.debug("got response code=" + code + ", body=" + body);
 
-            if (code < 200 || code > 299) {
+            HookEvaluation evaluation = new HookEvaluation(code, body, hookRequest.isPrefetchModified());
+            recommendationCacheService.put(hookId, prefetch, evaluation);
+
+            return evaluation;
+
+        } finally {
+            logger.debug("DONE evaluating hook for session=" + sessionId + ", hookId=" + hookId);
+        }
+    }
+
+    public List<Card> getCards(String sessionId, String hookId) throws IOException {
+        logger.debug("BEGIN getting cards for session=" + sessionId + ", hookId=" + hookId);
+
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        Audience audience = workspace.getAudience();
+
+        List<Card> cards = new ArrayList<>();
+        boolean prefetchModified = false;
+
+        try {
+            HookEvaluation evaluation = workspace.getHookEvaluation(hookId);
+            prefetchModified = evaluation.isPrefetchModified();
+
+            int code = evaluation.getCode();
+            String body = evaluation.getBody();
+
+            if ( ! evaluation.isSuccessful() ) {
                 logger.error("CQF-RULER ERROR: code=" + code + ", body=" + body);
 
                 auditService.doAudit(sessionId, AuditLevel.ERROR, "recommendation engine error", "received HTTP " + code +
@@ -198,12 +289,12 @@ public class RecommendationService extends AbstractService {
             } else {
                 Gson gson = new GsonBuilder().create();
                 try {
-                    body = MustacheUtil.compileMustache(audience, body);
                     CDSHookResponse response = gson.fromJson(body, new TypeToken<CDSHookResponse>() {}.getType());
 
                     List<String> filterGoalIds = goalService.getExtGoalIdList(sessionId);
 
                     for (CDSCard cdsCard : response.getCards()) {
+                        renderForAudience(cdsCard, audience);
                         Card card = new Card(cdsCard, prefetchModified);
 
                         if (card.getSuggestions() != null) {
@@ -244,6 +335,10 @@ public class RecommendationService extends AbstractService {
             }
 
         } catch (Exception e) {
+            if (e instanceof UncheckedIOException) {    // evaluation failures are wrapped by the workspace cache
+                e = ((UncheckedIOException) e).getCause();
+            }
+
             String msg = "caught " + e.getClass().getName() + " processing hookId=" + hookId + " - " + e.getMessage();
             logger.error(msg, e);
 
@@ -267,6 +362,21 @@ public class RecommendationService extends AbstractService {
         return cards;
     }
 
+    /**
+     * renders the audience-specific sections of the card's text (e.g. {{#patient}}...{{/patient}}).  card text is
+     * the same for every patient the hook fires for, so each distinct text is compiled once and reused
+     */
+    private void renderForAudience(CDSCard cdsCard, Audience audience) throws IOException {
+        cdsCard.setSummary(MustacheUtil.compileMustache(audience, cdsCard.getSummary()));
+        cdsCard.setIndicator(MustacheUtil.compileMustache(audience, cdsCard.getIndicator()));
+        cdsCard.setDetail(MustacheUtil.compileMustache(audience, cdsCard.getDetail()));
+        if (cdsCard.getSource() != null) {
+            Source source = cdsCard.getSource();
+            source.setLabel(MustacheUtil.compileMustache(audience, source.getLabel()));
+            source.setUrl(MustacheUtil.compileMustache(audience, source.getUrl()));
+        }
+    }
+
     private Bundle buildConditionsBundle(String sessionId, String patientId) {
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
 
@@ -362,7 +472,7 @@ public class RecommendationService extends AbstractService {
                 .setDisplay("***FAKE*** Counseling Procedure generated by COACH to prevent CQF-Ruler from querying the FHIR server")
         );
 
-        p.getPerformedDateTimeType().setValue(new Date());
+        p.getPerformedDateTimeType().setValue(getStartOfToday());
 
         return p;
     }
@@ -470,10 +580,18 @@ public class RecommendationService extends AbstractService {
                 .setSystem(COACH_SYSTEM)
                 .setDisplay("***FAKE*** Adverse Event generated by COACH to prevent CQF-Ruler from querying the FHIR server")
         );
-        ae.setDate(new Date());
+        ae.setDate(getStartOfToday());
         return ae;
     }
 
+    /**
+     * @return the start of the current day, a date for fake resources that's recent, but unlike the current time,
+     * the same every time the prefetch is built for the same data (on the same day)
+     */
+    private Date getStartOfToday() {
+        return Date.from(LocalDate.now().atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
     private Bundle buildMedicationsBundle(String sessionId) {
         CompositeBundle bundle = new CompositeBundle();
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
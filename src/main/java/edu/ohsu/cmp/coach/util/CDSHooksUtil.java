@@ -1,17 +1,21 @@
 package edu.ohsu.cmp.coach.util;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.*;
 import edu.ohsu.cmp.coach.http.HttpRequest;
 import edu.ohsu.cmp.coach.http.HttpResponse;
 import edu.ohsu.cmp.coach.model.cqfruler.CDSHook;
-import edu.ohsu.cmp.coach.model.cqfruler.CDSServices;
+import org.apache.commons.codec.digest.DigestUtils;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 public class CDSHooksUtil {
+    private static final Gson GSON = new GsonBuilder().create();
+
+    /**
+     * @return the services CQF-Ruler advertises, each with a version identifying its definition, as discovered
+     */
     public static List<CDSHook> getCDSHooks(boolean testing, String cdsHooksEndpointURL) throws IOException {
         String json;
         if (testing) {
@@ -22,9 +26,24 @@ public class CDSHooksUtil {
             json = response.getResponseBody();
         }
 
-        Gson gson = new GsonBuilder().create();
-        CDSServices services = gson.fromJson(json, new TypeToken<CDSServices>(){}.getType());
+        try {
+            List<CDSHook> list = new ArrayList<>();
+            JsonArray services = JsonParser.parseString(json).getAsJsonObject().getAsJsonArray("services");
+            if (services != null) {
+                for (JsonElement element : services) {
+                    CDSHook cdsHook = GSON.fromJson(element, CDSHook.class);
+
+                    // CQF-Ruler derives each service's definition (including its prefetch templates) from its
+                    // PlanDefinition and the data requirements of its logic
+                    cdsHook.setVersion(DigestUtils.sha256Hex(element.toString()));
 
-        return services.getHooks();
+                    list.add(cdsHook);
+                }
+            }
+            return list;
+
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new IOException("couldn't parse CDS Hooks discovery response from " + cdsHooksEndpointURL, e);
+        }
     }
 }
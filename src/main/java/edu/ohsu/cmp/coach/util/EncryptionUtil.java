@@ -0,0 +1,70 @@
+package edu.ohsu.cmp.coach.util;
+
+import org.apache.commons.lang3.StringUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Encrypts PHI held at rest (e.g. workspace snapshots) with AES-GCM.  Encrypted data is prefixed with a format
+ * version and its IV, and bound to associated data identifying what it is (e.g. the patient it belongs to), so that
+ * it can't be swapped in for something else.
+ */
+public class EncryptionUtil {
+    private static final byte FORMAT_VERSION = 1;
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * @param encryptionKey a Base64-encoded 128- or 256-bit AES key
+     */
+    public static SecretKey buildKey(String encryptionKey) {
+        byte[] keyBytes = Base64.getDecoder().decode(StringUtils.trimToEmpty(encryptionKey));
+        if (keyBytes.length != 16 && keyBytes.length != 32) {
+            throw new IllegalArgumentException("encryption key must be 128 or 256 bits");
+        }
+        return new SecretKeySpec(keyBytes, "AES");
+    }
+
+    public static byte[] encrypt(SecretKey key, byte[] data, String associatedData) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+
+        Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+        cipher.updateAAD(associatedData.getBytes(StandardCharsets.UTF_8));
+        byte[] encrypted = cipher.doFinal(data);
+
+        byte[] bytes = new byte[1 + IV_LENGTH + encrypted.length];
+        bytes[0] = FORMAT_VERSION;
+        System.arraycopy(iv, 0, bytes, 1, IV_LENGTH);
+        System.arraycopy(encrypted, 0, bytes, 1 + IV_LENGTH, encrypted.length);
+        return bytes;
+    }
+
+    /**
+     * @throws IOException if the data isn't in a recognized format
+     * @throws GeneralSecurityException if the data can't be decrypted, e.g. as it was encrypted with a different key
+     * or for different associated data, or has been tampered with
+     */
+    public static byte[] decrypt(SecretKey key, byte[] bytes, String associatedData) throws IOException, GeneralSecurityException {
+        if (bytes == null || bytes.length <= 1 + IV_LENGTH || bytes[0] != FORMAT_VERSION) {
+            throw new IOException("unrecognized format");
+        }
+
+        Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, bytes, 1, IV_LENGTH));
+        cipher.updateAAD(associatedData.getBytes(StandardCharsets.UTF_8));
+        return cipher.doFinal(bytes, 1 + IV_LENGTH, bytes.length - 1 - IV_LENGTH);
+    }
+}
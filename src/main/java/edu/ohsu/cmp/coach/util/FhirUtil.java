@@ -3,17 +3,22 @@ package edu.ohsu.cmp.coach.util;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
 import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
 import edu.ohsu.cmp.coach.exception.ConfigurationException;
 import edu.ohsu.cmp.coach.exception.DataException;
+import edu.ohsu.cmp.coach.model.ResourceWithBundle;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.HttpClient;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Reader;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 public class FhirUtil {
@@ -28,13 +33,56 @@ public class FhirUtil {
     private static final String EXTENSION_OAUTH_URIS_URL = "http://fhir-registry.smarthealthit.org/StructureDefinition/oauth-uris";
     private static final String EXTENSION_TOKEN_URL = "token";
 
+    // building a FhirContext is expensive, so one is shared by the whole application.  it's thread-safe, but parsers
+    // aren't, so each thread reuses its own
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+    private static final ThreadLocal<IParser> JSON_PARSER = ThreadLocal.withInitial(() ->
+            FHIR_CONTEXT.newJsonParser().setPrettyPrint(false));
+    private static final ThreadLocal<IParser> PRETTY_JSON_PARSER = ThreadLocal.withInitial(() ->
+            FHIR_CONTEXT.newJsonParser().setPrettyPrint(true));
+
+    private static boolean sharedHttpClientInstalled = false;
+
+    /**
+     * @return the FhirContext shared by the whole application
+     */
+    public static FhirContext getFhirContext() {
+        return FHIR_CONTEXT;
+    }
+
+    /**
+     * @return a compact JSON parser for use by the calling thread only.  it must not be reconfigured
+     */
+    public static IParser getJsonParser() {
+        return JSON_PARSER.get();
+    }
+
+    /**
+     * installs the specified HTTP client for every FHIR client to send its requests through, in place of the one the
+     * client factory would otherwise build for itself
+     */
+    public static void setHttpClient(HttpClient httpClient) {
+        IRestfulClientFactory factory = FHIR_CONTEXT.getRestfulClientFactory();
+        synchronized (factory) {
+            factory.setHttpClient(httpClient);
+            sharedHttpClientInstalled = true;
+        }
+    }
+
     public static IGenericClient buildClient(String serverUrl, String bearerToken, int socketTimeout) {
         logger.debug("building FHIR R4 client for serverUrl=" + serverUrl + ", bearerToken=" + bearerToken +
                 ", socketTimeout=" + socketTimeout);
 
-        FhirContext ctx = FhirContext.forR4();
-        ctx.getRestfulClientFactory().setSocketTimeout(socketTimeout);
-        IGenericClient client = ctx.newRestfulGenericClient(serverUrl);
+        // changing the socket timeout discards the client factory's HTTP client and its pooled connections, so
+        // only do so if it's actually changed, and never if a shared HTTP client was installed (whose own timeouts
+        // then apply)
+        IRestfulClientFactory factory = FHIR_CONTEXT.getRestfulClientFactory();
+        synchronized (factory) {
+            if ( ! sharedHttpClientInstalled && factory.getSocketTimeout() != socketTimeout) {
+                factory.setSocketTimeout(socketTimeout);
+            }
+        }
+        IGenericClient client = FHIR_CONTEXT.newRestfulGenericClient(serverUrl);
 
         BearerTokenAuthInterceptor authInterceptor = new BearerTokenAuthInterceptor(bearerToken);
         client.registerInterceptor(authInterceptor);
@@ -133,6 +181,13 @@ public class FhirUtil {
     }
 
     public static void appendResourceToBundle(Bundle bundle, Resource resource) {
+        bundle.getEntry().add(buildBundleEntry(resource.copy()));
+    }
+
+    /**
+     * @return a new Bundle entry referencing (not copying) the specified resource
+     */
+    public static Bundle.BundleEntryComponent buildBundleEntry(Resource resource) {
         String fullUrl;
         if (resource.getId().startsWith("http://") || resource.getId().startsWith("https://")) {
             fullUrl = resource.getId();
@@ -142,9 +197,9 @@ public class FhirUtil {
             fullUrl = "http://hl7.org/fhir/" + resource.getClass().getSimpleName() + "/" + resource.getId();
         }
 
-        bundle.getEntry().add(new Bundle.BundleEntryComponent()
+        return new Bundle.BundleEntryComponent()
                 .setFullUrl(fullUrl)
-                .setResource(resource.copy()));
+                .setResource(resource);
     }
 
     public static String toIdentifierString(Identifier identifier) {
@@ -280,6 +335,21 @@ public class FhirUtil {
         return false;
     }
 
+    public static <T extends IBaseResource> T getResourceFromBundleByReference(Bundle b, Class<T> aClass, Reference reference) {
+        if (b == null || reference == null) return null;
+
+        if (reference.hasReference()) {
+            return getResourceFromBundleByReference(b, aClass, reference.getReference());
+
+        } else if (reference.hasIdentifier()) {
+            return getResourceFromBundleByIdentifier(b, aClass, reference.getIdentifier());
+
+        } else {
+            logger.warn("Reference does not contain reference or identifier!  returning null");
+            return null;
+        }
+    }
+
     public static <T extends IBaseResource> T getResourceFromBundleByReference(Bundle b, Class<T> aClass, String reference) {
         String referenceId = extractIdFromReference(reference);
 
@@ -338,6 +408,24 @@ public class FhirUtil {
         return useMatch && systemMatch && valueMatch;
     }
 
+    /**
+     * removes from the specified Bundle each resource for which the validity function returns false
+     */
+    public static void filterInvalidResources(Bundle bundle, Function<ResourceWithBundle, Boolean> validityFunction) {
+        if (validityFunction != null && bundle.hasEntry()) {
+            Iterator<Bundle.BundleEntryComponent> iter = bundle.getEntry().iterator();
+            while (iter.hasNext()) {
+                Bundle.BundleEntryComponent entry = iter.next();
+                if (entry.hasResource()) {
+                    boolean isValid = validityFunction.apply(new ResourceWithBundle(entry.getResource(), bundle));
+                    if ( ! isValid ) {
+                        iter.remove();
+                    }
+                }
+            }
+        }
+    }
+
     public static Bundle truncate(Bundle bundle, Integer limit) {
 
         // note: this function doesn't differentiate between resource types in a Bundle, so it
@@ -373,10 +461,19 @@ public class FhirUtil {
     }
 
     public static String toJson(IBaseResource r) {
-        FhirContext ctx = FhirContext.forR4();
-        IParser parser = ctx.newJsonParser();
-        parser.setPrettyPrint(true);
-        return parser.encodeResourceToString(r);
+        return PRETTY_JSON_PARSER.get().encodeResourceToString(r);
+    }
+
+    public static String toCompactJson(IBaseResource r) {
+        return JSON_PARSER.get().encodeResourceToString(r);
+    }
+
+    public static <T extends IBaseResource> T fromJson(Class<T> aClass, String json) {
+        return JSON_PARSER.get().parseResource(aClass, json);
+    }
+
+    public static <T extends IBaseResource> T fromJson(Class<T> aClass, Reader reader) {
+        return JSON_PARSER.get().parseResource(aClass, reader);
     }
 
     public static String toCodeParamString(List<Coding> codings) throws ConfigurationException {
@@ -524,6 +621,15 @@ public class FhirUtil {
         return false;
     }
 
+    /**
+     * @return true if an extension with the specified url and Coding value indicates a home setting
+     */
+    public static boolean isHomeSettingExtension(String url, Coding coding) {
+        return EXTENSION_HOME_SETTING_URL.equals(url) &&
+                coding != null &&
+                coding.is(EXTENSION_HOME_SETTING_SYSTEM, EXTENSION_HOME_SETTING_CODE);
+    }
+
     public static void addHomeSettingExtension(DomainResource domainResource) {
         // setting MeasurementSettingExt to indicate taken in a "home" setting
         // see https://browser.ihtsdotools.org/?perspective=full&conceptId1=264362003&edition=MAIN/SNOMEDCT-US/2021-09-01&release=&languages=en
@@ -1,5 +1,7 @@
 package edu.ohsu.cmp.coach.util;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.mustachejava.DefaultMustacheFactory;
 import com.github.mustachejava.Mustache;
 import com.github.mustachejava.MustacheFactory;
@@ -8,26 +10,62 @@ import edu.ohsu.cmp.coach.model.Audience;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Renders Mustache templates, compiling each only once.  Templates on the classpath (e.g.
+ * cqfruler/hookRequest.mustache) are compiled the first time they're rendered and cached by name; templates held in
+ * strings (e.g. card text returned by CQF-Ruler, which is the same for every patient a hook fires for) are cached by
+ * their text.  Compiled templates are thread-safe, so they're shared by every session.
+ */
 public class MustacheUtil {
+    private static final String OPEN_TAG = "{{";
+    private static final long MAX_STRING_TEMPLATES = 1000;
+
+    private static final MustacheFactory FACTORY = new DefaultMustacheFactory();
+
+    private static final Cache<String, Mustache> STRING_TEMPLATES = Caffeine.newBuilder()
+            .maximumSize(MAX_STRING_TEMPLATES)
+            .build();
+
+    private static final Map<Audience, Map<String, Object>> AUDIENCE_SCOPES = new EnumMap<>(Audience.class);
+    static {
+        for (Audience audience : Audience.values()) {
+            Map<String, Object> map = new HashMap<>();
+            map.put(audience.getTag(), true);
+            AUDIENCE_SCOPES.put(audience, Collections.unmodifiableMap(map));
+        }
+    }
+
+    /**
+     * renders the named template from the classpath
+     */
+    public static String render(String name, Object scope) throws IOException {
+        return execute(FACTORY.compile(name), scope);
+    }
+
+    /**
+     * renders the audience-specific sections of the specified text (e.g. {{#patient}}...{{/patient}})
+     */
     public static String compileMustache(Audience audience, String s) throws IOException {
-        Map<String, Object> map = new HashMap<String, Object>();
-        map.put(audience.getTag(), true);
-        return compileMustache(s, map);
+        return compileMustache(s, AUDIENCE_SCOPES.get(audience));
     }
 
     public static String compileMustache(String s, Map<String, Object> map) throws IOException {
         if (s == null) return null;
         if (s.trim().isEmpty()) return "";
+        if ( ! s.contains(OPEN_TAG) ) return s;      // nothing to render
 
-        MustacheFactory mf = new DefaultMustacheFactory();
-        Mustache m = mf.compile(new StringReader(s), "template" );
-        StringWriter writer = new StringWriter();
-
-        m.execute(writer, map).flush();
+        Mustache m = STRING_TEMPLATES.get(s, k -> FACTORY.compile(new StringReader(k), "template"));
+        return execute(m, map);
+    }
 
+    private static String execute(Mustache m, Object scope) throws IOException {
+        StringWriter writer = new StringWriter();
+        m.execute(writer, scope).flush();
         return writer.toString();
     }
 }
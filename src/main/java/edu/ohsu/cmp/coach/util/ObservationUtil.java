@@ -3,10 +3,9 @@ package edu.ohsu.cmp.coach.util;
 import edu.ohsu.cmp.coach.exception.DataException;
 import edu.ohsu.cmp.coach.fhir.EncounterMatcher;
 import edu.ohsu.cmp.coach.fhir.FhirConfigManager;
+import edu.ohsu.cmp.coach.fhir.VitalsRecord;
 import edu.ohsu.cmp.coach.model.ObservationSource;
-import org.hl7.fhir.r4.model.CodeableConcept;
-import org.hl7.fhir.r4.model.Encounter;
-import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.*;
 
 import java.util.Date;
 
@@ -51,6 +50,33 @@ public class ObservationUtil {
                 ObservationSource.UNKNOWN;
     }
 
+    public static ObservationSource getBPSource(VitalsRecord bpRecord, Encounter encounter, FhirConfigManager fcm) {
+        ObservationSource source = getBPSource(bpRecord, fcm);
+        if (source == ObservationSource.UNKNOWN) {
+            source = getSourceByEncounter(encounter, fcm);
+        }
+        return source;
+    }
+
+    public static ObservationSource getBPSource(VitalsRecord bpRecord, FhirConfigManager fcm) {
+        ObservationSource source = null;
+
+        if (bpRecord.hasCode()) {
+            CodeableConcept code = bpRecord.getCode();
+
+            if (FhirUtil.hasCoding(code, fcm.getBpHomeCodings()) || bpRecord.hasHomeSettingExtension()) {
+                source = ObservationSource.HOME;    // this should remain generic HOME as a more specific source is unknown
+
+            } else if (FhirUtil.hasCoding(code, fcm.getBpOfficeCodings())) {
+                source = ObservationSource.OFFICE;
+            }
+        }
+
+        return source != null ?
+                source :
+                ObservationSource.UNKNOWN;
+    }
+
     // todo : getPulseSource doesn't have an implementation that takes Encounter as a parameter, as getBPSource
     //        functions above do.  This means that the PulseModel constructor doesn't make use of a fallback strategy
     //        in the way that BloodPressureModel does, and this should be updated
@@ -75,4 +101,23 @@ public class ObservationUtil {
             throw new DataException("missing timestamp");
         }
     }
+
+    public static Date getReadingDate(VitalsRecord record) throws DataException {
+        try {
+            if (record.getEffectiveDateTime() != null) {
+                return new DateTimeType(record.getEffectiveDateTime()).getValue();
+
+            } else if (record.getEffectiveInstant() != null) {
+                return new InstantType(record.getEffectiveInstant()).getValue();
+
+            } else if (record.getEffectivePeriodEnd() != null) {
+                return new DateTimeType(record.getEffectivePeriodEnd()).getValue();
+            }
+
+        } catch (RuntimeException e) {
+            throw new DataException("invalid timestamp - " + e.getMessage(), e);
+        }
+
+        throw new DataException("missing timestamp");
+    }
 }
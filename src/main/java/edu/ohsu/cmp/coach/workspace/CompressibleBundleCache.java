@@ -0,0 +1,116 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import edu.ohsu.cmp.coach.config.WorkspaceCacheConfiguration;
+import edu.ohsu.cmp.coach.service.MetricsService;
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A WorkspaceSlotCache for Bundles that may be demoted to a compact, gzip-compressed JSON form when memory is
+ * tight.  A demoted Bundle is transparently rehydrated the next time it's requested, rather than being re-fetched
+ * from the FHIR server.
+ */
+public class CompressibleBundleCache extends WorkspaceSlotCache<Bundle> {
+    private static final Logger logger = LoggerFactory.getLogger(CompressibleBundleCache.class);
+
+    private final AtomicReference<byte[]> compressed;
+
+    public CompressibleBundleCache(WorkspaceSlot slot, WorkspaceCacheConfiguration.Settings settings, Executor executor,
+                                   MetricsService metrics, Supplier<Bundle> loader) {
+        this(slot, settings, executor, metrics, loader, new AtomicReference<>());
+    }
+
+    private CompressibleBundleCache(WorkspaceSlot slot, WorkspaceCacheConfiguration.Settings settings, Executor executor,
+                                    MetricsService metrics, Supplier<Bundle> loader, AtomicReference<byte[]> compressed) {
+        super(slot, settings, executor, metrics, () -> {
+            byte[] bytes = compressed.getAndSet(null);
+            if (bytes != null) {
+                try {
+                    return decompress(bytes);
+
+                } catch (Exception e) {
+                    logger.warn("caught " + e.getClass().getName() + " rehydrating " + slot.getLabel() +
+                            " - will reload - " + e.getMessage(), e);
+                }
+            }
+            return loader.get();
+        });
+        this.compressed = compressed;
+    }
+
+    public boolean isDemoted() {
+        return compressed.get() != null;
+    }
+
+    /**
+     * @return the size in bytes of the demoted form of this slot's Bundle, or 0 if it isn't demoted
+     */
+    public long getCompressedWeight() {
+        byte[] bytes = compressed.get();
+        return bytes != null ? bytes.length : 0;
+    }
+
+    /**
+     * replaces the cached Bundle, if any, with its compressed form
+     * @return the number of bytes the compressed form occupies
+     */
+    public synchronized long demote() throws IOException {
+        Bundle bundle = getIfPresent();
+        if (bundle == null) return 0;
+
+        byte[] bytes = compress(bundle);
+        compressed.set(bytes);
+
+        // bypasses invalidate(), which would discard the compressed form too.  if the Bundle was replaced (e.g.
+        // refreshed) while it was being compressed, the newer Bundle stays, and the now-stale compressed form goes
+        if ( ! asMap().remove(getSlot(), bundle) ) {
+            compressed.compareAndSet(bytes, null);
+            return 0;
+        }
+        return bytes.length;
+    }
+
+    @Override
+    public Bundle reload() {
+        compressed.set(null);
+        return super.reload();
+    }
+
+    @Override
+    public void invalidate(WorkspaceSlot key) {
+        compressed.set(null);
+        super.invalidate(key);
+    }
+
+    @Override
+    public void invalidateAll() {
+        compressed.set(null);
+        super.invalidateAll();
+    }
+
+    private static byte[] compress(Bundle bundle) throws IOException {
+        String json = FhirUtil.toCompactJson(bundle);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(baos)) {
+            out.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+        return baos.toByteArray();
+    }
+
+    private static Bundle decompress(byte[] bytes) throws IOException {
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(bytes)),
+                StandardCharsets.UTF_8)) {
+            return FhirUtil.fromJson(Bundle.class, reader);
+        }
+    }
+}
@@ -0,0 +1,823 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import edu.ohsu.cmp.coach.config.WorkspaceCacheConfiguration;
+import edu.ohsu.cmp.coach.exception.DataException;
+import edu.ohsu.cmp.coach.fhir.CompositeBundle;
+import edu.ohsu.cmp.coach.fhir.ObservationQueryPlanner;
+import edu.ohsu.cmp.coach.fhir.FhirConfigManager;
+import edu.ohsu.cmp.coach.model.*;
+import edu.ohsu.cmp.coach.model.cqfruler.HookEvaluation;
+import edu.ohsu.cmp.coach.model.cqfruler.HookPrefetch;
+import edu.ohsu.cmp.coach.service.*;
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationContext;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The clinical data for a single patient, shared by every UserWorkspace (session) open for that patient at the
+ * same time - e.g. a participant and a member of their care team.  Data is fetched once, using the credentials of
+ * whichever of those sessions is current, and is reference-counted: it's discarded when the last session releases
+ * it (see UserWorkspaceService).
+ * <p>
+ * Anything specific to a session or its audience, such as rendered recommendation cards, belongs in UserWorkspace.
+ * Changes made here are announced to every member session so that such per-session state stays consistent.
+ */
+public class PatientDataSet {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ApplicationContext ctx;
+    private final Long internalPatientId;
+    private final String patIdHash;
+    private final FhirConfigManager fcm;
+
+    private final List<UserWorkspace> members = new CopyOnWriteArrayList<>();
+
+    private final WorkspaceSlotCache<PatientModel> patientCache;
+    private final WorkspaceSlotCache<Map<String, Encounter>> encounterCache;
+    private final CompressibleBundleCache protocolObservationCache;
+    private final WorkspaceSlotCache<List<BloodPressureModel>> bpCache;
+    private final WorkspaceSlotCache<List<PulseModel>> pulseCache;
+    private final CompressibleBundleCache encounterDiagnosisConditionCache;
+    private final WorkspaceSlotCache<List<AdverseEventModel>> adverseEventCache;
+    private final CompressibleBundleCache orderServiceRequestCache;
+    private final WorkspaceSlotCache<List<GoalModel>> goalCache;
+    private final WorkspaceSlotCache<List<MedicationModel>> medicationCache;
+    private final CompressibleBundleCache problemListConditionCache;
+    private final CompressibleBundleCache otherSupplementalResourcesCache;
+    private final WorkspaceCache<String, HookEvaluation> hookEvaluationCache;   // keyed by CDS Hook ID
+    private final Map<WorkspaceSlot, WorkspaceSlotCache<?>> slotCaches = new EnumMap<>(WorkspaceSlot.class);
+    private final List<WorkspaceCache<?, ?>> caches = new ArrayList<>();
+    private final Set<String> deletedSuggestionIds = ConcurrentHashMap.newKeySet();
+    private volatile boolean restoredFromSnapshot = false;
+
+    // incremented whenever the BP or Pulse data served to the UI changes, so the UI can tell when to re-fetch it
+    private final AtomicLong vitalsVersion = new AtomicLong(0);
+    private final AtomicInteger vitalsRefreshesInProgress = new AtomicInteger(0);
+
+    // incremented whenever recommendations are invalidated.  the hook prefetch is shared by every hook evaluated
+    // against the same version of the data
+    private final AtomicLong recommendationDataVersion = new AtomicLong(0);
+    private final Object hookPrefetchLock = new Object();
+    private HookPrefetch hookPrefetch = null;                       // guarded by hookPrefetchLock
+    private long hookPrefetchDataVersion = -1;
+    private long hookPrefetchVitalsVersion = -1;
+    private long hookPrefetchBuiltAt = 0;
+
+    private final ObservationQueryPlanner observationQueryPlanner;
+
+    PatientDataSet(ApplicationContext ctx, Long internalPatientId, String patIdHash, FhirConfigManager fcm) {
+        this.ctx = ctx;
+        this.internalPatientId = internalPatientId;
+        this.patIdHash = patIdHash;
+        this.fcm = fcm;
+
+        // blood pressures parsed as lean vitals records are fetched separately, so they're left out of the batch
+        Set<ObservationQueryPlanner.Group> batchedGroups = EnumSet.allOf(ObservationQueryPlanner.Group.class);
+        if (ctx.getEnvironment().getProperty("fhir.vitals.lean-parsing", Boolean.class, false)) {
+            batchedGroups.remove(ObservationQueryPlanner.Group.BLOOD_PRESSURE);
+        }
+        observationQueryPlanner = new ObservationQueryPlanner(ctx.getBean(EHRService.class), fcm,
+                ctx.getEnvironment().getProperty("fhir.observation-batch.window-ms", Long.class, 60000L),
+                batchedGroups);
+
+        // background refreshes and cache maintenance run on the current member session's executor, and must never
+        // block the thread that triggered them, which is frequently a request thread
+        WorkspaceCacheConfiguration cacheConfig = ctx.getBean(WorkspaceCacheConfiguration.class);
+        Executor cacheExecutor = runnable -> getCurrentMember().getExecutor().nonBlocking().execute(runnable);
+        MetricsService metrics = ctx.getBean(MetricsService.class);
+
+        patientCache = register(new WorkspaceSlotCache<>(WorkspaceSlot.PATIENT,
+                cacheConfig.getSettings(WorkspaceSlot.PATIENT), cacheExecutor, metrics, this::buildPatient));
+        encounterCache = register(new WorkspaceSlotCache<>(WorkspaceSlot.ENCOUNTERS,
+                cacheConfig.getSettings(WorkspaceSlot.ENCOUNTERS), cacheExecutor, metrics, this::buildEncounterMap));
+        protocolObservationCache = register(new CompressibleBundleCache(WorkspaceSlot.PROTOCOL_OBSERVATIONS,
+                cacheConfig.getSettings(WorkspaceSlot.PROTOCOL_OBSERVATIONS), cacheExecutor, metrics, this::buildProtocolObservations));
+        bpCache = register(new WorkspaceSlotCache<>(WorkspaceSlot.REMOTE_BLOOD_PRESSURES,
+                cacheConfig.getSettings(WorkspaceSlot.REMOTE_BLOOD_PRESSURES), cacheExecutor, metrics, this::buildRemoteBloodPressures));
+        pulseCache = register(new WorkspaceSlotCache<>(WorkspaceSlot.REMOTE_PULSES,
+                cacheConfig.getSettings(WorkspaceSlot.REMOTE_PULSES), cacheExecutor, metrics, this::buildRemotePulses));
+        encounterDiagnosisConditionCache = register(new CompressibleBundleCache(WorkspaceSlot.ENCOUNTER_DIAGNOSIS_CONDITIONS,
+                cacheConfig.getSettings(WorkspaceSlot.ENCOUNTER_DIAGNOSIS_CONDITIONS), cacheExecutor, metrics, this::buildEncounterDiagnosisConditions));
+        adverseEventCache = register(new WorkspaceSlotCache<>(WorkspaceSlot.REMOTE_ADVERSE_EVENTS,
+                cacheConfig.getSettings(WorkspaceSlot.REMOTE_ADVERSE_EVENTS), cacheExecutor, metrics, this::buildRemoteAdverseEvents));
+        orderServiceRequestCache = register(new CompressibleBundleCache(WorkspaceSlot.ORDER_SERVICE_REQUESTS,
+                cacheConfig.getSettings(WorkspaceSlot.ORDER_SERVICE_REQUESTS), cacheExecutor, metrics, this::buildOrderServiceRequests));
+        goalCache = register(new WorkspaceSlotCache<>(WorkspaceSlot.REMOTE_GOALS,
+                cacheConfig.getSettings(WorkspaceSlot.REMOTE_GOALS), cacheExecutor, metrics, this::buildRemoteGoals));
+        medicationCache = register(new WorkspaceSlotCache<>(WorkspaceSlot.MEDICATIONS,
+                cacheConfig.getSettings(WorkspaceSlot.MEDICATIONS), cacheExecutor, metrics, this::buildMedications));
+        problemListConditionCache = register(new CompressibleBundleCache(WorkspaceSlot.PROBLEM_LIST_CONDITIONS,
+                cacheConfig.getSettings(WorkspaceSlot.PROBLEM_LIST_CONDITIONS), cacheExecutor, metrics, this::buildProblemListConditions));
+        otherSupplementalResourcesCache = register(new CompressibleBundleCache(WorkspaceSlot.OTHER_SUPPLEMENTAL_RESOURCES,
+                cacheConfig.getSettings(WorkspaceSlot.OTHER_SUPPLEMENTAL_RESOURCES), cacheExecutor, metrics, this::buildOtherSupplementalResources));
+        hookEvaluationCache = register(new WorkspaceCache<>(WorkspaceSlot.CARDS,
+                cacheConfig.getSettings(WorkspaceSlot.CARDS), cacheExecutor, metrics, this::buildHookEvaluation));
+    }
+
+    private <C extends WorkspaceCache<?, ?>> C register(C cache) {
+        caches.add(cache);
+        if (cache instanceof WorkspaceSlotCache) {
+            slotCaches.put(cache.getSlot(), (WorkspaceSlotCache<?>) cache);
+        }
+        return cache;
+    }
+
+    public Long getInternalPatientId() {
+        return internalPatientId;
+    }
+
+///////////////////////////////////////////////////////////////////////////////////////
+// membership
+//
+
+    void addMember(UserWorkspace workspace) {
+        members.add(workspace);
+    }
+
+    /**
+     * @return the number of member sessions remaining
+     */
+    int removeMember(UserWorkspace workspace) {
+        members.remove(workspace);
+        return members.size();
+    }
+
+    List<UserWorkspace> getMembers() {
+        return Collections.unmodifiableList(members);
+    }
+
+    /**
+     * @return the session on whose behalf data is currently fetched - the most recently joined member
+     */
+    private UserWorkspace getCurrentMember() {
+        UserWorkspace current = null;
+        for (UserWorkspace member : members) {
+            current = member;
+        }
+        if (current == null) {
+            throw new IllegalStateException("no sessions are open for patient " + internalPatientId);
+        }
+        return current;
+    }
+
+    private String getSessionId() {
+        return getCurrentMember().getSessionId();
+    }
+
+    private void forEachMember(Consumer<UserWorkspace> consumer) {
+        for (UserWorkspace member : members) {
+            consumer.accept(member);
+        }
+    }
+
+    public long getLastAccessed() {
+        long lastAccessed = 0;
+        for (UserWorkspace member : members) {
+            lastAccessed = Math.max(lastAccessed, member.getLastAccessed());
+        }
+        return lastAccessed;
+    }
+
+///////////////////////////////////////////////////////////////////////////////////////
+// cache management
+//
+
+    boolean hasSlot(WorkspaceSlot slot) {
+        return slotCaches.containsKey(slot);
+    }
+
+    /**
+     * @return a WorkspaceLoadGraph stage that ensures the specified slot is loaded, or if reload is true,
+     * rebuilds it regardless
+     */
+    Runnable stage(WorkspaceSlot slot, boolean reload) {
+        WorkspaceSlotCache<?> cache = slotCaches.get(slot);
+        return reload ? cache::reload : cache::get;
+    }
+
+    List<WorkspaceCache<?, ?>> getCaches() {
+        return Collections.unmodifiableList(caches);
+    }
+
+    /**
+     * @return hit / miss / load statistics for each shared cache, keyed by WorkspaceSlot config key.  hook
+     * evaluations are keyed "hook-evaluations", to distinguish them from each session's rendered cards.
+     */
+    public Map<String, CacheStats> getCacheStats() {
+        Map<String, CacheStats> map = new LinkedHashMap<>();
+        for (WorkspaceSlotCache<?> cache : slotCaches.values()) {
+            map.put(cache.getSlot().getConfigKey(), cache.stats());
+        }
+        map.put("hook-evaluations", hookEvaluationCache.stats());
+        return map;
+    }
+
+    /**
+     * demotes cached Bundles to their compressed form.  they'll be rehydrated as they're needed.
+     * @return the estimated number of bytes released
+     */
+    public long demoteBundles() {
+        long released = 0;
+        for (WorkspaceCache<?, ?> cache : caches) {
+            if (cache instanceof CompressibleBundleCache) {
+                CompressibleBundleCache bundleCache = (CompressibleBundleCache) cache;
+                long weight = bundleCache.getEstimatedWeight();
+                if (weight == 0) continue;
+                try {
+                    released += weight - bundleCache.demote();
+
+                } catch (Exception e) {
+                    logger.warn("caught " + e.getClass().getName() + " demoting " + cache.getSlot().getLabel() +
+                            " for patient=" + internalPatientId + " - " + e.getMessage(), e);
+                }
+            }
+        }
+        return released;
+    }
+
+    public void clearCaches() {
+        logger.info("clearing caches for patient=" + internalPatientId);
+        for (WorkspaceCache<?, ?> cache : caches) {
+            cache.invalidateAll();
+        }
+        observationQueryPlanner.planBatch();
+        deletedSuggestionIds.clear();
+        vitalsVersion.incrementAndGet();
+        recommendationDataVersion.incrementAndGet();
+        forEachMember(UserWorkspace::deleteAllCards);
+    }
+
+    void cleanUp() {
+        for (WorkspaceCache<?, ?> cache : caches) {
+            cache.invalidateAll();
+            cache.cleanUp();
+        }
+    }
+
+    public void clearVitalsCaches() {
+        logger.info("clearing BP and Pulse caches for patient=" + internalPatientId);
+        bpCache.invalidate();
+        pulseCache.invalidate();
+        vitalsVersion.incrementAndGet();
+    }
+
+    /**
+     * re-fetches remote BP and Pulse data in the background.  until that completes, the data currently cached
+     * (including anything added in-place via addRemoteBloodPressure or addRemotePulse) continues to be served.
+     * the vitals version is incremented once the refresh completes.
+     */
+    public void refreshVitalsCaches() {
+        logger.info("refreshing BP and Pulse caches for patient=" + internalPatientId);
+        vitalsRefreshesInProgress.incrementAndGet();
+        CompletableFuture.allOf(bpCache.refresh(), pulseCache.refresh()).whenComplete((v, t) -> {
+            if (t != null) {
+                logger.warn("caught " + t.getClass().getName() + " refreshing BP and Pulse caches for patient=" +
+                        internalPatientId + " - " + t.getMessage(), t);
+            }
+            vitalsVersion.incrementAndGet();
+            vitalsRefreshesInProgress.decrementAndGet();
+        });
+    }
+
+    void beginRevalidation() {
+        observationQueryPlanner.planBatch();        // every slot is about to be rebuilt
+        vitalsRefreshesInProgress.incrementAndGet();
+    }
+
+    void endRevalidation() {
+        vitalsVersion.incrementAndGet();
+        vitalsRefreshesInProgress.decrementAndGet();
+    }
+
+    public long getVitalsVersion() {
+        return vitalsVersion.get();
+    }
+
+    public boolean isVitalsRefreshing() {
+        return vitalsRefreshesInProgress.get() > 0;
+    }
+
+///////////////////////////////////////////////////////////////////////////////////////
+// snapshots
+//
+
+    /**
+     * restores the slot caches from the most recent snapshot for this patient, if snapshots are enabled, a usable
+     * snapshot exists, and nothing has been loaded yet
+     * @return true if a snapshot was restored
+     */
+    @SuppressWarnings("unchecked")
+    boolean restoreSnapshot() {
+        WorkspaceSnapshotStore store = ctx.getBean(WorkspaceSnapshotStore.class);
+        if ( ! store.isEnabled() || patientCache.getIfPresent() != null ) return false;
+
+        long start = System.currentTimeMillis();
+        WorkspaceSnapshot snapshot = store.read(patIdHash);
+        if (snapshot == null) return false;
+
+        for (WorkspaceSlotCache<?> cache : slotCaches.values()) {
+            Object value = snapshot.get(cache.getSlot());
+            if (value != null) {
+                ((WorkspaceSlotCache<Object>) cache).put(value);
+            }
+        }
+        restoredFromSnapshot = true;
+
+        logger.info("restored data for patient=" + internalPatientId + " from snapshot created " +
+                snapshot.getCreatedDate() + " (took " + (System.currentTimeMillis() - start) + "ms)");
+
+        return true;
+    }
+
+    /**
+     * @return true if the data was restored from a snapshot and hasn't been revalidated yet.  clears the flag.
+     */
+    boolean consumeRestoredFromSnapshot() {
+        boolean restored = restoredFromSnapshot;
+        restoredFromSnapshot = false;
+        return restored;
+    }
+
+    void writeSnapshot() {
+        WorkspaceSnapshotStore store = ctx.getBean(WorkspaceSnapshotStore.class);
+        if ( ! store.isEnabled() ) return;
+
+        WorkspaceSnapshot snapshot = new WorkspaceSnapshot();
+        for (WorkspaceSlotCache<?> cache : slotCaches.values()) {
+            Object value = cache.getIfPresent();
+            if (value instanceof Serializable) {
+                snapshot.put(cache.getSlot(), (Serializable) value);
+            }
+        }
+
+        try {
+            store.write(patIdHash, snapshot);
+
+        } catch (Exception e) {
+            logger.warn("caught " + e.getClass().getName() + " writing snapshot for patient=" + internalPatientId +
+                    " - " + e.getMessage(), e);
+        }
+    }
+
+    void deleteSnapshot() {
+        ctx.getBean(WorkspaceSnapshotStore.class).delete(patIdHash);
+    }
+
+///////////////////////////////////////////////////////////////////////////////////////
+// recommendations
+//
+
+    /**
+     * @return the raw (un-rendered) CQF-Ruler response for the specified hook
+     */
+    public HookEvaluation getHookEvaluation(String hookId) {
+        return hookEvaluationCache.get(hookId);
+    }
+
+    private HookEvaluation buildHookEvaluation(String hookId) {
+        String sessionId = getSessionId();
+        long start = System.currentTimeMillis();
+        logger.info("BEGIN evaluating hook " + hookId + " for session=" + sessionId);
+
+        RecommendationService svc = ctx.getBean(RecommendationService.class);
+        try {
+            HookEvaluation evaluation = svc.evaluateHook(sessionId, hookId);
+
+            logger.info("DONE evaluating hook " + hookId + " for session=" + sessionId +
+                    " (took " + (System.currentTimeMillis() - start) + "ms)");
+
+            return evaluation;
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+
+        } catch (DataException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the prefetch sent to CQF-Ruler with every hook request, built once for each version of this patient's
+     * data and shared by every hook evaluated against it.  concurrent callers wait for a single build.  a prefetch
+     * older than cqfruler.cdshooks.prefetch.max-age-ms is rebuilt regardless, as some of the data it's built from
+     * (e.g. goals) can change without recommendations being invalidated
+     */
+    public HookPrefetch getHookPrefetch() throws IOException, DataException {
+        synchronized (hookPrefetchLock) {
+            long dataVersion = recommendationDataVersion.get();
+            long vitalsVersion = this.vitalsVersion.get();
+            long maxAge = ctx.getEnvironment().getProperty("cqfruler.cdshooks.prefetch.max-age-ms", Long.class, 60000L);
+
+            if (hookPrefetch != null && hookPrefetchDataVersion == dataVersion && hookPrefetchVitalsVersion == vitalsVersion &&
+                    System.currentTimeMillis() - hookPrefetchBuiltAt < maxAge) {
+                return hookPrefetch;
+            }
+
+            String sessionId = getSessionId();
+            long start = System.currentTimeMillis();
+            logger.info("BEGIN building hook prefetch for session=" + sessionId);
+
+            // versions are read before building, so that any change made while building forces a rebuild next time
+            hookPrefetch = ctx.getBean(RecommendationService.class).buildHookPrefetch(sessionId);
+            hookPrefetchDataVersion = dataVersion;
+            hookPrefetchVitalsVersion = vitalsVersion;
+            hookPrefetchBuiltAt = start;
+
+            logger.info("DONE building hook prefetch for session=" + sessionId +
+                    " (took " + (System.currentTimeMillis() - start) + "ms)");
+
+            return hookPrefetch;
+        }
+    }
+
+    /**
+     * discards recommendations for the specified hook, both here and in every member session
+     */
+    public void invalidateRecommendations(String hookId) {
+        recommendationDataVersion.incrementAndGet();
+        hookEvaluationCache.invalidate(hookId);
+        forEachMember(member -> member.deleteCardsLocal(hookId));
+    }
+
+    /**
+     * discards all recommendations, both here and in every member session
+     */
+    public void invalidateRecommendations() {
+        recommendationDataVersion.incrementAndGet();
+        hookEvaluationCache.invalidateAll();
+        deletedSuggestionIds.clear();
+        forEachMember(UserWorkspace::deleteAllCards);
+    }
+
+    /**
+     * removes the specified Suggestion from every member session's cards
+     */
+    public boolean deleteSuggestion(String id) {
+        deletedSuggestionIds.add(id);
+        boolean rval = false;
+        for (UserWorkspace member : members) {
+            rval |= member.deleteSuggestionLocal(id);
+        }
+        return rval;
+    }
+
+    /**
+     * @return the IDs of Suggestions removed via deleteSuggestion() since recommendations were last invalidated
+     */
+    Set<String> getDeletedSuggestionIds() {
+        return deletedSuggestionIds;
+    }
+
+///////////////////////////////////////////////////////////////////////////////////////
+// data
+//
+
+    public List<Encounter> getEncounters() {
+        return List.copyOf(getEncounterMap().values());
+    }
+
+    public Encounter getEncounter(Reference encounterReference) {
+        Map<String, Encounter> map = getEncounterMap();
+        for (String key : FhirUtil.buildKeys(encounterReference)) {
+            if (map.containsKey(key)) {
+                return map.get(key);
+            }
+        }
+        return null;
+    }
+
+    private Map<String, Encounter> getEncounterMap() {
+        return encounterCache.get();
+    }
+
+    private Map<String, Encounter> buildEncounterMap() {
+        String sessionId = getSessionId();
+        long start = System.currentTimeMillis();
+        logger.info("BEGIN build Encounters for session=" + sessionId);
+
+        EHRService svc = ctx.getBean(EHRService.class);
+        Map<String, Encounter> map = new LinkedHashMap<>();
+        try {
+            for (Encounter encounter : svc.getEncounters(sessionId)) {
+                for (String key : FhirUtil.buildKeys(encounter.getId(), encounter.getIdentifier())) {
+                    map.put(key, encounter);
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        logger.info("DONE building Encounters for session=" + sessionId +
+                " (size=" + map.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+
+        return map;
+    }
+
+    public PatientModel getPatient() {
+        return patientCache.get();
+    }
+
+    private PatientModel buildPatient() {
+        String sessionId = getSessionId();
+        long start = System.currentTimeMillis();
+        logger.info("BEGIN build Patient for session=" + sessionId);
+
+        PatientService svc = ctx.getBean(PatientService.class);
+        PatientModel patient = null;
+        try {
+            patient = svc.buildPatient(sessionId);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        logger.info("DONE building Patient for session=" + sessionId +
+                " (took " + (System.currentTimeMillis() - start) + "ms)");
+
+        return patient;
+    }
+
+    public ObservationQueryPlanner getObservationQueryPlanner() {
+        return observationQueryPlanner;
+    }
+
+    public Bundle getProtocolObservations() {
+        return protocolObservationCache.get();
+    }
+
+    private Bundle buildProtocolObservations() {
+        String sessionId = getSessionId();
+        long start = System.currentTimeMillis();
+        logger.info("BEGIN build Protocol Observations for session=" + sessionId);
+
+        CompositeBundle compositeBundle = new CompositeBundle();
+
+        try {
+            compositeBundle.consume(observationQueryPlanner.getObservations(sessionId, ObservationQueryPlanner.Group.PROTOCOL));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        logger.info("DONE building Protocol Observations for session=" + sessionId +
+                " (size=" + compositeBundle.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+
+        return compositeBundle.getBundle();
+    }
+
+    public List<BloodPressureModel> getRemoteBloodPressures() {
+        return bpCache.get();
+    }
+
+    /**
+     * appends the specified BP to the cached list in-place, without requiring the list to be re-fetched
+     */
+    public void addRemoteBloodPressure(BloodPressureModel bpm) {
+        bpCache.update(list -> {
+            List<BloodPressureModel> updated = new ArrayList<>(list);
+            updated.add(bpm);
+            return updated;
+        });
+        vitalsVersion.incrementAndGet();
+    }
+
+    private List<BloodPressureModel> buildRemoteBloodPressures() {
+        String sessionId = getSessionId();
+        long start = System.currentTimeMillis();
+        logger.info("BEGIN build remote Blood Pressures for session=" + sessionId);
+
+        BloodPressureService svc = ctx.getBean(BloodPressureService.class);
+        try {
+            List<BloodPressureModel> list = svc.buildRemoteBloodPressureList(sessionId);
+
+            logger.info("DONE building remote Blood Pressures for session=" + sessionId +
+                    " (size=" + list.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+
+            return list;
+
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public List<PulseModel> getRemotePulses() {
+        return pulseCache.get();
+    }
+
+    /**
+     * appends the specified Pulse to the cached list in-place, without requiring the list to be re-fetched
+     */
+    public void addRemotePulse(PulseModel pm) {
+        pulseCache.update(list -> {
+            List<PulseModel> updated = new ArrayList<>(list);
+            updated.add(pm);
+            return updated;
+        });
+        vitalsVersion.incrementAndGet();
+    }
+
+    private List<PulseModel> buildRemotePulses() {
+        String sessionId = getSessionId();
+        long start = System.currentTimeMillis();
+        logger.info("BEGIN build remote Pulses for session=" + sessionId);
+
+        PulseService svc = ctx.getBean(PulseService.class);
+        try {
+            List<PulseModel> list = svc.buildRemotePulseList(sessionId);
+
+            logger.info("DONE building remote Pulses for session=" + sessionId +
+                    " (size=" + list.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+
+            return list;
+
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Bundle getEncounterDiagnosisConditions() {
+        return encounterDiagnosisConditionCache.get();
+    }
+
+    private Bundle buildEncounterDiagnosisConditions() {
+        String sessionId = getSessionId();
+        long start = System.currentTimeMillis();
+        logger.info("BEGIN build Encounter Diagnosis Conditions for session=" + sessionId);
+
+        EHRService svc = ctx.getBean(EHRService.class);
+        CompositeBundle compositeBundle = new CompositeBundle();
+
+        try {
+            compositeBundle.consume(svc.getEncounterDiagnosisConditions(sessionId));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        logger.info("DONE building Encounter Diagnosis Conditions for session=" + sessionId +
+                " (size=" + compositeBundle.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+
+        return compositeBundle.getBundle();
+    }
+
+    public List<AdverseEventModel> getRemoteAdverseEvents() {
+        return adverseEventCache.get();
+    }
+
+    private List<AdverseEventModel> buildRemoteAdverseEvents() {
+        String sessionId = getSessionId();
+        long start = System.currentTimeMillis();
+        logger.info("BEGIN building remote Adverse Events for session=" + sessionId);
+
+        AdverseEventService svc = ctx.getBean(AdverseEventService.class);
+        try {
+            List<AdverseEventModel> list = svc.buildRemoteAdverseEvents(sessionId);
+
+            logger.info("DONE building remote Adverse Events for session=" + sessionId +
+                    " (size=" + list.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+
+            return list;
+
+        } catch (DataException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Bundle getOrderServiceRequests() {
+        return orderServiceRequestCache.get();
+    }
+
+    private Bundle buildOrderServiceRequests() {
+        String sessionId = getSessionId();
+        long start = System.currentTimeMillis();
+        logger.info("BEGIN build Order Service Requests for session=" + sessionId);
+
+        EHRService svc = ctx.getBean(EHRService.class);
+        CompositeBundle compositeBundle = new CompositeBundle();
+
+        try {
+            compositeBundle.consume(svc.getOrderServiceRequests(sessionId));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        logger.info("DONE building Order ServiceRequests for session=" + sessionId +
+                " (size=" + compositeBundle.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+
+        return compositeBundle.getBundle();
+    }
+
+    public List<GoalModel> getRemoteGoals() {
+        return goalCache.get();
+    }
+
+    private List<GoalModel> buildRemoteGoals() {
+        String sessionId = getSessionId();
+        long start = System.currentTimeMillis();
+        logger.info("BEGIN build remote Goals for session=" + sessionId);
+
+        GoalService svc = ctx.getBean(GoalService.class);
+        try {
+            List<GoalModel> list = svc.buildRemoteGoals(sessionId);
+
+            logger.info("DONE building remote Goals for session=" + sessionId +
+                    " (size=" + list.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+
+            return list;
+
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public List<MedicationModel> getMedications() {
+        return medicationCache.get();
+    }
+
+    private List<MedicationModel> buildMedications() {
+        String sessionId = getSessionId();
+        long start = System.currentTimeMillis();
+        logger.info("BEGIN build Medications for session=" + sessionId);
+
+        MedicationService svc = ctx.getBean(MedicationService.class);
+        try {
+            List<MedicationModel> list = svc.buildMedications(sessionId);
+
+            logger.info("DONE building Medications for session=" + sessionId +
+                    " (size=" + list.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+
+            return list;
+
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Bundle getProblemListConditions() {
+        return problemListConditionCache.get();
+    }
+
+    private Bundle buildProblemListConditions() {
+        String sessionId = getSessionId();
+        long start = System.currentTimeMillis();
+        logger.info("BEGIN build Problem List Conditions Resources for session=" + sessionId);
+
+        EHRService svc = ctx.getBean(EHRService.class);
+        CompositeBundle compositeBundle = new CompositeBundle();
+
+        try {
+            compositeBundle.consume(svc.getProblemListConditions(sessionId));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        logger.info("DONE building Problem List Resources for session=" + sessionId +
+                " (size=" + compositeBundle.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+
+        return compositeBundle.getBundle();
+    }
+
+    public Bundle getOtherSupplementalResources() {
+        return otherSupplementalResourcesCache.get();
+    }
+
+    private Bundle buildOtherSupplementalResources() {
+        String sessionId = getSessionId();
+        long start = System.currentTimeMillis();
+        logger.info("BEGIN build Supplemental Resources for session=" + sessionId);
+
+        EHRService svc = ctx.getBean(EHRService.class);
+        CompositeBundle compositeBundle = new CompositeBundle();
+
+// moved to its own function so that we can identify if any were present without any complicated introspection into the Bundle
+//                compositeBundle.consume(svc.getProblemListConditions(sessionId));
+
+        try {
+            compositeBundle.consume(observationQueryPlanner.getObservations(sessionId, ObservationQueryPlanner.Group.BMI));
+            compositeBundle.consume(observationQueryPlanner.getObservations(sessionId, ObservationQueryPlanner.Group.SMOKING));
+            compositeBundle.consume(observationQueryPlanner.getObservations(sessionId, ObservationQueryPlanner.Group.DRINKS));
+            compositeBundle.consume(svc.getCounselingProcedures(sessionId));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        logger.info("DONE building Supplemental Resources for session=" + sessionId +
+                " (size=" + compositeBundle.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+
+        return compositeBundle.getBundle();
+    }
+}
@@ -2,24 +2,25 @@ package edu.ohsu.cmp.coach.workspace;
 
 import com.auth0.jwt.impl.JWTParser;
 import com.auth0.jwt.interfaces.Payload;
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import edu.ohsu.cmp.coach.config.WorkspaceCacheConfiguration;
 import edu.ohsu.cmp.coach.entity.MyPatient;
 import edu.ohsu.cmp.coach.model.redcap.RandomizationGroup;
 import edu.ohsu.cmp.coach.exception.DataException;
-import edu.ohsu.cmp.coach.fhir.CompositeBundle;
 import edu.ohsu.cmp.coach.fhir.FhirConfigManager;
 import edu.ohsu.cmp.coach.fhir.FhirQueryManager;
+import edu.ohsu.cmp.coach.fhir.ObservationQueryPlanner;
 import edu.ohsu.cmp.coach.fhir.transform.VendorTransformer;
 import edu.ohsu.cmp.coach.model.*;
 import edu.ohsu.cmp.coach.model.cqfruler.CDSHook;
+import edu.ohsu.cmp.coach.model.cqfruler.HookEvaluation;
+import edu.ohsu.cmp.coach.model.cqfruler.HookPrefetch;
 import edu.ohsu.cmp.coach.model.fhir.FHIRCredentialsWithClient;
 import edu.ohsu.cmp.coach.model.omron.OmronStatus;
 import edu.ohsu.cmp.coach.model.omron.OmronStatusData;
 import edu.ohsu.cmp.coach.model.recommendation.Card;
 import edu.ohsu.cmp.coach.model.recommendation.Suggestion;
 import edu.ohsu.cmp.coach.service.*;
-import edu.ohsu.cmp.coach.util.FhirUtil;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.Reference;
@@ -27,35 +28,25 @@ import org.quartz.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
+import org.springframework.http.MediaType;
 import org.springframework.scheduling.quartz.JobDetailFactoryBean;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Calendar;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.function.Function;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 
 public class UserWorkspace {
-    private final Logger logger = LoggerFactory.getLogger(this.getClass());
-
-    public static final int POOL_SIZE = 5;
-
-    private static final String CACHE_PATIENT = "Patient";
-    private static final String CACHE_ENCOUNTER = "Encounter";
-    private static final String CACHE_PROTOCOL = "Protocol";
-    private static final String CACHE_BP = "BP";
-    private static final String CACHE_PULSE = "Pulse";
-    private static final String CACHE_ADVERSE_EVENT = "AdverseEvent";
-    private static final String CACHE_GOAL = "Goal";
-    private static final String CACHE_MEDICATION = "Medication";
-    private static final String CACHE_ORDER_SERVICE_REQUEST = "OrderServiceRequest";
+    public static final String OMRON_STATUS_EVENT = "omron-status";
 
-    private static final String CACHE_CONDITION_ENCOUNTER_DIAGNOSIS = "EncounterDiagnosisCondition";
-    private static final String CACHE_PROBLEM_LIST_CONDITION = "ProblemListCondition";
-    private static final String CACHE_OTHER_SUPPLEMENTAL_RESOURCES = "OtherSupplementalResources";
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     private final ApplicationContext ctx;
     private final String sessionId;
@@ -67,12 +58,20 @@ public class UserWorkspace {
     private final FhirQueryManager fqm;
     private final FhirConfigManager fcm;
     private final Long internalPatientId;
+    private final String patIdHash;
     private VendorTransformer vendorTransformer = null;
 
-    private final Cache cache;
-    private final Cache cardCache;
-    private final Cache<String, Bundle> bundleCache;
-    private final ExecutorService executorService;
+    private final WorkspaceTaskScheduler.SessionExecutor executor;
+
+    private final PatientDataSet data;                              // shared with other sessions for this patient
+    private final WorkspaceCache<String, List<Card>> cardCache;     // keyed by CDS Hook ID, rendered for this audience
+    private volatile long lastAccessed = System.currentTimeMillis();
+    private volatile WorkspaceLoadReport lastLoadReport = null;
+
+    // each completes once the most recent call to populate() has finished with its slot, whether or not it succeeded
+    private volatile Map<WorkspaceSlot, CompletableFuture<Void>> slotsBuilt = buildSlotFutures();
+    private volatile Map<String, CompletableFuture<Void>> cardsBuilt = new ConcurrentHashMap<>();   // keyed by hook ID
+    private final List<SseEmitter> eventEmitters = new CopyOnWriteArrayList<>();
 
     private final AuditService auditService;
 
@@ -109,6 +108,7 @@ public class UserWorkspace {
                 fhirCredentialsWithClient.getCredentials().getPatientId()
         );
         this.internalPatientId = myPatient.getId();
+        this.patIdHash = myPatient.getPatIdHash();
         this.omronLastUpdated = myPatient.getOmronLastUpdated();
         this.redcapId = myPatient.getRedcapId();
         this.bpGoalUpdated = myPatient.getBpGoalUpdated();
@@ -123,21 +123,19 @@ public class UserWorkspace {
             this.confirmedEndOfStudy = false;
         }
 
-        cache = Caffeine.newBuilder()
-                .expireAfterWrite(6, TimeUnit.HOURS)
-                .build();
-
-        cardCache = Caffeine.newBuilder()
-                .expireAfterWrite(6, TimeUnit.HOURS)
-                .build();
-
-        bundleCache = Caffeine.newBuilder()
-                .expireAfterWrite(6, TimeUnit.HOURS)
-                .build();
+        executor = ctx.getBean(UserWorkspaceService.class).getTaskScheduler().forSession(sessionId);
 
-        executorService = Executors.newFixedThreadPool(POOL_SIZE);
+        // background refreshes and cache maintenance must never block the thread that triggered them, which is
+        // frequently a request thread
+        WorkspaceCacheConfiguration cacheConfig = ctx.getBean(WorkspaceCacheConfiguration.class);
+        cardCache = new WorkspaceCache<>(WorkspaceSlot.CARDS,
+                cacheConfig.getSettings(WorkspaceSlot.CARDS), executor.nonBlocking(),
+                ctx.getBean(MetricsService.class), this::buildCards);
 
         setupAutoShutdownJob();
+
+        // acquired last, so that it's only ever held by a workspace that was successfully constructed
+        data = ctx.getBean(UserWorkspaceService.class).acquirePatientDataSet(internalPatientId, patIdHash);
     }
 
     public String getSessionId() {
@@ -182,6 +180,18 @@ public class UserWorkspace {
         return internalPatientId;
     }
 
+    /**
+     * @return the clinical data for this workspace's patient, which is shared with any other sessions open for
+     * the same patient
+     */
+    public PatientDataSet getPatientDataSet() {
+        return data;
+    }
+
+    WorkspaceTaskScheduler.SessionExecutor getExecutor() {
+        return executor;
+    }
+
     public Date getOmronLastUpdated() {
         return omronLastUpdated;
     }
@@ -217,66 +227,270 @@ public class UserWorkspace {
     }
 
     public void populate() {
-        Runnable runnable = new Runnable() {
-            @Override
-            public void run() {
-                long start = System.currentTimeMillis();
-                logger.info("BEGIN populating workspace for session=" + sessionId);
-                getPatient();
-                getOrderServiceRequests();
-                getRemoteGoals();
-                doBPGoalCheck();
-                getEncounters();
-                getProtocolObservations();
-                getRemoteBloodPressures();
-                getRemotePulses();
-                getEncounterDiagnosisConditions();
-                getRemoteAdverseEvents();
-                getMedications();
-                getProblemListConditions();
-                getOtherSupplementalResources();
-                refreshHypotensionAdverseEvents();
-                getAllCards();
-                logger.info("DONE populating workspace for session=" + sessionId +
-                        " (took " + (System.currentTimeMillis() - start) + "ms)");
+        // a workspace restored from a snapshot is already usable - rebuild everything in the background, serving
+        // the restored data until the fresh data replaces it
+        boolean revalidate = data.consumeRestoredFromSnapshot();
+
+        logger.info("BEGIN " + (revalidate ? "revalidating" : "populating") + " workspace for session=" + sessionId);
+
+        if (revalidate) {
+            data.beginRevalidation();
+        }
+
+        // slots are built concurrently wherever WorkspaceSlot doesn't declare a dependency between them.  shared
+        // slots another session has already loaded for this patient are served from the PatientDataSet as-is
+        Map<WorkspaceSlot, CompletableFuture<Void>> built = buildSlotFutures();
+        slotsBuilt = built;
+        cardsBuilt = new ConcurrentHashMap<>();
+
+        WorkspaceLoadGraph graph = new WorkspaceLoadGraph(sessionId);
+        for (WorkspaceSlot slot : WorkspaceSlot.values()) {
+            if (data.hasSlot(slot)) {
+                graph.add(slot, track(built, slot, data.stage(slot, revalidate)));
+            }
+        }
+        graph.add(WorkspaceSlot.BP_GOAL_CHECK, track(built, WorkspaceSlot.BP_GOAL_CHECK, this::doBPGoalCheck))
+                .add(WorkspaceSlot.HYPOTENSION_ADVERSE_EVENTS, track(built, WorkspaceSlot.HYPOTENSION_ADVERSE_EVENTS,
+                        this::refreshHypotensionAdverseEvents))
+                .add(WorkspaceSlot.CARDS, track(built, WorkspaceSlot.CARDS, revalidate ?
+                        () -> { data.invalidateRecommendations(); getAllCards(); } :
+                        this::getAllCards));
+
+        graph.execute(executor).thenAccept(report -> {
+            lastLoadReport = report;
+            for (CompletableFuture<Void> future : built.values()) {
+                future.complete(null);      // slots skipped because a dependency failed
+            }
+            ctx.getBean(MetricsService.class).recordLoadReport(report, revalidate);
+            logger.info("DONE " + (revalidate ? "revalidating" : "populating") + " workspace for session=" +
+                    sessionId + " (took " + report.getTotalMillis() + "ms)");
+            logger.info("workspace load report: " + report);
+
+            if (revalidate) {
+                data.endRevalidation();
+            }
+
+            if (report.isSuccessful()) {
+                data.writeSnapshot();
+            }
+
+            ctx.publishEvent(new WorkspacePopulatedEvent(this, report, revalidate));
+        });
+    }
+
+    /**
+     * restores this workspace's patient data from its most recent snapshot, if snapshots are enabled, a usable
+     * one exists, and no other session has loaded it already.  the next call to populate() will then revalidate
+     * the restored data in the background.
+     * @return true if a snapshot was restored
+     */
+    public boolean restoreSnapshot() {
+        return data.restoreSnapshot();
+    }
+
+    public WorkspaceLoadReport getLastLoadReport() {
+        return lastLoadReport;
+    }
+
+    private static Map<WorkspaceSlot, CompletableFuture<Void>> buildSlotFutures() {
+        Map<WorkspaceSlot, CompletableFuture<Void>> map = new EnumMap<>(WorkspaceSlot.class);
+        for (WorkspaceSlot slot : WorkspaceSlot.values()) {
+            map.put(slot, new CompletableFuture<>());
+        }
+        return map;
+    }
+
+    private static Runnable track(Map<WorkspaceSlot, CompletableFuture<Void>> built, WorkspaceSlot slot, Runnable task) {
+        return () -> {
+            try {
+                task.run();
+
+            } finally {
+                built.get(slot).complete(null);
             }
         };
-        executorService.submit(runnable);
+    }
+
+///////////////////////////////////////////////////////////////////////////////////////
+// server-sent events
+//
+
+    /**
+     * opens a new stream of server-sent events to this session's browser.  the stream is closed automatically
+     * when the session shuts down, or after workspace.events.timeout-ms, after which the browser is expected to
+     * reconnect.
+     */
+    public SseEmitter openEventStream() {
+        long timeout = ctx.getEnvironment().getProperty("workspace.events.timeout-ms", Long.class, 1800000L);
+        SseEmitter emitter = new SseEmitter(timeout);
+        emitter.onCompletion(() -> eventEmitters.remove(emitter));
+        emitter.onTimeout(() -> eventEmitters.remove(emitter));
+        emitter.onError(t -> eventEmitters.remove(emitter));
+        eventEmitters.add(emitter);
+        return emitter;
+    }
+
+    /**
+     * sends an event to the specified stream once all of the specified slots have been built by populate().  the
+     * event's data is built in the background, so no request thread waits on the slots.  if building the data
+     * fails, a "failed" event naming the original event and key is sent instead, so the browser can fall back to
+     * requesting that data directly.
+     */
+    public CompletableFuture<Void> sendWhenBuilt(SseEmitter emitter, String name, String key,
+                                                 Collection<WorkspaceSlot> slots, Callable<?> dataBuilder) {
+        Map<WorkspaceSlot, CompletableFuture<Void>> built = slotsBuilt;
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (WorkspaceSlot slot : slots) {
+            futures.add(built.get(slot));
+        }
+
+        return sendWhenReady(emitter, name, key, CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])),
+                null, dataBuilder);
+    }
+
+    /**
+     * sends an event to the specified stream once populate() has built the specified hook's cards, but not before
+     * the previous event has been sent.  chaining these sends recommendations in cdsHookOrder, each as soon as it
+     * and every one before it is ready, while hooks are still evaluated concurrently (see getAllCards()).  the
+     * event's data is built in the background, as for sendWhenBuilt()
+     * @param previous may be null
+     * @return completes once the event (or a "failed" event in its place) has been sent
+     */
+    public CompletableFuture<Void> sendWhenCardsBuilt(SseEmitter emitter, String name, String hookId,
+                                                      CompletableFuture<Void> previous, Callable<?> dataBuilder) {
+        // the CARDS slot completes even if the hook was never evaluated, e.g. as a dependency failed
+        CompletableFuture<Void> hookBuilt = cardsBuilt.computeIfAbsent(hookId, k -> new CompletableFuture<>());
+        CompletableFuture<Object> ready = CompletableFuture.anyOf(hookBuilt, slotsBuilt.get(WorkspaceSlot.CARDS));
+
+        return sendWhenReady(emitter, name, hookId, ready, previous, dataBuilder);
+    }
+
+    private CompletableFuture<Void> sendWhenReady(SseEmitter emitter, String name, String key,
+                                                  CompletableFuture<?> ready, CompletableFuture<Void> previous,
+                                                  Callable<?> dataBuilder) {
+        CompletableFuture<Object> eventData = ready.thenApplyAsync(v -> {
+            try {
+                return dataBuilder.call();
+
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor.nonBlocking());
+
+        CompletableFuture<Object> inOrder = previous != null ?
+                previous.thenCompose(v -> eventData) :
+                eventData;
+
+        return inOrder.handle((data, t) -> {
+            if (t != null) {
+                Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                logger.error("caught " + cause.getClass().getName() + " building " + name + " event" +
+                        (key != null ? " for " + key : "") + " for session=" + sessionId + " - " + cause.getMessage(), cause);
+                Map<String, String> failed = new LinkedHashMap<>();
+                failed.put("event", name);
+                failed.put("key", key);
+                sendEvent(emitter, "failed", failed);
+
+            } else {
+                sendEvent(emitter, name, data);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * sends an event to every stream open for this session
+     */
+    public void publishEvent(String name, Object eventData) {
+        for (SseEmitter emitter : eventEmitters) {
+            sendEvent(emitter, name, eventData);
+        }
+    }
+
+    public void sendEvent(SseEmitter emitter, String name, Object eventData) {
+        try {
+            emitter.send(SseEmitter.event().name(name).data(eventData, MediaType.APPLICATION_JSON));
+
+        } catch (IOException | IllegalStateException e) {
+            // the browser disconnected, or the stream timed out
+            logger.debug("couldn't send " + name + " event for session=" + sessionId + " - " + e.getMessage());
+            eventEmitters.remove(emitter);
+        }
     }
 
     public void runRecommendations() {
         Runnable runnable = new Runnable() {
             @Override
             public void run() {
-                deleteAllCards();
+                data.invalidateRecommendations();
                 getAllCards();
             }
         };
-        executorService.submit(runnable);
+        executor.execute(runnable);
+    }
+
+    /**
+     * @return hit / miss / load statistics for each cache, keyed by WorkspaceSlot config key.  includes the
+     * caches shared via this workspace's PatientDataSet.
+     */
+    public Map<String, CacheStats> getCacheStats() {
+        Map<String, CacheStats> map = new LinkedHashMap<>(data.getCacheStats());
+        map.put(cardCache.getSlot().getConfigKey(), cardCache.stats());
+        return map;
+    }
+
+    void touch() {
+        lastAccessed = System.currentTimeMillis();
+    }
+
+    public long getLastAccessed() {
+        return lastAccessed;
+    }
+
+    /**
+     * @return the caches specific to this session.  see also PatientDataSet.getCaches()
+     */
+    List<WorkspaceCache<?, ?>> getCaches() {
+        return Collections.singletonList(cardCache);
     }
 
     public void clearCaches() {
-        logger.info("clearing caches for session=" + sessionId);
-        cache.invalidateAll();
-        cardCache.invalidateAll();
-        bundleCache.invalidateAll();
+        data.clearCaches();
     }
 
     public void clearVitalsCaches() {
-        logger.info("clearing BP and Pulse caches for session=" + sessionId);
-        cache.invalidate(CACHE_BP);
-        cache.invalidate(CACHE_PULSE);
+        data.clearVitalsCaches();
+    }
+
+    public void refreshVitalsCaches() {
+        data.refreshVitalsCaches();
+    }
+
+    public long getVitalsVersion() {
+        return data.getVitalsVersion();
+    }
+
+    public boolean isVitalsRefreshing() {
+        return data.isVitalsRefreshing();
     }
 
+    /**
+     * called by UserWorkspaceService when the session ends.  this workspace's PatientDataSet is released by the
+     * service afterward.
+     */
     public void shutdown() {
         logger.info("shutting down workspace for session=" + sessionId);
-        executorService.shutdown();
+        executor.shutdown();
 
-        clearCaches();
+        data.removeMember(this);
 
-        cache.cleanUp();
+        for (SseEmitter emitter : eventEmitters) {
+            emitter.complete();
+        }
+        eventEmitters.clear();
+
+        cardCache.invalidateAll();
         cardCache.cleanUp();
-        bundleCache.cleanUp();
     }
 
     private void setupAutoShutdownJob() {
@@ -342,235 +556,83 @@ public class UserWorkspace {
     }
 
 ///////////////////////////////////////////////////////////////////////////////////////
+// patient data - see PatientDataSet
+//
 
     public List<Encounter> getEncounters() {
-        return List.copyOf(getEncounterMap().values());
+        return data.getEncounters();
     }
 
     public Encounter getEncounter(Reference encounterReference) {
-        Map<String, Encounter> map = getEncounterMap();
-        for (String key : FhirUtil.buildKeys(encounterReference)) {
-            if (map.containsKey(key)) {
-                return map.get(key);
-            }
-        }
-        return null;
-    }
-
-    private Map<String, Encounter> getEncounterMap() {
-        return (Map<String, Encounter>) cache.get(CACHE_ENCOUNTER, new Function<String, Map<String, Encounter>>() {
-            @Override
-            public Map<String, Encounter> apply(String s) {
-                long start = System.currentTimeMillis();
-                logger.info("BEGIN build Encounters for session=" + sessionId);
-
-                EHRService svc = ctx.getBean(EHRService.class);
-                Map<String, Encounter> map = new LinkedHashMap<>();
-                try {
-                    for (Encounter encounter : svc.getEncounters(sessionId)) {
-                        for (String key : FhirUtil.buildKeys(encounter.getId(), encounter.getIdentifier())) {
-                            map.put(key, encounter);
-                        }
-                    }
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-
-                logger.info("DONE building Encounters for session=" + sessionId +
-                        " (size=" + map.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
-
-                return map;
-            }
-        });
+        return data.getEncounter(encounterReference);
     }
 
     public PatientModel getPatient() {
-        return (PatientModel) cache.get(CACHE_PATIENT, new Function<String, PatientModel>() {
-            @Override
-            public PatientModel apply(String s) {
-                long start = System.currentTimeMillis();
-                logger.info("BEGIN build Patient for session=" + sessionId);
-
-                PatientService svc = ctx.getBean(PatientService.class);
-                PatientModel patient = null;
-                try {
-                    patient = svc.buildPatient(sessionId);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-
-                logger.info("DONE building Patient for session=" + sessionId +
-                        " (took " + (System.currentTimeMillis() - start) + "ms)");
+        return data.getPatient();
+    }
 
-                return patient;
-            }
-        });
+    public ObservationQueryPlanner getObservationQueryPlanner() {
+        return data.getObservationQueryPlanner();
     }
 
     public Bundle getProtocolObservations() {
-        return bundleCache.get(CACHE_PROTOCOL, new Function<String, Bundle>() {
-            @Override
-            public Bundle apply(String s) {
-                long start = System.currentTimeMillis();
-                logger.info("BEGIN build Protocol Observations for session=" + sessionId);
-
-                EHRService svc = ctx.getBean(EHRService.class);
-                CompositeBundle compositeBundle = new CompositeBundle();
-
-                try {
-                    compositeBundle.consume(svc.getObservations(sessionId, FhirUtil.toCodeParamString(fcm.getProtocolCoding()), fcm.getProtocolLookbackPeriod(), null));
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-
-                logger.info("DONE building Protocol Observations for session=" + sessionId +
-                        " (size=" + compositeBundle.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
-
-                return compositeBundle.getBundle();
-            }
-        });
+        return data.getProtocolObservations();
     }
 
     public List<BloodPressureModel> getRemoteBloodPressures() {
-        return (List<BloodPressureModel>) cache.get(CACHE_BP, new Function<String, List<BloodPressureModel>>() {
-            @Override
-            public List<BloodPressureModel> apply(String s) {
-                long start = System.currentTimeMillis();
-                logger.info("BEGIN build remote Blood Pressures for session=" + sessionId);
-
-                BloodPressureService svc = ctx.getBean(BloodPressureService.class);
-                try {
-                    List<BloodPressureModel> list = svc.buildRemoteBloodPressureList(sessionId);
-
-                    logger.info("DONE building remote Blood Pressures for session=" + sessionId +
-                            " (size=" + list.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
-
-                    return list;
+        return data.getRemoteBloodPressures();
+    }
 
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        });
+    public void addRemoteBloodPressure(BloodPressureModel bpm) {
+        data.addRemoteBloodPressure(bpm);
     }
 
     public List<PulseModel> getRemotePulses() {
-        return (List<PulseModel>) cache.get(CACHE_PULSE, new Function<String, List<PulseModel>>() {
-            @Override
-            public List<PulseModel> apply(String s) {
-                long start = System.currentTimeMillis();
-                logger.info("BEGIN build remote Pulses for session=" + sessionId);
-
-                PulseService svc = ctx.getBean(PulseService.class);
-                try {
-                    List<PulseModel> list = svc.buildRemotePulseList(sessionId);
-
-                    logger.info("DONE building remote Pulses for session=" + sessionId +
-                            " (size=" + list.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
-
-                    return list;
+        return data.getRemotePulses();
+    }
 
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        });
+    public void addRemotePulse(PulseModel pm) {
+        data.addRemotePulse(pm);
     }
 
     public Bundle getEncounterDiagnosisConditions() {
-        return bundleCache.get(CACHE_CONDITION_ENCOUNTER_DIAGNOSIS, new Function<String, Bundle>() {
-            @Override
-            public Bundle apply(String s) {
-                long start = System.currentTimeMillis();
-                logger.info("BEGIN build Encounter Diagnosis Conditions for session=" + sessionId);
-
-                EHRService svc = ctx.getBean(EHRService.class);
-                CompositeBundle compositeBundle = new CompositeBundle();
-
-                try {
-                    compositeBundle.consume(svc.getEncounterDiagnosisConditions(sessionId));
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-
-                logger.info("DONE building Encounter Diagnosis Conditions for session=" + sessionId +
-                        " (size=" + compositeBundle.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
-
-                return compositeBundle.getBundle();
-            }
-        });
+        return data.getEncounterDiagnosisConditions();
     }
 
     public List<AdverseEventModel> getRemoteAdverseEvents() {
-        return (List<AdverseEventModel>) cache.get(CACHE_ADVERSE_EVENT, new Function<String, List<AdverseEventModel>>() {
-            @Override
-            public List<AdverseEventModel> apply(String s) {
-                long start = System.currentTimeMillis();
-                logger.info("BEGIN building remote Adverse Events for session=" + sessionId);
-
-                AdverseEventService svc = ctx.getBean(AdverseEventService.class);
-                try {
-                    List<AdverseEventModel> list = svc.buildRemoteAdverseEvents(sessionId);
-
-                    logger.info("DONE building remote Adverse Events for session=" + sessionId +
-                            " (size=" + list.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
-
-                    return list;
-
-                } catch (DataException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        });
+        return data.getRemoteAdverseEvents();
     }
 
     public Bundle getOrderServiceRequests() {
-        return bundleCache.get(CACHE_ORDER_SERVICE_REQUEST, new Function<String, Bundle>() {
-            @Override
-            public Bundle apply(String s) {
-                long start = System.currentTimeMillis();
-                logger.info("BEGIN build Order Service Requests for session=" + sessionId);
-
-                EHRService svc = ctx.getBean(EHRService.class);
-                CompositeBundle compositeBundle = new CompositeBundle();
-
-                try {
-                    compositeBundle.consume(svc.getOrderServiceRequests(sessionId));
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-
-                logger.info("DONE building Order ServiceRequests for session=" + sessionId +
-                        " (size=" + compositeBundle.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
-
-                return compositeBundle.getBundle();
-            }
-        });
+        return data.getOrderServiceRequests();
     }
 
     public List<GoalModel> getRemoteGoals() {
-        return (List<GoalModel>) cache.get(CACHE_GOAL, new Function<String, List<GoalModel>>() {
-            @Override
-            public List<GoalModel> apply(String s) {
-                long start = System.currentTimeMillis();
-                logger.info("BEGIN build remote Goals for session=" + sessionId);
+        return data.getRemoteGoals();
+    }
 
-                GoalService svc = ctx.getBean(GoalService.class);
-                try {
-                    List<GoalModel> list = svc.buildRemoteGoals(sessionId);
+    public List<MedicationModel> getMedications() {
+        return data.getMedications();
+    }
 
-                    logger.info("DONE building remote Goals for session=" + sessionId +
-                            " (size=" + list.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+    public Bundle getProblemListConditions() {
+        return data.getProblemListConditions();
+    }
 
-                    return list;
+    public Bundle getOtherSupplementalResources() {
+        return data.getOtherSupplementalResources();
+    }
 
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        });
+    public HookEvaluation getHookEvaluation(String hookId) {
+        return data.getHookEvaluation(hookId);
     }
 
+    public HookPrefetch getHookPrefetch() throws IOException, DataException {
+        return data.getHookPrefetch();
+    }
+
+///////////////////////////////////////////////////////////////////////////////////////
+
     private void doBPGoalCheck() {                  // ONLY CHECK REMOTE GOALS!  local BP goal update will be set via GoalsController.updatebp().
                                                     // checking local BP goal here will not differentiate between intentional user-defined and default goals
         if ( ! bpGoalUpdated ) {
@@ -583,83 +645,6 @@ public class UserWorkspace {
         }
     }
 
-    public List<MedicationModel> getMedications() {
-        return (List<MedicationModel>) cache.get(CACHE_MEDICATION, new Function<String, List<MedicationModel>>() {
-            @Override
-            public List<MedicationModel> apply(String s) {
-                long start = System.currentTimeMillis();
-                logger.info("BEGIN build Medications for session=" + sessionId);
-
-                MedicationService svc = ctx.getBean(MedicationService.class);
-                try {
-                    List<MedicationModel> list = svc.buildMedications(sessionId);
-
-                    logger.info("DONE building Medications for session=" + sessionId +
-                            " (size=" + list.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
-
-                    return list;
-
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        });
-    }
-
-    public Bundle getProblemListConditions() {
-        return bundleCache.get(CACHE_PROBLEM_LIST_CONDITION, new Function<String, Bundle>() {
-            @Override
-            public Bundle apply(String s) {
-                long start = System.currentTimeMillis();
-                logger.info("BEGIN build Problem List Conditions Resources for session=" + sessionId);
-
-                EHRService svc = ctx.getBean(EHRService.class);
-                CompositeBundle compositeBundle = new CompositeBundle();
-
-                try {
-                    compositeBundle.consume(svc.getProblemListConditions(sessionId));
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-
-                logger.info("DONE building Problem List Resources for session=" + sessionId +
-                        " (size=" + compositeBundle.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
-
-                return compositeBundle.getBundle();
-            }
-        });
-    }
-
-    public Bundle getOtherSupplementalResources() {
-        return bundleCache.get(CACHE_OTHER_SUPPLEMENTAL_RESOURCES, new Function<String, Bundle>() {
-            @Override
-            public Bundle apply(String s) {
-                long start = System.currentTimeMillis();
-                logger.info("BEGIN build Supplemental Resources for session=" + sessionId);
-
-                EHRService svc = ctx.getBean(EHRService.class);
-                CompositeBundle compositeBundle = new CompositeBundle();
-
-// moved to its own function so that we can identify if any were present without any complicated introspection into the Bundle
-//                compositeBundle.consume(svc.getProblemListConditions(sessionId));
-
-                try {
-                    compositeBundle.consume(svc.getObservations(sessionId, FhirUtil.toCodeParamString(fcm.getBmiCoding()), fcm.getBmiLookbackPeriod(),null));
-                    compositeBundle.consume(svc.getObservations(sessionId, FhirUtil.toCodeParamString(fcm.getSmokingCoding()), fcm.getSmokingLookbackPeriod(),null));
-                    compositeBundle.consume(svc.getObservations(sessionId, FhirUtil.toCodeParamString(fcm.getDrinksCoding()), fcm.getDrinksLookbackPeriod(),null));
-                    compositeBundle.consume(svc.getCounselingProcedures(sessionId));
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-
-                logger.info("DONE building Supplemental Resources for session=" + sessionId +
-                        " (size=" + compositeBundle.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
-
-                return compositeBundle.getBundle();
-            }
-        });
-    }
-
     private void refreshHypotensionAdverseEvents() {
         HypotensionAdverseEventService svc = ctx.getBean(HypotensionAdverseEventService.class);
         try {
@@ -672,80 +657,129 @@ public class UserWorkspace {
         }
     }
 
+    /**
+     * gets the cards for every hook, evaluating up to cqfruler.cdshooks.parallelism hooks at once.  each hook's
+     * cards are announced to sendWhenCardsBuilt() as soon as they're built
+     * @return cards keyed by hook ID, in cdsHookOrder
+     */
     public Map<String, List<Card>> getAllCards() {
-        Map<String, List<Card>> map = new LinkedHashMap<>();
         RecommendationService svc = ctx.getBean(RecommendationService.class);
+        List<CDSHook> hooks;
         try {
-            for (CDSHook hook : svc.getOrderedCDSHooks(sessionId)) {
-                try {
-                    map.put(hook.getId(), getCards(hook.getId()));
+            hooks = svc.getOrderedCDSHooks(sessionId);
 
-                } catch (Exception e) {
-                    logger.error("caught " + e.getClass().getName() + " getting cards for hook=" + hook.getId() + " - " +
-                            e.getMessage(), e);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
 
-                    auditService.doAudit(sessionId, AuditLevel.ERROR, "recommendation exception", "encountered " +
-                            e.getClass().getSimpleName() + " getting recommendations for " + hook.getId() + " - " +
-                            e.getMessage());
+        Map<String, CompletableFuture<Void>> built = cardsBuilt;
+        Map<String, CompletableFuture<List<Card>>> futures = svc.fanOut(hooks, hook -> {
+            try {
+                return getCards(hook.getId());
 
-                    throw new RuntimeException(e);
-                }
+            } finally {
+                built.computeIfAbsent(hook.getId(), k -> new CompletableFuture<>()).complete(null);
+            }
+        });
+
+        Map<String, List<Card>> map = new LinkedHashMap<>();
+        for (Map.Entry<String, CompletableFuture<List<Card>>> entry : futures.entrySet()) {
+            String hookId = entry.getKey();
+            try {
+                map.put(hookId, entry.getValue().get());
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+
+            } catch (ExecutionException ee) {
+                Throwable e = ee.getCause();
+                logger.error("caught " + e.getClass().getName() + " getting cards for hook=" + hookId + " - " +
+                        e.getMessage(), e);
+
+                auditService.doAudit(sessionId, AuditLevel.ERROR, "recommendation exception", "encountered " +
+                        e.getClass().getSimpleName() + " getting recommendations for " + hookId + " - " +
+                        e.getMessage());
+
+                throw new RuntimeException(e);
             }
-        } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
         }
         return map;
     }
 
     public List<Card> getCards(String recommendationId) {
-        return (List<Card>) cardCache.get(recommendationId, new Function<String, List<Card>>() {
-            @Override
-            public List<Card> apply(String s) {
-                long start = System.currentTimeMillis();
-                logger.info("BEGIN build Cards for session=" + sessionId);
+        return cardCache.get(recommendationId);
+    }
 
-                RecommendationService svc = ctx.getBean(RecommendationService.class);
-                try {
-                    List<Card> list = svc.getCards(sessionId, s);
+    private List<Card> buildCards(String recommendationId) {
+        long start = System.currentTimeMillis();
+        logger.info("BEGIN build Cards for session=" + sessionId);
 
-                    logger.info("DONE building Cards for session=" + sessionId +
-                            " (size=" + list.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+        RecommendationService svc = ctx.getBean(RecommendationService.class);
+        try {
+            List<Card> list = svc.getCards(sessionId, recommendationId);
 
-                    return list;
+            // suggestions deleted since the patient's shared hook evaluation was made mustn't reappear
+            removeSuggestions(list, data.getDeletedSuggestionIds());
 
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        });
+            logger.info("DONE building Cards for session=" + sessionId +
+                    " (size=" + list.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+
+            return list;
+
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
+    /**
+     * discards the specified hook's recommendations, for this and every other session open for the patient
+     */
     public void deleteCards(String recommendationId) {
+        data.invalidateRecommendations(recommendationId);
+    }
+
+    void deleteCardsLocal(String recommendationId) {
         cardCache.invalidate(recommendationId);
     }
 
+    /**
+     * discards this session's rendered cards only.  they'll be re-rendered from the patient's shared hook
+     * evaluations as they're needed.
+     */
     public void deleteAllCards() {
         cardCache.invalidateAll();
     }
 
     /**
      * used to clear a particular Suggestion from the cache, by ID.  very useful for updating the cache in-place
-     * after the user performs an action that should make that suggestion disappear
+     * after the user performs an action that should make that suggestion disappear.  the Suggestion is removed
+     * from the cards of every session open for the patient.
      * @param id
      * @return
      */
     public boolean deleteSuggestion(String id) {
+        return data.deleteSuggestion(id);
+    }
+
+    boolean deleteSuggestionLocal(String id) {
         boolean rval = false;
-        for (Map.Entry<String, List<Card>> entry : ((Map<String, List<Card>>) cardCache.asMap()).entrySet()) {
-            for (Card c : entry.getValue()) {
-                if (c.getSuggestions() != null) {
-                    Iterator<Suggestion> iter = c.getSuggestions().iterator();
-                    while (iter.hasNext()) {
-                        Suggestion s = iter.next();
-                        if (s.getId() != null && s.getId().equals(id)) {    // ignore suggestions without IDs
-                            iter.remove();
-                            rval = true;
-                        }
+        for (Map.Entry<String, List<Card>> entry : cardCache.asMap().entrySet()) {
+            rval |= removeSuggestions(entry.getValue(), Collections.singleton(id));
+        }
+        return rval;
+    }
+
+    private static boolean removeSuggestions(List<Card> cards, Set<String> ids) {
+        boolean rval = false;
+        for (Card c : cards) {
+            if (c.getSuggestions() != null) {
+                Iterator<Suggestion> iter = c.getSuggestions().iterator();
+                while (iter.hasNext()) {
+                    Suggestion s = iter.next();
+                    if (s.getId() != null && ids.contains(s.getId())) {    // ignore suggestions without IDs
+                        iter.remove();
+                        rval = true;
                     }
                 }
             }
@@ -775,6 +809,12 @@ public class UserWorkspace {
         omronService.resetLastUpdated(sessionId);
         omronLastUpdated = null;
 
+        data.deleteSnapshot();
+
+        // the local copies of EHR data are discarded too, so it's all fetched afresh
+        FhirDeltaSyncService deltaSyncService = ctx.getBean(FhirDeltaSyncService.class);
+        deltaSyncService.deleteAll(internalPatientId);
+
         // todo : clear Omron token data
         // todo : cancel any scheduled tasks that may exist for refreshing Omron token data
     }
@@ -792,7 +832,11 @@ public class UserWorkspace {
     }
 
     public void setOmronTokenData(MyOmronTokenData omronTokenData) {
+        String previousOmronUserId = this.omronTokenData != null ?
+                this.omronTokenData.getUserIdToken() :
+                null;
         this.omronTokenData = omronTokenData;
+        ctx.getBean(UserWorkspaceService.class).reindexOmronUserId(this, previousOmronUserId);
     }
 
     public void initiateSynchronousOmronUpdate() {
@@ -814,6 +858,7 @@ public class UserWorkspace {
                 logger.info("BEGIN Omron synchronization for session=" + sessionId);
                 try {
                     omronSynchronizing = true;
+                    publishEvent(OMRON_STATUS_EVENT, getOmronSynchronizationStatus());
                     omronService.synchronize(sessionId);
 
                 } catch (Exception e) {
@@ -823,13 +868,14 @@ public class UserWorkspace {
                     omronSynchronizing = false;
                     omronCurrentItem = null;
                     omronTotalItems = null;
+                    publishEvent(OMRON_STATUS_EVENT, getOmronSynchronizationStatus());
                 }
                 logger.info("DONE Omron synchronization for session=" + sessionId +
                         " (took " + (System.currentTimeMillis() - start) + "ms)");
             }
         };
 
-        executorService.submit(runnable);
+        executor.execute(runnable);
     }
 
     public Boolean isOmronSynchronizing() {
@@ -841,6 +887,7 @@ public class UserWorkspace {
         if (omronSynchronizing) {
             omronCurrentItem = current;
             omronTotalItems = total;
+            publishEvent(OMRON_STATUS_EVENT, getOmronSynchronizationStatus());
 
         } else {
             logger.warn("not setting Omron sync progress (current=" + current + ", total=" + total + ") because omronSynchronizing=false");
@@ -18,7 +18,7 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Service;
 
 import java.lang.reflect.InvocationTargetException;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 @Service
@@ -34,13 +34,34 @@ public class UserWorkspaceService {
     @Autowired
     private FhirConfigManager fcm;
 
+    @Autowired
+    private WorkspaceTaskScheduler taskScheduler;
+
     @Value("${fhir.vendor-transformer-class}")
     private String vendorTransformerClass;
 
     private final Map<String, UserWorkspace> map;
 
+    // secondary indexes, each mapping a key to the IDs of the sessions that have it
+    private final Map<String, Set<String>> sessionIdsByOmronUserId;
+    private final Map<Long, Set<String>> sessionIdsByInternalPatientId;
+    private final Map<String, Set<String>> sessionIdsByRedcapId;
+
+    // keyed by internal patient ID.  guarded by itself, as acquisition and release must be atomic
+    private final Map<Long, PatientDataSet> patientDataSets;
+    private final Map<PatientDataSet, Integer> patientDataSetReferences;
+
     public UserWorkspaceService() {
         map = new ConcurrentHashMap<>();
+        sessionIdsByOmronUserId = new ConcurrentHashMap<>();
+        sessionIdsByInternalPatientId = new ConcurrentHashMap<>();
+        sessionIdsByRedcapId = new ConcurrentHashMap<>();
+        patientDataSets = new HashMap<>();
+        patientDataSetReferences = new HashMap<>();
+    }
+
+    public WorkspaceTaskScheduler getTaskScheduler() {
+        return taskScheduler;
     }
 
     public boolean exists(String sessionId) {
@@ -49,44 +70,217 @@ public class UserWorkspaceService {
 
     public void init(String sessionId, Audience audience, RandomizationGroup randomizationGroup, boolean requiresEnrollment, boolean hasCompletedStudy,
                      FHIRCredentialsWithClient fcc) throws ConfigurationException {
+        UserWorkspace workspace = null;
+        UserWorkspace previous = null;
         try {
-            UserWorkspace workspace = new UserWorkspace(ctx, sessionId, audience, randomizationGroup, requiresEnrollment, hasCompletedStudy, fcc, fqm, fcm);
+            workspace = new UserWorkspace(ctx, sessionId, audience, randomizationGroup, requiresEnrollment, hasCompletedStudy, fcc, fqm, fcm);
             workspace.setVendorTransformer(buildVendorTransformer(workspace));
-            map.put(sessionId, workspace);
+            workspace.restoreSnapshot();
+            previous = map.put(sessionId, workspace);
+            if (previous != null) {
+                // before the new workspace is indexed, as both are indexed under the same session ID
+                removeFromIndexes(previous);
+            }
+            addToIndexes(workspace);
+
+            // only once the session is registered may its credentials be used to fetch data shared with others
+            workspace.getPatientDataSet().addMember(workspace);
 
         } catch (Exception e) {
+            if (workspace != null) {
+                if (map.remove(sessionId, workspace)) {
+                    removeFromIndexes(workspace);
+                }
+                releasePatientDataSet(workspace.getPatientDataSet());
+            }
             throw new ConfigurationException(e);
+
+        } finally {
+            // a session relaunched (e.g. for another patient) replaces its workspace, which is then done with.  it's
+            // shut down only once its replacement has joined any data set they share, so that's never left memberless
+            if (previous != null) {
+                logger.info("replacing workspace for session=" + sessionId);
+                previous.shutdown();
+                releasePatientDataSet(previous.getPatientDataSet());
+                ctx.publishEvent(new WorkspaceShutdownEvent(previous));
+            }
         }
+
+        ctx.publishEvent(new WorkspaceCreatedEvent(workspace));
     }
 
     public UserWorkspace get(String sessionId) throws SessionMissingException {
-        if (map.containsKey(sessionId)) {
-            return map.get(sessionId);
+        UserWorkspace workspace = map.get(sessionId);
+        if (workspace != null) {
+            workspace.touch();
+            return workspace;
 
         } else {
             throw new SessionMissingException(sessionId);
         }
     }
 
+    Collection<UserWorkspace> getWorkspaces() {
+        return Collections.unmodifiableCollection(map.values());
+    }
+
+    /**
+     * @return the PatientDataSet for the specified patient, creating it if necessary.  each call must be balanced
+     * by a call to releasePatientDataSet()
+     */
+    PatientDataSet acquirePatientDataSet(Long internalPatientId, String patIdHash) {
+        synchronized (patientDataSets) {
+            PatientDataSet data = patientDataSets.get(internalPatientId);
+            if (data == null) {
+                data = new PatientDataSet(ctx, internalPatientId, patIdHash, fcm);
+                patientDataSets.put(internalPatientId, data);
+                logger.info("created shared data set for patient=" + internalPatientId);
+            }
+            patientDataSetReferences.merge(data, 1, Integer::sum);
+            return data;
+        }
+    }
+
+    void releasePatientDataSet(PatientDataSet data) {
+        synchronized (patientDataSets) {
+            Integer references = patientDataSetReferences.computeIfPresent(data, (k, v) -> v > 1 ? v - 1 : null);
+            if (references == null) {
+                patientDataSets.remove(data.getInternalPatientId(), data);
+                data.cleanUp();
+                logger.info("released shared data set for patient=" + data.getInternalPatientId());
+            }
+        }
+    }
+
+    List<PatientDataSet> getPatientDataSets() {
+        synchronized (patientDataSets) {
+            return new ArrayList<>(patientDataSets.values());
+        }
+    }
+
+    /**
+     * discards recommendations for the specified hooks for every patient, e.g. as their definitions have changed
+     */
+    public void invalidateRecommendations(Collection<String> hookIds) {
+        for (PatientDataSet data : getPatientDataSets()) {
+            for (String hookId : hookIds) {
+                data.invalidateRecommendations(hookId);
+            }
+        }
+    }
+
+    /**
+     * @return the most recently accessed workspace authenticated with the specified Omron user
+     */
     public UserWorkspace getByOmronUserId(String omronUserId) throws SessionMissingException {
-        for (UserWorkspace workspace : map.values()) {
-            MyOmronTokenData tokenData = workspace.getOmronTokenData();
-            if (tokenData != null && StringUtils.equals(tokenData.getUserIdToken(), omronUserId)) {
-                return workspace;
+        UserWorkspace mostRecent = null;
+        for (UserWorkspace workspace : lookup(sessionIdsByOmronUserId, omronUserId)) {
+            if (mostRecent == null || workspace.getLastAccessed() > mostRecent.getLastAccessed()) {
+                mostRecent = workspace;
+            }
+        }
+        if (mostRecent == null) {
+            throw new SessionMissingException("no session found for Omron User with id=" + omronUserId);
+        }
+        return mostRecent;
+    }
+
+    /**
+     * @return all workspaces for the specified patient, or an empty list if there are none
+     */
+    public List<UserWorkspace> getByInternalPatientId(Long internalPatientId) {
+        return lookup(sessionIdsByInternalPatientId, internalPatientId);
+    }
+
+    /**
+     * @return all workspaces for the specified REDCap participant, or an empty list if there are none
+     */
+    public List<UserWorkspace> getByRedcapId(String redcapId) {
+        return lookup(sessionIdsByRedcapId, redcapId);
+    }
+
+    /**
+     * keeps the Omron user ID index current as a workspace's Omron token data changes.  workspaces not (or no
+     * longer) registered are ignored, as they're indexed on registration
+     */
+    void reindexOmronUserId(UserWorkspace workspace, String previousOmronUserId) {
+        String sessionId = workspace.getSessionId();
+        String omronUserId = getOmronUserId(workspace);
+        if (map.get(sessionId) == workspace && ! StringUtils.equals(previousOmronUserId, omronUserId)) {
+            unindex(sessionIdsByOmronUserId, previousOmronUserId, sessionId);
+            index(sessionIdsByOmronUserId, omronUserId, sessionId);
+
+            // the workspace may have been shut down in the meantime, in which case its entry must not be left behind
+            if (map.get(sessionId) != workspace) {
+                unindex(sessionIdsByOmronUserId, omronUserId, sessionId);
             }
         }
-        throw new SessionMissingException("no session found for Omron User with id=" + omronUserId);
     }
 
     public boolean shutdown(String sessionId) {
-        if (map.containsKey(sessionId)) {
-            UserWorkspace workspace = map.remove(sessionId);
+        UserWorkspace workspace = map.remove(sessionId);
+        if (workspace != null) {
+            removeFromIndexes(workspace);
             workspace.shutdown();
+            releasePatientDataSet(workspace.getPatientDataSet());
+            ctx.publishEvent(new WorkspaceShutdownEvent(workspace));
             return true;
         }
         return false;
     }
 
+    private void addToIndexes(UserWorkspace workspace) {
+        String sessionId = workspace.getSessionId();
+        index(sessionIdsByOmronUserId, getOmronUserId(workspace), sessionId);
+        index(sessionIdsByInternalPatientId, workspace.getInternalPatientId(), sessionId);
+        index(sessionIdsByRedcapId, workspace.getRedcapId(), sessionId);
+    }
+
+    private void removeFromIndexes(UserWorkspace workspace) {
+        String sessionId = workspace.getSessionId();
+        unindex(sessionIdsByOmronUserId, getOmronUserId(workspace), sessionId);
+        unindex(sessionIdsByInternalPatientId, workspace.getInternalPatientId(), sessionId);
+        unindex(sessionIdsByRedcapId, workspace.getRedcapId(), sessionId);
+    }
+
+    private static String getOmronUserId(UserWorkspace workspace) {
+        MyOmronTokenData tokenData = workspace.getOmronTokenData();
+        return tokenData != null ?
+                tokenData.getUserIdToken() :
+                null;
+    }
+
+    private static <K> void index(Map<K, Set<String>> index, K key, String sessionId) {
+        if (key == null) return;
+        index.compute(key, (k, sessionIds) -> {
+            if (sessionIds == null) sessionIds = ConcurrentHashMap.newKeySet();
+            sessionIds.add(sessionId);
+            return sessionIds;
+        });
+    }
+
+    private static <K> void unindex(Map<K, Set<String>> index, K key, String sessionId) {
+        if (key == null) return;
+        index.computeIfPresent(key, (k, sessionIds) -> {
+            sessionIds.remove(sessionId);
+            return sessionIds.isEmpty() ? null : sessionIds;
+        });
+    }
+
+    private <K> List<UserWorkspace> lookup(Map<K, Set<String>> index, K key) {
+        List<UserWorkspace> list = new ArrayList<>();
+        Set<String> sessionIds = key != null ? index.get(key) : null;
+        if (sessionIds != null) {
+            for (String sessionId : sessionIds) {
+                UserWorkspace workspace = map.get(sessionId);
+                if (workspace != null) {
+                    list.add(workspace);
+                }
+            }
+        }
+        return list;
+    }
+
     private VendorTransformer buildVendorTransformer(UserWorkspace workspace) throws ClassNotFoundException, NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
         return (VendorTransformer) Class.forName(vendorTransformerClass)
                     .getDeclaredConstructor(UserWorkspace.class)
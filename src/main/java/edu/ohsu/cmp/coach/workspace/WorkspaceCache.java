@@ -0,0 +1,117 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import edu.ohsu.cmp.coach.config.WorkspaceCacheConfiguration;
+import edu.ohsu.cmp.coach.service.MetricsService;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.UnaryOperator;
+
+/**
+ * A typed, statistics-recording cache backing a single WorkspaceSlot.  If the slot is configured with a
+ * refresh interval, reads of an entry older than that interval trigger an asynchronous reload on the supplied
+ * Executor, and readers continue to receive the previous value until the reload completes.  Entries older than
+ * the expiry interval are discarded outright and must be rebuilt synchronously by the next reader.
+ * <p>
+ * If a MetricsService is supplied, the cache's statistics are also recorded to the application-wide metrics for
+ * its slot.
+ */
+public class WorkspaceCache<K, V> {
+    private final WorkspaceSlot slot;
+    private final LoadingCache<K, V> cache;
+
+    public WorkspaceCache(WorkspaceSlot slot, WorkspaceCacheConfiguration.Settings settings, Executor executor,
+                          MetricsService metrics, CacheLoader<K, V> loader) {
+        this.slot = slot;
+
+        Caffeine<Object, Object> builder = Caffeine.newBuilder()
+                .executor(executor);
+
+        if (metrics != null) {
+            builder.recordStats(() -> new WorkspaceCacheStatsCounter(slot, metrics));
+
+        } else {
+            builder.recordStats();
+        }
+
+        if (settings.getExpireAfterWrite() != null) {
+            builder.expireAfterWrite(settings.getExpireAfterWrite());
+        }
+
+        if (settings.isRefreshEnabled()) {
+            builder.refreshAfterWrite(settings.getRefreshAfterWrite());
+        }
+
+        this.cache = builder.build(loader);
+    }
+
+    public WorkspaceSlot getSlot() {
+        return slot;
+    }
+
+    public V get(K key) {
+        return cache.get(key);
+    }
+
+    public V getIfPresent(K key) {
+        return cache.getIfPresent(key);
+    }
+
+    public void put(K key, V value) {
+        cache.put(key, value);
+    }
+
+    /**
+     * asynchronously reloads the entry for the specified key.  the current value, if any, continues to be
+     * served until the reload completes.
+     * @return a future that completes with the reloaded value
+     */
+    public CompletableFuture<V> refresh(K key) {
+        return cache.refresh(key);
+    }
+
+    /**
+     * atomically replaces the cached value for the specified key with the result of applying the specified function
+     * to it.  does nothing if no value is cached.  a reload in progress for the key at the time will be discarded.
+     */
+    public void update(K key, UnaryOperator<V> function) {
+        cache.asMap().computeIfPresent(key, (k, v) -> function.apply(v));
+    }
+
+    public void invalidate(K key) {
+        cache.invalidate(key);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public void cleanUp() {
+        cache.cleanUp();
+    }
+
+    public Map<K, V> asMap() {
+        return cache.asMap();
+    }
+
+    /**
+     * @return the estimated heap retained by this cache's values
+     * @see WorkspaceWeigher
+     */
+    public long getEstimatedWeight() {
+        long weight = 0;
+        for (V value : cache.asMap().values()) {
+            weight += WorkspaceWeigher.estimate(value);
+        }
+        return weight;
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+}
@@ -0,0 +1,57 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.github.benmanes.caffeine.cache.stats.ConcurrentStatsCounter;
+import com.github.benmanes.caffeine.cache.stats.StatsCounter;
+import edu.ohsu.cmp.coach.service.MetricsService;
+
+/**
+ * Records a WorkspaceCache's statistics both locally, for that cache's own stats(), and to the application-wide
+ * metrics for its slot, which outlive any one cache
+ */
+class WorkspaceCacheStatsCounter implements StatsCounter {
+    private final WorkspaceSlot slot;
+    private final MetricsService metrics;
+    private final StatsCounter local = new ConcurrentStatsCounter();
+
+    WorkspaceCacheStatsCounter(WorkspaceSlot slot, MetricsService metrics) {
+        this.slot = slot;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void recordHits(int count) {
+        local.recordHits(count);
+        metrics.recordCacheHits(slot, count);
+    }
+
+    @Override
+    public void recordMisses(int count) {
+        local.recordMisses(count);
+        metrics.recordCacheMisses(slot, count);
+    }
+
+    @Override
+    public void recordLoadSuccess(long loadTime) {
+        local.recordLoadSuccess(loadTime);
+        metrics.recordCacheLoad(slot, loadTime, true);
+    }
+
+    @Override
+    public void recordLoadFailure(long loadTime) {
+        local.recordLoadFailure(loadTime);
+        metrics.recordCacheLoad(slot, loadTime, false);
+    }
+
+    @Override
+    public void recordEviction(int weight, RemovalCause cause) {
+        local.recordEviction(weight, cause);
+        metrics.recordCacheEviction(slot, cause);
+    }
+
+    @Override
+    public CacheStats snapshot() {
+        return local.snapshot();
+    }
+}
@@ -0,0 +1,10 @@
+package edu.ohsu.cmp.coach.workspace;
+
+/**
+ * Published once a new UserWorkspace has been registered, before it's been populated
+ */
+public class WorkspaceCreatedEvent extends WorkspaceEvent {
+    public WorkspaceCreatedEvent(UserWorkspace workspace) {
+        super(workspace);
+    }
+}
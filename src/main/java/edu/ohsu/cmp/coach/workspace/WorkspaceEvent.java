@@ -0,0 +1,27 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published over the course of a UserWorkspace's life, so that caches and background jobs can react to workspaces
+ * coming and going rather than polling UserWorkspaceService.  Subscribe with @EventListener on
+ * the subclass of interest.
+ */
+public abstract class WorkspaceEvent extends ApplicationEvent {
+    protected WorkspaceEvent(UserWorkspace workspace) {
+        super(workspace);
+    }
+
+    public UserWorkspace getWorkspace() {
+        return (UserWorkspace) getSource();
+    }
+
+    public String getSessionId() {
+        return getWorkspace().getSessionId();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{sessionId=" + getSessionId() + "}";
+    }
+}
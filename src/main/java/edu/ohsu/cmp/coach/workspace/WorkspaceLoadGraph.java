@@ -0,0 +1,110 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Executes a set of WorkspaceSlot build tasks, starting each one as soon as the slots it depends on have been
+ * built.  Independent slots run concurrently on the supplied Executor.  If a slot fails, slots that depend on
+ * it are skipped, but unrelated slots continue to build.
+ */
+public class WorkspaceLoadGraph {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final String sessionId;
+    private final Map<WorkspaceSlot, Runnable> tasks;
+
+    public WorkspaceLoadGraph(String sessionId) {
+        this.sessionId = sessionId;
+        this.tasks = new EnumMap<>(WorkspaceSlot.class);
+    }
+
+    public WorkspaceLoadGraph add(WorkspaceSlot slot, Runnable task) {
+        tasks.put(slot, task);
+        return this;
+    }
+
+    public CompletableFuture<WorkspaceLoadReport> execute(Executor executor) {
+        final WorkspaceLoadReport report = new WorkspaceLoadReport(sessionId);
+        final Map<WorkspaceSlot, CompletableFuture<Void>> futures = new EnumMap<>(WorkspaceSlot.class);
+
+        // enum constants can only reference constants declared before them, so iterating in declaration
+        // order guarantees that every dependency's future already exists by the time it's needed
+        for (Map.Entry<WorkspaceSlot, Runnable> entry : tasks.entrySet()) {
+            final WorkspaceSlot slot = entry.getKey();
+            final Runnable task = entry.getValue();
+
+            List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+            for (WorkspaceSlot dependency : slot.getDependencies()) {
+                if (futures.containsKey(dependency)) {
+                    dependencies.add(futures.get(dependency));
+                }
+            }
+
+            // the stage is submitted once its dependencies complete, which may be long after execute() returns.  if
+            // the executor rejects it then (e.g. the workspace has been shut down), its future must still complete,
+            // or dependents, and whoever's waiting for the report, would wait forever
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            CompletableFuture.allOf(dependencies.toArray(new CompletableFuture[0])).whenComplete((unused, throwable) -> {
+                if (throwable != null) {
+                    future.completeExceptionally(throwable);
+                    return;
+                }
+
+                try {
+                    executor.execute(() -> {
+                        try {
+                            runStage(report, slot, task);
+                            future.complete(null);
+
+                        } catch (Throwable t) {
+                            future.completeExceptionally(t);
+                        }
+                    });
+
+                } catch (RejectedExecutionException ree) {
+                    long now = System.currentTimeMillis();
+                    report.record(slot, now, now, false);
+                    logger.warn("couldn't schedule " + slot.getLabel() + " for session=" + sessionId + " - " + ree.getMessage());
+                    future.completeExceptionally(ree);
+                }
+            });
+
+            futures.put(slot, future);
+        }
+
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0]))
+                .handle((unused, throwable) -> {
+                    for (WorkspaceSlot slot : tasks.keySet()) {
+                        if ( ! report.hasTiming(slot) ) {
+                            logger.warn("skipped building " + slot.getLabel() + " for session=" + sessionId +
+                                    " - a dependency failed or the workspace was shut down");
+                        }
+                    }
+                    report.finish();
+                    return report;
+                });
+    }
+
+    private void runStage(WorkspaceLoadReport report, WorkspaceSlot slot, Runnable task) {
+        long start = System.currentTimeMillis();
+        try {
+            task.run();
+            report.record(slot, start, System.currentTimeMillis(), true);
+
+        } catch (RuntimeException e) {
+            report.record(slot, start, System.currentTimeMillis(), false);
+            logger.error("caught " + e.getClass().getName() + " building " + slot.getLabel() + " for session=" +
+                    sessionId + " - " + e.getMessage(), e);
+            throw e;
+        }
+    }
+}
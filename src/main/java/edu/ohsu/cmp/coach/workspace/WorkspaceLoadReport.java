@@ -0,0 +1,151 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.*;
+
+/**
+ * Per-stage and critical-path timings captured while populating a UserWorkspace via WorkspaceLoadGraph.
+ * All offsets are in milliseconds relative to the start of population.
+ */
+public class WorkspaceLoadReport {
+    private final String sessionId;
+    private final long startTime;
+    private final Map<WorkspaceSlot, StageTiming> timings;
+    private Long endTime = null;
+
+    public WorkspaceLoadReport(String sessionId) {
+        this.sessionId = sessionId;
+        this.startTime = System.currentTimeMillis();
+        this.timings = Collections.synchronizedMap(new EnumMap<>(WorkspaceSlot.class));
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public boolean isFinished() {
+        return endTime != null;
+    }
+
+    public long getTotalMillis() {
+        return (endTime != null ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    public boolean hasTiming(WorkspaceSlot slot) {
+        return timings.containsKey(slot);
+    }
+
+    public StageTiming getTiming(WorkspaceSlot slot) {
+        return timings.get(slot);
+    }
+
+    public Map<WorkspaceSlot, StageTiming> getTimings() {
+        synchronized (timings) {
+            return new EnumMap<>(timings);
+        }
+    }
+
+    public boolean isSuccessful() {
+        synchronized (timings) {
+            for (StageTiming timing : timings.values()) {
+                if ( ! timing.isSuccess() ) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the chain of dependent stages that determined when population finished, in execution order.
+     * each stage in the chain is the dependency of its successor that finished last.
+     */
+    public List<StageTiming> getCriticalPath() {
+        Map<WorkspaceSlot, StageTiming> map = getTimings();
+
+        StageTiming current = null;
+        for (StageTiming timing : map.values()) {
+            if (current == null || timing.getEndOffset() > current.getEndOffset()) {
+                current = timing;
+            }
+        }
+
+        LinkedList<StageTiming> path = new LinkedList<>();
+        while (current != null) {
+            path.addFirst(current);
+            StageTiming latest = null;
+            for (WorkspaceSlot dependency : current.getSlot().getDependencies()) {
+                StageTiming timing = map.get(dependency);
+                if (timing != null && (latest == null || timing.getEndOffset() > latest.getEndOffset())) {
+                    latest = timing;
+                }
+            }
+            current = latest;
+        }
+
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        List<String> stages = new ArrayList<>();
+        for (StageTiming timing : getTimings().values()) {
+            stages.add(timing.toString());
+        }
+
+        List<String> criticalPath = new ArrayList<>();
+        for (StageTiming timing : getCriticalPath()) {
+            criticalPath.add(timing.getSlot().getLabel() + " (" + timing.getDurationMillis() + "ms)");
+        }
+
+        return "session=" + sessionId + ", total=" + getTotalMillis() + "ms, " +
+                "stages=[" + StringUtils.join(stages, ", ") + "], " +
+                "criticalPath=[" + StringUtils.join(criticalPath, " -> ") + "]";
+    }
+
+    void record(WorkspaceSlot slot, long stageStart, long stageEnd, boolean success) {
+        timings.put(slot, new StageTiming(slot, stageStart - startTime, stageEnd - startTime, success));
+    }
+
+    void finish() {
+        endTime = System.currentTimeMillis();
+    }
+
+    public static final class StageTiming {
+        private final WorkspaceSlot slot;
+        private final long startOffset;
+        private final long endOffset;
+        private final boolean success;
+
+        public StageTiming(WorkspaceSlot slot, long startOffset, long endOffset, boolean success) {
+            this.slot = slot;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.success = success;
+        }
+
+        public WorkspaceSlot getSlot() {
+            return slot;
+        }
+
+        public long getStartOffset() {
+            return startOffset;
+        }
+
+        public long getEndOffset() {
+            return endOffset;
+        }
+
+        public long getDurationMillis() {
+            return endOffset - startOffset;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        @Override
+        public String toString() {
+            return slot.getLabel() + " " + startOffset + "-" + endOffset + "ms" + (success ? "" : " FAILED");
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import edu.ohsu.cmp.coach.service.MetricsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps the estimated memory held by all UserWorkspaces, and the PatientDataSets they share, within a global budget.
+ * <p>
+ * Bundles belonging to patients whose sessions have all been idle for a while are demoted to a compressed form
+ * regardless of budget.  If usage still exceeds the budget, the remaining patients' Bundles are demoted
+ * least-recently-used first, and as a last resort, least-recently-used patients have their caches dropped entirely,
+ * to be re-fetched if and when they're used again.
+ */
+@Component
+public class WorkspaceMemoryManager {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private UserWorkspaceService userWorkspaceService;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    @Value("${workspace.memory.budget-mb:512}")
+    private long budgetMb;
+
+    @Value("${workspace.memory.idle-demote-after-seconds:600}")
+    private long idleDemoteAfterSeconds;
+
+    // the most recently computed usage, reported by the memory gauges so that scraping them doesn't walk every cache
+    private volatile WorkspaceMemoryUsage lastUsage;
+
+    @PostConstruct
+    public void init() {
+        lastUsage = new WorkspaceMemoryUsage(budgetMb * 1024 * 1024, 0);
+        metricsService.monitorWorkspaceMemory(this);
+    }
+
+    /**
+     * @return the usage computed by the most recent budget check
+     */
+    public WorkspaceMemoryUsage getLastUsage() {
+        return lastUsage;
+    }
+
+    public WorkspaceMemoryUsage getUsage() {
+        List<UserWorkspace> workspaces = new ArrayList<>(userWorkspaceService.getWorkspaces());
+        WorkspaceMemoryUsage usage = new WorkspaceMemoryUsage(budgetMb * 1024 * 1024, workspaces.size());
+        for (PatientDataSet data : userWorkspaceService.getPatientDataSets()) {
+            addUsage(usage, data.getCaches());
+        }
+        for (UserWorkspace workspace : workspaces) {
+            addUsage(usage, workspace.getCaches());
+        }
+        lastUsage = usage;
+        return usage;
+    }
+
+    private void addUsage(WorkspaceMemoryUsage usage, List<WorkspaceCache<?, ?>> caches) {
+        for (WorkspaceCache<?, ?> cache : caches) {
+            usage.addHot(cache.getSlot(), cache.getEstimatedWeight());
+            if (cache instanceof CompressibleBundleCache) {
+                usage.addCompressed(cache.getSlot(), ((CompressibleBundleCache) cache).getCompressedWeight());
+            }
+        }
+    }
+
+    /**
+     * a freshly populated workspace is the most likely thing to push us over budget
+     */
+    @EventListener
+    public void onWorkspacePopulated(WorkspacePopulatedEvent event) {
+        checkBudget();
+    }
+
+    /**
+     * enforces the budget only if it's currently exceeded
+     */
+    public void checkBudget() {
+        if (getUsage().isOverBudget()) {
+            enforceBudget();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${workspace.memory.check-interval-ms:60000}")
+    public synchronized void enforceBudget() {
+        long start = System.currentTimeMillis();
+
+        List<PatientDataSet> dataSets = userWorkspaceService.getPatientDataSets();
+        dataSets.sort(Comparator.comparingLong(PatientDataSet::getLastAccessed));     // least-recently used first
+
+        long idleThreshold = start - idleDemoteAfterSeconds * 1000;
+        long released = 0;
+        for (PatientDataSet data : dataSets) {
+            if (data.getLastAccessed() < idleThreshold) {
+                released += data.demoteBundles();
+            }
+        }
+
+        WorkspaceMemoryUsage usage = getUsage();
+        if (usage.isOverBudget()) {
+            logger.info("workspace memory over budget (" + usage + ") - demoting Bundles");
+            for (PatientDataSet data : dataSets) {
+                released += data.demoteBundles();
+                usage = getUsage();
+                if ( ! usage.isOverBudget() ) break;
+            }
+        }
+
+        if (usage.isOverBudget()) {
+            logger.warn("workspace memory still over budget after demoting all Bundles (" + usage + ") - " +
+                    "clearing caches of least-recently used patients");
+            for (PatientDataSet data : dataSets) {
+                data.clearCaches();
+                usage = getUsage();
+                if ( ! usage.isOverBudget() ) break;
+            }
+        }
+
+        if (released > 0) {
+            logger.info("released ~" + (released / 1024) + "KB of workspace memory (took " +
+                    (System.currentTimeMillis() - start) + "ms) - " + usage);
+
+        } else {
+            logger.debug("workspace memory usage: " + usage);
+        }
+    }
+}
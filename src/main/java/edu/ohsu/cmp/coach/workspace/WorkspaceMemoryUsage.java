@@ -0,0 +1,75 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A point-in-time snapshot of the estimated memory held by all UserWorkspaces, broken down by tier and slot.
+ * "hot" data is held as live objects; "compressed" data has been demoted to its serialized, compressed form.
+ */
+public class WorkspaceMemoryUsage {
+    private final long budgetBytes;
+    private final int workspaceCount;
+    private final Map<String, Long> hotBytesBySlot = new TreeMap<>();
+    private final Map<String, Long> compressedBytesBySlot = new TreeMap<>();
+    private long hotBytes = 0;
+    private long compressedBytes = 0;
+
+    WorkspaceMemoryUsage(long budgetBytes, int workspaceCount) {
+        this.budgetBytes = budgetBytes;
+        this.workspaceCount = workspaceCount;
+    }
+
+    void addHot(WorkspaceSlot slot, long bytes) {
+        hotBytes += bytes;
+        hotBytesBySlot.merge(slot.getConfigKey(), bytes, Long::sum);
+    }
+
+    void addCompressed(WorkspaceSlot slot, long bytes) {
+        compressedBytes += bytes;
+        compressedBytesBySlot.merge(slot.getConfigKey(), bytes, Long::sum);
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public int getWorkspaceCount() {
+        return workspaceCount;
+    }
+
+    public long getHotBytes() {
+        return hotBytes;
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    public long getTotalBytes() {
+        return hotBytes + compressedBytes;
+    }
+
+    public boolean isOverBudget() {
+        return getTotalBytes() > budgetBytes;
+    }
+
+    public Map<String, Long> getHotBytesBySlot() {
+        return Collections.unmodifiableMap(hotBytesBySlot);
+    }
+
+    public Map<String, Long> getCompressedBytesBySlot() {
+        return Collections.unmodifiableMap(compressedBytesBySlot);
+    }
+
+    @Override
+    public String toString() {
+        return "workspaces=" + workspaceCount +
+                ", hot=" + (hotBytes / 1024) + "KB" +
+                ", compressed=" + (compressedBytes / 1024) + "KB" +
+                ", budget=" + (budgetBytes / 1024) + "KB" +
+                ", hotBySlot=" + hotBytesBySlot +
+                ", compressedBySlot=" + compressedBytesBySlot;
+    }
+}
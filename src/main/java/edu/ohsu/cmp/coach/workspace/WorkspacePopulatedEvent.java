@@ -0,0 +1,26 @@
+package edu.ohsu.cmp.coach.workspace;
+
+/**
+ * Published each time a UserWorkspace finishes populating, whether or not every slot was built successfully
+ */
+public class WorkspacePopulatedEvent extends WorkspaceEvent {
+    private final WorkspaceLoadReport report;
+    private final boolean revalidated;
+
+    public WorkspacePopulatedEvent(UserWorkspace workspace, WorkspaceLoadReport report, boolean revalidated) {
+        super(workspace);
+        this.report = report;
+        this.revalidated = revalidated;
+    }
+
+    public WorkspaceLoadReport getReport() {
+        return report;
+    }
+
+    /**
+     * @return true if the workspace was populated by revalidating data restored from a snapshot
+     */
+    public boolean isRevalidated() {
+        return revalidated;
+    }
+}
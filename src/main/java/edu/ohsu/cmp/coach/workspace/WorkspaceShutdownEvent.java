@@ -0,0 +1,10 @@
+package edu.ohsu.cmp.coach.workspace;
+
+/**
+ * Published once a UserWorkspace has been shut down and removed from the registry
+ */
+public class WorkspaceShutdownEvent extends WorkspaceEvent {
+    public WorkspaceShutdownEvent(UserWorkspace workspace) {
+        super(workspace);
+    }
+}
@@ -0,0 +1,54 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The individual units of data that make up a populated UserWorkspace, along with the other slots each one
+ * depends on.  Dependencies declared here are the *real* ordering constraints - anything not listed may be
+ * built concurrently.  A dependency must be declared before the slot that references it.
+ */
+public enum WorkspaceSlot {
+    PATIENT("Patient"),
+    ORDER_SERVICE_REQUESTS("Order ServiceRequests"),
+    REMOTE_GOALS("remote Goals", ORDER_SERVICE_REQUESTS),
+    BP_GOAL_CHECK("BP Goal check", REMOTE_GOALS),
+    ENCOUNTERS("Encounters"),
+    PROTOCOL_OBSERVATIONS("Protocol Observations"),
+    REMOTE_BLOOD_PRESSURES("remote Blood Pressures", ENCOUNTERS, PROTOCOL_OBSERVATIONS),
+    REMOTE_PULSES("remote Pulses", ENCOUNTERS, PROTOCOL_OBSERVATIONS),
+    ENCOUNTER_DIAGNOSIS_CONDITIONS("Encounter Diagnosis Conditions"),
+    REMOTE_ADVERSE_EVENTS("remote Adverse Events", PATIENT, ENCOUNTER_DIAGNOSIS_CONDITIONS),
+    MEDICATIONS("Medications"),
+    PROBLEM_LIST_CONDITIONS("Problem List Conditions"),
+    OTHER_SUPPLEMENTAL_RESOURCES("Supplemental Resources"),
+    HYPOTENSION_ADVERSE_EVENTS("hypotension Adverse Events", PATIENT, REMOTE_BLOOD_PRESSURES),
+    CARDS("Cards", PATIENT, BP_GOAL_CHECK, REMOTE_BLOOD_PRESSURES, REMOTE_PULSES, REMOTE_ADVERSE_EVENTS,
+            MEDICATIONS, PROBLEM_LIST_CONDITIONS, OTHER_SUPPLEMENTAL_RESOURCES, HYPOTENSION_ADVERSE_EVENTS);
+
+    private final String label;
+    private final Set<WorkspaceSlot> dependencies;
+
+    WorkspaceSlot(String label, WorkspaceSlot ... dependencies) {
+        this.label = label;
+        // EnumSet can't be used here, as the enum's constants aren't available until its initialization completes
+        this.dependencies = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(dependencies)));
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public Set<WorkspaceSlot> getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * @return the key used to identify this slot in configuration and metrics, e.g. "remote-blood-pressures"
+     */
+    public String getConfigKey() {
+        return name().toLowerCase().replace('_', '-');
+    }
+}
@@ -0,0 +1,64 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import edu.ohsu.cmp.coach.config.WorkspaceCacheConfiguration;
+import edu.ohsu.cmp.coach.service.MetricsService;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * A WorkspaceCache holding exactly one value, for slots that aren't further keyed (i.e. everything but Cards)
+ */
+public class WorkspaceSlotCache<V> extends WorkspaceCache<WorkspaceSlot, V> {
+    private final Supplier<V> loader;
+
+    public WorkspaceSlotCache(WorkspaceSlot slot, WorkspaceCacheConfiguration.Settings settings, Executor executor,
+                              MetricsService metrics, Supplier<V> loader) {
+        super(slot, settings, executor, metrics, key -> load(slot, metrics, loader));
+        this.loader = () -> load(slot, metrics, loader);
+    }
+
+    private static <V> V load(WorkspaceSlot slot, MetricsService metrics, Supplier<V> loader) {
+        V value = loader.get();
+        if (metrics != null) {
+            metrics.recordSlotEntries(slot, value);
+        }
+        return value;
+    }
+
+    public V get() {
+        return get(getSlot());
+    }
+
+    public V getIfPresent() {
+        return getIfPresent(getSlot());
+    }
+
+    public void put(V value) {
+        put(getSlot(), value);
+    }
+
+    public CompletableFuture<V> refresh() {
+        return refresh(getSlot());
+    }
+
+    /**
+     * synchronously rebuilds the cached value on the calling thread.  the current value, if any, continues to be
+     * served until the rebuild completes.
+     */
+    public V reload() {
+        V value = loader.get();
+        put(value);
+        return value;
+    }
+
+    public void update(UnaryOperator<V> function) {
+        update(getSlot(), function);
+    }
+
+    public void invalidate() {
+        invalidate(getSlot());
+    }
+}
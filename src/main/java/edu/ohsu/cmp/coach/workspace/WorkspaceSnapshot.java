@@ -0,0 +1,38 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The data held by a UserWorkspace's slot caches at a point in time, as persisted by WorkspaceSnapshotStore.
+ * Slot data is keyed by WorkspaceSlot config key.
+ */
+public class WorkspaceSnapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Date createdDate;
+    private final LinkedHashMap<String, Serializable> slots = new LinkedHashMap<>();
+
+    public WorkspaceSnapshot() {
+        this.createdDate = new Date();
+    }
+
+    public Date getCreatedDate() {
+        return createdDate;
+    }
+
+    public void put(WorkspaceSlot slot, Serializable value) {
+        slots.put(slot.getConfigKey(), value);
+    }
+
+    public Serializable get(WorkspaceSlot slot) {
+        return slots.get(slot.getConfigKey());
+    }
+
+    public Map<String, Serializable> getSlots() {
+        return Collections.unmodifiableMap(slots);
+    }
+}
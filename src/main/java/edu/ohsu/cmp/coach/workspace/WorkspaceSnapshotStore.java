@@ -0,0 +1,169 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import edu.ohsu.cmp.coach.util.EncryptionUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persists WorkspaceSnapshots to local disk so that a participant's workspace can be restored immediately when
+ * they return, or after a redeploy, rather than rebuilt from scratch against the EHR.
+ * <p>
+ * Snapshots are keyed by the salted patient hash stored in MyPatient, so no patient identifiers appear in file
+ * names.  Contents are serialized, gzip-compressed, and encrypted with AES-GCM, with the patient hash bound as
+ * associated data so a snapshot can't be swapped in for a different patient.
+ */
+@Component
+public class WorkspaceSnapshotStore {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final String FILE_EXTENSION = ".snapshot";
+
+    // snapshots only ever contain JDK collections, HAPI structures, COACH models, and the leanly-parsed vitals
+    // records models may hold in place of their source Observations
+    private static final ObjectInputFilter INPUT_FILTER = ObjectInputFilter.Config.createFilter(
+            "java.lang.*;java.util.*;java.math.*;org.hl7.fhir.**;ca.uhn.fhir.**;edu.ohsu.cmp.coach.model.**;" +
+                    "edu.ohsu.cmp.coach.fhir.VitalsRecord;edu.ohsu.cmp.coach.fhir.VitalsRecord$Component;" +
+                    "edu.ohsu.cmp.coach.workspace.WorkspaceSnapshot;!*"
+    );
+
+    private final boolean enabled;
+    private final Path directory;
+    private final long maxAgeMillis;
+    private final SecretKey key;
+
+    public WorkspaceSnapshotStore(@Value("${workspace.snapshot.enabled:false}") boolean enabled,
+                                  @Value("${workspace.snapshot.directory:}") String directory,
+                                  @Value("${workspace.snapshot.max-age-seconds:14400}") long maxAgeSeconds,
+                                  @Value("${workspace.snapshot.encryption-key:}") String encryptionKey) {
+        this.maxAgeMillis = maxAgeSeconds * 1000;
+
+        if ( ! enabled ) {
+            this.enabled = false;
+            this.directory = null;
+            this.key = null;
+            return;
+        }
+
+        SecretKey key = null;
+        Path path = null;
+        try {
+            key = EncryptionUtil.buildKey(encryptionKey);
+
+            path = StringUtils.isNotBlank(directory) ?
+                    Paths.get(directory) :
+                    Paths.get(System.getProperty("java.io.tmpdir"), "coach-workspace-snapshots");
+            createDirectory(path);
+
+        } catch (Exception e) {
+            logger.error("caught " + e.getClass().getName() + " configuring workspace snapshots - snapshots will " +
+                    "be disabled - " + e.getMessage(), e);
+        }
+
+        this.enabled = key != null && path != null;
+        this.directory = path;
+        this.key = key;
+
+        if (this.enabled) {
+            logger.info("workspace snapshots enabled, using directory " + path);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void write(String patIdHash, WorkspaceSnapshot snapshot) throws IOException, GeneralSecurityException {
+        if ( ! enabled ) return;
+
+        long start = System.currentTimeMillis();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(baos))) {
+            out.writeObject(snapshot);
+        }
+
+        byte[] encrypted = EncryptionUtil.encrypt(key, baos.toByteArray(), patIdHash);
+
+        Path file = getFile(patIdHash);
+        Path temp = Files.createTempFile(directory, patIdHash, ".tmp");
+        try {
+            Files.write(temp, encrypted);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        logger.debug("wrote workspace snapshot " + file.getFileName() + " (size=" + (encrypted.length / 1024) +
+                "KB, took " + (System.currentTimeMillis() - start) + "ms)");
+    }
+
+    /**
+     * @return the snapshot for the specified patient, or null if there isn't a usable one
+     */
+    public WorkspaceSnapshot read(String patIdHash) {
+        if ( ! enabled ) return null;
+
+        Path file = getFile(patIdHash);
+        try {
+            if ( ! Files.exists(file) ) return null;
+
+            if (System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis() > maxAgeMillis) {
+                logger.debug("workspace snapshot " + file.getFileName() + " has expired - deleting -");
+                Files.deleteIfExists(file);
+                return null;
+            }
+
+            byte[] decrypted = EncryptionUtil.decrypt(key, Files.readAllBytes(file), patIdHash);
+
+            try (ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(decrypted)))) {
+                in.setObjectInputFilter(INPUT_FILTER);
+                return (WorkspaceSnapshot) in.readObject();
+            }
+
+        } catch (Exception e) {
+            logger.warn("caught " + e.getClass().getName() + " reading workspace snapshot " + file.getFileName() +
+                    " - ignoring - " + e.getMessage());
+            delete(patIdHash);
+            return null;
+        }
+    }
+
+    public void delete(String patIdHash) {
+        if ( ! enabled ) return;
+
+        try {
+            Files.deleteIfExists(getFile(patIdHash));
+
+        } catch (IOException e) {
+            logger.warn("caught " + e.getClass().getName() + " deleting workspace snapshot for " + patIdHash +
+                    " - " + e.getMessage());
+        }
+    }
+
+    private Path getFile(String patIdHash) {
+        return directory.resolve(patIdHash + FILE_EXTENSION);
+    }
+
+    private void createDirectory(Path path) throws IOException {
+        if (Files.exists(path)) return;
+
+        try {
+            Files.createDirectories(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+
+        } catch (UnsupportedOperationException e) {
+            Files.createDirectories(path);      // non-POSIX filesystem
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import edu.ohsu.cmp.coach.service.MetricsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Application-wide, bounded pool of worker threads that executes background work for every UserWorkspace.
+ * Each session submits tasks through its own SessionExecutor (see forSession()); sessions with pending work
+ * are served round-robin, and no single session may occupy more than a configured number of workers at once.
+ * <p>
+ * Backpressure is applied at submission time: when a session's queue (or the global queue) is full, callers
+ * outside the pool block for up to the configured submit timeout before the task is rejected.  Tasks submitted
+ * from a worker thread (e.g. continuations of work already admitted) are never blocked, to avoid deadlock.
+ */
+@Component
+public class WorkspaceTaskScheduler {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final String THREAD_NAME_PREFIX = "workspace-";
+
+    private final int poolSize;
+    private final int sessionMaxConcurrency;
+    private final int sessionQueueLimit;
+    private final int maxQueuedTasks;
+    private final long submitTimeoutMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final Condition spaceAvailable = lock.newCondition();
+
+    private final Map<String, SessionExecutor> sessions = new HashMap<>();
+    private final Deque<SessionExecutor> readySessions = new ArrayDeque<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final ThreadLocal<Boolean> isWorkerThread = ThreadLocal.withInitial(() -> false);
+
+    private int queuedTaskCount = 0;
+    private boolean shutdown = false;
+
+    private final AtomicInteger activeTaskCount = new AtomicInteger(0);
+    private final AtomicLong completedTaskCount = new AtomicLong(0);
+    private final AtomicLong rejectedTaskCount = new AtomicLong(0);
+    private final AtomicLong totalWaitNanos = new AtomicLong(0);
+    private final AtomicLong maxWaitNanos = new AtomicLong(0);
+
+    public WorkspaceTaskScheduler(@Value("${workspace.executor.pool-size:16}") int poolSize,
+                                  @Value("${workspace.executor.session-max-concurrency:4}") int sessionMaxConcurrency,
+                                  @Value("${workspace.executor.session-queue-limit:100}") int sessionQueueLimit,
+                                  @Value("${workspace.executor.max-queued-tasks:5000}") int maxQueuedTasks,
+                                  @Value("${workspace.executor.submit-timeout-ms:30000}") long submitTimeoutMillis,
+                                  MetricsService metrics) {
+        this.poolSize = poolSize;
+        this.sessionMaxConcurrency = sessionMaxConcurrency;
+        this.sessionQueueLimit = sessionQueueLimit;
+        this.maxQueuedTasks = maxQueuedTasks;
+        this.submitTimeoutMillis = submitTimeoutMillis;
+
+        logger.info("starting workspace task scheduler with poolSize=" + poolSize + ", sessionMaxConcurrency=" +
+                sessionMaxConcurrency + ", sessionQueueLimit=" + sessionQueueLimit + ", maxQueuedTasks=" +
+                maxQueuedTasks + ", submitTimeoutMs=" + submitTimeoutMillis);
+
+        for (int i = 1; i <= poolSize; i ++) {
+            Thread t = new Thread(this::workerLoop, THREAD_NAME_PREFIX + i);
+            t.setDaemon(true);
+            workers.add(t);
+            t.start();
+        }
+
+        if (metrics != null) {
+            metrics.monitorWorkspaceTaskScheduler(this);
+        }
+    }
+
+    /**
+     * @return a new Executor through which all background work for the specified session should be submitted.
+     * each call returns a fresh instance, which replaces any previously registered for the session, so that when a
+     * session's workspace is relaunched, shutting down the old workspace's executor doesn't affect the new one's.
+     */
+    public SessionExecutor forSession(String sessionId) {
+        lock.lock();
+        try {
+            SessionExecutor executor = new SessionExecutor(sessionId);
+            sessions.put(sessionId, executor);
+            return executor;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getSessionCount() {
+        lock.lock();
+        try {
+            return sessions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueuedTaskCount() {
+        lock.lock();
+        try {
+            return queuedTaskCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getActiveTaskCount() {
+        return activeTaskCount.get();
+    }
+
+    public long getCompletedTaskCount() {
+        return completedTaskCount.get();
+    }
+
+    public long getRejectedTaskCount() {
+        return rejectedTaskCount.get();
+    }
+
+    public double getAverageWaitMillis() {
+        long completed = completedTaskCount.get();
+        return completed > 0 ?
+                TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.get()) / 1000.0 / completed :
+                0;
+    }
+
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        logger.info("shutting down workspace task scheduler");
+        lock.lock();
+        try {
+            shutdown = true;
+            workAvailable.signalAll();
+            spaceAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread t : workers) {
+            t.interrupt();
+        }
+    }
+
+
+//////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private void workerLoop() {
+        isWorkerThread.set(true);
+        while (true) {
+            QueuedTask task;
+            lock.lock();
+            try {
+                while ( ! shutdown && readySessions.isEmpty() ) {
+                    workAvailable.await();
+                }
+                if (shutdown) return;
+
+                SessionExecutor session = readySessions.pollFirst();
+                task = session.queue.pollFirst();
+                queuedTaskCount --;
+                session.running ++;
+                session.inReadyQueue = false;
+                if (session.isReady()) {
+                    session.enqueueReady();     // back of the line, so other sessions get a turn
+                }
+                spaceAvailable.signalAll();
+
+            } catch (InterruptedException e) {
+                return;
+
+            } finally {
+                lock.unlock();
+            }
+
+            run(task);
+        }
+    }
+
+    private void run(QueuedTask task) {
+        long waitNanos = System.nanoTime() - task.enqueuedNanos;
+        totalWaitNanos.addAndGet(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+
+        activeTaskCount.incrementAndGet();
+        try {
+            task.runnable.run();
+
+        } catch (Throwable t) {
+            logger.error("caught " + t.getClass().getName() + " executing task for session=" + task.session.sessionId +
+                    " - " + t.getMessage(), t);
+
+        } finally {
+            activeTaskCount.decrementAndGet();
+            completedTaskCount.incrementAndGet();
+
+            lock.lock();
+            try {
+                SessionExecutor session = task.session;
+                session.running --;
+                if (session.isReady() && ! session.inReadyQueue) {
+                    session.enqueueReady();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final class QueuedTask {
+        private final SessionExecutor session;
+        private final Runnable runnable;
+        private final long enqueuedNanos;
+
+        private QueuedTask(SessionExecutor session, Runnable runnable) {
+            this.session = session;
+            this.runnable = runnable;
+            this.enqueuedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * A per-session view of the shared scheduler.  Shutting it down discards that session's pending tasks
+     * without affecting any other session.
+     */
+    public final class SessionExecutor implements Executor {
+        private final String sessionId;
+        private final Deque<QueuedTask> queue = new ArrayDeque<>();
+        private int running = 0;
+        private boolean inReadyQueue = false;
+        private boolean closed = false;
+
+        private SessionExecutor(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        public int getQueuedTaskCount() {
+            lock.lock();
+            try {
+                return queue.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void execute(Runnable runnable) {
+            // continuations of work already running in the pool are always admitted, to avoid deadlock
+            boolean fromWorker = isWorkerThread.get();
+            submit(runnable, ! fromWorker, ! fromWorker);
+        }
+
+        /**
+         * @return an Executor that submits to this session's queue, but rejects immediately rather than waiting
+         * for space.  use for opportunistic background work (e.g. cache refreshes) that shouldn't hold up callers
+         */
+        public Executor nonBlocking() {
+            return runnable -> submit(runnable, true, false);
+        }
+
+        private void submit(Runnable runnable, boolean enforceLimits, boolean mayBlock) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(submitTimeoutMillis);
+
+            lock.lock();
+            try {
+                while (enforceLimits && ! closed && ! shutdown &&
+                        (queue.size() >= sessionQueueLimit || queuedTaskCount >= maxQueuedTasks)) {
+                    long remaining = deadline - System.nanoTime();
+                    if ( ! mayBlock || remaining <= 0 ) {
+                        rejectedTaskCount.incrementAndGet();
+                        throw new RejectedExecutionException("workspace task queue full for session=" + sessionId +
+                                " (sessionQueued=" + queue.size() + ", totalQueued=" + queuedTaskCount + ")");
+                    }
+                    try {
+                        spaceAvailable.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        rejectedTaskCount.incrementAndGet();
+                        throw new RejectedExecutionException("interrupted waiting to submit task for session=" + sessionId);
+                    }
+                }
+
+                if (closed || shutdown) {
+                    rejectedTaskCount.incrementAndGet();
+                    throw new RejectedExecutionException("executor for session=" + sessionId + " has been shut down");
+                }
+
+                queue.addLast(new QueuedTask(this, runnable));
+                queuedTaskCount ++;
+                if (isReady() && ! inReadyQueue) {
+                    enqueueReady();
+                }
+
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void shutdown() {
+            lock.lock();
+            try {
+                closed = true;
+                queuedTaskCount -= queue.size();
+                queue.clear();
+                if (inReadyQueue) {
+                    readySessions.remove(this);
+                    inReadyQueue = false;
+                }
+                sessions.remove(sessionId, this);
+                spaceAvailable.signalAll();
+
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isReady() {
+            return ! queue.isEmpty() && running < sessionMaxConcurrency;
+        }
+
+        // must be called while holding the lock
+        private void enqueueReady() {
+            readySessions.addLast(this);
+            inReadyQueue = true;
+            workAvailable.signal();
+        }
+    }
+}
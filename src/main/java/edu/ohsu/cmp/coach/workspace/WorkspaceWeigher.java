@@ -0,0 +1,55 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cheap, rough estimates of the heap retained by workspace data.  These are not measurements - they exist so that
+ * workspaces can be compared with one another and against a budget without walking object graphs.
+ */
+public final class WorkspaceWeigher {
+    // typical retained size of a parsed HAPI resource, including its child elements
+    public static final long RESOURCE_WEIGHT = 4096;
+
+    // typical retained size of one of our own model objects (BloodPressureModel, Card, etc.), excluding any FHIR
+    // resources it references
+    public static final long MODEL_WEIGHT = 512;
+
+    private WorkspaceWeigher() {
+    }
+
+    public static long estimate(Object value) {
+        if (value == null) {
+            return 0;
+
+        } else if (value instanceof Bundle) {
+            return ((Bundle) value).getEntry().size() * RESOURCE_WEIGHT;
+
+        } else if (value instanceof Resource) {
+            return RESOURCE_WEIGHT;
+
+        } else if (value instanceof Map) {
+            // the same value is frequently stored under several keys (e.g. Encounters keyed by ID and identifier),
+            // so only count each distinct value once
+            Set<Object> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+            distinct.addAll(((Map<?, ?>) value).values());
+            return estimate(distinct);
+
+        } else if (value instanceof Collection) {
+            long weight = 0;
+            for (Object o : (Collection<?>) value) {
+                weight += estimate(o);
+            }
+            return weight;
+
+        } else {
+            return MODEL_WEIGHT;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+drop table if exists fhir_sync_state;
+create table fhir_sync_state (
+    id int not null auto_increment primary key,
+    patId int not null,
+    resourceType varchar(50) not null,
+    queryHash char(64) not null,
+    watermark datetime(3),
+    lastFullSync datetime not null,
+    lastSynced datetime not null,
+    resourceCount int not null,
+    bundleData longblob not null
+);
+
+create unique index idxPatIdQueryHash on fhir_sync_state (patId, queryHash);
@@ -0,0 +1,16 @@
+drop table if exists fhir_sync_state;
+create table fhir_sync_state (
+    id int not null identity(1,1) primary key,
+    patId int not null,
+    resourceType varchar(50) not null,
+    queryHash char(64) not null,
+    watermark datetime2(3),
+    lastFullSync datetime not null,
+    lastSynced datetime not null,
+    resourceCount int not null,
+    bundleData varbinary(max) not null
+);
+go
+
+create unique index idxPatIdQueryHash on fhir_sync_state (patId, queryHash);
+go
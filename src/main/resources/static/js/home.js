@@ -28,15 +28,42 @@ function getBloodPressureObservations(_callback) {
     $.ajax({
         method: "POST",
         url: "/blood-pressure-observations-list"
-    }).done(function(bpdata) {
-        bpdata.forEach(function(item) {
-            item.readingDate = new Date(item.readingDate);
-        });
+    }).done(function(bpdata, textStatus, jqXHR) {
+        _callback(prepareBloodPressureObservations(bpdata), parseInt(jqXHR.getResponseHeader('X-Vitals-Version')));
+    });
+}
 
-        bpdata.sort(function(a, b) {
-            return a.readingDate - b.readingDate;
-        });
-        _callback(bpdata);
+function prepareBloodPressureObservations(bpdata) {
+    bpdata.forEach(function(item) {
+        item.readingDate = new Date(item.readingDate);
+    });
+
+    bpdata.sort(function(a, b) {
+        return a.readingDate - b.readingDate;
+    });
+
+    return bpdata;
+}
+
+function getVitalsVersion(_callback) {
+    $.ajax({
+        method: "POST",
+        url: "/vitals-version"
+    }).done(function(vitalsVersion) {
+        _callback(vitalsVersion);
+    });
+}
+
+// vitals data may still be refreshing in the background after new readings are added.  the server serves whatever
+// it has in the meantime, so keep checking until the refresh completes, and redraw the chart if the data changed
+function checkVitalsVersion() {
+    getVitalsVersion(function(vitalsVersion) {
+        if (vitalsVersion.version !== window.vitalsVersion) {
+            refreshChart();
+
+        } else if (vitalsVersion.refreshing) {
+            setTimeout(checkVitalsVersion, 2000);
+        }
     });
 }
 
@@ -132,16 +159,24 @@ function populateOmronStatus(data) {
 }
 
 function refreshChart() {
+    getBloodPressureObservations(function(bpdata, vitalsVersion) {
+        showBloodPressureObservations(bpdata, vitalsVersion);
+    });
+}
+
+function showBloodPressureObservations(bpdata, vitalsVersion) {
     // calling buildChart() without first replacing the DOM element creates wonkiness
     $('#chart').replaceWith('<canvas id="chart"></canvas>');
-    getBloodPressureObservations(function(bpdata) {
-        window.bpdata = bpdata;
-        window.bpchart = {};
-        window.bpchart.data = window.bpdata;
 
-        populateSummaryDiv();
-        buildChart();
-    });
+    window.bpdata = bpdata;
+    window.vitalsVersion = vitalsVersion;
+    window.bpchart = {};
+    window.bpchart.data = window.bpdata;
+
+    populateSummaryDiv();
+    buildChart();
+
+    checkVitalsVersion();
 }
 
 function refreshAdverseEvents() {
@@ -160,47 +195,115 @@ function refreshMedications() {
 
 function refreshRecommendations() {
     getRecommendations(function(container, cards) {
-        if (cards) {
-            let html = renderCards(cards);
-            $(container).html(html);
-            if (html === '') {
-                $(container).closest('.recommendation').addClass('hidden');
+        populateRecommendation(container, cards);
+    });
+}
 
-            } else {
-                $(container).closest('.recommendation').removeClass('hidden');
-                $(container).find('.bpGoal input.systolic').inputmask({
-                    regex: "1?[0-9]{2}"
-                });
-                $(container).find('.bpGoal input.diastolic').inputmask({
-                    regex: "1?[0-9]{2}"
-                });
-            }
+function populateRecommendation(container, cards) {
+    if (cards) {
+        let html = renderCards(cards);
+        $(container).html(html);
+        if (html === '') {
+            $(container).closest('.recommendation').addClass('hidden');
+
+        } else {
+            $(container).closest('.recommendation').removeClass('hidden');
+            $(container).find('.bpGoal input.systolic').inputmask({
+                regex: "1?[0-9]{2}"
+            });
+            $(container).find('.bpGoal input.diastolic').inputmask({
+                regex: "1?[0-9]{2}"
+            });
         }
-    });
+    }
 }
 
 function refreshOmronStatus() {
     getOmronStatus(function(omronStatus) {
-        populateOmronStatus(omronStatus);
+        showOmronStatus(omronStatus);
 
         if (omronStatus !== undefined && (omronStatus.status === 'INITIATING_SYNC' || omronStatus.status === 'SYNCHRONIZING')) {
             setTimeout(refreshOmronStatus, 1000);
-
-        } else if (isOmronSyncCompleted(omronStatus)) {
-            setTimeout(refreshOmronStatusAndPageAssets, 5000);
         }
-
-        window.omronStatus = omronStatus;
     });
 }
 
+function showOmronStatus(omronStatus) {
+    populateOmronStatus(omronStatus);
+
+    if (isOmronSyncCompleted(omronStatus)) {
+        setTimeout(refreshOmronStatusAndPageAssets, 5000);
+    }
+
+    window.omronStatus = omronStatus;
+}
+
 function refreshOmronStatusAndPageAssets() {
-    refreshOmronStatus();
+    // while connected to the workspace event stream, the server pushes Omron status as it changes
+    if (window.workspaceEvents === undefined) {
+        refreshOmronStatus();
+    }
     refreshChart();
     refreshAdverseEvents();
     refreshRecommendations();
 }
 
+// subscribe to workspace data as the server builds it, rather than requesting each piece separately.  returns false
+// if the browser doesn't support server-sent events, in which case the caller should request each piece itself
+function connectWorkspaceEvents() {
+    if (typeof(EventSource) === 'undefined') {
+        return false;
+    }
+
+    let source = new EventSource('/events');
+
+    source.addEventListener('blood-pressures', function(e) {
+        let data = JSON.parse(e.data);
+        showBloodPressureObservations(prepareBloodPressureObservations(data.observations), data.version);
+    });
+
+    source.addEventListener('medications', function(e) {
+        window.meds = JSON.parse(e.data);
+        populateMedications();
+    });
+
+    source.addEventListener('adverse-events', function(e) {
+        window.adverseEvents = JSON.parse(e.data);
+        populateAdverseEvents();
+    });
+
+    source.addEventListener('recommendation', function(e) {
+        let data = JSON.parse(e.data);
+        let container = $('.recommendation[data-id="' + data.id + '"]').find('.cardsContainer');
+        populateRecommendation(container, data.cards);
+        enableDatePicker($(container).find('.goalTargetDate'));
+    });
+
+    source.addEventListener('omron-status', function(e) {
+        showOmronStatus(JSON.parse(e.data));
+    });
+
+    // the server couldn't build something it would otherwise have pushed, so fall back to requesting it directly
+    source.addEventListener('failed', function(e) {
+        let data = JSON.parse(e.data);
+        if (data.event === 'blood-pressures')        refreshChart();
+        else if (data.event === 'medications')      refreshMedications();
+        else if (data.event === 'adverse-events')   refreshAdverseEvents();
+        else if (data.event === 'recommendation') {
+            let container = $('.recommendation[data-id="' + data.key + '"]').find('.cardsContainer');
+            getRecommendation(data.key, function(cards) {
+                populateRecommendation(container, cards);
+                enableDatePicker($(container).find('.goalTargetDate'));
+            });
+        }
+    });
+
+    // EventSource reconnects on its own after an error, and the server resends everything it has on reconnect
+    window.workspaceEvents = source;
+
+    return true;
+}
+
 function isOmronSyncCompleted(omronStatus) {
     return window.omronStatus !== undefined &&
         (window.omronStatus.status === 'INITIATING_SYNC' || window.omronStatus.status === 'SYNCHRONIZING') &&
@@ -1,13 +1,51 @@
 package edu.ohsu.cmp.coach;
 
+import edu.ohsu.cmp.coach.service.MetricsService;
+import edu.ohsu.cmp.coach.workspace.WorkspaceSlot;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 
-@SpringBootTest
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@AutoConfigureMetrics
 class COACHApplicationTests {
 
+    @Autowired
+    private MeterRegistry registry;
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
     @Test
     void contextLoads() {
     }
 
+    @Test
+    void workspaceMetricsAreRegistered() {
+        for (WorkspaceSlot slot : WorkspaceSlot.values()) {
+            String key = slot.getConfigKey();
+            assertNotNull(registry.find(MetricsService.WORKSPACE_SLOT_BUILD).tag("slot", key).tag("outcome", "success").timer(), key);
+            assertNotNull(registry.find(MetricsService.WORKSPACE_SLOT_BUILD).tag("slot", key).tag("outcome", "failure").timer(), key);
+            assertNotNull(registry.find(MetricsService.WORKSPACE_CACHE_LOADS).tag("slot", key).timer(), key);
+            assertNotNull(registry.find(MetricsService.WORKSPACE_CACHE_REQUESTS).tag("slot", key).tag("result", "hit").counter(), key);
+            assertNotNull(registry.find(MetricsService.WORKSPACE_CACHE_REQUESTS).tag("slot", key).tag("result", "miss").counter(), key);
+        }
+    }
+
+    @Test
+    void metricsAreExposedForPrometheus() {
+        ResponseEntity<String> response = restTemplate.getForEntity("/actuator/prometheus", String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertNotNull(response.getBody());
+        assertTrue(response.getBody().contains("coach_workspace_slot_build_seconds"));
+        assertTrue(response.getBody().contains("coach_workspace_cache_requests_total"));
+    }
+
 }
@@ -0,0 +1,198 @@
+package edu.ohsu.cmp.coach.fhir;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FhirSearchStreamTest {
+    private static final int ENTRIES_PER_PAGE = 2;
+
+    private ExecutorService executor;
+    private AtomicInteger fetches;
+    private AtomicInteger listenerPages;
+    private AtomicReference<FhirSearchStream.Outcome> listenerOutcome;
+    private AtomicInteger listenerCalls;
+
+    @BeforeEach
+    void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+        fetches = new AtomicInteger();
+        listenerPages = new AtomicInteger();
+        listenerOutcome = new AtomicReference<>();
+        listenerCalls = new AtomicInteger();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void consumesEveryPageInOrder() {
+        try (FhirSearchStream stream = stream(5, 2, loader(5, -1))) {
+            List<String> ids = stream.resources().map(r -> r.getIdElement().getIdPart()).collect(Collectors.toList());
+
+            assertEquals(5 * ENTRIES_PER_PAGE, ids.size());
+            assertEquals("p1-0", ids.get(0));
+            assertEquals("p5-1", ids.get(ids.size() - 1));
+            assertEquals(5, stream.getPageCount());
+        }
+
+        assertEquals(1, listenerCalls.get());
+        assertEquals(FhirSearchStream.Outcome.COMPLETED, listenerOutcome.get());
+        assertEquals(5, listenerPages.get());
+    }
+
+    @Test
+    void readsAheadNoMoreThanConfigured() throws Exception {
+        try (FhirSearchStream stream = stream(10, 2, loader(10, -1))) {
+            // nothing consumed yet, so the first page and one more are held ready
+            awaitFetches(1);
+            Thread.sleep(200);
+            assertEquals(1, fetches.get());
+
+            // taking the first page frees a slot for another
+            stream.next();
+            awaitFetches(2);
+            Thread.sleep(200);
+            assertEquals(2, fetches.get());
+
+            // as does moving on to the second
+            for (int i = 1; i < ENTRIES_PER_PAGE; i ++) stream.next();
+            assertTrue(stream.hasNext());
+            awaitFetches(3);
+            Thread.sleep(200);
+            assertEquals(3, fetches.get());
+        }
+    }
+
+    @Test
+    void fetchesOnConsumingThreadWhenNoBackgroundThreadAvailable() {
+        Executor rejecting = runnable -> { throw new RejectedExecutionException("full"); };
+        FhirSearchStream stream = new FhirSearchStream("Patient", page(1, 3), loader(3, -1), null, rejecting, 2,
+                this::onComplete);
+
+        assertEquals(3 * ENTRIES_PER_PAGE, count(stream.resources()));
+        assertEquals(FhirSearchStream.Outcome.COMPLETED, listenerOutcome.get());
+        assertEquals(3, listenerPages.get());
+    }
+
+    @Test
+    void closeStopsFetchingAndReportsAbandoned() throws Exception {
+        FhirSearchStream stream = stream(10, 2, loader(10, -1));
+        stream.next();
+        stream.close();
+
+        assertFalse(stream.hasNext());
+        Thread.sleep(200);
+        int fetched = fetches.get();
+        Thread.sleep(200);
+        assertEquals(fetched, fetches.get());
+        assertTrue(fetched < 9);
+
+        assertEquals(1, listenerCalls.get());
+        assertEquals(FhirSearchStream.Outcome.ABANDONED, listenerOutcome.get());
+
+        stream.close();
+        assertEquals(1, listenerCalls.get());
+    }
+
+    @Test
+    void failureIsRethrownWhenConsumerReachesFailedPage() {
+        FhirSearchStream stream = stream(5, 2, loader(5, 3));
+
+        // pages 1 and 2 were fetched successfully, and are still delivered
+        for (int i = 0; i < 2 * ENTRIES_PER_PAGE; i ++) {
+            assertNotNull(stream.next());
+        }
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, stream::hasNext);
+        assertEquals("page 3 failed", e.getMessage());
+        assertEquals(FhirSearchStream.Outcome.FAILED, listenerOutcome.get());
+
+        stream.close();
+        assertEquals(1, listenerCalls.get());
+        assertEquals(FhirSearchStream.Outcome.FAILED, listenerOutcome.get());
+    }
+
+    @Test
+    void closeAfterUnconsumedFailureReportsFailed() throws Exception {
+        FhirSearchStream stream = stream(5, 2, loader(5, 2));
+        awaitFetches(1);
+        Thread.sleep(100);
+
+        stream.close();
+        assertEquals(FhirSearchStream.Outcome.FAILED, listenerOutcome.get());
+    }
+
+
+///////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private FhirSearchStream stream(int lastPage, int readAhead, UnaryOperator<Bundle> loader) {
+        return new FhirSearchStream("Patient", page(1, lastPage), loader, null, executor, readAhead, this::onComplete);
+    }
+
+    private void onComplete(int pages, FhirSearchStream.Outcome outcome) {
+        listenerCalls.incrementAndGet();
+        listenerPages.set(pages);
+        listenerOutcome.set(outcome);
+    }
+
+    /**
+     * @param failPage the page number whose fetch throws, or -1
+     */
+    private UnaryOperator<Bundle> loader(int lastPage, int failPage) {
+        return previous -> {
+            fetches.incrementAndGet();
+            int number = Integer.parseInt(previous.getIdElement().getIdPart()) + 1;
+            if (number == failPage) {
+                throw new IllegalStateException("page " + number + " failed");
+            }
+            return page(number, lastPage);
+        };
+    }
+
+    private static Bundle page(int number, int lastPage) {
+        Bundle bundle = new Bundle();
+        bundle.setId(String.valueOf(number));
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        for (int i = 0; i < ENTRIES_PER_PAGE; i ++) {
+            Patient p = new Patient();
+            p.setId("p" + number + "-" + i);
+            bundle.addEntry().setResource(p);
+        }
+        if (number < lastPage) {
+            bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl("page-" + (number + 1));
+        }
+        return bundle;
+    }
+
+    private void awaitFetches(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fetches.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(fetches.get() >= count, "expected " + count + " fetches, got " + fetches.get());
+    }
+
+    private static long count(Stream<Resource> resources) {
+        try (resources) {
+            return resources.count();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package edu.ohsu.cmp.coach.fhir;
+
+import edu.ohsu.cmp.coach.service.EHRService;
+import org.apache.commons.lang3.tuple.Pair;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ObservationQueryPlannerTest {
+    private static final int GROUP_COUNT = ObservationQueryPlanner.Group.values().length;
+
+    private EHRService ehrService;
+    private ObservationQueryPlanner planner;
+    private List<Integer> requestSizes;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ehrService = mock(EHRService.class);
+        planner = new ObservationQueryPlanner(ehrService, mock(FhirConfigManager.class), 60000);
+        requestSizes = new CopyOnWriteArrayList<>();
+        when(ehrService.getObservations(anyString(), anyList())).thenAnswer(invocation -> bundles(invocation.getArgument(1)));
+    }
+
+    @Test
+    void initialRequestFetchesEveryGroupAtOnce() throws Exception {
+        assertNotNull(planner.getObservations("s", ObservationQueryPlanner.Group.PROTOCOL));
+        assertNotNull(planner.getObservations("s", ObservationQueryPlanner.Group.PULSE));
+        assertNotNull(planner.getObservations("s", ObservationQueryPlanner.Group.DRINKS));
+
+        assertEquals(List.of(GROUP_COUNT), requestSizes);
+    }
+
+    @Test
+    void refreshFetchesOnlyRequestedGroup() throws Exception {
+        planner.getObservations("s", ObservationQueryPlanner.Group.PROTOCOL);
+
+        // PROTOCOL's batched result has already been collected, so this is a refresh
+        planner.getObservations("s", ObservationQueryPlanner.Group.PROTOCOL);
+
+        assertEquals(List.of(GROUP_COUNT, 1), requestSizes);
+    }
+
+    @Test
+    void planBatchBatchesAgain() throws Exception {
+        for (ObservationQueryPlanner.Group group : ObservationQueryPlanner.Group.values()) {
+            planner.getObservations("s", group);
+        }
+
+        planner.planBatch();
+        planner.getObservations("s", ObservationQueryPlanner.Group.BMI);
+        planner.getObservations("s", ObservationQueryPlanner.Group.SMOKING);
+
+        assertEquals(List.of(GROUP_COUNT, GROUP_COUNT), requestSizes);
+    }
+
+    @Test
+    void concurrentRequestsWaitForBatchInFlight() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            assertTrue(release.await(5, TimeUnit.SECONDS));
+            return bundles(invocation.getArgument(1));
+        }).when(ehrService).getObservations(anyString(), anyList());
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Bundle> protocol = executor.submit(() -> planner.getObservations("s", ObservationQueryPlanner.Group.PROTOCOL));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            // the batch is in flight, and the planner isn't locked while it is
+            Future<Bundle> pulse = executor.submit(() -> planner.getObservations("s", ObservationQueryPlanner.Group.PULSE));
+            planner.planBatch();
+            Thread.sleep(100);
+            assertFalse(pulse.isDone());
+
+            release.countDown();
+            assertNotNull(protocol.get(5, TimeUnit.SECONDS));
+            assertNotNull(pulse.get(5, TimeUnit.SECONDS));
+            assertEquals(List.of(GROUP_COUNT), requestSizes);
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failedBatchFallsBackToSingleFetches() throws Exception {
+        doAnswer(invocation -> {
+            List<Pair<String, String>> queries = invocation.getArgument(1);
+            if (queries.size() > 1) {
+                requestSizes.add(queries.size());
+                throw new IllegalStateException("batch failed");
+            }
+            return bundles(queries);
+        }).when(ehrService).getObservations(anyString(), anyList());
+
+        assertThrows(IllegalStateException.class, () -> planner.getObservations("s", ObservationQueryPlanner.Group.PROTOCOL));
+        assertNotNull(planner.getObservations("s", ObservationQueryPlanner.Group.PULSE));
+
+        assertEquals(List.of(GROUP_COUNT, 1), requestSizes);
+    }
+
+    private List<Bundle> bundles(List<Pair<String, String>> queries) {
+        requestSizes.add(queries.size());
+        List<Bundle> list = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i ++) {
+            list.add(new Bundle());
+        }
+        return list;
+    }
+}
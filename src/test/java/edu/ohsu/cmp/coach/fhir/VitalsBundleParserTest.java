@@ -0,0 +1,159 @@
+package edu.ohsu.cmp.coach.fhir;
+
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VitalsBundleParserTest {
+    private static final String LOINC = "http://loinc.org";
+
+    private final VitalsBundleParser parser = new VitalsBundleParser();
+
+    @Test
+    void readsNextLinkAmongOtherLinks() throws Exception {
+        Bundle bundle = searchset();
+        bundle.addLink().setRelation("self").setUrl("http://fhir/Observation?code=85354-9");
+        bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://fhir/Observation?page=2");
+        bundle.addLink().setRelation("previous").setUrl("http://fhir/Observation?page=0");
+
+        assertEquals("http://fhir/Observation?page=2", parse(bundle).getNextUrl());
+    }
+
+    @Test
+    void lastPageHasNoNextUrl() throws Exception {
+        Bundle bundle = searchset();
+        bundle.addLink().setRelation("self").setUrl("http://fhir/Observation?code=85354-9");
+
+        VitalsBundleParser.Page page = parse(bundle);
+        assertNull(page.getNextUrl());
+        assertTrue(page.getRecords().isEmpty());
+    }
+
+    @Test
+    void readsBloodPressurePanelComponents() throws Exception {
+        Observation o = observation("bp1", "85354-9");
+        o.addComponent().setCode(code("8480-6")).setValue(mmHg(120));
+        o.addComponent().setCode(code("8462-4")).setValue(mmHg(80));
+        o.setEncounter(new Reference("Encounter/e1"));
+        o.addNote().setText("COACH_PROTOCOL::Yes");
+
+        Bundle bundle = searchset();
+        bundle.addEntry().setFullUrl("http://fhir/Observation/bp1").setResource(o);
+
+        List<VitalsRecord> records = parse(bundle).getRecords();
+        assertEquals(1, records.size());
+
+        VitalsRecord record = records.get(0);
+        assertEquals("http://fhir/Observation/bp1", record.getId());
+        assertEquals("final", record.getStatus());
+        assertTrue(FhirUtil.hasCoding(record.getCode(), new Coding(LOINC, "85354-9", null)));
+        assertEquals("2023-01-02T03:04:05Z", record.getEffectiveDateTime());
+        assertEquals("Encounter/e1", record.getEncounter().getReference());
+        assertEquals(List.of("COACH_PROTOCOL::Yes"), record.getNotes());
+
+        List<VitalsRecord.Component> components = record.getComponents();
+        assertEquals(2, components.size());
+        assertEquals("8480-6", components.get(0).getCode().getCodingFirstRep().getCode());
+        assertEquals(0, new BigDecimal(120).compareTo(components.get(0).getValueQuantity().getValue()));
+        assertEquals("8462-4", components.get(1).getCode().getCodingFirstRep().getCode());
+        assertEquals(0, new BigDecimal(80).compareTo(components.get(1).getValueQuantity().getValue()));
+    }
+
+    @Test
+    void recognizesHomeSettingExtensionOnly() throws Exception {
+        Observation home = observation("home", "8867-4");
+        home.addExtension().setUrl("http://example.org/other").setValue(new StringType("x"));
+        FhirUtil.addHomeSettingExtension(home);
+
+        Observation office = observation("office", "8867-4");
+        office.addExtension().setUrl("http://example.org/other").setValue(new StringType("x"));
+
+        Bundle bundle = searchset();
+        bundle.addEntry().setResource(home);
+        bundle.addEntry().setResource(office);
+
+        List<VitalsRecord> records = parse(bundle).getRecords();
+        assertEquals(2, records.size());
+        assertTrue(records.get(0).hasHomeSettingExtension());
+        assertFalse(records.get(1).hasHomeSettingExtension());
+    }
+
+    @Test
+    void skipsEntriesThatAreNotObservations() throws Exception {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.WARNING).setDiagnostics("too many results");
+
+        Bundle bundle = searchset();
+        bundle.addEntry().setResource(observation("p1", "8867-4"));
+        bundle.addEntry().setResource(outcome).getSearch().setMode(Bundle.SearchEntryMode.OUTCOME);
+        bundle.addEntry().setResource(new Encounter().setStatus(Encounter.EncounterStatus.FINISHED).setId("e1"));
+        bundle.addEntry().setResource(observation("p2", "8867-4"));
+
+        List<VitalsRecord> records = parse(bundle).getRecords();
+        assertEquals(2, records.size());
+        assertEquals("Observation/p1", records.get(0).getId());
+        assertEquals("Observation/p2", records.get(1).getId());
+    }
+
+    @Test
+    void parsesFullObservationOnDemand() throws Exception {
+        Observation o = observation("p1", "8867-4");
+        o.setValue(new Quantity().setValue(72).setUnit("/min"));
+
+        Bundle bundle = searchset();
+        bundle.addEntry().setResource(o);
+
+        VitalsRecord record = parse(bundle).getRecords().get(0);
+        Observation parsed = record.getObservation();
+        assertEquals("Observation/p1", parsed.getId());
+        assertEquals(0, new BigDecimal(72).compareTo(parsed.getValueQuantity().getValue()));
+        assertSame(parsed, record.getObservation());
+    }
+
+    @Test
+    void rejectsResourcesOtherThanBundles() {
+        byte[] json = FhirUtil.toJson(observation("p1", "8867-4")).getBytes(StandardCharsets.UTF_8);
+        assertThrows(IOException.class, () -> parser.parse(new ByteArrayInputStream(json)));
+    }
+
+
+///////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private VitalsBundleParser.Page parse(Bundle bundle) throws IOException {
+        byte[] json = FhirUtil.toJson(bundle).getBytes(StandardCharsets.UTF_8);
+        return parser.parse(new ByteArrayInputStream(json));
+    }
+
+    private static Bundle searchset() {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        return bundle;
+    }
+
+    private static Observation observation(String id, String loincCode) {
+        Observation o = new Observation();
+        o.setId(id);
+        o.setStatus(Observation.ObservationStatus.FINAL);
+        o.setCode(code(loincCode));
+        o.setEffective(new DateTimeType("2023-01-02T03:04:05Z"));
+        return o;
+    }
+
+    private static CodeableConcept code(String loincCode) {
+        return new CodeableConcept().addCoding(new Coding(LOINC, loincCode, null));
+    }
+
+    private static Quantity mmHg(int value) {
+        return new Quantity().setValue(value).setUnit("mmHg").setSystem("http://unitsofmeasure.org").setCode("mm[Hg]");
+    }
+}
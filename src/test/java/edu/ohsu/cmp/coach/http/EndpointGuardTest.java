@@ -0,0 +1,197 @@
+package edu.ohsu.cmp.coach.http;
+
+import edu.ohsu.cmp.coach.config.HttpClientResilienceConfiguration;
+import edu.ohsu.cmp.coach.exception.EndpointUnavailableException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EndpointGuardTest {
+    private static final int MAX_TIMEOUT = 60000;
+
+    private HttpClientResilienceConfiguration config;
+
+    @BeforeEach
+    void setUp() {
+        config = new HttpClientResilienceConfiguration();
+        config.setMaxConcurrentRequests(2);
+        config.setMaxWaitMs(50);
+        config.setCircuitBreakerWindowSize(4);
+        config.setCircuitBreakerMinimumRequests(4);
+        config.setCircuitBreakerFailureRateThreshold(50);
+        config.setCircuitBreakerOpenSeconds(3600);
+        config.setAdaptiveTimeoutMinimumSamples(5);
+        config.setAdaptiveTimeoutMultiplier(4);
+        config.setAdaptiveTimeoutMinMs(100);
+        config.setLatencyWindowSize(10);
+        config.setRetryBudgetRatio(0.5);
+        config.setRetryBudgetMaxTokens(2);
+    }
+
+    @Test
+    void circuitOpensOnceFailureRateReachesThreshold() throws Exception {
+        EndpointGuard guard = guard();
+
+        request(guard, true);
+        request(guard, false);
+        request(guard, true);
+        assertEquals(EndpointGuard.CircuitState.CLOSED, guard.getCircuitState());
+
+        // 2 of the last 4 failed
+        request(guard, false);
+        assertEquals(EndpointGuard.CircuitState.OPEN, guard.getCircuitState());
+        assertThrows(EndpointUnavailableException.class, guard::acquire);
+    }
+
+    @Test
+    void failuresBelowThresholdKeepCircuitClosed() throws Exception {
+        EndpointGuard guard = guard();
+
+        for (int i = 0; i < 10; i ++) {
+            request(guard, i % 4 != 0);
+        }
+        assertEquals(EndpointGuard.CircuitState.CLOSED, guard.getCircuitState());
+    }
+
+    @Test
+    void successfulTrialClosesCircuit() throws Exception {
+        config.setCircuitBreakerOpenSeconds(0);
+        EndpointGuard guard = openedGuard();
+
+        guard.acquire();
+        assertEquals(EndpointGuard.CircuitState.HALF_OPEN, guard.getCircuitState());
+
+        // only a single trial request is let through
+        assertThrows(EndpointUnavailableException.class, guard::acquire);
+
+        guard.recordResponse(TimeUnit.MILLISECONDS.toNanos(10), true);
+        guard.release();
+        assertEquals(EndpointGuard.CircuitState.CLOSED, guard.getCircuitState());
+
+        // and the failures that opened it are forgotten
+        request(guard, false);
+        assertEquals(EndpointGuard.CircuitState.CLOSED, guard.getCircuitState());
+    }
+
+    @Test
+    void failedTrialReopensCircuit() throws Exception {
+        config.setCircuitBreakerOpenSeconds(0);
+        EndpointGuard guard = openedGuard();
+
+        guard.acquire();
+        guard.recordError();
+        guard.release();
+        assertEquals(EndpointGuard.CircuitState.OPEN, guard.getCircuitState());
+    }
+
+    @Test
+    void concurrencyLimitRejectsOnceAllSlotsAreTaken() throws Exception {
+        EndpointGuard guard = guard();
+
+        guard.acquire();
+        guard.acquire();
+        assertEquals(2, guard.getInFlight());
+        assertThrows(EndpointUnavailableException.class, guard::acquire);
+
+        guard.release();
+        guard.acquire();
+        assertEquals(2, guard.getInFlight());
+    }
+
+    @Test
+    void trialRejectedByConcurrencyLimitDoesNotBlockTheNextOne() throws Exception {
+        config.setCircuitBreakerOpenSeconds(0);
+        EndpointGuard guard = guard();
+
+        // both slots are held by requests that are still in flight as the circuit opens
+        guard.acquire();
+        guard.acquire();
+        for (int i = 0; i < 4; i ++) {
+            guard.recordError();
+        }
+        assertEquals(EndpointGuard.CircuitState.OPEN, guard.getCircuitState());
+
+        assertThrows(EndpointUnavailableException.class, guard::acquire);
+        assertEquals(EndpointGuard.CircuitState.HALF_OPEN, guard.getCircuitState());
+
+        guard.release();
+        guard.acquire();
+        guard.recordResponse(TimeUnit.MILLISECONDS.toNanos(10), true);
+        assertEquals(EndpointGuard.CircuitState.CLOSED, guard.getCircuitState());
+    }
+
+    @Test
+    void retryBudgetIsSpentAndRefilled() {
+        EndpointGuard guard = guard();
+
+        // starts full
+        assertTrue(guard.withdrawRetryToken());
+        assertTrue(guard.withdrawRetryToken());
+        assertFalse(guard.withdrawRetryToken());
+
+        // each request adds half a token
+        guard.depositRetryToken();
+        assertFalse(guard.withdrawRetryToken());
+        guard.depositRetryToken();
+        assertTrue(guard.withdrawRetryToken());
+        assertEquals(0, guard.getRetryTokens(), 0.0001);
+    }
+
+    @Test
+    void retryBudgetNeverExceedsMaximum() {
+        EndpointGuard guard = guard();
+
+        for (int i = 0; i < 100; i ++) {
+            guard.depositRetryToken();
+        }
+        assertEquals(2, guard.getRetryTokens(), 0.0001);
+    }
+
+    @Test
+    void adaptiveTimeoutFollowsIdempotentLatencyOnly() {
+        EndpointGuard guard = guard();
+        assertEquals(MAX_TIMEOUT, guard.getTimeoutMillis());
+
+        for (int i = 0; i < 5; i ++) {
+            guard.recordResponse(TimeUnit.MILLISECONDS.toNanos(200), true);
+        }
+        assertEquals(800, guard.getTimeoutMillis());
+
+        // responses whose latency isn't recorded (e.g. to POSTs) leave it alone
+        for (int i = 0; i < 5; i ++) {
+            guard.recordResponse(true);
+        }
+        assertEquals(800, guard.getTimeoutMillis());
+    }
+
+
+///////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private EndpointGuard guard() {
+        return new EndpointGuard("fhir.example.org", config, MAX_TIMEOUT, null);
+    }
+
+    private EndpointGuard openedGuard() throws Exception {
+        EndpointGuard guard = guard();
+        for (int i = 0; i < 4; i ++) {
+            request(guard, false);
+        }
+        assertEquals(EndpointGuard.CircuitState.OPEN, guard.getCircuitState());
+        return guard;
+    }
+
+    private static void request(EndpointGuard guard, boolean success) throws Exception {
+        guard.acquire();
+        try {
+            guard.recordResponse(TimeUnit.MILLISECONDS.toNanos(10), success);
+
+        } finally {
+            guard.release();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package edu.ohsu.cmp.coach.service;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import edu.ohsu.cmp.coach.config.CodeChunkingConfiguration;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CodeChunkingServiceTest {
+    private static final String SERVER_URL = "https://fhir.example.org/api/FHIR/R4";
+    private static final Function<List<String>, String> QUERY_BUILDER = chunk -> "Observation?code=" + StringUtils.join(chunk, ",");
+
+    private CodeChunkingConfiguration config;
+    private CodeChunkingService service;
+    private List<List<String>> requests;
+
+    @BeforeEach
+    void setUp() {
+        config = new CodeChunkingConfiguration();
+        config.setMaxCodesPerQuery(32);
+        config.setMaxUrlLength(8192);
+        config.setThreads(2);
+
+        service = new CodeChunkingService();
+        ReflectionTestUtils.setField(service, "config", config);
+        service.init();
+
+        requests = new CopyOnWriteArrayList<>();
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+    }
+
+    @Test
+    void splitsCodesByCodeCount() {
+        config.setMaxCodesPerQuery(3);
+
+        List<List<String>> chunks = service.plan(SERVER_URL, codes(7), QUERY_BUILDER);
+
+        assertEquals(List.of(codes(0, 3), codes(3, 6), codes(6, 7)), chunks);
+    }
+
+    @Test
+    void splitsCodesByUrlLength() {
+        // each code adds 7 characters ("c00000,")
+        int base = SERVER_URL.length() + 1 + QUERY_BUILDER.apply(codes(1)).length();
+        config.setMaxUrlLength(base + 2 * 7);
+
+        List<List<String>> chunks = service.plan(SERVER_URL, codes(7), QUERY_BUILDER);
+
+        assertEquals(List.of(codes(0, 3), codes(3, 6), codes(6, 7)), chunks);
+    }
+
+    @Test
+    void hostOverrideTakesPrecedence() {
+        CodeChunkingConfiguration.Limits limits = new CodeChunkingConfiguration.Limits();
+        limits.setMaxCodesPerQuery(2);
+        config.getServers().put("fhir.example.org", limits);
+
+        assertEquals(2, service.getMaxCodesPerQuery(SERVER_URL));
+        assertEquals(32, service.getMaxCodesPerQuery("https://other.example.org/fhir"));
+        assertEquals(4, service.plan(SERVER_URL, codes(7), QUERY_BUILDER).size());
+    }
+
+    @Test
+    void singleCodeIsNeverSplit() {
+        config.setMaxUrlLength(10);
+
+        assertEquals(List.of(codes(1)), service.plan(SERVER_URL, codes(1), QUERY_BUILDER));
+    }
+
+    @Test
+    void returnsResultsInCodeOrder() throws Exception {
+        config.setMaxCodesPerQuery(2);
+
+        List<String> results = service.search(SERVER_URL, codes(7), QUERY_BUILDER, chunk -> {
+            requests.add(chunk);
+            return StringUtils.join(chunk, ",");
+        });
+
+        assertEquals(List.of("c00000,c00001", "c00002,c00003", "c00004,c00005", "c00006"), results);
+        assertEquals(4, requests.size());
+    }
+
+    @Test
+    void learnsCodeLimitFrom400() throws Exception {
+        List<String> results = service.search(SERVER_URL, codes(8), QUERY_BUILDER, rejectingMoreThan(2, 400));
+
+        assertEquals(codes(8), flatten(results));
+        assertEquals(2, service.getMaxCodesPerQuery(SERVER_URL));
+
+        // later searches are planned to fit from the start
+        requests.clear();
+        service.search(SERVER_URL, codes(8), QUERY_BUILDER, rejectingMoreThan(2, 400));
+        assertEquals(4, requests.size());
+        for (List<String> request : requests) {
+            assertEquals(2, request.size());
+        }
+
+        // but only for that host
+        assertEquals(32, service.getMaxCodesPerQuery("https://other.example.org/fhir"));
+    }
+
+    @Test
+    void learnsUrlLengthFrom414() throws Exception {
+        List<String> results = service.search(SERVER_URL, codes(8), QUERY_BUILDER, rejectingMoreThan(2, 414));
+
+        assertEquals(codes(8), flatten(results));
+        assertEquals(32, service.getMaxCodesPerQuery(SERVER_URL));
+
+        // the longest rejected URL was that of 4 codes
+        int rejectedLength = SERVER_URL.length() + 1 + QUERY_BUILDER.apply(codes(4)).length();
+        assertEquals(rejectedLength - 1, service.getMaxUrlLength(SERVER_URL));
+        assertEquals(3, service.plan(SERVER_URL, codes(8), QUERY_BUILDER).get(0).size());
+    }
+
+    @Test
+    void rejectedSingleCodeIsRethrownWithoutLearning() {
+        assertThrows(InvalidRequestException.class, () ->
+                service.search(SERVER_URL, codes(1), QUERY_BUILDER, rejectingMoreThan(0, 400)));
+
+        assertEquals(32, service.getMaxCodesPerQuery(SERVER_URL));
+        assertEquals(8192, service.getMaxUrlLength(SERVER_URL));
+    }
+
+    @Test
+    void otherErrorsAreNotRetried() {
+        BaseServerResponseException e = assertThrows(BaseServerResponseException.class, () ->
+                service.search(SERVER_URL, codes(8), QUERY_BUILDER, chunk -> {
+                    requests.add(chunk);
+                    throw new BaseServerResponseException(500, "server error") {};
+                }));
+
+        assertEquals(500, e.getStatusCode());
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    void mergeOmitsResourcesAlreadyIncluded() {
+        Bundle a = bundle("o1", "o2");
+        Bundle b = bundle("o2", "o3");
+
+        Bundle merged = CodeChunkingService.merge(Arrays.asList(a, null, b));
+
+        assertEquals(3, merged.getEntry().size());
+        assertEquals(3, merged.getTotal());
+        assertEquals("o3", merged.getEntry().get(2).getResource().getIdElement().getIdPart());
+    }
+
+    @Test
+    void mergeOfSingleOrNoBundles() {
+        Bundle a = bundle("o1");
+
+        assertSame(a, CodeChunkingService.merge(Arrays.asList(null, a)));
+        assertNull(CodeChunkingService.merge(Arrays.asList(null, null)));
+    }
+
+    @Test
+    void splitCodesIgnoresBlanks() {
+        assertEquals(List.of("a|1", "b|2"), CodeChunkingService.splitCodes(" a|1, ,b|2,"));
+        assertTrue(CodeChunkingService.splitCodes(null).isEmpty());
+    }
+
+
+///////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private CodeChunkingService.ChunkSearch<String> rejectingMoreThan(int maxCodes, int status) {
+        return chunk -> {
+            requests.add(new ArrayList<>(chunk));
+            if (chunk.size() > maxCodes) {
+                if (status == 400) throw new InvalidRequestException("too many codes");
+                else throw new BaseServerResponseException(status, "URI too long") {};
+            }
+            return StringUtils.join(chunk, ",");
+        };
+    }
+
+    private static List<String> flatten(List<String> results) {
+        List<String> list = new ArrayList<>();
+        for (String result : results) {
+            list.addAll(CodeChunkingService.splitCodes(result));
+        }
+        return list;
+    }
+
+    private static List<String> codes(int count) {
+        return codes(0, count);
+    }
+
+    private static List<String> codes(int from, int to) {
+        List<String> list = new ArrayList<>();
+        for (int i = from; i < to; i ++) {
+            list.add(String.format("c%05d", i));
+        }
+        return list;
+    }
+
+    private static Bundle bundle(String... ids) {
+        Bundle bundle = new Bundle();
+        for (String id : ids) {
+            Observation o = new Observation();
+            o.setId(id);
+            bundle.addEntry().setResource(o);
+        }
+        return bundle;
+    }
+}
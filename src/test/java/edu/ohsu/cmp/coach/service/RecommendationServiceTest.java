@@ -0,0 +1,98 @@
+package edu.ohsu.cmp.coach.service;
+
+import edu.ohsu.cmp.coach.fhir.FhirConfigManager;
+import edu.ohsu.cmp.coach.model.BloodPressureModel;
+import edu.ohsu.cmp.coach.model.ObservationSource;
+import edu.ohsu.cmp.coach.model.PatientModel;
+import edu.ohsu.cmp.coach.model.cqfruler.HookPrefetch;
+import edu.ohsu.cmp.coach.workspace.UserWorkspace;
+import edu.ohsu.cmp.coach.workspace.UserWorkspaceService;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RecommendationServiceTest {
+    private static final String SESSION_ID = "session";
+
+    private RecommendationService service;
+    private FhirConfigManager fcm;
+    private BloodPressureService bpService;
+    private List<BloodPressureModel> readings;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        fcm = mock(FhirConfigManager.class);
+        when(fcm.getBpValueUnit()).thenReturn("mm[Hg]");
+        when(fcm.getBpPanelCommonCoding()).thenReturn(new Coding("http://loinc.org", "55284-4", null));
+        when(fcm.getEncounterClassHomeCoding()).thenReturn(new Coding("http://terminology.hl7.org/CodeSystem/v3-ActCode", "HH", null));
+        when(fcm.getProtocolCoding()).thenReturn(new Coding("https://coach.ohsu.edu", "protocol", null));
+        when(fcm.getProtocolAnswerCoding()).thenReturn(new Coding("https://coach.ohsu.edu", "protocol-answer", null));
+        when(fcm.getProtocolAnswerYes()).thenReturn("yes");
+        when(fcm.getProcedureCounselingCoding()).thenReturn(new Coding("http://snomed.info/sct", "409063005", null));
+
+        Patient patient = new Patient();
+        patient.setId("p1");
+        PatientModel patientModel = mock(PatientModel.class);
+        when(patientModel.getSourcePatient()).thenReturn(patient);
+
+        UserWorkspace workspace = mock(UserWorkspace.class);
+        when(workspace.getPatient()).thenReturn(patientModel);
+        when(workspace.getFhirConfigManager()).thenReturn(fcm);
+        when(workspace.getEncounterDiagnosisConditions()).thenReturn(new Bundle());
+        when(workspace.getProblemListConditions()).thenReturn(new Bundle());
+        when(workspace.getMedications()).thenReturn(Collections.emptyList());
+        when(workspace.getOtherSupplementalResources()).thenReturn(new Bundle());
+
+        UserWorkspaceService userWorkspaceService = mock(UserWorkspaceService.class);
+        when(userWorkspaceService.get(anyString())).thenReturn(workspace);
+
+        readings = new ArrayList<>();
+        readings.add(new BloodPressureModel(ObservationSource.COACH_UI, 128, 82, new Date(1700000000000L), true, fcm));
+        readings.add(new BloodPressureModel(ObservationSource.COACH_UI, 135, 88, new Date(1700086400000L), null, fcm));
+        bpService = mock(BloodPressureService.class);
+        when(bpService.getBloodPressureReadings(anyString())).thenAnswer(invocation -> new ArrayList<>(readings));
+
+        service = new RecommendationService();
+        ReflectionTestUtils.setField(service, "userWorkspaceService", userWorkspaceService);
+        ReflectionTestUtils.setField(service, "fcm", fcm);
+        ReflectionTestUtils.setField(service, "bpService", bpService);
+        ReflectionTestUtils.setField(service, "goalService", mock(GoalService.class));
+        ReflectionTestUtils.setField(service, "counselingService", mock(CounselingService.class));
+        ReflectionTestUtils.setField(service, "adverseEventService", mock(AdverseEventService.class));
+    }
+
+    @Test
+    void prefetchIsTheSameWhenBuiltTwiceForTheSameData() throws Exception {
+        HookPrefetch first = service.buildHookPrefetch(SESSION_ID);
+        HookPrefetch second = service.buildHookPrefetch(SESSION_ID);
+
+        assertEquals(first.getPrefetch(), second.getPrefetch());
+        assertEquals(first.getDigest(), second.getDigest());
+
+        // resources built for COACH-originated readings still reference each other by UUID
+        assertTrue(first.getPrefetch().contains("urn:uuid:"));
+    }
+
+    @Test
+    void prefetchChangesWithTheData() throws Exception {
+        HookPrefetch before = service.buildHookPrefetch(SESSION_ID);
+
+        readings.add(new BloodPressureModel(ObservationSource.COACH_UI, 142, 91, new Date(1700172800000L), null, fcm));
+        HookPrefetch after = service.buildHookPrefetch(SESSION_ID);
+
+        assertNotEquals(before.getDigest(), after.getDigest());
+    }
+}
@@ -0,0 +1,56 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WorkspaceLoadGraphTest {
+
+    @Test
+    void dependentRejectedAfterExecuteReturnsIsRecordedAsFailed() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger submitted = new AtomicInteger();
+
+        // accepts the first stage, then rejects everything, as a session executor does once it's shut down
+        Executor executor = runnable -> {
+            if (submitted.incrementAndGet() > 1) throw new RejectedExecutionException("closed");
+            new Thread(runnable).start();
+        };
+
+        CompletableFuture<WorkspaceLoadReport> future = new WorkspaceLoadGraph("test")
+                .add(WorkspaceSlot.ORDER_SERVICE_REQUESTS, () -> {
+                    try {
+                        release.await();
+
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                })
+                .add(WorkspaceSlot.REMOTE_GOALS, () -> fail("shouldn't run"))
+                .execute(executor);
+
+        assertFalse(future.isDone());
+        release.countDown();
+
+        WorkspaceLoadReport report = future.get(5, TimeUnit.SECONDS);
+        assertTrue(report.getTiming(WorkspaceSlot.ORDER_SERVICE_REQUESTS).isSuccess());
+        assertFalse(report.getTiming(WorkspaceSlot.REMOTE_GOALS).isSuccess());
+    }
+
+    @Test
+    void failedStageSkipsOnlyItsDependents() throws Exception {
+        WorkspaceLoadReport report = new WorkspaceLoadGraph("test")
+                .add(WorkspaceSlot.ORDER_SERVICE_REQUESTS, () -> { throw new IllegalStateException("boom"); })
+                .add(WorkspaceSlot.REMOTE_GOALS, () -> fail("shouldn't run"))
+                .add(WorkspaceSlot.ENCOUNTERS, () -> {})
+                .execute(Executors.newCachedThreadPool())
+                .get(5, TimeUnit.SECONDS);
+
+        assertFalse(report.getTiming(WorkspaceSlot.ORDER_SERVICE_REQUESTS).isSuccess());
+        assertFalse(report.hasTiming(WorkspaceSlot.REMOTE_GOALS));
+        assertTrue(report.getTiming(WorkspaceSlot.ENCOUNTERS).isSuccess());
+    }
+}
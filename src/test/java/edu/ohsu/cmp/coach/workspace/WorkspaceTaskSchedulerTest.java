@@ -0,0 +1,55 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WorkspaceTaskSchedulerTest {
+
+    private WorkspaceTaskScheduler scheduler;
+
+    @BeforeEach
+    void setUp() {
+        scheduler = new WorkspaceTaskScheduler(2, 2, 10, 100, 100, null);
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    void shuttingDownReplacedExecutorLeavesNewOneRunning() throws Exception {
+        WorkspaceTaskScheduler.SessionExecutor previous = scheduler.forSession("session");
+        WorkspaceTaskScheduler.SessionExecutor current = scheduler.forSession("session");
+        assertNotSame(previous, current);
+
+        // as when a relaunched workspace replaces the previous one, which is then shut down
+        previous.shutdown();
+        assertThrows(RejectedExecutionException.class, () -> previous.execute(() -> {}));
+
+        CountDownLatch ran = new CountDownLatch(1);
+        current.execute(ran::countDown);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.getSessionCount());
+    }
+
+    @Test
+    void shutdownDiscardsOnlyThatSessionsTasks() throws Exception {
+        WorkspaceTaskScheduler.SessionExecutor a = scheduler.forSession("a");
+        WorkspaceTaskScheduler.SessionExecutor b = scheduler.forSession("b");
+
+        a.shutdown();
+
+        CountDownLatch ran = new CountDownLatch(1);
+        b.execute(ran::countDown);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.getSessionCount());
+    }
+}